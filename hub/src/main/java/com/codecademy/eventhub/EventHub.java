@@ -1,24 +1,41 @@
 package com.codecademy.eventhub;
 
-import com.google.common.collect.ArrayTable;
-import com.google.common.collect.ContiguousSet;
-import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Range;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.collect.Table;
+import com.codecademy.eventhub.base.Bitmap;
+import com.codecademy.eventhub.base.HyperLogLog;
+import com.codecademy.eventhub.base.ScanScope;
+import com.codecademy.eventhub.index.ActiveUserIndex;
 import com.codecademy.eventhub.index.DatedEventIndex;
 import com.codecademy.eventhub.index.EventIndex;
+import com.codecademy.eventhub.index.InvertedEventIndex;
+import com.codecademy.eventhub.index.InvertedUserIndex;
 import com.codecademy.eventhub.index.PropertiesIndex;
+import com.codecademy.eventhub.index.RollupIndex;
 import com.codecademy.eventhub.index.ShardedEventIndex;
+import com.codecademy.eventhub.index.UniqueUserIndex;
 import com.codecademy.eventhub.index.UserEventIndex;
+import com.codecademy.eventhub.list.DmaFileFactories;
 import com.codecademy.eventhub.list.DummyIdList;
 import com.codecademy.eventhub.list.IdList;
 import com.codecademy.eventhub.list.MemIdList;
 import com.codecademy.eventhub.model.Event;
 import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.query.QueryCache;
+import com.codecademy.eventhub.query.QueryContext;
+import com.codecademy.eventhub.query.QueryParser;
+import com.codecademy.eventhub.query.QueryPlan;
+import com.codecademy.eventhub.query.QueryPlanner;
+import com.codecademy.eventhub.query.QueryStatement;
+import com.codecademy.eventhub.query.StandingCohort;
+import com.codecademy.eventhub.query.StandingFunnel;
+import com.codecademy.eventhub.query.StandingQueries;
+import com.codecademy.eventhub.query.StandingQuery;
+import com.codecademy.eventhub.query.UserSample;
 import com.codecademy.eventhub.storage.EventStorage;
 import com.codecademy.eventhub.storage.UserStorage;
+import com.codecademy.eventhub.storage.filter.CompiledFilter;
 import com.codecademy.eventhub.storage.filter.Filter;
 import com.codecademy.eventhub.storage.filter.TrueFilter;
 import org.joda.time.DateTime;
@@ -29,114 +46,486 @@ import org.joda.time.format.DateTimeFormatter;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
-// TODO: query language
 // TODO: integrate com.codahale.metrics
 // TODO: refactor to have IdManager & Id class
 // TODO: consider column oriented storage
-// TODO: separate cache for previously computed result? same binary or redis?
 // TODO: move synchronization responsibility to low level
 // TODO: compression of DmaIdList
-// TODO: native byte order for performance
 public class EventHub implements Closeable {
   private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormat.forPattern("yyyyMMdd");
+  // number of events whose filters are evaluated together, see EventStorage.visitEvents
+  private static final int EVENT_BATCH_SIZE = 1024;
+  // number of users below which a funnel task counts them itself rather than splitting them
+  private static final int MIN_USERS_PER_FUNNEL_TASK = 256;
 
   private final String directory;
   private final ShardedEventIndex shardedEventIndex;
   private final DatedEventIndex datedEventIndex;
   private final PropertiesIndex propertiesIndex;
+  private final InvertedEventIndex invertedEventIndex;
+  private final ActiveUserIndex activeUserIndex;
+  private final RollupIndex rollupIndex;
+  private final UniqueUserIndex uniqueUserIndex;
   private final UserEventIndex userEventIndex;
   private final EventStorage eventStorage;
   private final UserStorage userStorage;
+  private final ForkJoinPool queryPool;
+  private final QueryCache queryCache;
+  private final StandingQueries standingQueries;
+  private final DmaFileFactories dmaFileFactories;
+  private final QueryPlanner queryPlanner;
+  // the number of events added to every index, queries read this snapshot when they start and
+  // ignore the events after it, so that they run without locking while events are being added
+  private volatile long numIndexedEvents;
 
   public EventHub(String directory, ShardedEventIndex shardedEventIndex,
       DatedEventIndex datedEventIndex, PropertiesIndex propertiesIndex,
-      UserEventIndex userEventIndex, EventStorage eventStorage, UserStorage userStorage) {
+      InvertedEventIndex invertedEventIndex, ActiveUserIndex activeUserIndex,
+      RollupIndex rollupIndex, UniqueUserIndex uniqueUserIndex, UserEventIndex userEventIndex,
+      EventStorage eventStorage, UserStorage userStorage, ForkJoinPool queryPool,
+      QueryCache queryCache, StandingQueries standingQueries, DmaFileFactories dmaFileFactories) {
     this.directory = directory;
     this.shardedEventIndex = shardedEventIndex;
     this.datedEventIndex = datedEventIndex;
     this.propertiesIndex = propertiesIndex;
+    this.invertedEventIndex = invertedEventIndex;
+    this.activeUserIndex = activeUserIndex;
+    this.rollupIndex = rollupIndex;
+    this.uniqueUserIndex = uniqueUserIndex;
     this.userEventIndex = userEventIndex;
     this.eventStorage = eventStorage;
     this.userStorage = userStorage;
+    this.queryPool = queryPool;
+    this.queryCache = queryCache;
+    this.standingQueries = standingQueries;
+    this.dmaFileFactories = dmaFileFactories;
+    this.queryPlanner = new QueryPlanner(invertedEventIndex, rollupIndex, eventStorage,
+        userStorage);
+
+    // the bitmap indices are only persisted on close, so they catch up with the events added since
+    long numEvents = eventStorage.getNumRecords();
+    for (long eventId = invertedEventIndex.getNumIndexedEvents(); eventId < numEvents; eventId++) {
+      invertedEventIndex.addEvent(eventId, eventStorage.getEvent(eventId));
+    }
+    for (long eventId = activeUserIndex.getNumIndexedEvents(); eventId < numEvents; eventId++) {
+      Event event = eventStorage.getEvent(eventId);
+      activeUserIndex.addEvent(eventId, event.getEventType(), event.getDate(),
+          eventStorage.getUserId(eventId));
+    }
+    for (long eventId = rollupIndex.getNumIndexedEvents(); eventId < numEvents; eventId++) {
+      rollupIndex.addEvent(eventId, eventStorage.getEvent(eventId));
+    }
+    for (long eventId = uniqueUserIndex.getNumIndexedEvents(); eventId < numEvents; eventId++) {
+      uniqueUserIndex.addEvent(eventId, eventStorage.getEvent(eventId),
+          eventStorage.getUserId(eventId));
+    }
+    for (long eventId = standingQueries.getNumIndexedEvents(); eventId < numEvents; eventId++) {
+      standingQueries.addEvent(eventId, eventStorage.getEvent(eventId),
+          eventStorage.getUserId(eventId), datedEventIndex.getDate(eventId));
+    }
+    this.numIndexedEvents = numEvents;
   }
 
   public int[][] getRetentionTable(String startDateString,
       String endDateString, int numDaysPerCohort, int numColumns, String rowEventType,
       String columnEventType, Filter rowEventFilter, Filter columnEventFilter) {
+    return getRetentionTable(startDateString, endDateString, numDaysPerCohort, numColumns,
+        rowEventType, columnEventType, rowEventFilter, columnEventFilter, UserSample.ALL);
+  }
+
+  // the retention table of the sampled users only, see UserSample.estimate to scale it back
+  public int[][] getRetentionTable(String startDateString,
+      String endDateString, int numDaysPerCohort, int numColumns, String rowEventType,
+      String columnEventType, Filter rowEventFilter, Filter columnEventFilter,
+      UserSample sample) {
+    return getRetentionTable(startDateString, endDateString, numDaysPerCohort, numColumns,
+        rowEventType, columnEventType, rowEventFilter, columnEventFilter, sample,
+        invertedEventIndex.getQuery(rowEventType, rowEventFilter),
+        invertedEventIndex.getQuery(columnEventType, columnEventFilter));
+  }
+
+  // the filtered events of the rows and the columns are enumerated through the given inverted
+  // index queries, or through the sharded index when null, see enumerateEventIds
+  private int[][] getRetentionTable(String startDateString, String endDateString,
+      int numDaysPerCohort, int numColumns, String rowEventType, String columnEventType,
+      Filter rowEventFilter, Filter columnEventFilter, UserSample sample,
+      InvertedEventIndex.Query rowQuery, InvertedEventIndex.Query columnQuery) {
     DateTime startDate = DATE_TIME_FORMATTER.parseDateTime(startDateString);
     DateTime endDate = DATE_TIME_FORMATTER.parseDateTime(endDateString);
     int numRows = (Days.daysBetween(startDate, endDate).getDays() + 1) / numDaysPerCohort;
+    // the last column window ends numColumns windows after the last row window
+    QueryCache.Key key = new QueryCache.Key(
+        Lists.<Object>newArrayList("cohort", startDateString, endDateString, numDaysPerCohort,
+            numColumns, rowEventType, columnEventType, rowEventFilter, columnEventFilter, sample),
+        Sets.newHashSet(rowEventType, columnEventType), startDateString,
+        startDate.plusDays((numRows + numColumns) * numDaysPerCohort).toString(DATE_TIME_FORMATTER),
+        false /* isUserFiltered */);
+    QueryCache.Entry entry = queryCache.get(key);
+    int[][] retentionTable = (int[][]) entry.getResult();
+    if (retentionTable == null) {
+      try {
+        retentionTable = computeRetentionTable(startDate, numRows, numDaysPerCohort, numColumns,
+            rowEventType, columnEventType, rowEventFilter, columnEventFilter, sample, rowQuery,
+            columnQuery);
+      } finally {
+        // cancelled, past its deadline or failed
+        if (retentionTable == null) {
+          queryCache.release(key, entry);
+        }
+      }
+      queryCache.put(key, entry, retentionTable,
+          4L * numRows * (numColumns + 1) + 16L * (numRows + 1));
+    }
+    return copyOf(retentionTable);
+  }
 
-    List<Set<Integer>> rowIdSets = getUserIdsSets(rowEventType, startDate, rowEventFilter,
-        numDaysPerCohort, numRows);
-    List<Set<Integer>> columnIdSets = getUserIdsSets(columnEventType, startDate, columnEventFilter,
-        numDaysPerCohort,
-        numColumns + numRows);
+  private int[][] computeRetentionTable(final DateTime startDate, int numRows,
+      final int numDaysPerCohort, final int numColumns, final String rowEventType,
+      final String columnEventType, final Filter rowEventFilter, final Filter columnEventFilter,
+      final UserSample sample, final InvertedEventIndex.Query rowQuery,
+      final InvertedEventIndex.Query columnQuery) {
+    try (ScanScope scanScope = ScanScope.open()) {
+      final long maxEventId = numIndexedEvents;
 
-    Table<Integer, Integer, Integer> retentionTable = ArrayTable.create(
-        ContiguousSet.create(Range.closedOpen(0, numRows), DiscreteDomain.integers()),
-        ContiguousSet.create(Range.closedOpen(0, numColumns + 1), DiscreteDomain.integers()));
-    retentionTable.put(0, 0, 0);
-    for (int i = 0; i < numRows; i++) {
-      retentionTable.put(i, 0, rowIdSets.get(i).size());
+      // the windows overlap by a day and column windows repeat the dates of the row windows, so
+      // every date is scanned once and the windows are unions of the daily user ids
+      final Bitmap[] rowDailyUserIds = new Bitmap[numRows * numDaysPerCohort + 1];
+      final Bitmap[] columnDailyUserIds =
+          new Bitmap[(numRows + numColumns) * numDaysPerCohort + 1];
+      forEachIndex(rowDailyUserIds.length + columnDailyUserIds.length, new IndexTask() {
+        @Override
+        public void run(int i) {
+          if (i < rowDailyUserIds.length) {
+            rowDailyUserIds[i] = getDailyUserIds(rowEventType, startDate.plusDays(i),
+                rowEventFilter, rowQuery, sample, maxEventId);
+          } else {
+            int day = i - rowDailyUserIds.length;
+            columnDailyUserIds[day] = getDailyUserIds(columnEventType, startDate.plusDays(day),
+                columnEventFilter, columnQuery, sample, maxEventId);
+          }
+        }
+      });
+
+      final Bitmap[] rowUserIds = new Bitmap[numRows];
+      final Bitmap[] columnUserIds = new Bitmap[numRows + numColumns];
+      forEachIndex(rowUserIds.length + columnUserIds.length, new IndexTask() {
+        @Override
+        public void run(int i) {
+          if (i < rowUserIds.length) {
+            rowUserIds[i] = getWindowUserIds(rowDailyUserIds, i, numDaysPerCohort);
+          } else {
+            int window = i - rowUserIds.length;
+            columnUserIds[window] = getWindowUserIds(columnDailyUserIds, window, numDaysPerCohort);
+          }
+        }
+      });
+
+      final int[][] retentionTable = new int[numRows][numColumns + 1];
+      forEachIndex(numRows, new IndexTask() {
+        @Override
+        public void run(int i) {
+          retentionTable[i][0] = rowUserIds[i].getCardinality();
+          for (int j = 0; j < numColumns; j++) {
+            retentionTable[i][j + 1] = Bitmap.andCardinality(rowUserIds[i], columnUserIds[j + i]);
+          }
+        }
+      });
+      return retentionTable;
+    }
+  }
+
+  // the retention table of getRetentionTable without event filters, estimated from the unique user
+  // sketches rather than computed from the user ids, for cohorts too large to be counted exactly
+  public int[][] getApproximateRetentionTable(String startDateString, String endDateString,
+      int numDaysPerCohort, int numColumns, String rowEventType, String columnEventType) {
+    DateTime startDate = DATE_TIME_FORMATTER.parseDateTime(startDateString);
+    DateTime endDate = DATE_TIME_FORMATTER.parseDateTime(endDateString);
+    int numRows = (Days.daysBetween(startDate, endDate).getDays() + 1) / numDaysPerCohort;
+    HyperLogLog[] rowUsers = new HyperLogLog[numRows];
+    for (int i = 0; i < rowUsers.length; i++) {
+      rowUsers[i] = getWindowUsers(rowEventType, startDate, i, numDaysPerCohort);
+    }
+    HyperLogLog[] columnUsers = new HyperLogLog[numRows + numColumns];
+    for (int i = 0; i < columnUsers.length; i++) {
+      columnUsers[i] = getWindowUsers(columnEventType, startDate, i, numDaysPerCohort);
     }
+    int[][] retentionTable = new int[numRows][numColumns + 1];
     for (int i = 0; i < numRows; i++) {
+      retentionTable[i][0] = (int) rowUsers[i].getCardinality();
       for (int j = 0; j < numColumns; j++) {
-        Set<Integer> rowSet = rowIdSets.get(i);
-        Set<Integer> columnSet = columnIdSets.get(j + i);
-        int count = 0;
-        for (Integer columnValue : columnSet) {
-          if (rowSet.contains(columnValue)) {
-            count++;
-          }
+        retentionTable[i][j + 1] = (int) HyperLogLog.intersectionCardinality(rowUsers[i],
+            columnUsers[j + i]);
+      }
+    }
+    return retentionTable;
+  }
+
+  // the approximate number of users who did an event of the given type within the dates
+  public long getApproximateUniqueUserCount(String eventType, String startDate, String endDate) {
+    return uniqueUserIndex.getUsers(eventType, startDate, endDate).getCardinality();
+  }
+
+  // the approximate number of users who did an event of the given type within the dates for each
+  // value of the key, which only works for the keys with few enough values
+  public Map<String, Long> getApproximateUniqueUserCounts(String eventType, String key,
+      String startDate, String endDate) {
+    Map<String, HyperLogLog> users = uniqueUserIndex.getUsers(eventType, key, startDate, endDate);
+    if (users == null) {
+      throw new IllegalArgumentException(String.format(
+          "%s of %s has too many values to be sketched", key, eventType));
+    }
+    Map<String, Long> counts = Maps.newTreeMap();
+    for (Map.Entry<String, HyperLogLog> value : users.entrySet()) {
+      counts.put(value.getKey(), value.getValue().getCardinality());
+    }
+    return counts;
+  }
+
+  // for each date, the number of users who did an event of the given type, or of any type when
+  // null, within the numDaysPerWindow days ending on that date, i.e. DAU, WAU and MAU for 1, 7 and
+  // 30 days
+  public int[] getActiveUserCounts(String eventType, String startDateString,
+      String endDateString, int numDaysPerWindow) {
+    DateTime startDate = DATE_TIME_FORMATTER.parseDateTime(startDateString);
+    DateTime endDate = DATE_TIME_FORMATTER.parseDateTime(endDateString);
+    int numDays = Days.daysBetween(startDate, endDate).getDays() + 1;
+    int[] activeUserCounts = new int[numDays];
+    for (int i = 0; i < numDays; i++) {
+      DateTime date = startDate.plusDays(i);
+      activeUserCounts[i] = activeUserIndex.getUserIds(eventType,
+          date.minusDays(numDaysPerWindow - 1).toString(DATE_TIME_FORMATTER),
+          date.toString(DATE_TIME_FORMATTER)).getCardinality();
+    }
+    return activeUserCounts;
+  }
+
+  public int[] getFunnelCounts(String startDate, String endDate, String[] funnelStepsEventTypes,
+      int numDaysToCompleteFunnel, List<Filter> eventFilters, Filter userFilter) {
+    return getFunnelCounts(startDate, endDate, funnelStepsEventTypes, numDaysToCompleteFunnel,
+        eventFilters, userFilter, UserSample.ALL);
+  }
+
+  // the funnel counts of the sampled users only, see UserSample.estimate to scale them back
+  public int[] getFunnelCounts(String startDate, String endDate, String[] funnelStepsEventTypes,
+      int numDaysToCompleteFunnel, List<Filter> eventFilters, Filter userFilter,
+      UserSample sample) {
+    return getFunnelCounts(startDate, endDate, funnelStepsEventTypes, numDaysToCompleteFunnel,
+        eventFilters, userFilter, sample,
+        invertedEventIndex.getQuery(funnelStepsEventTypes[0], eventFilters.get(0)));
+  }
+
+  // the events of the first step are enumerated through the given inverted index query, or
+  // through the sharded index when null, see enumerateEventIds
+  private int[] getFunnelCounts(String startDate, String endDate,
+      String[] funnelStepsEventTypes, int numDaysToCompleteFunnel, List<Filter> eventFilters,
+      Filter userFilter, UserSample sample, InvertedEventIndex.Query firstStepQuery) {
+    // the last steps may be done numDaysToCompleteFunnel days after the end date
+    QueryCache.Key key = new QueryCache.Key(
+        Lists.<Object>newArrayList("funnel", startDate, endDate,
+            Arrays.asList(funnelStepsEventTypes), numDaysToCompleteFunnel, eventFilters,
+            userFilter, sample),
+        Sets.newHashSet(funnelStepsEventTypes), startDate,
+        DATE_TIME_FORMATTER.parseDateTime(endDate).plusDays(numDaysToCompleteFunnel)
+            .toString(DATE_TIME_FORMATTER),
+        userFilter != TrueFilter.INSTANCE);
+    QueryCache.Entry entry = queryCache.get(key);
+    int[] funnelCounts = (int[]) entry.getResult();
+    if (funnelCounts == null) {
+      try {
+        funnelCounts = computeFunnelCounts(startDate, endDate, funnelStepsEventTypes,
+            numDaysToCompleteFunnel, eventFilters, userFilter, sample, firstStepQuery);
+      } finally {
+        // cancelled, past its deadline or failed
+        if (funnelCounts == null) {
+          queryCache.release(key, entry);
         }
-        retentionTable.put(i, j + 1, count);
       }
+      queryCache.put(key, entry, funnelCounts, 4L * funnelCounts.length);
     }
-    int[][] result = new int[numRows][numColumns + 1];
-    for (int i = 0; i < numRows; i++) {
-      for (int j = 0; j < numColumns + 1; j++) {
-        result[i][j] = retentionTable.get(i, j);
+    return funnelCounts.clone();
+  }
+
+  // the number of events of the given type for each date, read from the rollups
+  public int[] getDailyEventCounts(String eventType, String startDate, String endDate) {
+    return rollupIndex.getCounts(eventType, startDate, endDate);
+  }
+
+  // the number of events of the given type for each value of the key and each date, read from the
+  // rollups, which only count the keys with few enough values
+  public Map<String, int[]> getDailyEventCounts(String eventType, String key, String startDate,
+      String endDate) {
+    Map<String, int[]> counts = rollupIndex.getCounts(eventType, key, startDate, endDate);
+    if (counts == null) {
+      throw new IllegalArgumentException(String.format(
+          "%s of %s has too many values to be rolled up", key, eventType));
+    }
+    return counts;
+  }
+
+  // the number of events of the given type matching the filter for each date, the events are read
+  // unless the inverted index answers the whole filter
+  public int[] getDailyEventCounts(String eventType, Filter filter, String startDate,
+      String endDate) {
+    if (filter == TrueFilter.INSTANCE) {
+      return getDailyEventCounts(eventType, startDate, endDate);
+    }
+    return getDailyEventCounts(eventType, filter, startDate, endDate,
+        invertedEventIndex.getQuery(eventType, filter));
+  }
+
+  private int[] getDailyEventCounts(String eventType, Filter filter, String startDate,
+      String endDate, InvertedEventIndex.Query query) {
+    try (ScanScope scanScope = ScanScope.open()) {
+      long maxEventId = numIndexedEvents;
+      DateTime date = DATE_TIME_FORMATTER.parseDateTime(startDate);
+      int[] counts = new int[Days.daysBetween(date, DATE_TIME_FORMATTER.parseDateTime(endDate))
+          .getDays() + 1];
+      for (int i = 0; i < counts.length; i++) {
+        String dateString = date.plusDays(i).toString(DATE_TIME_FORMATTER);
+        CountEvents countEventsCallback = new CountEvents(eventStorage,
+            query == null ? filter : query.getRemainingFilter(), maxEventId);
+        enumerateEventIds(eventType, dateString, dateString, query, countEventsCallback);
+        counts[i] = countEventsCallback.flush();
       }
+      return counts;
     }
-    return result;
   }
 
-  public synchronized int[] getFunnelCounts(String startDate, String endDate, String[] funnelStepsEventTypes,
-      int numDaysToCompleteFunnel, List<Filter> eventFilters, Filter userFilter) {
-    IdList firstStepEventIdList = new MemIdList(new long[10000], 0);
-    int[] funnelStepsEventTypeIds = getEventTypeIds(funnelStepsEventTypes);
-
-    List<Integer> userIdsList = Lists.newArrayList();
-    Set<Integer> userIdsSet = Sets.newHashSet();
-    EventIndex.Callback aggregateUserIdsCallback = new AggregateUserIds(eventStorage, userStorage,
-        firstStepEventIdList, eventFilters.get(0), userFilter, userIdsList, userIdsSet);
-    shardedEventIndex.enumerateEventIds(funnelStepsEventTypes[0], startDate, endDate,
-        aggregateUserIdsCallback);
-    int[] numFunnelStepsMatched = new int[funnelStepsEventTypes.length];
-    IdList.Iterator firstStepEventIdIterator = firstStepEventIdList.iterator();
-    if (funnelStepsEventTypes.length == 1) {
-      for (int userId : userIdsList) {
-        numFunnelStepsMatched[0]++;
+  // plans the query without running it, see QueryParser for the language
+  public QueryPlan explain(String query) {
+    return queryPlanner.plan(QueryParser.parse(query));
+  }
+
+  // runs the plan QueryPlanner chose for the query, see QueryParser for the language, the result
+  // is the one of the method the statement maps to
+  public Object query(String query) {
+    QueryPlan plan = queryPlanner.plan(QueryParser.parse(query));
+    QueryStatement statement = plan.getStatement();
+    List<QueryPlan.Step> steps = plan.getSteps();
+    if (statement instanceof QueryStatement.Funnel) {
+      QueryStatement.Funnel funnel = (QueryStatement.Funnel) statement;
+      String[] eventTypes = new String[funnel.getSteps().size()];
+      List<Filter> eventFilters = Lists.newArrayList();
+      for (int i = 0; i < eventTypes.length; i++) {
+        eventTypes[i] = funnel.getSteps().get(i).getEventType();
+        eventFilters.add(funnel.getSteps().get(i).getFilter());
       }
-    } else {
-      for (int userId : userIdsList) {
-        long firstStepEventId = firstStepEventIdIterator.next();
-        long maxLastStepEventId = datedEventIndex.findFirstEventIdOnDate(firstStepEventId, numDaysToCompleteFunnel);
-        CountMatchedFunnelSteps countMatchedFunnelSteps = new CountMatchedFunnelSteps(
-            eventStorage, userStorage, funnelStepsEventTypeIds, 1 /* first step already matched*/,
-            maxLastStepEventId, eventFilters, userFilter);
-        userEventIndex.enumerateEventIds(userId, userEventIndex.getEventOffset(userId, firstStepEventId),
-            Integer.MAX_VALUE, countMatchedFunnelSteps);
-        for (int i = 0; i < countMatchedFunnelSteps.getNumMatchedSteps(); i++) {
-          numFunnelStepsMatched[i]++;
-        }
+      return getFunnelCounts(funnel.getStartDate(), funnel.getEndDate(), eventTypes,
+          funnel.getNumDaysToCompleteFunnel(), eventFilters, funnel.getUserFilter(),
+          UserSample.ALL, steps.get(0).getEventQuery());
+    } else if (statement instanceof QueryStatement.Cohort) {
+      // the steps of the rows and the columns, see QueryPlanner.planCohort
+      QueryStatement.Cohort cohort = (QueryStatement.Cohort) statement;
+      return getRetentionTable(cohort.getStartDate(), cohort.getEndDate(),
+          cohort.getNumDaysPerCohort(), cohort.getNumColumns(), cohort.getRow().getEventType(),
+          cohort.getColumn().getEventType(), cohort.getRow().getFilter(),
+          cohort.getColumn().getFilter(), UserSample.ALL, steps.get(0).getEventQuery(),
+          steps.get(1).getEventQuery());
+    } else if (statement instanceof QueryStatement.Segmentation) {
+      QueryStatement.Segmentation segmentation = (QueryStatement.Segmentation) statement;
+      QueryStatement.EventPredicate event = segmentation.getEvent();
+      if (segmentation.getKey() != null) {
+        return getDailyEventCounts(event.getEventType(), segmentation.getKey(),
+            segmentation.getStartDate(), segmentation.getEndDate());
+      }
+      if (steps.get(0).getAccessPath() == QueryPlan.AccessPath.ROLLUP) {
+        return getDailyEventCounts(event.getEventType(), segmentation.getStartDate(),
+            segmentation.getEndDate());
+      }
+      return getDailyEventCounts(event.getEventType(), event.getFilter(),
+          segmentation.getStartDate(), segmentation.getEndDate(), steps.get(0).getEventQuery());
+    }
+    QueryStatement.UserLookup userLookup = (QueryStatement.UserLookup) statement;
+    return findUsers(userLookup.getFilter(), 0, userLookup.getLimit(),
+        steps.get(0).getUserQuery()).getUsers();
+  }
+
+  // the first step is matched on the calling thread, the remaining steps of the users it matched
+  // are counted on the query pool
+  private int[] computeFunnelCounts(String startDate, String endDate,
+      String[] funnelStepsEventTypes, int numDaysToCompleteFunnel, List<Filter> eventFilters,
+      Filter userFilter, UserSample sample, InvertedEventIndex.Query query) {
+    try (ScanScope scanScope = ScanScope.open()) {
+      long maxEventId = numIndexedEvents;
+      MemIdList firstStepEventIdList = new MemIdList(new long[10000], 0);
+      int[] funnelStepsEventTypeIds = getEventTypeIds(funnelStepsEventTypes);
+
+      MemIdList firstStepUserIdList = new MemIdList(new long[10000], 0);
+      AggregateUserIds aggregateUserIdsCallback = new AggregateUserIds(eventStorage, userStorage,
+          firstStepUserIdList, firstStepEventIdList,
+          query == null ? eventFilters.get(0) : query.getRemainingFilter(), userFilter, sample,
+          maxEventId, new Bitmap());
+      enumerateEventIds(funnelStepsEventTypes[0], startDate, endDate, query,
+          aggregateUserIdsCallback);
+      aggregateUserIdsCallback.flush();
+      long[] firstStepUserIds = firstStepUserIdList.getList();
+      if (funnelStepsEventTypes.length == 1) {
+        int[] numFunnelStepsMatched = new int[1];
+        numFunnelStepsMatched[0] = firstStepUserIds.length;
+        return numFunnelStepsMatched;
       }
+      return queryPool.invoke(new CountFunnelSteps(QueryContext.current(), maxEventId,
+          firstStepUserIds, firstStepEventIdList.getList(), 0, firstStepUserIds.length,
+          funnelStepsEventTypeIds, numDaysToCompleteFunnel, eventFilters,
+          CompiledFilter.compile(userFilter)));
+    }
+  }
+
+  // the funnel is computed from the events added so far while events keep being added, see
+  // addStandingQuery
+  public void addStandingFunnel(String name, String startDate, String endDate,
+      String[] funnelStepsEventTypes, int numDaysToCompleteFunnel, List<Filter> eventFilters) {
+    StandingFunnel funnel = new StandingFunnel(startDate, endDate, funnelStepsEventTypes,
+        numDaysToCompleteFunnel, eventFilters);
+    long numEvents = numIndexedEvents;
+    try (ScanScope scanScope = ScanScope.open()) {
+      backfill(funnel, numEvents);
     }
-    return numFunnelStepsMatched;
+    addStandingQuery(name, funnel, numEvents);
+  }
+
+  // the cohort is computed from the events added so far while events keep being added, see
+  // addStandingQuery
+  public void addStandingCohort(String name, String startDate, String endDate,
+      int numDaysPerCohort, int numColumns, String rowEventType, String columnEventType,
+      Filter rowEventFilter, Filter columnEventFilter) {
+    StandingCohort cohort = new StandingCohort(startDate, endDate, numDaysPerCohort, numColumns,
+        rowEventType, columnEventType, rowEventFilter, columnEventFilter);
+    long numEvents = numIndexedEvents;
+    try (ScanScope scanScope = ScanScope.open()) {
+      backfill(cohort, numEvents);
+    }
+    addStandingQuery(name, cohort, numEvents);
+  }
+
+  // the query has seen the events before numEvents, the few added since it was backfilled are
+  // seen in order while the events being added are held off, after which addEvent takes over
+  private synchronized void addStandingQuery(String name, StandingQuery query, long numEvents) {
+    for (long eventId = numEvents; eventId < numIndexedEvents; eventId++) {
+      query.addEvent(eventId, eventStorage.getEvent(eventId), eventStorage.getUserId(eventId),
+          datedEventIndex.getDate(eventId));
+    }
+    standingQueries.add(name, query, numIndexedEvents);
+  }
+
+  public void removeStandingQuery(String name) {
+    standingQueries.remove(name);
+  }
+
+  public List<String> getStandingQueryNames() {
+    return standingQueries.getNames();
+  }
+
+  // int[] for a funnel, int[][] for a cohort
+  public Object getStandingQueryResult(String name) {
+    return standingQueries.getResult(name);
   }
 
   public synchronized void aliasUser(String fromExternalUserId, String toExternalUserId) {
@@ -152,9 +541,18 @@ public class EventHub implements Closeable {
     userStorage.ensureUser(user.getExternalId());
     int userId = userStorage.updateUser(user);
     propertiesIndex.addUser(user);
+    queryCache.onUserUpdate();
     return userId;
   }
 
+  public int getNumUsers() {
+    return userStorage.getNumRecords();
+  }
+
+  public long getNumEvents() {
+    return numIndexedEvents;
+  }
+
   public User getUser(int userId) {
     return userStorage.getUser(userId);
   }
@@ -175,6 +573,15 @@ public class EventHub implements Closeable {
     shardedEventIndex.addEvent(eventId, event.getEventType(), date);
     userEventIndex.addEvent(userId, eventId);
     propertiesIndex.addEvent(event);
+    invertedEventIndex.addEvent(eventId, event);
+    activeUserIndex.addEvent(eventId, event.getEventType(), date, userId);
+    rollupIndex.addEvent(eventId, event);
+    uniqueUserIndex.addEvent(eventId, event, userId);
+    standingQueries.addEvent(eventId, event, userId, datedEventIndex.getCurrentDate());
+    // published before the cached results are invalidated, a query which missed the cache before
+    // and took its snapshot after would otherwise cache a result missing the event
+    numIndexedEvents = eventId + 1;
+    queryCache.onEvent(event.getEventType(), date);
     return eventId;
   }
 
@@ -186,7 +593,7 @@ public class EventHub implements Closeable {
     List<Event> events = Lists.newArrayList();
     int userId = userStorage.getId(externalUserId);
     userEventIndex.enumerateEventIds(userId, offset, numRecords,
-        new CollectEvents(events, eventStorage));
+        new CollectEvents(events, eventStorage, numIndexedEvents));
     return events;
   }
 
@@ -198,8 +605,16 @@ public class EventHub implements Closeable {
     userStorage.close();
     shardedEventIndex.close();
     propertiesIndex.close();
+    invertedEventIndex.close();
+    activeUserIndex.close();
+    rollupIndex.close();
+    uniqueUserIndex.close();
     datedEventIndex.close();
     userEventIndex.close();
+    standingQueries.close();
+    // after the structures, which release the files they have open on close
+    dmaFileFactories.close();
+    queryPool.shutdown();
   }
 
   public String getVarz() {
@@ -208,12 +623,79 @@ public class EventHub implements Closeable {
         "Event Storage:\n==============\n%s\n\n" +
         "User Storage:\n==============\n%s\n\n" +
         "Event Index:\n==============\n%s\n\n" +
-        "User Event Index:\n==============\n%s",
+        "Inverted Event Index:\n==============\n%s\n\n" +
+        "Active User Index:\n==============\n%s\n\n" +
+        "Rollup Index:\n==============\n%s\n\n" +
+        "Unique User Index:\n==============\n%s\n\n" +
+        "User Event Index:\n==============\n%s\n\n" +
+        "Query Cache:\n==============\n%s\n\n" +
+        "Standing Queries:\n==============\n%s",
         datedEventIndex.getCurrentDate(),
         eventStorage.getVarz(1),
         userStorage.getVarz(1),
         shardedEventIndex.getVarz(1),
-        userEventIndex.getVarz(1));
+        invertedEventIndex.getVarz(1),
+        activeUserIndex.getVarz(1),
+        rollupIndex.getVarz(1),
+        uniqueUserIndex.getVarz(1),
+        userEventIndex.getVarz(1),
+        queryCache.getVarz(1),
+        standingQueries.getVarz(1));
+  }
+
+  // walks the events of the users who did the first step from that step on, as getFunnelCounts
+  private void backfill(final StandingFunnel funnel, final long numEvents) {
+    MemIdList firstStepUserIdList = new MemIdList(new long[10000], 0);
+    MemIdList firstStepEventIdList = new MemIdList(new long[10000], 0);
+    AggregateUserIds aggregateUserIdsCallback = new AggregateUserIds(eventStorage, userStorage,
+        firstStepUserIdList, firstStepEventIdList, funnel.getEventFilters().get(0),
+        TrueFilter.INSTANCE, UserSample.ALL, numEvents, new Bitmap());
+    shardedEventIndex.enumerateEventIds(funnel.getFunnelStepsEventTypes()[0],
+        funnel.getStartDate(), funnel.getEndDate(), aggregateUserIdsCallback);
+    aggregateUserIdsCallback.flush();
+    long[] firstStepUserIds = firstStepUserIdList.getList();
+    long[] firstStepEventIds = firstStepEventIdList.getList();
+    for (int i = 0; i < firstStepUserIds.length; i++) {
+      final int userId = (int) firstStepUserIds[i];
+      userEventIndex.enumerateEventIds(userId,
+          userEventIndex.getEventOffset(userId, firstStepEventIds[i]), Integer.MAX_VALUE,
+          new UserEventIndex.Callback() {
+            @Override
+            public boolean shouldContinueOnEventId(long eventId) {
+              if (eventId >= numEvents) {
+                return false;
+              }
+              String indexedDate = datedEventIndex.getDate(eventId);
+              funnel.addEvent(eventId, eventStorage.getEvent(eventId), userId, indexedDate);
+              return !funnel.isDone(userId, indexedDate);
+            }
+          });
+    }
+  }
+
+  private void backfill(final StandingCohort cohort, final long numEvents) {
+    for (String eventType : Sets.newHashSet(cohort.getRowEventType(),
+        cohort.getColumnEventType())) {
+      shardedEventIndex.enumerateEventIds(eventType, cohort.getStartDate(), cohort.getLastDate(),
+          new EventIndex.Callback() {
+            @Override
+            public void onEventId(long eventId) {
+              if (eventId < numEvents) {
+                cohort.addEvent(eventId, eventStorage.getEvent(eventId),
+                    eventStorage.getUserId(eventId), datedEventIndex.getDate(eventId));
+              }
+            }
+          });
+    }
+  }
+
+  // cached results are shared, callers get their own copy
+  private static int[][] copyOf(int[][] table) {
+    int[][] copy = new int[table.length][];
+    for (int i = 0; i < table.length; i++) {
+      copy[i] = table[i].clone();
+    }
+    return copy;
   }
 
   private int[] getEventTypeIds(String[] eventTypes) {
@@ -224,24 +706,67 @@ public class EventHub implements Closeable {
     return eventTypeIds;
   }
 
-  private List<Set<Integer>> getUserIdsSets(String groupByEventType, DateTime startDate,
-      Filter eventFilter, int numDaysPerCohort, int numCohorts) {
-    List<Set<Integer>> rows = Lists.newArrayListWithCapacity(numCohorts);
-    for (int i = 0; i < numCohorts; i++) {
-      DateTime currentStartDate = startDate.plusDays(i * numDaysPerCohort);
-      DateTime currentEndDate = startDate.plusDays((i + 1) * numDaysPerCohort);
-      List<Integer> userIdsList = Lists.newArrayList();
-      Set<Integer> userIdsSet = Sets.newHashSet();
-      EventIndex.Callback aggregateUserIdsCallback = new AggregateUserIds(eventStorage, userStorage,
-          new DummyIdList(), eventFilter, TrueFilter.INSTANCE, userIdsList, userIdsSet);
-      shardedEventIndex.enumerateEventIds(
-          groupByEventType,
-          currentStartDate.toString(DATE_TIME_FORMATTER),
-          currentEndDate.toString(DATE_TIME_FORMATTER),
-          aggregateUserIdsCallback);
-      rows.add(userIdsSet);
+  // the sampled users who did an event of the given type matching the filter on the given date
+  private Bitmap getDailyUserIds(String eventType, DateTime date, Filter eventFilter,
+      InvertedEventIndex.Query query, UserSample sample, long maxEventId) {
+    String dateString = date.toString(DATE_TIME_FORMATTER);
+    // unfiltered cohorts are unions of the daily active users, no event is read
+    if (eventFilter == TrueFilter.INSTANCE) {
+      Bitmap userIds = activeUserIndex.getUserIds(eventType, dateString, dateString);
+      if (sample.isAll()) {
+        return userIds;
+      }
+      Bitmap sampledUserIds = new Bitmap();
+      Bitmap.Iterator iterator = userIds.iterator();
+      while (iterator.hasNext()) {
+        int userId = iterator.next();
+        if (sample.contains(userId)) {
+          sampledUserIds.add(userId);
+        }
+      }
+      return sampledUserIds;
+    }
+    Bitmap userIds = new Bitmap();
+    AggregateUserIds aggregateUserIdsCallback = new AggregateUserIds(eventStorage, userStorage,
+        new DummyIdList(), new DummyIdList(),
+        query == null ? eventFilter : query.getRemainingFilter(), TrueFilter.INSTANCE, sample,
+        maxEventId, userIds);
+    enumerateEventIds(eventType, dateString, dateString, query, aggregateUserIdsCallback);
+    aggregateUserIdsCallback.flush();
+    return userIds;
+  }
+
+  // the sketch of the users of the i-th window of numDaysPerCohort days, both ends inclusive
+  private HyperLogLog getWindowUsers(String eventType, DateTime startDate, int i,
+      int numDaysPerCohort) {
+    return uniqueUserIndex.getUsers(eventType,
+        startDate.plusDays(i * numDaysPerCohort).toString(DATE_TIME_FORMATTER),
+        startDate.plusDays((i + 1) * numDaysPerCohort).toString(DATE_TIME_FORMATTER));
+  }
+
+  // the users of the i-th window of numDaysPerCohort days, both ends inclusive
+  private static Bitmap getWindowUserIds(Bitmap[] dailyUserIds, int i, int numDaysPerCohort) {
+    Bitmap userIds = dailyUserIds[i * numDaysPerCohort].copy();
+    for (int day = i * numDaysPerCohort + 1; day <= (i + 1) * numDaysPerCohort; day++) {
+      userIds = Bitmap.or(userIds, dailyUserIds[day]);
+    }
+    return userIds;
+  }
+
+  // runs the task for each index of [0, n) on the query pool
+  private void forEachIndex(int n, IndexTask task) {
+    queryPool.invoke(new ForEachIndex(QueryContext.current(), task, 0, n));
+  }
+
+  // enumerates the events of the given type through the inverted index when it answers some of the
+  // terms of the event filter, and through the sharded index otherwise
+  private void enumerateEventIds(String eventType, String startDate, String endDate,
+      InvertedEventIndex.Query query, EventIndex.Callback callback) {
+    if (query == null) {
+      shardedEventIndex.enumerateEventIds(eventType, startDate, endDate, callback);
+    } else {
+      invertedEventIndex.enumerateEventIds(query, startDate, endDate, callback);
     }
-    return rows;
   }
 
   public List<String> getEventKeys(String eventType) {
@@ -261,70 +786,209 @@ public class EventHub implements Closeable {
   }
 
   public List<User> findUsers(Filter filter) {
-    List<User> users = Lists.newArrayList();
-    for (int userId = 0; userId < userStorage.getNumRecords(); userId++) {
-      if (filter.accept(userStorage.getFilterVisitor(userId))) {
-        users.add(getUser(userId));
+    return findUsers(filter, 0, Integer.MAX_VALUE).getUsers();
+  }
+
+  // returns up to numRecords of the users matching the filter with ids from the cursor on, along
+  // with the cursor of the next page
+  public UserPage findUsers(Filter filter, int cursor, int numRecords) {
+    return findUsers(filter, cursor, numRecords, userStorage.getIndexedQuery(filter));
+  }
+
+  // the candidates are read from the given inverted user index query, or every user is scanned
+  // when null
+  private UserPage findUsers(Filter filter, int cursor, int numRecords,
+      InvertedUserIndex.Query query) {
+    try (ScanScope scanScope = ScanScope.open()) {
+      // the users added since the query started are ignored, as events are
+      int numUsers = userStorage.getNumRecords();
+      List<User> users = Lists.newArrayList();
+      if (query != null) {
+        CompiledFilter remainingFilter = CompiledFilter.compile(query.getRemainingFilter());
+        Bitmap.Iterator userIds = query.getUserIds().iterator();
+        while (userIds.hasNext()) {
+          int userId = userIds.next();
+          if (userId >= numUsers) {
+            break;
+          }
+          if (userId < cursor || !userStorage.matches(userId, remainingFilter)) {
+            continue;
+          }
+          if (users.size() == numRecords) {
+            return new UserPage(users, userId);
+          }
+          users.add(getUser(userId));
+        }
+        return new UserPage(users, UserPage.NO_MORE_USERS);
       }
+      CompiledFilter compiledFilter = CompiledFilter.compile(filter);
+      for (int userId = cursor; userId < numUsers; userId++) {
+        if (userStorage.matches(userId, compiledFilter)) {
+          if (users.size() == numRecords) {
+            return new UserPage(users, userId);
+          }
+          users.add(getUser(userId));
+        }
+      }
+      return new UserPage(users, UserPage.NO_MORE_USERS);
+    }
+  }
+
+  public static class UserPage {
+    public static final int NO_MORE_USERS = -1;
+
+    private final List<User> users;
+    private final int nextCursor;
+
+    public UserPage(List<User> users, int nextCursor) {
+      this.users = users;
+      this.nextCursor = nextCursor;
+    }
+
+    public List<User> getUsers() {
+      return users;
+    }
+
+    public int getNextCursor() {
+      return nextCursor;
     }
-    return users;
   }
 
+  // the event ids are batched and the event filter is evaluated a batch at a time, flush() has to
+  // be called once the enumeration is done
   private static class AggregateUserIds implements EventIndex.Callback {
     private final EventStorage eventStorage;
     private final UserStorage userStorage;
+    // the users in the order they were first seen, along with the event they were first seen at
+    private final IdList seenUserIdList;
     private final IdList earliestEventIdList;
     private final Filter eventFilter;
-    private final Filter userFilter;
-    private final List<Integer> seenUserIdList;
-    private final Set<Integer> seenUserIdSet;
+    private final CompiledFilter userFilter;
+    private final UserSample sample;
+    private final long maxEventId;
+    private final Bitmap seenUserIds;
+    private final long[] eventIds;
+    private int numEventIds;
 
     public AggregateUserIds(EventStorage eventStorage, UserStorage userStorage,
-        IdList earliestEventIdList, Filter eventFilter, Filter userFilter,
-        List<Integer> seenUserIdList, Set<Integer> seenUserIdSet) {
+        IdList seenUserIdList, IdList earliestEventIdList, Filter eventFilter, Filter userFilter,
+        UserSample sample, long maxEventId, Bitmap seenUserIds) {
       this.eventStorage = eventStorage;
       this.userStorage = userStorage;
+      this.seenUserIdList = seenUserIdList;
       this.earliestEventIdList = earliestEventIdList;
       this.eventFilter = eventFilter;
-      this.userFilter = userFilter;
-      this.seenUserIdList = seenUserIdList;
-      this.seenUserIdSet = seenUserIdSet;
+      this.userFilter = CompiledFilter.compile(userFilter);
+      this.sample = sample;
+      this.maxEventId = maxEventId;
+      this.seenUserIds = seenUserIds;
+      this.eventIds = new long[EVENT_BATCH_SIZE];
+      this.numEventIds = 0;
     }
 
     @Override
     public void onEventId(long eventId) {
-      if (seenUserIdSet.contains(eventStorage.getUserId(eventId))) {
+      // added after the snapshot of the query, possibly not fully indexed yet
+      if (eventId >= maxEventId) {
         return;
       }
-
-      if (!eventFilter.accept(eventStorage.getFilterVisitor(eventId))) {
+      int userId = eventStorage.getUserId(eventId);
+      // the users out of the sample are dropped before their events are read
+      if (seenUserIds.contains(userId) || !sample.contains(userId)) {
         return;
       }
+      eventIds[numEventIds++] = eventId;
+      if (numEventIds == eventIds.length) {
+        flush();
+      }
+    }
+
+    public void flush() {
+      long[] batch = Arrays.copyOf(eventIds, numEventIds);
+      numEventIds = 0;
+      eventStorage.visitEvents(batch, eventFilter, new EventStorage.Callback() {
+        @Override
+        public void onEventId(long eventId) {
+          onAcceptedEventId(eventId);
+        }
+      });
+    }
+
+    private void onAcceptedEventId(long eventId) {
       int userId = eventStorage.getUserId(eventId);
-      if (!userFilter.accept(userStorage.getFilterVisitor(userId))) {
+      // the user may have been seen earlier in the same batch
+      if (seenUserIds.contains(userId)) {
         return;
       }
-      // TODO: consider other higher performing Set implementation
-      if (!seenUserIdSet.contains(userId)) {
-        seenUserIdSet.add(userId);
-        seenUserIdList.add(userId);
-        earliestEventIdList.add(eventId);
+      if (!userStorage.matches(userId, userFilter)) {
+        return;
       }
+      seenUserIds.add(userId);
+      seenUserIdList.add(userId);
+      earliestEventIdList.add(eventId);
     }
   }
 
+  // the event ids are batched and the event filter is evaluated a batch at a time, flush() has to
+  // be called once the enumeration is done and returns the number of events which matched
+  private static class CountEvents implements EventIndex.Callback {
+    private final EventStorage eventStorage;
+    private final Filter eventFilter;
+    private final long maxEventId;
+    private final long[] eventIds;
+    private int numEventIds;
+    private int numMatchedEvents;
+
+    public CountEvents(EventStorage eventStorage, Filter eventFilter, long maxEventId) {
+      this.eventStorage = eventStorage;
+      this.eventFilter = eventFilter;
+      this.maxEventId = maxEventId;
+      this.eventIds = new long[EVENT_BATCH_SIZE];
+      this.numEventIds = 0;
+      this.numMatchedEvents = 0;
+    }
+
+    @Override
+    public void onEventId(long eventId) {
+      if (eventId >= maxEventId) {
+        return;
+      }
+      eventIds[numEventIds++] = eventId;
+      if (numEventIds == eventIds.length) {
+        flush();
+      }
+    }
+
+    public int flush() {
+      long[] batch = Arrays.copyOf(eventIds, numEventIds);
+      numEventIds = 0;
+      eventStorage.visitEvents(batch, eventFilter, new EventStorage.Callback() {
+        @Override
+        public void onEventId(long eventId) {
+          numMatchedEvents++;
+        }
+      });
+      return numMatchedEvents;
+    }
+  }
+
+  // the events of the remaining steps are batched and their filters are evaluated a batch at a
+  // time, flush() has to be called once the enumeration is done
   private static class CountMatchedFunnelSteps implements UserEventIndex.Callback {
     private final EventStorage eventStorage;
     private final UserStorage userStorage;
     private final int[] funnelStepsEventTypeIds;
     private int numMatchedSteps;
     private final List<Filter> eventFilters;
-    private final Filter userFilter;
+    private final CompiledFilter userFilter;
     private final long maxEventId;
+    private final long[] eventIds;
+    private final int[] eventTypeIds;
+    private int numEventIds;
 
     public CountMatchedFunnelSteps(EventStorage eventStorage, UserStorage userStorage,
         int[] funnelStepsEventTypeIds, int numMatchedSteps, long maxEventId, List<Filter> eventFilters,
-        Filter userFilter) {
+        CompiledFilter userFilter) {
       this.eventStorage = eventStorage;
       this.userStorage = userStorage;
       this.funnelStepsEventTypeIds = funnelStepsEventTypeIds;
@@ -332,6 +996,9 @@ public class EventHub implements Closeable {
       this.maxEventId = maxEventId;
       this.eventFilters = eventFilters;
       this.userFilter = userFilter;
+      this.eventIds = new long[EVENT_BATCH_SIZE];
+      this.eventTypeIds = new int[EVENT_BATCH_SIZE];
+      this.numEventIds = 0;
     }
 
     @Override
@@ -340,20 +1007,72 @@ public class EventHub implements Closeable {
         return false;
       }
       int eventTypeId = eventStorage.getEventTypeId(eventId);
-      if (eventTypeId != funnelStepsEventTypeIds[numMatchedSteps]) {
+      if (!isRemainingStep(eventTypeId)) {
         return true;
       }
+      eventIds[numEventIds] = eventId;
+      eventTypeIds[numEventIds] = eventTypeId;
+      numEventIds++;
+      if (numEventIds == eventIds.length) {
+        flush();
+      }
+      return numMatchedSteps != funnelStepsEventTypeIds.length;
+    }
+
+    public void flush() {
+      final long[] batch = Arrays.copyOf(eventIds, numEventIds);
+      int[] batchEventTypeIds = Arrays.copyOf(eventTypeIds, numEventIds);
+      numEventIds = 0;
+      if (numMatchedSteps == funnelStepsEventTypeIds.length) {
+        return;
+      }
 
-      if (!eventFilters.get(numMatchedSteps).accept(eventStorage.getFilterVisitor(eventId))) {
-        return true;
+      // which events of the batch each of the remaining steps accepts, the event ids of a user
+      // are increasing so the batch is sorted
+      final boolean[][] isAccepted = new boolean[funnelStepsEventTypeIds.length][];
+      for (int step = numMatchedSteps; step < funnelStepsEventTypeIds.length; step++) {
+        long[] stepEventIds = new long[batch.length];
+        int numStepEventIds = 0;
+        for (int i = 0; i < batch.length; i++) {
+          if (batchEventTypeIds[i] == funnelStepsEventTypeIds[step]) {
+            stepEventIds[numStepEventIds++] = batch[i];
+          }
+        }
+        final boolean[] isStepAccepted = new boolean[batch.length];
+        isAccepted[step] = isStepAccepted;
+        eventStorage.visitEvents(Arrays.copyOf(stepEventIds, numStepEventIds),
+            eventFilters.get(step), new EventStorage.Callback() {
+              @Override
+              public void onEventId(long eventId) {
+                isStepAccepted[Arrays.binarySearch(batch, eventId)] = true;
+              }
+            });
       }
-      // TODO: user ctriteria filter should be at higher level
-      int userId = eventStorage.getUserId(eventId);
-      if (!userFilter.accept(userStorage.getFilterVisitor(userId))) {
-        return true;
+
+      for (int i = 0; i < batch.length; i++) {
+        if (batchEventTypeIds[i] != funnelStepsEventTypeIds[numMatchedSteps]
+            || !isAccepted[numMatchedSteps][i]) {
+          continue;
+        }
+        // TODO: user ctriteria filter should be at higher level
+        int userId = eventStorage.getUserId(batch[i]);
+        if (!userStorage.matches(userId, userFilter)) {
+          continue;
+        }
+        numMatchedSteps++;
+        if (numMatchedSteps == funnelStepsEventTypeIds.length) {
+          return;
+        }
       }
-      numMatchedSteps++;
-      return numMatchedSteps != funnelStepsEventTypeIds.length;
+    }
+
+    private boolean isRemainingStep(int eventTypeId) {
+      for (int step = numMatchedSteps; step < funnelStepsEventTypeIds.length; step++) {
+        if (funnelStepsEventTypeIds[step] == eventTypeId) {
+          return true;
+        }
+      }
+      return false;
     }
 
     public int getNumMatchedSteps() {
@@ -361,24 +1080,144 @@ public class EventHub implements Closeable {
     }
   }
 
+  // counts, for each step, the users of [from, to) who matched it, splitting the users in halves
+  // down to MIN_USERS_PER_FUNNEL_TASK, as their histories are walked independently
+  private class CountFunnelSteps extends RecursiveTask<int[]> {
+    private final QueryContext context;
+    private final long maxEventId;
+    private final long[] userIds;
+    private final long[] firstStepEventIds;
+    private final int from;
+    private final int to;
+    private final int[] funnelStepsEventTypeIds;
+    private final int numDaysToCompleteFunnel;
+    private final List<Filter> eventFilters;
+    private final CompiledFilter userFilter;
+
+    private CountFunnelSteps(QueryContext context, long maxEventId, long[] userIds,
+        long[] firstStepEventIds, int from, int to, int[] funnelStepsEventTypeIds,
+        int numDaysToCompleteFunnel, List<Filter> eventFilters, CompiledFilter userFilter) {
+      this.context = context;
+      this.maxEventId = maxEventId;
+      this.userIds = userIds;
+      this.firstStepEventIds = firstStepEventIds;
+      this.from = from;
+      this.to = to;
+      this.funnelStepsEventTypeIds = funnelStepsEventTypeIds;
+      this.numDaysToCompleteFunnel = numDaysToCompleteFunnel;
+      this.eventFilters = eventFilters;
+      this.userFilter = userFilter;
+    }
+
+    @Override
+    protected int[] compute() {
+      if (to - from > MIN_USERS_PER_FUNNEL_TASK) {
+        int middle = (from + to) >>> 1;
+        CountFunnelSteps left = split(from, middle);
+        CountFunnelSteps right = split(middle, to);
+        left.fork();
+        int[] numFunnelStepsMatched = right.compute();
+        int[] leftNumFunnelStepsMatched = left.join();
+        for (int i = 0; i < numFunnelStepsMatched.length; i++) {
+          numFunnelStepsMatched[i] += leftNumFunnelStepsMatched[i];
+        }
+        return numFunnelStepsMatched;
+      }
+
+      int[] numFunnelStepsMatched = new int[funnelStepsEventTypeIds.length];
+      // the scan scope and the query of the request don't follow it to the pool's threads
+      try (ScanScope scanScope = ScanScope.open();
+          QueryContext.Scope queryScope = context.enter()) {
+        for (int i = from; i < to; i++) {
+          int userId = (int) userIds[i];
+          long firstStepEventId = firstStepEventIds[i];
+          long maxLastStepEventId = Math.min(maxEventId,
+              datedEventIndex.findFirstEventIdOnDate(firstStepEventId, numDaysToCompleteFunnel));
+          CountMatchedFunnelSteps countMatchedFunnelSteps = new CountMatchedFunnelSteps(
+              eventStorage, userStorage, funnelStepsEventTypeIds, 1 /* first step already matched*/,
+              maxLastStepEventId, eventFilters, userFilter);
+          userEventIndex.enumerateEventIds(userId,
+              userEventIndex.getEventOffset(userId, firstStepEventId), Integer.MAX_VALUE,
+              countMatchedFunnelSteps);
+          countMatchedFunnelSteps.flush();
+          for (int j = 0; j < countMatchedFunnelSteps.getNumMatchedSteps(); j++) {
+            numFunnelStepsMatched[j]++;
+          }
+        }
+        context.onUsersProcessed(to - from);
+      }
+      return numFunnelStepsMatched;
+    }
+
+    private CountFunnelSteps split(int from, int to) {
+      return new CountFunnelSteps(context, maxEventId, userIds, firstStepEventIds, from, to,
+          funnelStepsEventTypeIds, numDaysToCompleteFunnel, eventFilters, userFilter);
+    }
+  }
+
+  private interface IndexTask {
+    void run(int i);
+  }
+
+  // splits [from, to) in halves down to a single index, each run under its own scan scope and
+  // query as those of the request don't follow it to the pool's threads
+  private static class ForEachIndex extends RecursiveAction {
+    private final QueryContext context;
+    private final IndexTask task;
+    private final int from;
+    private final int to;
+
+    private ForEachIndex(QueryContext context, IndexTask task, int from, int to) {
+      this.context = context;
+      this.task = task;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new ForEachIndex(context, task, from, middle),
+            new ForEachIndex(context, task, middle, to));
+        return;
+      }
+      try (ScanScope scanScope = ScanScope.open();
+          QueryContext.Scope queryScope = context.enter()) {
+        for (int i = from; i < to; i++) {
+          context.checkCancelled();
+          task.run(i);
+        }
+      }
+    }
+  }
+
   private static class CollectEvents implements UserEventIndex.Callback, EventIndex.Callback {
     private final List<Event> events;
     private final EventStorage eventStorage;
+    private final long maxEventId;
 
-    private CollectEvents(List<Event> events, EventStorage eventStorage) {
+    private CollectEvents(List<Event> events, EventStorage eventStorage, long maxEventId) {
       this.events = events;
       this.eventStorage = eventStorage;
+      this.maxEventId = maxEventId;
     }
 
+    // the event ids of a user are increasing, the ones after the snapshot are all at the end
     @Override
     public boolean shouldContinueOnEventId(long eventId) {
+      if (eventId >= maxEventId) {
+        return false;
+      }
       events.add(eventStorage.getEvent(eventId));
       return true;
     }
 
     @Override
     public void onEventId(long eventId) {
-      events.add(eventStorage.getEvent(eventId));
+      if (eventId < maxEventId) {
+        events.add(eventStorage.getEvent(eventId));
+      }
     }
   }
 }
@@ -2,17 +2,27 @@ package com.codecademy.eventhub;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
+import com.google.inject.Singleton;
 import com.google.inject.name.Names;
+import com.codecademy.eventhub.index.ActiveUserIndex;
 import com.codecademy.eventhub.index.DatedEventIndex;
+import com.codecademy.eventhub.index.InvertedEventIndex;
 import com.codecademy.eventhub.index.PropertiesIndex;
+import com.codecademy.eventhub.index.RollupIndex;
 import com.codecademy.eventhub.index.ShardedEventIndex;
+import com.codecademy.eventhub.index.UniqueUserIndex;
 import com.codecademy.eventhub.index.UserEventIndex;
+import com.codecademy.eventhub.list.DmaFileFactories;
+import com.codecademy.eventhub.query.QueryCache;
+import com.codecademy.eventhub.query.RunningQueries;
+import com.codecademy.eventhub.query.StandingQueries;
 import com.codecademy.eventhub.storage.BloomFilteredEventStorage;
 import com.codecademy.eventhub.storage.BloomFilteredUserStorage;
 
 import javax.inject.Named;
 import java.io.File;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
 
 public class EventHubModule extends AbstractModule {
   private final Properties properties;
@@ -33,10 +43,46 @@ public class EventHubModule extends AbstractModule {
       ShardedEventIndex shardedEventIndex,
       DatedEventIndex datedEventIndex,
       PropertiesIndex propertiesIndex,
+      InvertedEventIndex invertedEventIndex,
+      ActiveUserIndex activeUserIndex,
+      RollupIndex rollupIndex,
+      UniqueUserIndex uniqueUserIndex,
       UserEventIndex userEventIndex,
       BloomFilteredEventStorage eventStorage,
-      BloomFilteredUserStorage userStorage) {
+      BloomFilteredUserStorage userStorage,
+      @Named("eventhub.querypool") ForkJoinPool queryPool,
+      QueryCache queryCache,
+      StandingQueries standingQueries,
+      DmaFileFactories dmaFileFactories) {
     return new EventHub(directory, shardedEventIndex, datedEventIndex, propertiesIndex,
-        userEventIndex, eventStorage, userStorage);
+        invertedEventIndex, activeUserIndex, rollupIndex, uniqueUserIndex, userEventIndex,
+        eventStorage, userStorage, queryPool, queryCache, standingQueries,
+        dmaFileFactories);
+  }
+
+  @Provides
+  @Named("eventhub.querypool")
+  public ForkJoinPool getQueryPool(@Named("eventhub.query.parallelism") int parallelism) {
+    return new ForkJoinPool(
+        parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+  }
+
+  @Provides
+  public QueryCache getQueryCache(
+      @Named("eventhub.querycache.maxSizeInBytes") long maxSizeInBytes) {
+    return new QueryCache(maxSizeInBytes);
+  }
+
+  // shared by the queries to list and cancel them
+  @Provides
+  @Singleton
+  public RunningQueries getRunningQueries(
+      @Named("eventhub.query.maxDeadlineMillis") long maxDeadlineMillis) {
+    return new RunningQueries(maxDeadlineMillis);
+  }
+
+  @Provides
+  public StandingQueries getStandingQueries(@Named("eventhub.directory") String directory) {
+    return StandingQueries.build(directory + "/standing_queries/");
   }
 }
@@ -0,0 +1,591 @@
+package com.codecademy.eventhub.base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Bitmap is a compressed set of non-negative ints laid out like a roaring bitmap: the ints are
+ * grouped by their upper 16 bits into containers of their lower 16 bits, which are sorted arrays
+ * while they hold up to 4096 values and 2^16-bit bitmaps beyond, so a container never takes more
+ * than 8KB. Intersections and unions are computed a container pair at a time.
+ */
+public class Bitmap {
+  private static final int MAX_ARRAY_SIZE = 4096;
+  private static final int NUM_WORDS = 1024;
+  private static final byte ARRAY_CONTAINER = 0;
+  private static final byte BITMAP_CONTAINER = 1;
+
+  // sorted, the upper 16 bits of the ints in the container at the same index
+  private char[] keys;
+  private Container[] containers;
+  private int numContainers;
+
+  public Bitmap() {
+    this(new char[4], new Container[4], 0);
+  }
+
+  private Bitmap(char[] keys, Container[] containers, int numContainers) {
+    this.keys = keys;
+    this.containers = containers;
+    this.numContainers = numContainers;
+  }
+
+  public void add(int value) {
+    char key = (char) (value >>> 16);
+    int index = getContainerIndex(key);
+    if (index >= 0) {
+      containers[index] = containers[index].add((char) value);
+      return;
+    }
+    Container container = new ArrayContainer();
+    insertContainer(-index - 1, key, container.add((char) value));
+  }
+
+  public void remove(int value) {
+    int index = getContainerIndex((char) (value >>> 16));
+    if (index < 0) {
+      return;
+    }
+    Container container = containers[index].remove((char) value);
+    if (container.getCardinality() == 0) {
+      System.arraycopy(keys, index + 1, keys, index, numContainers - index - 1);
+      System.arraycopy(containers, index + 1, containers, index, numContainers - index - 1);
+      containers[--numContainers] = null;
+    } else {
+      containers[index] = container;
+    }
+  }
+
+  public boolean contains(int value) {
+    int index = getContainerIndex((char) (value >>> 16));
+    return index >= 0 && containers[index].contains((char) value);
+  }
+
+  public int getCardinality() {
+    int cardinality = 0;
+    for (int i = 0; i < numContainers; i++) {
+      cardinality += containers[i].getCardinality();
+    }
+    return cardinality;
+  }
+
+  public boolean isEmpty() {
+    return numContainers == 0;
+  }
+
+  public long getSizeInBytes() {
+    long size = 0;
+    for (int i = 0; i < numContainers; i++) {
+      size += 2 + containers[i].getSizeInBytes();
+    }
+    return size;
+  }
+
+  public Bitmap copy() {
+    Container[] copies = new Container[containers.length];
+    for (int i = 0; i < numContainers; i++) {
+      copies[i] = containers[i].copy();
+    }
+    return new Bitmap(Arrays.copyOf(keys, keys.length), copies, numContainers);
+  }
+
+  public Iterator iterator() {
+    return new Iterator();
+  }
+
+  public int[] toArray() {
+    int[] values = new int[getCardinality()];
+    int i = 0;
+    Iterator iterator = iterator();
+    while (iterator.hasNext()) {
+      values[i++] = iterator.next();
+    }
+    return values;
+  }
+
+  public static Bitmap and(Bitmap a, Bitmap b) {
+    Bitmap result = new Bitmap();
+    int i = 0;
+    int j = 0;
+    while (i < a.numContainers && j < b.numContainers) {
+      if (a.keys[i] < b.keys[j]) {
+        i++;
+      } else if (a.keys[i] > b.keys[j]) {
+        j++;
+      } else {
+        Container container = a.containers[i].and(b.containers[j]);
+        if (container.getCardinality() > 0) {
+          result.insertContainer(result.numContainers, a.keys[i], container);
+        }
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  public static int andCardinality(Bitmap a, Bitmap b) {
+    int cardinality = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.numContainers && j < b.numContainers) {
+      if (a.keys[i] < b.keys[j]) {
+        i++;
+      } else if (a.keys[i] > b.keys[j]) {
+        j++;
+      } else {
+        cardinality += a.containers[i].andCardinality(b.containers[j]);
+        i++;
+        j++;
+      }
+    }
+    return cardinality;
+  }
+
+  public static Bitmap or(Bitmap a, Bitmap b) {
+    Bitmap result = new Bitmap();
+    int i = 0;
+    int j = 0;
+    while (i < a.numContainers || j < b.numContainers) {
+      if (j == b.numContainers || (i < a.numContainers && a.keys[i] < b.keys[j])) {
+        result.insertContainer(result.numContainers, a.keys[i], a.containers[i].copy());
+        i++;
+      } else if (i == a.numContainers || a.keys[i] > b.keys[j]) {
+        result.insertContainer(result.numContainers, b.keys[j], b.containers[j].copy());
+        j++;
+      } else {
+        result.insertContainer(result.numContainers, a.keys[i],
+            a.containers[i].or(b.containers[j]));
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  public void writeTo(DataOutput output) throws IOException {
+    output.writeInt(numContainers);
+    for (int i = 0; i < numContainers; i++) {
+      output.writeChar(keys[i]);
+      containers[i].writeTo(output);
+    }
+  }
+
+  public static Bitmap readFrom(DataInput input) throws IOException {
+    int numContainers = input.readInt();
+    char[] keys = new char[Math.max(4, numContainers)];
+    Container[] containers = new Container[keys.length];
+    for (int i = 0; i < numContainers; i++) {
+      keys[i] = input.readChar();
+      byte type = input.readByte();
+      int cardinality = input.readInt();
+      if (type == ARRAY_CONTAINER) {
+        char[] values = new char[Math.max(4, cardinality)];
+        for (int j = 0; j < cardinality; j++) {
+          values[j] = input.readChar();
+        }
+        containers[i] = new ArrayContainer(values, cardinality);
+      } else {
+        long[] words = new long[NUM_WORDS];
+        for (int j = 0; j < NUM_WORDS; j++) {
+          words[j] = input.readLong();
+        }
+        containers[i] = new BitmapContainer(words, cardinality);
+      }
+    }
+    return new Bitmap(keys, containers, numContainers);
+  }
+
+  private int getContainerIndex(char key) {
+    // ints are mostly added in ascending order
+    if (numContainers > 0 && keys[numContainers - 1] == key) {
+      return numContainers - 1;
+    }
+    return Arrays.binarySearch(keys, 0, numContainers, key);
+  }
+
+  private void insertContainer(int index, char key, Container container) {
+    if (numContainers == keys.length) {
+      keys = Arrays.copyOf(keys, 2 * keys.length);
+      containers = Arrays.copyOf(containers, 2 * containers.length);
+    }
+    System.arraycopy(keys, index, keys, index + 1, numContainers - index);
+    System.arraycopy(containers, index, containers, index + 1, numContainers - index);
+    keys[index] = key;
+    containers[index] = container;
+    numContainers++;
+  }
+
+  public class Iterator {
+    private int containerIndex;
+    private final Container.Cursor cursor;
+    private boolean hasCursor;
+
+    private Iterator() {
+      this.containerIndex = 0;
+      this.cursor = new Container.Cursor();
+      this.hasCursor = false;
+    }
+
+    public boolean hasNext() {
+      while (!hasCursor || !cursor.hasNext()) {
+        if (containerIndex == numContainers) {
+          return false;
+        }
+        cursor.reset(containers[containerIndex++]);
+        hasCursor = true;
+      }
+      return true;
+    }
+
+    public int next() {
+      return (keys[containerIndex - 1] << 16) | cursor.next();
+    }
+  }
+
+  private abstract static class Container {
+    abstract Container add(char value);
+    abstract Container remove(char value);
+    abstract boolean contains(char value);
+    abstract int getCardinality();
+    abstract int getSizeInBytes();
+    abstract Container and(Container container);
+    abstract int andCardinality(Container container);
+    abstract Container or(Container container);
+    abstract Container copy();
+    abstract void writeTo(DataOutput output) throws IOException;
+
+    // walks either kind of container without allocating per container
+    private static class Cursor {
+      private ArrayContainer arrayContainer;
+      private BitmapContainer bitmapContainer;
+      private int index;
+      private long word;
+
+      private void reset(Container container) {
+        this.index = 0;
+        if (container instanceof ArrayContainer) {
+          this.arrayContainer = (ArrayContainer) container;
+          this.bitmapContainer = null;
+        } else {
+          this.arrayContainer = null;
+          this.bitmapContainer = (BitmapContainer) container;
+          this.word = bitmapContainer.words[0];
+        }
+      }
+
+      private boolean hasNext() {
+        if (arrayContainer != null) {
+          return index < arrayContainer.cardinality;
+        }
+        while (word == 0) {
+          if (++index == NUM_WORDS) {
+            return false;
+          }
+          word = bitmapContainer.words[index];
+        }
+        return true;
+      }
+
+      private int next() {
+        if (arrayContainer != null) {
+          return arrayContainer.values[index++];
+        }
+        int value = index * 64 + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+        return value;
+      }
+    }
+  }
+
+  private static class ArrayContainer extends Container {
+    private char[] values;
+    private int cardinality;
+
+    private ArrayContainer() {
+      this(new char[4], 0);
+    }
+
+    private ArrayContainer(char[] values, int cardinality) {
+      this.values = values;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    Container add(char value) {
+      int index = cardinality > 0 && values[cardinality - 1] < value ?
+          -cardinality - 1 : Arrays.binarySearch(values, 0, cardinality, value);
+      if (index >= 0) {
+        return this;
+      }
+      if (cardinality == MAX_ARRAY_SIZE) {
+        return toBitmapContainer().add(value);
+      }
+      index = -index - 1;
+      if (cardinality == values.length) {
+        values = Arrays.copyOf(values,
+            Math.min(MAX_ARRAY_SIZE, Math.max(4, 2 * values.length)));
+      }
+      System.arraycopy(values, index, values, index + 1, cardinality - index);
+      values[index] = value;
+      cardinality++;
+      return this;
+    }
+
+    @Override
+    Container remove(char value) {
+      int index = Arrays.binarySearch(values, 0, cardinality, value);
+      if (index >= 0) {
+        System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+        cardinality--;
+      }
+      return this;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+    }
+
+    @Override
+    int getCardinality() {
+      return cardinality;
+    }
+
+    @Override
+    int getSizeInBytes() {
+      return 2 * values.length;
+    }
+
+    @Override
+    Container and(Container container) {
+      char[] result = new char[Math.min(cardinality, container.getCardinality())];
+      int resultCardinality = 0;
+      if (container instanceof ArrayContainer) {
+        ArrayContainer other = (ArrayContainer) container;
+        int i = 0;
+        int j = 0;
+        while (i < cardinality && j < other.cardinality) {
+          if (values[i] < other.values[j]) {
+            i++;
+          } else if (values[i] > other.values[j]) {
+            j++;
+          } else {
+            result[resultCardinality++] = values[i];
+            i++;
+            j++;
+          }
+        }
+      } else {
+        for (int i = 0; i < cardinality; i++) {
+          if (container.contains(values[i])) {
+            result[resultCardinality++] = values[i];
+          }
+        }
+      }
+      return new ArrayContainer(result, resultCardinality);
+    }
+
+    @Override
+    int andCardinality(Container container) {
+      int resultCardinality = 0;
+      if (container instanceof ArrayContainer) {
+        ArrayContainer other = (ArrayContainer) container;
+        int i = 0;
+        int j = 0;
+        while (i < cardinality && j < other.cardinality) {
+          if (values[i] < other.values[j]) {
+            i++;
+          } else if (values[i] > other.values[j]) {
+            j++;
+          } else {
+            resultCardinality++;
+            i++;
+            j++;
+          }
+        }
+      } else {
+        for (int i = 0; i < cardinality; i++) {
+          if (container.contains(values[i])) {
+            resultCardinality++;
+          }
+        }
+      }
+      return resultCardinality;
+    }
+
+    @Override
+    Container or(Container container) {
+      if (container instanceof BitmapContainer) {
+        return container.or(this);
+      }
+      ArrayContainer other = (ArrayContainer) container;
+      if (cardinality + other.cardinality > MAX_ARRAY_SIZE) {
+        return toBitmapContainer().or(other);
+      }
+      char[] result = new char[Math.max(4, cardinality + other.cardinality)];
+      int resultCardinality = 0;
+      int i = 0;
+      int j = 0;
+      while (i < cardinality || j < other.cardinality) {
+        if (j == other.cardinality || (i < cardinality && values[i] < other.values[j])) {
+          result[resultCardinality++] = values[i++];
+        } else if (i == cardinality || values[i] > other.values[j]) {
+          result[resultCardinality++] = other.values[j++];
+        } else {
+          result[resultCardinality++] = values[i];
+          i++;
+          j++;
+        }
+      }
+      return new ArrayContainer(result, resultCardinality);
+    }
+
+    @Override
+    Container copy() {
+      return new ArrayContainer(Arrays.copyOf(values, values.length), cardinality);
+    }
+
+    @Override
+    void writeTo(DataOutput output) throws IOException {
+      output.writeByte(ARRAY_CONTAINER);
+      output.writeInt(cardinality);
+      for (int i = 0; i < cardinality; i++) {
+        output.writeChar(values[i]);
+      }
+    }
+
+    private BitmapContainer toBitmapContainer() {
+      long[] words = new long[NUM_WORDS];
+      for (int i = 0; i < cardinality; i++) {
+        words[values[i] >>> 6] |= 1L << values[i];
+      }
+      return new BitmapContainer(words, cardinality);
+    }
+  }
+
+  private static class BitmapContainer extends Container {
+    private final long[] words;
+    private int cardinality;
+
+    private BitmapContainer(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    Container add(char value) {
+      long word = words[value >>> 6];
+      long newWord = word | (1L << value);
+      if (newWord != word) {
+        words[value >>> 6] = newWord;
+        cardinality++;
+      }
+      return this;
+    }
+
+    @Override
+    Container remove(char value) {
+      long word = words[value >>> 6];
+      long newWord = word & ~(1L << value);
+      if (newWord != word) {
+        words[value >>> 6] = newWord;
+        cardinality--;
+      }
+      return cardinality <= MAX_ARRAY_SIZE ? toArrayContainer() : this;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return (words[value >>> 6] & (1L << value)) != 0;
+    }
+
+    @Override
+    int getCardinality() {
+      return cardinality;
+    }
+
+    @Override
+    int getSizeInBytes() {
+      return 8 * NUM_WORDS;
+    }
+
+    @Override
+    Container and(Container container) {
+      if (container instanceof ArrayContainer) {
+        return container.and(this);
+      }
+      BitmapContainer other = (BitmapContainer) container;
+      long[] result = new long[NUM_WORDS];
+      int resultCardinality = 0;
+      for (int i = 0; i < NUM_WORDS; i++) {
+        result[i] = words[i] & other.words[i];
+        resultCardinality += Long.bitCount(result[i]);
+      }
+      BitmapContainer bitmapContainer = new BitmapContainer(result, resultCardinality);
+      return resultCardinality <= MAX_ARRAY_SIZE ?
+          bitmapContainer.toArrayContainer() : bitmapContainer;
+    }
+
+    @Override
+    int andCardinality(Container container) {
+      if (container instanceof ArrayContainer) {
+        return container.andCardinality(this);
+      }
+      BitmapContainer other = (BitmapContainer) container;
+      int resultCardinality = 0;
+      for (int i = 0; i < NUM_WORDS; i++) {
+        resultCardinality += Long.bitCount(words[i] & other.words[i]);
+      }
+      return resultCardinality;
+    }
+
+    @Override
+    Container or(Container container) {
+      BitmapContainer result = (BitmapContainer) copy();
+      if (container instanceof ArrayContainer) {
+        ArrayContainer other = (ArrayContainer) container;
+        for (int i = 0; i < other.cardinality; i++) {
+          result.add(other.values[i]);
+        }
+        return result;
+      }
+      BitmapContainer other = (BitmapContainer) container;
+      result.cardinality = 0;
+      for (int i = 0; i < NUM_WORDS; i++) {
+        result.words[i] |= other.words[i];
+        result.cardinality += Long.bitCount(result.words[i]);
+      }
+      return result;
+    }
+
+    @Override
+    Container copy() {
+      return new BitmapContainer(Arrays.copyOf(words, NUM_WORDS), cardinality);
+    }
+
+    @Override
+    void writeTo(DataOutput output) throws IOException {
+      output.writeByte(BITMAP_CONTAINER);
+      output.writeInt(cardinality);
+      for (long word : words) {
+        output.writeLong(word);
+      }
+    }
+
+    private ArrayContainer toArrayContainer() {
+      char[] values = new char[Math.max(4, cardinality)];
+      int numValues = 0;
+      for (int i = 0; i < NUM_WORDS; i++) {
+        long word = words[i];
+        while (word != 0) {
+          values[numValues++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return new ArrayContainer(values, numValues);
+    }
+  }
+}
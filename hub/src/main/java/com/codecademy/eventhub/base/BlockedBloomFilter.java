@@ -0,0 +1,174 @@
+package com.codecademy.eventhub.base;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * BlockedBloomFilter sets and tests all the bits of a key within a single block of BLOCK_SIZE
+ * bytes, i.e. one cache line, so a lookup touches one block however large the filter is. A filter
+ * is numBlocks consecutive blocks of a byte array, which is sized per filter with getNumBlocks.
+ *
+ * A key is hashed once into a Key, which can then be tested against any number of filters
+ * regardless of their sizes and number of hashes.
+ */
+public class BlockedBloomFilter {
+  public static final int BLOCK_SIZE = 64; // in bytes
+  public static final int MAX_NUM_HASHES = 16;
+  private static final int NUM_BITS_PER_BLOCK = 8 * BLOCK_SIZE;
+
+  public static Key getKey(String key) {
+    long hash = Hashing.murmur3_128().hashBytes(key.getBytes()).asLong();
+    int blockHash = (int) hash & Integer.MAX_VALUE;
+    int hash1 = (int) (hash >>> 32);
+    int hash2 = Integer.reverse(hash1) | 1;
+    short[] bitIndices = new short[MAX_NUM_HASHES];
+    for (int i = 0; i < MAX_NUM_HASHES; i++) {
+      bitIndices[i] = (short) ((hash1 + i * hash2) & (NUM_BITS_PER_BLOCK - 1));
+    }
+    return new Key(blockHash, bitIndices);
+  }
+
+  public static void add(byte[] bytes, int offset, int numBlocks, int numHashes, Key key) {
+    int blockOffset = offset + key.getBlockIndex(numBlocks) * BLOCK_SIZE;
+    for (int i = 0; i < numHashes; i++) {
+      int bitIndex = key.bitIndices[i];
+      bytes[blockOffset + (bitIndex >>> 3)] |= 1 << (bitIndex & 7);
+    }
+  }
+
+  public static boolean isPresent(byte[] bytes, int offset, int numBlocks, int numHashes,
+      Key key) {
+    int blockOffset = offset + key.getBlockIndex(numBlocks) * BLOCK_SIZE;
+    for (int i = 0; i < numHashes; i++) {
+      int bitIndex = key.bitIndices[i];
+      if ((bytes[blockOffset + (bitIndex >>> 3)] & (1 << (bitIndex & 7))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static int getNumBlocks(int numKeys, int numBitsPerKey) {
+    return Math.max(1, (numKeys * numBitsPerKey + NUM_BITS_PER_BLOCK - 1) / NUM_BITS_PER_BLOCK);
+  }
+
+  // the number of hashes minimizing the false positive rate, i.e. ln(2) * bits per key
+  public static int getNumHashes(int numKeys, int numBlocks) {
+    if (numKeys == 0) {
+      return 1;
+    }
+    int numHashes = (int) Math.round(Math.log(2) * numBlocks * NUM_BITS_PER_BLOCK / numKeys);
+    return Math.max(1, Math.min(MAX_NUM_HASHES, numHashes));
+  }
+
+  // for an unblocked filter of the same size, which blocking makes slightly optimistic
+  public static double getFalsePositiveRate(int numKeys, int numBlocks, int numHashes) {
+    double numBits = (double) numBlocks * NUM_BITS_PER_BLOCK;
+    return Math.pow(1 - Math.exp(-numHashes * numKeys / numBits), numHashes);
+  }
+
+  public static class Key {
+    private final int blockHash;
+    private final short[] bitIndices;
+
+    private Key(int blockHash, short[] bitIndices) {
+      this.blockHash = blockHash;
+      this.bitIndices = bitIndices;
+    }
+
+    private int getBlockIndex(int numBlocks) {
+      return blockHash % numBlocks;
+    }
+  }
+
+  /**
+   * Where the blocks of a filter are, along with how it was built.
+   */
+  public static class Location {
+    private final long firstBlockId;
+    private final int numBlocks;
+    private final int numKeys;
+    private final int numHashes;
+
+    public Location(long firstBlockId, int numBlocks, int numKeys, int numHashes) {
+      this.firstBlockId = firstBlockId;
+      this.numBlocks = numBlocks;
+      this.numKeys = numKeys;
+      this.numHashes = numHashes;
+    }
+
+    public long getFirstBlockId() {
+      return firstBlockId;
+    }
+
+    public int getNumBlocks() {
+      return numBlocks;
+    }
+
+    public int getNumKeys() {
+      return numKeys;
+    }
+
+    public int getNumHashes() {
+      return numHashes;
+    }
+
+    public static class Schema implements com.codecademy.eventhub.base.Schema<Location> {
+      private static final int OBJECT_SIZE = 8 + 4 + 2 + 2;
+
+      private final ByteOrder byteOrder;
+
+      public Schema(ByteOrder byteOrder) {
+        this.byteOrder = byteOrder;
+      }
+
+      @Override
+      public int getObjectSize() {
+        return OBJECT_SIZE;
+      }
+
+      @Override
+      public byte[] toBytes(Location location) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(OBJECT_SIZE).order(byteOrder);
+        byteBuffer.putLong(location.firstBlockId)
+            .putInt(location.numBlocks)
+            .putShort((short) Math.min(Short.MAX_VALUE, location.numKeys))
+            .putShort((short) location.numHashes);
+        return byteBuffer.array();
+      }
+
+      @Override
+      public Location fromBytes(byte[] bytes) {
+        return fromBytes(bytes, 0);
+      }
+
+      public Location fromBytes(byte[] bytes, int offset) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, offset, OBJECT_SIZE).order(byteOrder);
+        return new Location(byteBuffer.getLong(), byteBuffer.getInt(), byteBuffer.getShort(),
+            byteBuffer.getShort());
+      }
+    }
+  }
+
+  /**
+   * Blocks are stored as raw bytes.
+   */
+  public static class BlockSchema implements com.codecademy.eventhub.base.Schema<byte[]> {
+    @Override
+    public int getObjectSize() {
+      return BLOCK_SIZE;
+    }
+
+    @Override
+    public byte[] toBytes(byte[] block) {
+      return block;
+    }
+
+    @Override
+    public byte[] fromBytes(byte[] bytes) {
+      return bytes;
+    }
+  }
+}
@@ -38,6 +38,24 @@ public class BloomFilter {
     return bitSet.toString();
   }
 
+  // the bucket indices of a key only depend on the schema, so they can be computed once and tested
+  // against the bytes of many filters
+  public static int[] getBucketIndices(String key, int numHashes, int numBits) {
+    return getHashBuckets(key.getBytes(), numHashes, numBits);
+  }
+
+  // tests the bucket indices against a filter serialized by Schema.toBytes, where bit i is bit
+  // i % 8 of byte i / 8
+  public static boolean isPresent(byte[] bytes, int offset, int length, int[] bucketIndices) {
+    for (int bucketIndex : bucketIndices) {
+      int byteIndex = bucketIndex >>> 3;
+      if (byteIndex >= length || (bytes[offset + byteIndex] & (1 << (bucketIndex & 7))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private static int[] getHashBuckets(byte[] bytes, int hashCount, int max) {
     int[] result = new int[hashCount];
     int hash1 = Hashing.murmur3_128().hashBytes(bytes).asInt();
@@ -69,6 +87,15 @@ public class BloomFilter {
       return bloomFilterSize;
     }
 
+    public int getNumHashes() {
+      return numHashes;
+    }
+
+    // what BitSet.size() returns for the filters, which the bucket indices are computed modulo
+    public int getNumBits() {
+      return 64 * ((bloomFilterSize + 7) / 8);
+    }
+
     @Override
     public byte[] toBytes(BloomFilter bloomFilter) {
       ByteBuffer byteBuffer = ByteBuffer.allocate(getObjectSize());
@@ -1,11 +1,21 @@
 package com.codecademy.eventhub.base;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.Maps;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Map;
 import java.util.TreeMap;
 
+/**
+ * The number of properties and the pointers are stored in the byte order of the given buffer,
+ * which is carried over to every duplicate.
+ *
+ * indexOf, valueEquals and getValue read the serialized keys and values in place with absolute
+ * gets, without decoding them nor duplicating the buffer, for the filters compiled into encoded
+ * terms, see CompiledFilter.
+ */
 public class ByteBufferMap {
   private static final int META_DATA_SIZE_IN_BYTES = 4; /* bytes */
   private static final int RECORD_SIZE_IN_BYTES = Integer.SIZE / 8; /* bytes */
@@ -15,19 +25,20 @@ public class ByteBufferMap {
     this.byteBuffer = byteBuffer;
   }
 
+  public ByteOrder getByteOrder() {
+    return byteBuffer.order();
+  }
+
   public String get(String key) {
-    ByteBuffer currentBuffer = byteBuffer.duplicate();
+    ByteBuffer currentBuffer = duplicate();
     currentBuffer.position(0);
     int numProperties = currentBuffer.getInt();
     return get(key, 0, numProperties, numProperties);
   }
 
   public void enumerate(KeyValueCallback callback) {
-    ByteBuffer currentBuffer = byteBuffer.duplicate();
+    ByteBuffer currentBuffer = duplicate();
     currentBuffer.position(0);
-
-    ByteBuffer pointersBuffer = currentBuffer.duplicate();
-    pointersBuffer.position(META_DATA_SIZE_IN_BYTES);
     int numProperties = currentBuffer.getInt();
     for (int i = 0; i < numProperties; i++) {
       // TODO: can be optimized
@@ -36,12 +47,80 @@ public class ByteBufferMap {
     }
   }
 
+  // the index of the encoded key among the sorted keys, -1 when absent
+  public int indexOf(byte[] key) {
+    int numProperties = byteBuffer.getInt(0);
+    // the keys are sorted as strings, which is their UTF-8 byte order as long as the searched key
+    // is ASCII. Other keys are looked for one by one
+    if (!isAscii(key)) {
+      for (int i = 0; i < numProperties; i++) {
+        if (compareKey(i, numProperties, key) == 0) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    int start = 0;
+    int end = numProperties;
+    while (start < end) {
+      int middle = (start + end) >>> 1;
+      int comparisonResult = compareKey(middle, numProperties, key);
+      if (comparisonResult == 0) {
+        return middle;
+      } else if (comparisonResult < 0) {
+        start = middle + 1;
+      } else {
+        end = middle;
+      }
+    }
+    return -1;
+  }
+
+  // whether the value of the index-th key is the encoded value
+  public boolean valueEquals(int index, byte[] value) {
+    int numProperties = byteBuffer.getInt(0);
+    int start = byteBuffer.getInt(calculateByteOffset(numProperties + index - 1));
+    int finish = byteBuffer.getInt(calculateByteOffset(numProperties + index));
+    if (finish - start != value.length) {
+      return false;
+    }
+    for (int i = 0; i < value.length; i++) {
+      if (byteBuffer.get(start + i) != value[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public String getValue(int index) {
+    int numProperties = byteBuffer.getInt(0);
+    return getValue(duplicate(), index, numProperties);
+  }
+
   public ByteBuffer toByteBuffer() {
-    ByteBuffer buffer = byteBuffer.duplicate();
+    ByteBuffer buffer = duplicate();
     buffer.position(0);
     return buffer;
   }
 
+  // returns a copy with the number of properties and the pointers rewritten in the given byte
+  // order, the keys and values are copied as is
+  public ByteBufferMap withByteOrder(ByteOrder byteOrder) {
+    if (byteOrder.equals(byteBuffer.order())) {
+      return this;
+    }
+    ByteBuffer from = toByteBuffer();
+    byte[] bytes = new byte[from.remaining()];
+    from.get(bytes);
+    from.position(0);
+    ByteBuffer to = ByteBuffer.wrap(bytes).order(byteOrder);
+    int numInts = 1 + 2 * from.getInt(0);
+    for (int i = 0; i < numInts; i++) {
+      to.putInt(i * RECORD_SIZE_IN_BYTES, from.getInt(i * RECORD_SIZE_IN_BYTES));
+    }
+    return new ByteBufferMap(to);
+  }
+
   @Override
   public String toString() {
     final StringBuilder sb = new StringBuilder();
@@ -60,7 +139,7 @@ public class ByteBufferMap {
       //noinspection ReturnOfNull
       return null;
     }
-    ByteBuffer currentBuffer = byteBuffer.duplicate();
+    ByteBuffer currentBuffer = duplicate();
 
     int currentRecordOffset = (start + end) >>> 1;
     String key = getKey(currentBuffer, currentRecordOffset, numProperties);
@@ -75,6 +154,34 @@ public class ByteBufferMap {
     }
   }
 
+  // compares the index-th key with the encoded key as unsigned bytes
+  private int compareKey(int index, int numProperties, byte[] key) {
+    int start = index == 0 ? META_DATA_SIZE_IN_BYTES + 2 * numProperties * RECORD_SIZE_IN_BYTES
+        : byteBuffer.getInt(calculateByteOffset(index - 1));
+    int finish = byteBuffer.getInt(calculateByteOffset(index));
+    int length = Math.min(finish - start, key.length);
+    for (int i = 0; i < length; i++) {
+      int comparisonResult = (byteBuffer.get(start + i) & 0xff) - (key[i] & 0xff);
+      if (comparisonResult != 0) {
+        return comparisonResult;
+      }
+    }
+    return (finish - start) - key.length;
+  }
+
+  private static boolean isAscii(byte[] bytes) {
+    for (byte b : bytes) {
+      if (b < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private ByteBuffer duplicate() {
+    return byteBuffer.duplicate().order(byteBuffer.order());
+  }
+
   private int calculateByteOffset(int recordOffset) {
     return META_DATA_SIZE_IN_BYTES + recordOffset * RECORD_SIZE_IN_BYTES;
   }
@@ -104,38 +211,47 @@ public class ByteBufferMap {
     buffer.position(startOffsetInBytes);
     byte[] keyBytes = new byte[finishOffsetInBytes - startOffsetInBytes];
     buffer.get(keyBytes);
-    return new String(keyBytes);
+    return new String(keyBytes, Charsets.UTF_8);
+  }
+
+  // keys and values are stored in UTF-8 whatever the platform charset, which indexOf relies on
+  public static byte[] encode(String string) {
+    return string.getBytes(Charsets.UTF_8);
   }
 
   public static ByteBufferMap build(Map<String, String> fromMap) {
+    return build(fromMap, DataFormat.DEFAULT_BYTE_ORDER);
+  }
+
+  public static ByteBufferMap build(Map<String, String> fromMap, ByteOrder byteOrder) {
     TreeMap<String, String> sortedProperties = Maps.newTreeMap();
     sortedProperties.putAll(fromMap);
 
     int propertiesSizeInBytes = 0;
     for (Map.Entry<String, String> entry : sortedProperties.entrySet()) {
-      propertiesSizeInBytes += entry.getKey().getBytes().length;
-      propertiesSizeInBytes += entry.getValue().getBytes().length;
+      propertiesSizeInBytes += encode(entry.getKey()).length;
+      propertiesSizeInBytes += encode(entry.getValue()).length;
     }
 
     int pointersSizeInBytes = 2 * sortedProperties.size() * RECORD_SIZE_IN_BYTES;
     byte[] bytes = new byte[META_DATA_SIZE_IN_BYTES + pointersSizeInBytes + propertiesSizeInBytes];
 
     // initialize metadata
-    ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+    ByteBuffer byteBuffer = ByteBuffer.wrap(bytes).order(byteOrder);
     byteBuffer.putInt(sortedProperties.size());
 
     // initialize keys and key pointers
     byteBuffer.position(META_DATA_SIZE_IN_BYTES);
-    ByteBuffer propertiesBuffer = byteBuffer.duplicate();
+    ByteBuffer propertiesBuffer = byteBuffer.duplicate().order(byteOrder);
     propertiesBuffer.position(META_DATA_SIZE_IN_BYTES + pointersSizeInBytes);
     for (String key : sortedProperties.keySet()) {
-      propertiesBuffer.put(key.getBytes());
+      propertiesBuffer.put(encode(key));
       byteBuffer.putInt(propertiesBuffer.position());
     }
 
     // initialize values and value pointers
     for (String value : sortedProperties.values()) {
-      propertiesBuffer.put(value.getBytes());
+      propertiesBuffer.put(encode(value));
       byteBuffer.putInt(propertiesBuffer.position());
     }
 
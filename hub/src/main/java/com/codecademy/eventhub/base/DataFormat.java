@@ -0,0 +1,94 @@
+package com.codecademy.eventhub.base;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteOrder;
+
+/**
+ * DataFormat is the versioned header of a data directory. It records the byte order every binary
+ * record (DmaList, DmaIdList, UserEventIndex blocks, journal payloads) in the directory is written
+ * in.
+ *
+ * Directories created before the header existed are big endian. They are recognized by their
+ * meta data files and get a big endian header, new directories are little endian. Use
+ * ConvertToLittleEndian to convert a big endian directory.
+ */
+public class DataFormat {
+  public static final int VERSION = 2; // version 1 is the headerless, big endian format
+  public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+  private static final String FILENAME = "data_format.ser";
+  // files which only exist in directories written before the header existed, these are created
+  // through DmaList.build, which always requires the header first
+  private static final String[] LEGACY_FILES = new String[] {
+      "event_storage/journal_event_storage_meta_data/meta_data.mem",
+      "user_storage/meta_data/meta_data.mem",
+      "user_event_index/meta_data.mem"
+  };
+
+  private final int version;
+  private final ByteOrder byteOrder;
+
+  public DataFormat(int version, ByteOrder byteOrder) {
+    this.version = version;
+    this.byteOrder = byteOrder;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public ByteOrder getByteOrder() {
+    return byteOrder;
+  }
+
+  public String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    return String.format(
+        indent + "version: %d\n" +
+        indent + "byte order: %s",
+        version, byteOrder);
+  }
+
+  public static DataFormat open(String directory) {
+    File file = new File(directory, FILENAME);
+    if (file.exists()) {
+      try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+        int version = ois.readInt();
+        // written by a newer release, which this one can't read
+        if (version > VERSION) {
+          throw new IllegalStateException("unsupported data format version " + version);
+        }
+        String byteOrder = ois.readUTF();
+        if (ByteOrder.BIG_ENDIAN.toString().equals(byteOrder)) {
+          return new DataFormat(version, ByteOrder.BIG_ENDIAN);
+        } else if (ByteOrder.LITTLE_ENDIAN.toString().equals(byteOrder)) {
+          return new DataFormat(version, ByteOrder.LITTLE_ENDIAN);
+        }
+        throw new IllegalStateException("unsupported data format byte order " + byteOrder);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    DataFormat dataFormat = new DataFormat(VERSION, DEFAULT_BYTE_ORDER);
+    for (String legacyFile : LEGACY_FILES) {
+      if (new File(directory, legacyFile).exists()) {
+        dataFormat = new DataFormat(VERSION, ByteOrder.BIG_ENDIAN);
+        break;
+      }
+    }
+    //noinspection ResultOfMethodCallIgnored
+    file.getParentFile().mkdirs();
+    try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
+      oos.writeInt(dataFormat.getVersion());
+      oos.writeUTF(dataFormat.getByteOrder().toString());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return dataFormat;
+  }
+}
@@ -0,0 +1,116 @@
+package com.codecademy.eventhub.base;
+
+import java.util.Arrays;
+
+/**
+ * FrequencySketch is a count-min sketch of 4 rows of 4-bit counters estimating how often a key
+ * was recently seen. A doorkeeper bit set absorbs the keys seen only once, e.g. the ids of a
+ * scan, so that they don't crowd the counters. Once the number of increments reaches 10 times
+ * the width, every counter is halved and the doorkeeper cleared so that the estimates favor
+ * recent history (TinyLFU aging).
+ */
+public class FrequencySketch {
+  private static final int NUM_ROWS = 4;
+  private static final int MAX_COUNT = 15;
+  private static final int DOORKEEPER_BITS_PER_COUNTER = 8;
+  private static final long[] SEEDS = new long[] {
+      0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+  };
+
+  // two 4-bit counters per byte
+  private final byte[][] rows;
+  // keys seen once since the last reset, which only make it to the counters when seen again
+  private final long[] doorkeeper;
+  private final int mask;
+  private final int sampleSize;
+  private int numIncrements;
+
+  public FrequencySketch(int width) {
+    int powerOfTwoWidth = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+    this.rows = new byte[NUM_ROWS][powerOfTwoWidth / 2];
+    this.doorkeeper = new long[DOORKEEPER_BITS_PER_COUNTER * powerOfTwoWidth / 64];
+    this.mask = powerOfTwoWidth - 1;
+    this.sampleSize = 10 * powerOfTwoWidth;
+    this.numIncrements = 0;
+  }
+
+  public synchronized int getFrequency(long key) {
+    return Math.min(MAX_COUNT, getCount(key) + (isInDoorkeeper(key) ? 1 : 0));
+  }
+
+  // conservative update: only the counters at the current minimum are incremented, which keeps
+  // the keys sharing a counter with a frequent key from being overestimated
+  public synchronized void increment(long key) {
+    if (!isInDoorkeeper(key)) {
+      addToDoorkeeper(key);
+    } else {
+      int count = getCount(key);
+      for (int row = 0; row < NUM_ROWS && count < MAX_COUNT; row++) {
+        int index = getIndex(key, row);
+        if (getCounter(row, index) == count) {
+          setCounter(row, index, count + 1);
+        }
+      }
+    }
+    if (++numIncrements == sampleSize) {
+      reset();
+    }
+  }
+
+  private void reset() {
+    for (byte[] row : rows) {
+      for (int i = 0; i < row.length; i++) {
+        // halves both counters of the byte at once
+        row[i] = (byte) ((row[i] >>> 1) & 0x77);
+      }
+    }
+    Arrays.fill(doorkeeper, 0);
+    numIncrements /= 2;
+  }
+
+  private int getCount(long key) {
+    int count = MAX_COUNT;
+    for (int row = 0; row < NUM_ROWS; row++) {
+      count = Math.min(count, getCounter(row, getIndex(key, row)));
+    }
+    return count;
+  }
+
+  private boolean isInDoorkeeper(long key) {
+    for (int i = 0; i < 2; i++) {
+      int bit = getDoorkeeperBit(key, i);
+      if ((doorkeeper[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void addToDoorkeeper(long key) {
+    for (int i = 0; i < 2; i++) {
+      int bit = getDoorkeeperBit(key, i);
+      doorkeeper[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  private int getDoorkeeperBit(long key, int i) {
+    long hash = (key + 1) * SEEDS[NUM_ROWS - 1 - i] + i;
+    hash ^= hash >>> 29;
+    return (int) (hash ^ (hash >>> 32)) & (DOORKEEPER_BITS_PER_COUNTER * (mask + 1) - 1);
+  }
+
+  private int getIndex(long key, int row) {
+    long hash = (key + 1) * SEEDS[row];
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+
+  private int getCounter(int row, int index) {
+    return (rows[row][index >>> 1] >>> ((index & 1) << 2)) & 0xF;
+  }
+
+  private void setCounter(int row, int index, int counter) {
+    int shift = (index & 1) << 2;
+    int counters = rows[row][index >>> 1] & ~(0xF << shift);
+    rows[row][index >>> 1] = (byte) (counters | (counter << shift));
+  }
+}
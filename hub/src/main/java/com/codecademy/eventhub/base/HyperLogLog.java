@@ -0,0 +1,157 @@
+package com.codecademy.eventhub.base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * HyperLogLog estimates the number of distinct user ids added to it with 2^precision registers of
+ * a byte each, e.g. 4KB and a standard error of 1.6% for a precision of 12. Sketches of the same
+ * precision merge into the sketch of the union of their ids, an intersection is estimated by
+ * inclusion-exclusion and is only meaningful when it isn't small compared to the union.
+ */
+public class HyperLogLog {
+  private final int precision;
+  private final byte[] registers;
+
+  public HyperLogLog(int precision) {
+    this(precision, new byte[1 << precision]);
+  }
+
+  private HyperLogLog(int precision, byte[] registers) {
+    if (precision < 4 || precision > 16) {
+      throw new IllegalArgumentException("unsupported precision: " + precision);
+    }
+    this.precision = precision;
+    this.registers = registers;
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  public void add(int userId) {
+    long hash = hash(userId);
+    int index = (int) (hash >>> (64 - precision));
+    // the position of the first one bit of the remaining bits, capped by the sentinel bit
+    int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+    if (rank > registers[index]) {
+      registers[index] = (byte) rank;
+    }
+  }
+
+  public long getCardinality() {
+    int m = registers.length;
+    double sum = 0;
+    int numZeroRegisters = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        numZeroRegisters++;
+      }
+    }
+    double alpha = 0.7213 / (1 + 1.079 / m);
+    double estimate = alpha * m * m / sum;
+    // linear counting is more accurate while many registers are still empty, no large range
+    // correction is needed with a 64 bit hash
+    if (estimate <= 2.5 * m && numZeroRegisters > 0) {
+      estimate = m * Math.log((double) m / numZeroRegisters);
+    }
+    return Math.round(estimate);
+  }
+
+  public boolean isEmpty() {
+    for (byte register : registers) {
+      if (register != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // adds the ids of the other sketch to this one
+  public void merge(HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException(String.format(
+          "can't merge sketches of precision %d and %d", precision, other.precision));
+    }
+    for (int i = 0; i < registers.length; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  public long getSizeInBytes() {
+    return registers.length;
+  }
+
+  public HyperLogLog copy() {
+    return new HyperLogLog(precision, registers.clone());
+  }
+
+  public static HyperLogLog union(HyperLogLog a, HyperLogLog b) {
+    HyperLogLog union = a.copy();
+    union.merge(b);
+    return union;
+  }
+
+  // |a and b| = |a| + |b| - |a or b|, bounded by the smaller of the two
+  public static long intersectionCardinality(HyperLogLog a, HyperLogLog b) {
+    long cardinalityA = a.getCardinality();
+    long cardinalityB = b.getCardinality();
+    long intersection = cardinalityA + cardinalityB - union(a, b).getCardinality();
+    return Math.max(0, Math.min(intersection, Math.min(cardinalityA, cardinalityB)));
+  }
+
+  // sketches of days with few users are mostly empty registers, they are written as (index,
+  // value) pairs when that is smaller
+  public void writeTo(DataOutput output) throws IOException {
+    int numNonZeroRegisters = 0;
+    for (byte register : registers) {
+      if (register != 0) {
+        numNonZeroRegisters++;
+      }
+    }
+    output.writeByte(precision);
+    if (3 * numNonZeroRegisters < registers.length) {
+      output.writeBoolean(true);
+      output.writeInt(numNonZeroRegisters);
+      for (int i = 0; i < registers.length; i++) {
+        if (registers[i] != 0) {
+          output.writeShort(i);
+          output.writeByte(registers[i]);
+        }
+      }
+    } else {
+      output.writeBoolean(false);
+      output.write(registers);
+    }
+  }
+
+  public static HyperLogLog readFrom(DataInput input) throws IOException {
+    int precision = input.readByte();
+    byte[] registers = new byte[1 << precision];
+    if (input.readBoolean()) {
+      int numNonZeroRegisters = input.readInt();
+      for (int i = 0; i < numNonZeroRegisters; i++) {
+        registers[input.readUnsignedShort()] = input.readByte();
+      }
+    } else {
+      input.readFully(registers);
+    }
+    return new HyperLogLog(precision, registers);
+  }
+
+  // the finalizer of MurmurHash3, the user ids being dense they need their bits spread out, offset
+  // as it maps 0 to 0
+  private static long hash(int userId) {
+    long hash = (userId & 0xFFFFFFFFL) + 0x9E3779B97F4A7C15L;
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
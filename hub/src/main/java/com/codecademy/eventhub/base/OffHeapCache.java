@@ -0,0 +1,336 @@
+package com.codecademy.eventhub.base;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * OffHeapCache is a byte bounded cache of records keyed by non-negative, primitive ids. The
+ * records are appended to direct buffer segments of segmentSize bytes and evicted a whole segment
+ * at a time, oldest segment first, once numSegments are in use.
+ *
+ * get returns a view over the cached bytes rather than a copy. Evicted segments are dropped and
+ * never reused, so a view stays valid for as long as it's referenced.
+ *
+ * With a FrequencySketch, admission follows TinyLFU: once the cache has filled up, a record is
+ * only admitted if it was seen more often than a record sampled from the segment to be evicted
+ * next, which keeps one-off reads from flushing the working set. Frequently read records of an
+ * evicted segment are moved to the new segment, up to half of it. Within a ScanScope, records are
+ * neither admitted nor counted.
+ */
+public class OffHeapCache {
+  private static final int LENGTH_SIZE = 4; // in bytes
+  private static final int MIN_RETAINED_FREQUENCY = 2;
+
+  private final int segmentSize;
+  private final int numSegments;
+  private final ByteOrder byteOrder;
+  // indexed by segment generation modulo numSegments
+  private final Segment[] segments;
+  private final Index index;
+  private final FrequencySketch frequencySketch;
+  private int oldestGeneration;
+  private int currentGeneration;
+  // which key of the oldest segment is sampled next as the admission victim
+  private int victimOffset;
+  private long numHits;
+  private long numMisses;
+  private long numEvictions;
+  private long numRejections;
+  private long numScanBypasses;
+
+  public OffHeapCache(int segmentSize, int numSegments, ByteOrder byteOrder) {
+    this(segmentSize, numSegments, byteOrder, null);
+  }
+
+  public OffHeapCache(int segmentSize, int numSegments, ByteOrder byteOrder,
+      FrequencySketch frequencySketch) {
+    this.segmentSize = segmentSize;
+    this.numSegments = numSegments;
+    this.byteOrder = byteOrder;
+    this.segments = new Segment[numSegments];
+    this.index = new Index();
+    this.frequencySketch = frequencySketch;
+    this.oldestGeneration = 0;
+    this.currentGeneration = -1;
+    this.victimOffset = 0;
+  }
+
+  public ByteOrder getByteOrder() {
+    return byteOrder;
+  }
+
+  public synchronized ByteBuffer get(long key) {
+    if (frequencySketch != null && !ScanScope.isActive()) {
+      frequencySketch.increment(key);
+    }
+    long value = index.get(key);
+    if (value == Index.NOT_FOUND) {
+      numMisses++;
+      return null;
+    }
+    numHits++;
+    Segment segment = segments[getGeneration(value) % numSegments];
+    int offset = getOffset(value);
+    int length = segment.buffer.getInt(offset);
+    ByteBuffer view = segment.buffer.duplicate();
+    view.limit(offset + LENGTH_SIZE + length);
+    view.position(offset + LENGTH_SIZE);
+    return view.slice().order(byteOrder);
+  }
+
+  // records larger than a segment are not cached
+  public synchronized void put(long key, ByteBuffer record) {
+    int length = record.remaining();
+    if (LENGTH_SIZE + length > segmentSize) {
+      return;
+    }
+    if (ScanScope.isActive()) {
+      numScanBypasses++;
+      return;
+    }
+    Segment segment = currentGeneration < 0 ? null : segments[currentGeneration % numSegments];
+    boolean isSegmentFull =
+        segment == null || segment.position + LENGTH_SIZE + length > segmentSize;
+    // once the cache has filled up, every record put brings the eviction of the oldest segment
+    // closer, even when it fits in the current one, so only records worth an eviction are admitted
+    if ((isSegmentFull || oldestGeneration > 0) && !isAdmitted(key)) {
+      numRejections++;
+      return;
+    }
+    if (isSegmentFull) {
+      segment = allocateSegment();
+    }
+    index.remove(key);
+    int offset = segment.position;
+    ByteBuffer duplicate = segment.buffer.duplicate().order(byteOrder);
+    duplicate.position(offset);
+    duplicate.putInt(length);
+    duplicate.put(record.duplicate());
+    segment.position += LENGTH_SIZE + length;
+    segment.addKey(key);
+    index.put(key, ((long) segment.generation << 32) | offset);
+  }
+
+  public synchronized void invalidate(long key) {
+    index.remove(key);
+  }
+
+  public synchronized String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    return String.format(
+        indent + "num records: %d\n" +
+        indent + "memory used: %d/%d bytes\n" +
+        indent + "num hits: %d\n" +
+        indent + "num misses: %d\n" +
+        indent + "hit rate: %.4f\n" +
+        indent + "num evictions: %d\n" +
+        indent + "num admission rejections: %d\n" +
+        indent + "num scan bypasses: %d",
+        index.size, getMemoryUsed(), (long) segmentSize * numSegments, numHits, numMisses,
+        getHitRate(), numEvictions, numRejections, numScanBypasses);
+  }
+
+  public synchronized double getHitRate() {
+    long numRequests = numHits + numMisses;
+    return numRequests == 0 ? 0.0 : (double) numHits / numRequests;
+  }
+
+  synchronized long getMemoryUsed() {
+    return currentGeneration < 0 ? 0 :
+        (long) (currentGeneration - oldestGeneration + 1) * segmentSize;
+  }
+
+  synchronized long getNumEvictions() {
+    return numEvictions;
+  }
+
+  private boolean isAdmitted(long key) {
+    if (frequencySketch == null || currentGeneration - oldestGeneration + 1 < numSegments) {
+      return true;
+    }
+    Segment oldest = segments[oldestGeneration % numSegments];
+    for (int i = 0; i < oldest.numKeys; i++) {
+      long victim = oldest.keys[(victimOffset++ & Integer.MAX_VALUE) % oldest.numKeys];
+      long value = index.get(victim);
+      if (value != Index.NOT_FOUND && getGeneration(value) == oldest.generation) {
+        return frequencySketch.getFrequency(key) > frequencySketch.getFrequency(victim);
+      }
+    }
+    return true;
+  }
+
+  private Segment allocateSegment() {
+    Segment oldest = null;
+    if (currentGeneration >= 0 && currentGeneration - oldestGeneration + 1 == numSegments) {
+      oldest = segments[oldestGeneration % numSegments];
+      segments[oldestGeneration % numSegments] = null;
+      oldestGeneration++;
+      victimOffset = 0;
+    }
+    currentGeneration++;
+    Segment segment = new Segment(currentGeneration,
+        ByteBuffer.allocateDirect(segmentSize).order(byteOrder));
+    segments[currentGeneration % numSegments] = segment;
+    if (oldest != null) {
+      evict(oldest, segment);
+    }
+    return segment;
+  }
+
+  // with admission, the frequently read records of the evicted segment are moved to the new one,
+  // up to half of it, rather than evicted along with the rest
+  private void evict(Segment oldest, Segment segment) {
+    for (int i = 0; i < oldest.numKeys; i++) {
+      long key = oldest.keys[i];
+      long value = index.get(key);
+      // the record may have been invalidated or put again in a newer segment
+      if (value == Index.NOT_FOUND || getGeneration(value) != oldest.generation) {
+        continue;
+      }
+      int offset = getOffset(value);
+      int length = oldest.buffer.getInt(offset);
+      if (frequencySketch != null
+          && segment.position + LENGTH_SIZE + length <= segmentSize / 2
+          && frequencySketch.getFrequency(key) >= MIN_RETAINED_FREQUENCY) {
+        ByteBuffer record = oldest.buffer.duplicate();
+        record.limit(offset + LENGTH_SIZE + length);
+        record.position(offset);
+        int newOffset = segment.position;
+        ByteBuffer duplicate = segment.buffer.duplicate();
+        duplicate.position(newOffset);
+        duplicate.put(record);
+        segment.position += LENGTH_SIZE + length;
+        segment.addKey(key);
+        index.put(key, ((long) segment.generation << 32) | newOffset);
+      } else {
+        index.remove(key);
+        numEvictions++;
+      }
+    }
+  }
+
+  private static int getGeneration(long value) {
+    return (int) (value >>> 32);
+  }
+
+  private static int getOffset(long value) {
+    return (int) value;
+  }
+
+  private static class Segment {
+    private final int generation;
+    private final ByteBuffer buffer;
+    private int position;
+    private long[] keys;
+    private int numKeys;
+
+    private Segment(int generation, ByteBuffer buffer) {
+      this.generation = generation;
+      this.buffer = buffer;
+      this.position = 0;
+      this.keys = new long[16];
+      this.numKeys = 0;
+    }
+
+    private void addKey(long key) {
+      if (numKeys == keys.length) {
+        keys = Arrays.copyOf(keys, 2 * keys.length);
+      }
+      keys[numKeys++] = key;
+    }
+  }
+
+  // open addressing, linear probing map from key to (generation, offset), which avoids boxing
+  // the keys and allocating an entry per record
+  private static class Index {
+    private static final long NOT_FOUND = -1;
+    private static final long EMPTY = -1;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    private Index() {
+      this.keys = new long[16];
+      this.values = new long[16];
+      Arrays.fill(keys, EMPTY);
+      this.size = 0;
+    }
+
+    private long get(long key) {
+      int mask = keys.length - 1;
+      for (int slot = getSlot(key, mask); keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          return values[slot];
+        }
+      }
+      return NOT_FOUND;
+    }
+
+    private void put(long key, long value) {
+      if (2 * (size + 1) > keys.length) {
+        resize(2 * keys.length);
+      }
+      int mask = keys.length - 1;
+      int slot = getSlot(key, mask);
+      while (keys[slot] != EMPTY && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      if (keys[slot] == EMPTY) {
+        size++;
+      }
+      keys[slot] = key;
+      values[slot] = value;
+    }
+
+    private void remove(long key) {
+      int mask = keys.length - 1;
+      int slot = getSlot(key, mask);
+      while (keys[slot] != key) {
+        if (keys[slot] == EMPTY) {
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = EMPTY;
+      size--;
+      // shifts back the following entries of the cluster, so that no tombstone is needed
+      int current = slot;
+      while (true) {
+        current = (current + 1) & mask;
+        if (keys[current] == EMPTY) {
+          return;
+        }
+        int home = getSlot(keys[current], mask);
+        boolean isBetween = slot <= current ?
+            (slot < home && home <= current) : (slot < home || home <= current);
+        if (!isBetween) {
+          keys[slot] = keys[current];
+          values[slot] = values[current];
+          keys[current] = EMPTY;
+          slot = current;
+        }
+      }
+    }
+
+    private void resize(int capacity) {
+      long[] oldKeys = keys;
+      long[] oldValues = values;
+      keys = new long[capacity];
+      values = new long[capacity];
+      Arrays.fill(keys, EMPTY);
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != EMPTY) {
+          put(oldKeys[i], oldValues[i]);
+        }
+      }
+    }
+
+    private static int getSlot(long key, int mask) {
+      long hash = key * 0x9E3779B97F4A7C15L;
+      return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+  }
+}
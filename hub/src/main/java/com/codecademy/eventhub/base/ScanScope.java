@@ -0,0 +1,34 @@
+package com.codecademy.eventhub.base;
+
+import java.io.Closeable;
+
+/**
+ * ScanScope marks the current thread as running an analytical scan. Records read within the
+ * scope are still served from the record caches, but they neither populate the caches nor count
+ * towards their admission frequencies, e.g.
+ *   try (ScanScope scanScope = ScanScope.open()) { ... }
+ */
+public class ScanScope implements Closeable {
+  private static final ThreadLocal<int[]> DEPTH = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+
+  private ScanScope() {}
+
+  public static ScanScope open() {
+    DEPTH.get()[0]++;
+    return new ScanScope();
+  }
+
+  public static boolean isActive() {
+    return DEPTH.get()[0] > 0;
+  }
+
+  @Override
+  public void close() {
+    DEPTH.get()[0]--;
+  }
+}
@@ -0,0 +1,188 @@
+package com.codecademy.eventhub.index;
+
+import com.codecademy.eventhub.base.Bitmap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * ActiveUserIndex maps (event type, date) to the bitmap of the ids of the users who did an event
+ * of that type on that date, so that the users active over a date range are the union of a few
+ * bitmaps rather than an enumeration of the events.
+ *
+ * The bitmaps are kept in memory and persisted on close, one file per (event type, date), along
+ * with the number of events indexed. Events added after the last close are indexed again at
+ * startup, see EventHub.
+ */
+public class ActiveUserIndex implements Closeable {
+  private static final int VERSION = 1;
+
+  private final String directory;
+  // from event type to date to user ids
+  private final Map<String, SortedMap<String, Bitmap>> bitmaps;
+  private final Set<String> dirtyPartitions;
+  private long numIndexedEvents;
+
+  public ActiveUserIndex(String directory, Map<String, SortedMap<String, Bitmap>> bitmaps,
+      long numIndexedEvents) {
+    this.directory = directory;
+    this.bitmaps = bitmaps;
+    this.dirtyPartitions = Sets.newHashSet();
+    this.numIndexedEvents = numIndexedEvents;
+  }
+
+  public synchronized long getNumIndexedEvents() {
+    return numIndexedEvents;
+  }
+
+  public synchronized void addEvent(long eventId, String eventType, String date, int userId) {
+    numIndexedEvents = Math.max(numIndexedEvents, eventId + 1);
+    SortedMap<String, Bitmap> eventTypeBitmaps = bitmaps.get(eventType);
+    if (eventTypeBitmaps == null) {
+      eventTypeBitmaps = Maps.newTreeMap();
+      bitmaps.put(eventType, eventTypeBitmaps);
+    }
+    Bitmap bitmap = eventTypeBitmaps.get(date);
+    if (bitmap == null) {
+      bitmap = new Bitmap();
+      eventTypeBitmaps.put(date, bitmap);
+    }
+    bitmap.add(userId);
+    dirtyPartitions.add(getPartitionKey(eventType, date));
+  }
+
+  // the users who did an event of the given type, or of any type when null, within the dates,
+  // both inclusive as in EventIndex
+  public synchronized Bitmap getUserIds(String eventType, String startDate, String endDate) {
+    Bitmap userIds = new Bitmap();
+    for (Map.Entry<String, SortedMap<String, Bitmap>> eventTypeBitmaps : bitmaps.entrySet()) {
+      if (eventType != null && !eventType.equals(eventTypeBitmaps.getKey())) {
+        continue;
+      }
+      for (Bitmap bitmap : eventTypeBitmaps.getValue()
+          .subMap(startDate, EventIndex.nextDate(endDate)).values()) {
+        userIds = Bitmap.or(userIds, bitmap);
+      }
+    }
+    return userIds;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (String partitionKey : dirtyPartitions) {
+      String[] eventTypeAndDate = partitionKey.split("\0");
+      writeBitmap(getPartitionFile(directory, eventTypeAndDate[0], eventTypeAndDate[1]),
+          bitmaps.get(eventTypeAndDate[0]).get(eventTypeAndDate[1]));
+    }
+    dirtyPartitions.clear();
+    writeMetaData();
+  }
+
+  public synchronized String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    int numPartitions = 0;
+    long sizeInBytes = 0;
+    for (SortedMap<String, Bitmap> eventTypeBitmaps : bitmaps.values()) {
+      numPartitions += eventTypeBitmaps.size();
+      for (Bitmap bitmap : eventTypeBitmaps.values()) {
+        sizeInBytes += bitmap.getSizeInBytes();
+      }
+    }
+    return String.format(
+        indent + "directory: %s\n" +
+        indent + "num indexed events: %d\n" +
+        indent + "num partitions: %d\n" +
+        indent + "bitmaps size: %d bytes",
+        directory, numIndexedEvents, numPartitions, sizeInBytes);
+  }
+
+  private static String getPartitionKey(String eventType, String date) {
+    return eventType + "\0" + date;
+  }
+
+  private void writeBitmap(File file, Bitmap bitmap) throws IOException {
+    //noinspection ResultOfMethodCallIgnored
+    file.getParentFile().mkdirs();
+    File newFile = new File(file.getPath() + ".new");
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      bitmap.writeTo(output);
+    }
+    Files.move(newFile, file);
+  }
+
+  private void writeMetaData() throws IOException {
+    //noinspection ResultOfMethodCallIgnored
+    new File(directory).mkdirs();
+    File file = new File(getMetaDataFilename(directory));
+    File newFile = new File(file.getPath() + ".new");
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      output.writeInt(VERSION);
+      output.writeLong(numIndexedEvents);
+    }
+    Files.move(newFile, file);
+  }
+
+  public static ActiveUserIndex build(String directory) {
+    Map<String, SortedMap<String, Bitmap>> bitmaps = Maps.newHashMap();
+    File metaDataFile = new File(getMetaDataFilename(directory));
+    if (!metaDataFile.exists()) {
+      return new ActiveUserIndex(directory, bitmaps, 0);
+    }
+    try {
+      long numIndexedEvents;
+      try (DataInputStream input = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(metaDataFile)))) {
+        int version = input.readInt();
+        if (version != VERSION) {
+          throw new IllegalStateException("unsupported active user index version " + version);
+        }
+        numIndexedEvents = input.readLong();
+      }
+      File[] eventTypeDirectories = new File(directory).listFiles();
+      for (File eventTypeDirectory : eventTypeDirectories == null ?
+          new File[0] : eventTypeDirectories) {
+        File[] partitionFiles = eventTypeDirectory.listFiles();
+        if (!eventTypeDirectory.isDirectory() || partitionFiles == null) {
+          continue;
+        }
+        SortedMap<String, Bitmap> eventTypeBitmaps = Maps.newTreeMap();
+        for (File partitionFile : partitionFiles) {
+          if (partitionFile.getName().matches("[0-9]{8}\\.ser")) {
+            try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(partitionFile)))) {
+              eventTypeBitmaps.put(partitionFile.getName().substring(0, 8),
+                  Bitmap.readFrom(input));
+            }
+          }
+        }
+        bitmaps.put(eventTypeDirectory.getName(), eventTypeBitmaps);
+      }
+      return new ActiveUserIndex(directory, bitmaps, numIndexedEvents);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String getMetaDataFilename(String directory) {
+    return directory + "/meta_data.ser";
+  }
+
+  private static File getPartitionFile(String directory, String eventType, String date) {
+    return new File(String.format("%s/%s/%s.ser", directory, eventType, date));
+  }
+}
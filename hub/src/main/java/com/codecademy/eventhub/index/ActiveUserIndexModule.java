@@ -0,0 +1,16 @@
+package com.codecademy.eventhub.index;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+
+import javax.inject.Named;
+
+public class ActiveUserIndexModule extends AbstractModule {
+  @Override
+  protected void configure() {}
+
+  @Provides
+  public ActiveUserIndex getActiveUserIndex(@Named("eventhub.directory") String directory) {
+    return ActiveUserIndex.build(directory + "/active_user_index/");
+  }
+}
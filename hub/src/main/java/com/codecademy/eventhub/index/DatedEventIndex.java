@@ -21,30 +21,22 @@ public class DatedEventIndex implements Closeable {
   private static final String ID_PREFIX = "i";
 
   private final DB db;
-  // O(numDays)
-  private final List<String> dates;
-  // O(numDays)
-  private final List<Long> earliestEventIds;
-  private String currentDate;
+  // copied on write once a day, so that queries read it without locking
+  private volatile Days days;
+  private volatile String currentDate;
 
   public DatedEventIndex(DB db, List<String> dates, List<Long> earliestEventIds,
       String currentDate) {
     this.db = db;
-    this.dates = dates;
-    this.earliestEventIds = earliestEventIds;
+    this.days = new Days(dates, earliestEventIds);
     this.currentDate = currentDate;
   }
 
   public long findFirstEventIdOnDate(long eventIdForStartDate, int numDaysAfter) {
-    int startDateOffset = Collections.binarySearch(earliestEventIds, eventIdForStartDate);
-    if (startDateOffset < 0) {
-      if (startDateOffset == -1) {
-        startDateOffset = 0;
-      } else {
-        startDateOffset = -startDateOffset - 2;
-      }
-    }
-    String dateOfEvent = dates.get(startDateOffset);
+    Days days = this.days;
+    List<String> dates = days.dates;
+    List<Long> earliestEventIds = days.earliestEventIds;
+    String dateOfEvent = getDate(days, eventIdForStartDate);
     String endDate = DATE_TIME_FORMATTER.print(
         DateTime.parse(dateOfEvent, DATE_TIME_FORMATTER).plusDays(numDaysAfter));
     int endDateOffset = Collections.binarySearch(dates, endDate);
@@ -57,13 +49,35 @@ public class DatedEventIndex implements Closeable {
     return earliestEventIds.get(endDateOffset);
   }
 
+  // the date the event was indexed under, i.e. the current date when it was added
+  public String getDate(long eventId) {
+    return getDate(days, eventId);
+  }
+
+  private static String getDate(Days days, long eventId) {
+    List<String> dates = days.dates;
+    List<Long> earliestEventIds = days.earliestEventIds;
+    int dateOffset = Collections.binarySearch(earliestEventIds, eventId);
+    if (dateOffset < 0) {
+      if (dateOffset == -1) {
+        dateOffset = 0;
+      } else {
+        dateOffset = -dateOffset - 2;
+      }
+    }
+    return dates.get(dateOffset);
+  }
+
   public synchronized void addEvent(long eventId, String date) {
     if (currentDate != null && date.compareTo(currentDate) <= 0) {
       return;
     }
-    currentDate = date;
+    List<String> dates = Lists.newArrayList(days.dates);
     dates.add(date);
+    List<Long> earliestEventIds = Lists.newArrayList(days.earliestEventIds);
     earliestEventIds.add(eventId);
+    days = new Days(dates, earliestEventIds);
+    currentDate = date;
 
     db.put(DATE_PREFIX + date, "");
     db.put(ID_PREFIX + String.format("%020d", eventId), "");
@@ -78,6 +92,17 @@ public class DatedEventIndex implements Closeable {
     db.close();
   }
 
+  // O(numDays), the dates events were added on along with the id of their first event
+  private static class Days {
+    private final List<String> dates;
+    private final List<Long> earliestEventIds;
+
+    private Days(List<String> dates, List<Long> earliestEventIds) {
+      this.dates = dates;
+      this.earliestEventIds = earliestEventIds;
+    }
+  }
+
   public static DatedEventIndex create(DB db) {
     List<String> dates = db.findByPrefix(DATE_PREFIX, DATE_PREFIX.length());
     List<Long> earliestEventIds = Lists.newArrayList(
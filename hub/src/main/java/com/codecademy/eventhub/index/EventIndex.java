@@ -2,6 +2,7 @@ package com.codecademy.eventhub.index;
 
 import com.codecademy.eventhub.list.DmaIdList;
 import com.codecademy.eventhub.list.IdList;
+import com.codecademy.eventhub.query.QueryContext;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -12,7 +13,7 @@ import java.util.SortedMap;
 public class EventIndex implements Closeable {
   private final String directory;
   private final DmaIdList.Factory dmaIdListFactor;
-  // from date string to IdList of eventId
+  // from date string to IdList of eventId, concurrent as dates are added while it's enumerated
   private final SortedMap<String, IdList> eventIdListMap;
 
   public EventIndex(String directory, DmaIdList.Factory dmaIdListFactor,
@@ -25,15 +26,22 @@ public class EventIndex implements Closeable {
   public void enumerateEventIds(String startDate, String endDate, Callback callback) {
      endDate = nextDate(endDate);
     //这里endDate是不包含的，不科学
+    QueryContext context = QueryContext.current();
+    int numEventsScanned = 0;
      for (IdList idList : eventIdListMap.subMap(startDate, endDate).values()) {
       IdList.Iterator eventIdIterator = idList.iterator();
       while (eventIdIterator.hasNext()) {
+        if (++numEventsScanned == QueryContext.CHECK_INTERVAL) {
+          context.onEventsScanned(numEventsScanned);
+          numEventsScanned = 0;
+        }
         callback.onEventId(eventIdIterator.next());
       }
     }
+    context.onEventsScanned(numEventsScanned);
   }
 
-  private String nextDate(String date){
+  static String nextDate(String date){
     try{
       SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
       Date dt = dateFormat.parse(date);
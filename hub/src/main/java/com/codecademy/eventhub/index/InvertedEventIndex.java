@@ -0,0 +1,475 @@
+package com.codecademy.eventhub.index;
+
+import com.codecademy.eventhub.base.Bitmap;
+import com.codecademy.eventhub.base.KeyValueCallback;
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.query.QueryContext;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.Regex;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+import com.codecademy.eventhub.storage.visitor.Visitor;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * InvertedEventIndex maps (event type, date, key, value) to the bitmap of the ids of the events
+ * carrying that property, so that ExactMatch terms are answered with bitmap intersections instead
+ * of reading every event. Keys with more than maxCardinality distinct values for an event type
+ * are dropped from the index, and filters on them are evaluated against the events as before.
+ *
+ * The bitmaps are kept in memory and persisted on close, one file per (event type, date), along
+ * with the number of events indexed. Events added after the last close are indexed again at
+ * startup, see EventHub.
+ */
+public class InvertedEventIndex implements Closeable {
+  private static final Set<String> KEYS_IGNORED = Sets.newHashSet("", "date",
+      "external_user_id", "event_type");
+  private static final int VERSION = 1;
+
+  private final String directory;
+  private final int maxCardinality;
+  // from event type to date to key to value to event ids
+  private final Map<String, SortedMap<String, Map<String, Map<String, Bitmap>>>> partitions;
+  // from event type to key to its distinct values, up to maxCardinality
+  private final Map<String, Map<String, Set<String>>> distinctValues;
+  // from event type to the keys with too many distinct values
+  private final Map<String, Set<String>> excludedKeys;
+  private final Set<String> dirtyPartitions;
+  private long numIndexedEvents;
+
+  public InvertedEventIndex(String directory, int maxCardinality,
+      Map<String, SortedMap<String, Map<String, Map<String, Bitmap>>>> partitions,
+      Map<String, Set<String>> excludedKeys, long numIndexedEvents) {
+    this.directory = directory;
+    this.maxCardinality = maxCardinality;
+    this.partitions = partitions;
+    this.excludedKeys = excludedKeys;
+    this.distinctValues = Maps.newHashMap();
+    this.dirtyPartitions = Sets.newHashSet();
+    this.numIndexedEvents = numIndexedEvents;
+    for (Map.Entry<String, SortedMap<String, Map<String, Map<String, Bitmap>>>> eventType :
+        partitions.entrySet()) {
+      for (Map<String, Map<String, Bitmap>> partition : eventType.getValue().values()) {
+        for (Map.Entry<String, Map<String, Bitmap>> key : partition.entrySet()) {
+          getDistinctValues(eventType.getKey(), key.getKey()).addAll(key.getValue().keySet());
+        }
+      }
+    }
+  }
+
+  public synchronized long getNumIndexedEvents() {
+    return numIndexedEvents;
+  }
+
+  public synchronized void addEvent(long eventId, Event event) {
+    numIndexedEvents = Math.max(numIndexedEvents, eventId + 1);
+    // bitmaps hold ints, later events are left to the other filters
+    if (eventId > Integer.MAX_VALUE) {
+      return;
+    }
+    final String eventType = event.getEventType();
+    final String date = event.getDate();
+    final int id = (int) eventId;
+    final Map<String, Map<String, Bitmap>> partition = getPartition(eventType, date);
+    event.enumerate(new KeyValueCallback() {
+      @Override
+      public void callback(String key, String value) {
+        if (KEYS_IGNORED.contains(key) || isExcluded(eventType, key)) {
+          return;
+        }
+        Set<String> values = getDistinctValues(eventType, key);
+        if (values.add(value) && values.size() > maxCardinality) {
+          exclude(eventType, key);
+          return;
+        }
+        Map<String, Bitmap> bitmaps = partition.get(key);
+        if (bitmaps == null) {
+          bitmaps = Maps.newHashMap();
+          partition.put(key, bitmaps);
+        }
+        Bitmap bitmap = bitmaps.get(value);
+        if (bitmap == null) {
+          bitmap = new Bitmap();
+          bitmaps.put(value, bitmap);
+        }
+        bitmap.add(id);
+      }
+    });
+    dirtyPartitions.add(getPartitionKey(eventType, date));
+  }
+
+  // returns null when none of the terms of the filter can be answered by the index
+  public synchronized Query getQuery(String eventType, Filter filter) {
+    if (numIndexedEvents > (long) Integer.MAX_VALUE + 1) {
+      return null;
+    }
+    TermCollector termCollector = new TermCollector(eventType);
+    filter.accept(termCollector);
+    if (termCollector.terms.isEmpty()) {
+      return null;
+    }
+    return new Query(eventType, termCollector.terms,
+        termCollector.isComplete ? TrueFilter.INSTANCE : filter);
+  }
+
+  // enumerates, in ascending order, the ids of the events of the query's type within the dates,
+  // both inclusive, that match all its terms
+  public void enumerateEventIds(Query query, String startDate, String endDate,
+      EventIndex.Callback callback) {
+    QueryContext context = QueryContext.current();
+    int numEventsScanned = 0;
+    for (Bitmap bitmap : getMatchingEventIds(query, startDate, endDate)) {
+      Bitmap.Iterator iterator = bitmap.iterator();
+      while (iterator.hasNext()) {
+        if (++numEventsScanned == QueryContext.CHECK_INTERVAL) {
+          context.onEventsScanned(numEventsScanned);
+          numEventsScanned = 0;
+        }
+        callback.onEventId(iterator.next());
+      }
+    }
+    context.onEventsScanned(numEventsScanned);
+  }
+
+  // the number of events enumerateEventIds would enumerate, for planning
+  public long getNumMatchingEvents(Query query, String startDate, String endDate) {
+    long numMatchingEvents = 0;
+    for (Bitmap bitmap : getMatchingEventIds(query, startDate, endDate)) {
+      numMatchingEvents += bitmap.getCardinality();
+    }
+    return numMatchingEvents;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (String partitionKey : dirtyPartitions) {
+      String[] eventTypeAndDate = partitionKey.split("\0");
+      writePartition(eventTypeAndDate[0], eventTypeAndDate[1],
+          partitions.get(eventTypeAndDate[0]).get(eventTypeAndDate[1]));
+    }
+    dirtyPartitions.clear();
+    writeMetaData();
+  }
+
+  public synchronized String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    int numPartitions = 0;
+    long numBitmaps = 0;
+    long sizeInBytes = 0;
+    for (SortedMap<String, Map<String, Map<String, Bitmap>>> eventType : partitions.values()) {
+      for (Map<String, Map<String, Bitmap>> partition : eventType.values()) {
+        numPartitions++;
+        for (Map<String, Bitmap> bitmaps : partition.values()) {
+          numBitmaps += bitmaps.size();
+          for (Bitmap bitmap : bitmaps.values()) {
+            sizeInBytes += bitmap.getSizeInBytes();
+          }
+        }
+      }
+    }
+    int numExcludedKeys = 0;
+    for (Set<String> keys : excludedKeys.values()) {
+      numExcludedKeys += keys.size();
+    }
+    return String.format(
+        indent + "directory: %s\n" +
+        indent + "max cardinality: %d\n" +
+        indent + "num indexed events: %d\n" +
+        indent + "num partitions: %d\n" +
+        indent + "num bitmaps: %d\n" +
+        indent + "bitmaps size: %d bytes\n" +
+        indent + "num excluded keys: %d",
+        directory, maxCardinality, numIndexedEvents, numPartitions, numBitmaps, sizeInBytes,
+        numExcludedKeys);
+  }
+
+  // the intersections are computed under the lock, so that they're not affected by the events
+  // added while they are enumerated
+  private synchronized List<Bitmap> getMatchingEventIds(Query query, String startDate,
+      String endDate) {
+    SortedMap<String, Map<String, Map<String, Bitmap>>> eventTypePartitions =
+        partitions.get(query.eventType);
+    if (eventTypePartitions == null) {
+      return Collections.emptyList();
+    }
+    List<Bitmap> matchingEventIds = Lists.newArrayList();
+    for (Map<String, Map<String, Bitmap>> partition :
+        eventTypePartitions.subMap(startDate, EventIndex.nextDate(endDate)).values()) {
+      List<Bitmap> bitmaps = Lists.newArrayList();
+      for (ExactMatch term : query.terms) {
+        Map<String, Bitmap> valueBitmaps = partition.get(term.getKey());
+        Bitmap bitmap = valueBitmaps == null ? null : valueBitmaps.get(term.getValue());
+        if (bitmap == null) {
+          bitmaps = null;
+          break;
+        }
+        bitmaps.add(bitmap);
+      }
+      if (bitmaps == null) {
+        continue;
+      }
+      // the smallest bitmap first keeps the intermediate results small
+      Collections.sort(bitmaps, new Comparator<Bitmap>() {
+        @Override
+        public int compare(Bitmap a, Bitmap b) {
+          return Integer.compare(a.getCardinality(), b.getCardinality());
+        }
+      });
+      Bitmap result = bitmaps.get(0).copy();
+      for (int i = 1; i < bitmaps.size() && !result.isEmpty(); i++) {
+        result = Bitmap.and(result, bitmaps.get(i));
+      }
+      matchingEventIds.add(result);
+    }
+    return matchingEventIds;
+  }
+
+  private boolean isExcluded(String eventType, String key) {
+    Set<String> keys = excludedKeys.get(eventType);
+    return keys != null && keys.contains(key);
+  }
+
+  private void exclude(String eventType, String key) {
+    Set<String> keys = excludedKeys.get(eventType);
+    if (keys == null) {
+      keys = Sets.newHashSet();
+      excludedKeys.put(eventType, keys);
+    }
+    keys.add(key);
+    distinctValues.get(eventType).remove(key);
+    SortedMap<String, Map<String, Map<String, Bitmap>>> eventTypePartitions =
+        partitions.get(eventType);
+    if (eventTypePartitions == null) {
+      return;
+    }
+    for (Map.Entry<String, Map<String, Map<String, Bitmap>>> partition :
+        eventTypePartitions.entrySet()) {
+      if (partition.getValue().remove(key) != null) {
+        dirtyPartitions.add(getPartitionKey(eventType, partition.getKey()));
+      }
+    }
+  }
+
+  private Set<String> getDistinctValues(String eventType, String key) {
+    Map<String, Set<String>> keys = distinctValues.get(eventType);
+    if (keys == null) {
+      keys = Maps.newHashMap();
+      distinctValues.put(eventType, keys);
+    }
+    Set<String> values = keys.get(key);
+    if (values == null) {
+      values = Sets.newHashSet();
+      keys.put(key, values);
+    }
+    return values;
+  }
+
+  private Map<String, Map<String, Bitmap>> getPartition(String eventType, String date) {
+    SortedMap<String, Map<String, Map<String, Bitmap>>> eventTypePartitions =
+        partitions.get(eventType);
+    if (eventTypePartitions == null) {
+      eventTypePartitions = Maps.newTreeMap();
+      partitions.put(eventType, eventTypePartitions);
+    }
+    Map<String, Map<String, Bitmap>> partition = eventTypePartitions.get(date);
+    if (partition == null) {
+      partition = Maps.newHashMap();
+      eventTypePartitions.put(date, partition);
+    }
+    return partition;
+  }
+
+  private static String getPartitionKey(String eventType, String date) {
+    return eventType + "\0" + date;
+  }
+
+  private void writePartition(String eventType, String date,
+      Map<String, Map<String, Bitmap>> partition) throws IOException {
+    File file = getPartitionFile(directory, eventType, date);
+    //noinspection ResultOfMethodCallIgnored
+    file.getParentFile().mkdirs();
+    File newFile = new File(file.getPath() + ".new");
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      output.writeInt(partition.size());
+      for (Map.Entry<String, Map<String, Bitmap>> key : partition.entrySet()) {
+        output.writeUTF(key.getKey());
+        output.writeInt(key.getValue().size());
+        for (Map.Entry<String, Bitmap> value : key.getValue().entrySet()) {
+          output.writeUTF(value.getKey());
+          value.getValue().writeTo(output);
+        }
+      }
+    }
+    Files.move(newFile, file);
+  }
+
+  private void writeMetaData() throws IOException {
+    //noinspection ResultOfMethodCallIgnored
+    new File(directory).mkdirs();
+    File file = new File(getMetaDataFilename(directory));
+    File newFile = new File(file.getPath() + ".new");
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      output.writeInt(VERSION);
+      output.writeLong(numIndexedEvents);
+      output.writeInt(excludedKeys.size());
+      for (Map.Entry<String, Set<String>> eventType : excludedKeys.entrySet()) {
+        output.writeUTF(eventType.getKey());
+        output.writeInt(eventType.getValue().size());
+        for (String key : eventType.getValue()) {
+          output.writeUTF(key);
+        }
+      }
+    }
+    Files.move(newFile, file);
+  }
+
+  public static InvertedEventIndex build(String directory, int maxCardinality) {
+    Map<String, SortedMap<String, Map<String, Map<String, Bitmap>>>> partitions =
+        Maps.newHashMap();
+    Map<String, Set<String>> excludedKeys = Maps.newHashMap();
+    File metaDataFile = new File(getMetaDataFilename(directory));
+    if (!metaDataFile.exists()) {
+      return new InvertedEventIndex(directory, maxCardinality, partitions, excludedKeys, 0);
+    }
+    try {
+      long numIndexedEvents;
+      try (DataInputStream input = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(metaDataFile)))) {
+        int version = input.readInt();
+        if (version != VERSION) {
+          throw new IllegalStateException("unsupported inverted event index version " + version);
+        }
+        numIndexedEvents = input.readLong();
+        int numEventTypes = input.readInt();
+        for (int i = 0; i < numEventTypes; i++) {
+          String eventType = input.readUTF();
+          Set<String> keys = Sets.newHashSet();
+          int numKeys = input.readInt();
+          for (int j = 0; j < numKeys; j++) {
+            keys.add(input.readUTF());
+          }
+          excludedKeys.put(eventType, keys);
+        }
+      }
+      File[] eventTypeDirectories = new File(directory).listFiles();
+      for (File eventTypeDirectory : eventTypeDirectories == null ?
+          new File[0] : eventTypeDirectories) {
+        File[] partitionFiles = eventTypeDirectory.listFiles();
+        if (!eventTypeDirectory.isDirectory() || partitionFiles == null) {
+          continue;
+        }
+        SortedMap<String, Map<String, Map<String, Bitmap>>> eventTypePartitions =
+            Maps.newTreeMap();
+        for (File partitionFile : partitionFiles) {
+          if (partitionFile.getName().matches("[0-9]{8}\\.ser")) {
+            eventTypePartitions.put(partitionFile.getName().substring(0, 8),
+                readPartition(partitionFile));
+          }
+        }
+        partitions.put(eventTypeDirectory.getName(), eventTypePartitions);
+      }
+      return new InvertedEventIndex(directory, maxCardinality, partitions, excludedKeys,
+          numIndexedEvents);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static Map<String, Map<String, Bitmap>> readPartition(File file) throws IOException {
+    try (DataInputStream input = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      Map<String, Map<String, Bitmap>> partition = Maps.newHashMap();
+      int numKeys = input.readInt();
+      for (int i = 0; i < numKeys; i++) {
+        String key = input.readUTF();
+        int numValues = input.readInt();
+        Map<String, Bitmap> bitmaps = Maps.newHashMap();
+        for (int j = 0; j < numValues; j++) {
+          String value = input.readUTF();
+          bitmaps.put(value, Bitmap.readFrom(input));
+        }
+        partition.put(key, bitmaps);
+      }
+      return partition;
+    }
+  }
+
+  private static String getMetaDataFilename(String directory) {
+    return directory + "/meta_data.ser";
+  }
+
+  private static File getPartitionFile(String directory, String eventType, String date) {
+    return new File(String.format("%s/%s/%s.ser", directory, eventType, date));
+  }
+
+  /**
+   * The terms of a filter answered by the index, along with what remains to be evaluated against
+   * the events: TrueFilter when every term is answered, the whole filter otherwise.
+   */
+  public static class Query {
+    private final String eventType;
+    private final List<ExactMatch> terms;
+    private final Filter remainingFilter;
+
+    private Query(String eventType, List<ExactMatch> terms, Filter remainingFilter) {
+      this.eventType = eventType;
+      this.terms = terms;
+      this.remainingFilter = remainingFilter;
+    }
+
+    public Filter getRemainingFilter() {
+      return remainingFilter;
+    }
+  }
+
+  // filters are conjunctions of terms, so visiting every term tells which ones the index covers
+  private class TermCollector implements Visitor {
+    private final String eventType;
+    private final List<ExactMatch> terms;
+    private boolean isComplete;
+
+    private TermCollector(String eventType) {
+      this.eventType = eventType;
+      this.terms = Lists.newArrayList();
+      this.isComplete = true;
+    }
+
+    @Override
+    public boolean visit(ExactMatch exactMatch) {
+      if (KEYS_IGNORED.contains(exactMatch.getKey())
+          || isExcluded(eventType, exactMatch.getKey())) {
+        isComplete = false;
+      } else {
+        terms.add(exactMatch);
+      }
+      return true;
+    }
+
+    @Override
+    public boolean visit(Regex regex) {
+      isComplete = false;
+      return true;
+    }
+  }
+}
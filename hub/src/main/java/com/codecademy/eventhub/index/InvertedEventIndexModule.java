@@ -0,0 +1,18 @@
+package com.codecademy.eventhub.index;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+
+import javax.inject.Named;
+
+public class InvertedEventIndexModule extends AbstractModule {
+  @Override
+  protected void configure() {}
+
+  @Provides
+  public InvertedEventIndex getInvertedEventIndex(
+      @Named("eventhub.directory") String directory,
+      @Named("eventhub.invertedeventindex.maxCardinality") int maxCardinality) {
+    return InvertedEventIndex.build(directory + "/inverted_event_index/", maxCardinality);
+  }
+}
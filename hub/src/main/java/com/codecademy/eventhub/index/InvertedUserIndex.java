@@ -0,0 +1,293 @@
+package com.codecademy.eventhub.index;
+
+import com.codecademy.eventhub.base.Bitmap;
+import com.codecademy.eventhub.base.KeyValueCallback;
+import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.Regex;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+import com.codecademy.eventhub.storage.visitor.Visitor;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * InvertedUserIndex maps (key, value) to the bitmap of the ids of the users currently carrying
+ * that property, so that ExactMatch terms on users are answered with bitmap intersections instead
+ * of reading every user. Keys with more than maxCardinality distinct values are dropped from the
+ * index and left to the user filters.
+ *
+ * Unlike events, users are updated in place, so the index can't be caught up from a watermark
+ * after a crash. The index file is only trusted if it was written by close: it is removed once
+ * read, and a missing file means every user is indexed again at startup, see JournalUserStorage.
+ */
+public class InvertedUserIndex implements Closeable {
+  private static final Set<String> KEYS_IGNORED = Sets.newHashSet("", "external_user_id");
+  private static final int VERSION = 1;
+
+  private final String filename;
+  private final int maxCardinality;
+  // from key to value to user ids
+  private final Map<String, Map<String, Bitmap>> bitmaps;
+  private final Set<String> excludedKeys;
+  private int numIndexedUsers;
+
+  public InvertedUserIndex(String filename, int maxCardinality,
+      Map<String, Map<String, Bitmap>> bitmaps, Set<String> excludedKeys, int numIndexedUsers) {
+    this.filename = filename;
+    this.maxCardinality = maxCardinality;
+    this.bitmaps = bitmaps;
+    this.excludedKeys = excludedKeys;
+    this.numIndexedUsers = numIndexedUsers;
+  }
+
+  public synchronized int getNumIndexedUsers() {
+    return numIndexedUsers;
+  }
+
+  public synchronized void addUser(final int userId, User user) {
+    numIndexedUsers = Math.max(numIndexedUsers, userId + 1);
+    user.enumerate(new KeyValueCallback() {
+      @Override
+      public void callback(String key, String value) {
+        if (KEYS_IGNORED.contains(key) || excludedKeys.contains(key)) {
+          return;
+        }
+        Map<String, Bitmap> valueBitmaps = bitmaps.get(key);
+        if (valueBitmaps == null) {
+          valueBitmaps = Maps.newHashMap();
+          bitmaps.put(key, valueBitmaps);
+        }
+        Bitmap bitmap = valueBitmaps.get(value);
+        if (bitmap == null) {
+          if (valueBitmaps.size() == maxCardinality) {
+            excludedKeys.add(key);
+            bitmaps.remove(key);
+            return;
+          }
+          bitmap = new Bitmap();
+          valueBitmaps.put(value, bitmap);
+        }
+        bitmap.add(userId);
+      }
+    });
+  }
+
+  public synchronized void updateUser(int userId, User oldUser, User newUser) {
+    removeUser(userId, oldUser);
+    addUser(userId, newUser);
+  }
+
+  // returns null when none of the terms of the filter can be answered by the index
+  public synchronized Query getQuery(Filter filter) {
+    TermCollector termCollector = new TermCollector();
+    filter.accept(termCollector);
+    if (termCollector.terms.isEmpty()) {
+      return null;
+    }
+    return new Query(getMatchingUserIds(termCollector.terms),
+        termCollector.isComplete ? TrueFilter.INSTANCE : filter);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    File file = new File(filename);
+    //noinspection ResultOfMethodCallIgnored
+    file.getParentFile().mkdirs();
+    File newFile = new File(filename + ".new");
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      output.writeInt(VERSION);
+      output.writeInt(numIndexedUsers);
+      output.writeInt(excludedKeys.size());
+      for (String key : excludedKeys) {
+        output.writeUTF(key);
+      }
+      output.writeInt(bitmaps.size());
+      for (Map.Entry<String, Map<String, Bitmap>> key : bitmaps.entrySet()) {
+        output.writeUTF(key.getKey());
+        output.writeInt(key.getValue().size());
+        for (Map.Entry<String, Bitmap> value : key.getValue().entrySet()) {
+          output.writeUTF(value.getKey());
+          value.getValue().writeTo(output);
+        }
+      }
+    }
+    Files.move(newFile, file);
+  }
+
+  public synchronized String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    long numBitmaps = 0;
+    long sizeInBytes = 0;
+    for (Map<String, Bitmap> valueBitmaps : bitmaps.values()) {
+      numBitmaps += valueBitmaps.size();
+      for (Bitmap bitmap : valueBitmaps.values()) {
+        sizeInBytes += bitmap.getSizeInBytes();
+      }
+    }
+    return String.format(
+        indent + "filename: %s\n" +
+        indent + "max cardinality: %d\n" +
+        indent + "num indexed users: %d\n" +
+        indent + "num indexed keys: %d\n" +
+        indent + "num bitmaps: %d\n" +
+        indent + "bitmaps size: %d bytes\n" +
+        indent + "excluded keys: %s",
+        filename, maxCardinality, numIndexedUsers, bitmaps.size(), numBitmaps, sizeInBytes,
+        excludedKeys);
+  }
+
+  private void removeUser(final int userId, User user) {
+    user.enumerate(new KeyValueCallback() {
+      @Override
+      public void callback(String key, String value) {
+        Map<String, Bitmap> valueBitmaps = bitmaps.get(key);
+        Bitmap bitmap = valueBitmaps == null ? null : valueBitmaps.get(value);
+        if (bitmap == null) {
+          return;
+        }
+        bitmap.remove(userId);
+        // values no user carries anymore don't count towards the cardinality
+        if (bitmap.isEmpty()) {
+          valueBitmaps.remove(value);
+        }
+      }
+    });
+  }
+
+  private Bitmap getMatchingUserIds(List<ExactMatch> terms) {
+    List<Bitmap> termBitmaps = Lists.newArrayList();
+    for (ExactMatch term : terms) {
+      Map<String, Bitmap> valueBitmaps = bitmaps.get(term.getKey());
+      Bitmap bitmap = valueBitmaps == null ? null : valueBitmaps.get(term.getValue());
+      if (bitmap == null) {
+        return new Bitmap();
+      }
+      termBitmaps.add(bitmap);
+    }
+    // the smallest bitmap first keeps the intermediate results small
+    Collections.sort(termBitmaps, new Comparator<Bitmap>() {
+      @Override
+      public int compare(Bitmap a, Bitmap b) {
+        return Integer.compare(a.getCardinality(), b.getCardinality());
+      }
+    });
+    Bitmap result = termBitmaps.get(0).copy();
+    for (int i = 1; i < termBitmaps.size() && !result.isEmpty(); i++) {
+      result = Bitmap.and(result, termBitmaps.get(i));
+    }
+    return result;
+  }
+
+  public static InvertedUserIndex build(String filename, int maxCardinality) {
+    Map<String, Map<String, Bitmap>> bitmaps = Maps.newHashMap();
+    Set<String> excludedKeys = Sets.newHashSet();
+    File file = new File(filename);
+    if (!file.exists()) {
+      return new InvertedUserIndex(filename, maxCardinality, bitmaps, excludedKeys, 0);
+    }
+    try {
+      int numIndexedUsers;
+      try (DataInputStream input = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)))) {
+        int version = input.readInt();
+        if (version != VERSION) {
+          throw new IllegalStateException("unsupported inverted user index version " + version);
+        }
+        numIndexedUsers = input.readInt();
+        int numExcludedKeys = input.readInt();
+        for (int i = 0; i < numExcludedKeys; i++) {
+          excludedKeys.add(input.readUTF());
+        }
+        int numKeys = input.readInt();
+        for (int i = 0; i < numKeys; i++) {
+          String key = input.readUTF();
+          int numValues = input.readInt();
+          Map<String, Bitmap> valueBitmaps = Maps.newHashMap();
+          for (int j = 0; j < numValues; j++) {
+            String value = input.readUTF();
+            valueBitmaps.put(value, Bitmap.readFrom(input));
+          }
+          bitmaps.put(key, valueBitmaps);
+        }
+      }
+      // written again on close, a crash in between has the index rebuilt
+      if (!file.delete()) {
+        throw new IOException("unable to delete " + filename);
+      }
+      return new InvertedUserIndex(filename, maxCardinality, bitmaps, excludedKeys,
+          numIndexedUsers);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * The ids of the users matching the terms of a filter answered by the index, along with what
+   * remains to be evaluated against the users: TrueFilter when every term is answered, the whole
+   * filter otherwise.
+   */
+  public static class Query {
+    private final Bitmap userIds;
+    private final Filter remainingFilter;
+
+    private Query(Bitmap userIds, Filter remainingFilter) {
+      this.userIds = userIds;
+      this.remainingFilter = remainingFilter;
+    }
+
+    public Bitmap getUserIds() {
+      return userIds;
+    }
+
+    public Filter getRemainingFilter() {
+      return remainingFilter;
+    }
+  }
+
+  // filters are conjunctions of terms, so visiting every term tells which ones the index covers
+  private class TermCollector implements Visitor {
+    private final List<ExactMatch> terms;
+    private boolean isComplete;
+
+    private TermCollector() {
+      this.terms = Lists.newArrayList();
+      this.isComplete = true;
+    }
+
+    @Override
+    public boolean visit(ExactMatch exactMatch) {
+      if (KEYS_IGNORED.contains(exactMatch.getKey())
+          || excludedKeys.contains(exactMatch.getKey())) {
+        isComplete = false;
+      } else {
+        terms.add(exactMatch);
+      }
+      return true;
+    }
+
+    @Override
+    public boolean visit(Regex regex) {
+      isComplete = false;
+      return true;
+    }
+  }
+}
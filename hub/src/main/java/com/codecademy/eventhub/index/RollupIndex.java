@@ -0,0 +1,378 @@
+package com.codecademy.eventhub.index;
+
+import com.codecademy.eventhub.base.KeyValueCallback;
+import com.codecademy.eventhub.model.Event;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.joda.time.DateTime;
+import org.joda.time.Days;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * RollupIndex counts the events of each type per day, in total and per property value, so that
+ * daily time series are read from the counters rather than from the events. As in
+ * InvertedEventIndex, keys with more than maxCardinality distinct values for an event type are
+ * dropped and can't be split by.
+ *
+ * The counters are kept in memory and persisted on close, one file per (event type, date), along
+ * with the number of events counted. Events added after the last close are counted again at
+ * startup, see EventHub.
+ */
+public class RollupIndex implements Closeable {
+  private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormat.forPattern("yyyyMMdd");
+  private static final Set<String> KEYS_IGNORED = Sets.newHashSet("", "date",
+      "external_user_id", "event_type");
+  private static final int VERSION = 1;
+
+  private final String directory;
+  private final int maxCardinality;
+  // from event type to date to counters
+  private final Map<String, SortedMap<String, Rollup>> rollups;
+  // from event type to key to its distinct values, up to maxCardinality
+  private final Map<String, Map<String, Set<String>>> distinctValues;
+  // from event type to the keys with too many distinct values
+  private final Map<String, Set<String>> excludedKeys;
+  private final Set<String> dirtyPartitions;
+  private long numIndexedEvents;
+
+  public RollupIndex(String directory, int maxCardinality,
+      Map<String, SortedMap<String, Rollup>> rollups, Map<String, Set<String>> excludedKeys,
+      long numIndexedEvents) {
+    this.directory = directory;
+    this.maxCardinality = maxCardinality;
+    this.rollups = rollups;
+    this.excludedKeys = excludedKeys;
+    this.distinctValues = Maps.newHashMap();
+    this.dirtyPartitions = Sets.newHashSet();
+    this.numIndexedEvents = numIndexedEvents;
+    for (Map.Entry<String, SortedMap<String, Rollup>> eventType : rollups.entrySet()) {
+      for (Rollup rollup : eventType.getValue().values()) {
+        for (Map.Entry<String, Multiset<String>> key : rollup.valueCounts.entrySet()) {
+          getDistinctValues(eventType.getKey(), key.getKey()).addAll(key.getValue().elementSet());
+        }
+      }
+    }
+  }
+
+  public synchronized long getNumIndexedEvents() {
+    return numIndexedEvents;
+  }
+
+  public synchronized void addEvent(long eventId, Event event) {
+    numIndexedEvents = Math.max(numIndexedEvents, eventId + 1);
+    final String eventType = event.getEventType();
+    final Rollup rollup = getRollup(eventType, event.getDate());
+    rollup.numEvents++;
+    event.enumerate(new KeyValueCallback() {
+      @Override
+      public void callback(String key, String value) {
+        if (KEYS_IGNORED.contains(key) || isExcluded(eventType, key)) {
+          return;
+        }
+        Set<String> values = getDistinctValues(eventType, key);
+        if (values.add(value) && values.size() > maxCardinality) {
+          exclude(eventType, key);
+          return;
+        }
+        Multiset<String> valueCounts = rollup.valueCounts.get(key);
+        if (valueCounts == null) {
+          valueCounts = HashMultiset.create();
+          rollup.valueCounts.put(key, valueCounts);
+        }
+        valueCounts.add(value);
+      }
+    });
+    dirtyPartitions.add(getPartitionKey(eventType, event.getDate()));
+  }
+
+  // the number of events of the type for each date, both inclusive
+  public synchronized int[] getCounts(String eventType, String startDate, String endDate) {
+    DateTime start = DATE_TIME_FORMATTER.parseDateTime(startDate);
+    int[] counts = new int[getNumDays(start, endDate)];
+    for (Map.Entry<String, Rollup> rollup : getRollups(eventType, startDate, endDate).entrySet()) {
+      counts[getDay(start, rollup.getKey())] = rollup.getValue().numEvents;
+    }
+    return counts;
+  }
+
+  // the number of events of the type for each value of the key and each date, both inclusive,
+  // or null when the key has too many values to be counted
+  public synchronized Map<String, int[]> getCounts(String eventType, String key,
+      String startDate, String endDate) {
+    if (KEYS_IGNORED.contains(key) || isExcluded(eventType, key)) {
+      return null;
+    }
+    DateTime start = DATE_TIME_FORMATTER.parseDateTime(startDate);
+    int numDays = getNumDays(start, endDate);
+    Map<String, int[]> counts = Maps.newTreeMap();
+    for (Map.Entry<String, Rollup> rollup : getRollups(eventType, startDate, endDate).entrySet()) {
+      Multiset<String> valueCounts = rollup.getValue().valueCounts.get(key);
+      if (valueCounts == null) {
+        continue;
+      }
+      int day = getDay(start, rollup.getKey());
+      for (Multiset.Entry<String> valueCount : valueCounts.entrySet()) {
+        int[] valueCountsByDay = counts.get(valueCount.getElement());
+        if (valueCountsByDay == null) {
+          valueCountsByDay = new int[numDays];
+          counts.put(valueCount.getElement(), valueCountsByDay);
+        }
+        valueCountsByDay[day] = valueCount.getCount();
+      }
+    }
+    return counts;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (String partitionKey : dirtyPartitions) {
+      String[] eventTypeAndDate = partitionKey.split("\0");
+      writeRollup(getPartitionFile(directory, eventTypeAndDate[0], eventTypeAndDate[1]),
+          rollups.get(eventTypeAndDate[0]).get(eventTypeAndDate[1]));
+    }
+    dirtyPartitions.clear();
+    writeMetaData();
+  }
+
+  public synchronized String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    int numPartitions = 0;
+    long numCounters = 0;
+    for (SortedMap<String, Rollup> eventType : rollups.values()) {
+      numPartitions += eventType.size();
+      for (Rollup rollup : eventType.values()) {
+        numCounters++;
+        for (Multiset<String> valueCounts : rollup.valueCounts.values()) {
+          numCounters += valueCounts.elementSet().size();
+        }
+      }
+    }
+    int numExcludedKeys = 0;
+    for (Set<String> keys : excludedKeys.values()) {
+      numExcludedKeys += keys.size();
+    }
+    return String.format(
+        indent + "directory: %s\n" +
+        indent + "max cardinality: %d\n" +
+        indent + "num indexed events: %d\n" +
+        indent + "num partitions: %d\n" +
+        indent + "num counters: %d\n" +
+        indent + "num excluded keys: %d",
+        directory, maxCardinality, numIndexedEvents, numPartitions, numCounters,
+        numExcludedKeys);
+  }
+
+  private SortedMap<String, Rollup> getRollups(String eventType, String startDate,
+      String endDate) {
+    SortedMap<String, Rollup> eventTypeRollups = rollups.get(eventType);
+    if (eventTypeRollups == null) {
+      return Maps.newTreeMap();
+    }
+    return eventTypeRollups.subMap(startDate, EventIndex.nextDate(endDate));
+  }
+
+  private boolean isExcluded(String eventType, String key) {
+    Set<String> keys = excludedKeys.get(eventType);
+    return keys != null && keys.contains(key);
+  }
+
+  private void exclude(String eventType, String key) {
+    Set<String> keys = excludedKeys.get(eventType);
+    if (keys == null) {
+      keys = Sets.newHashSet();
+      excludedKeys.put(eventType, keys);
+    }
+    keys.add(key);
+    distinctValues.get(eventType).remove(key);
+    SortedMap<String, Rollup> eventTypeRollups = rollups.get(eventType);
+    if (eventTypeRollups == null) {
+      return;
+    }
+    for (Map.Entry<String, Rollup> rollup : eventTypeRollups.entrySet()) {
+      if (rollup.getValue().valueCounts.remove(key) != null) {
+        dirtyPartitions.add(getPartitionKey(eventType, rollup.getKey()));
+      }
+    }
+  }
+
+  private Set<String> getDistinctValues(String eventType, String key) {
+    Map<String, Set<String>> keys = distinctValues.get(eventType);
+    if (keys == null) {
+      keys = Maps.newHashMap();
+      distinctValues.put(eventType, keys);
+    }
+    Set<String> values = keys.get(key);
+    if (values == null) {
+      values = Sets.newHashSet();
+      keys.put(key, values);
+    }
+    return values;
+  }
+
+  private Rollup getRollup(String eventType, String date) {
+    SortedMap<String, Rollup> eventTypeRollups = rollups.get(eventType);
+    if (eventTypeRollups == null) {
+      eventTypeRollups = Maps.newTreeMap();
+      rollups.put(eventType, eventTypeRollups);
+    }
+    Rollup rollup = eventTypeRollups.get(date);
+    if (rollup == null) {
+      rollup = new Rollup();
+      eventTypeRollups.put(date, rollup);
+    }
+    return rollup;
+  }
+
+  private static int getNumDays(DateTime start, String endDate) {
+    return Math.max(0, getDay(start, endDate) + 1);
+  }
+
+  private static int getDay(DateTime start, String date) {
+    return Days.daysBetween(start, DATE_TIME_FORMATTER.parseDateTime(date)).getDays();
+  }
+
+  private static String getPartitionKey(String eventType, String date) {
+    return eventType + "\0" + date;
+  }
+
+  private void writeRollup(File file, Rollup rollup) throws IOException {
+    //noinspection ResultOfMethodCallIgnored
+    file.getParentFile().mkdirs();
+    File newFile = new File(file.getPath() + ".new");
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      output.writeInt(rollup.numEvents);
+      output.writeInt(rollup.valueCounts.size());
+      for (Map.Entry<String, Multiset<String>> key : rollup.valueCounts.entrySet()) {
+        output.writeUTF(key.getKey());
+        output.writeInt(key.getValue().elementSet().size());
+        for (Multiset.Entry<String> valueCount : key.getValue().entrySet()) {
+          output.writeUTF(valueCount.getElement());
+          output.writeInt(valueCount.getCount());
+        }
+      }
+    }
+    Files.move(newFile, file);
+  }
+
+  private void writeMetaData() throws IOException {
+    //noinspection ResultOfMethodCallIgnored
+    new File(directory).mkdirs();
+    File file = new File(getMetaDataFilename(directory));
+    File newFile = new File(file.getPath() + ".new");
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      output.writeInt(VERSION);
+      output.writeLong(numIndexedEvents);
+      output.writeInt(excludedKeys.size());
+      for (Map.Entry<String, Set<String>> eventType : excludedKeys.entrySet()) {
+        output.writeUTF(eventType.getKey());
+        output.writeInt(eventType.getValue().size());
+        for (String key : eventType.getValue()) {
+          output.writeUTF(key);
+        }
+      }
+    }
+    Files.move(newFile, file);
+  }
+
+  public static RollupIndex build(String directory, int maxCardinality) {
+    Map<String, SortedMap<String, Rollup>> rollups = Maps.newHashMap();
+    Map<String, Set<String>> excludedKeys = Maps.newHashMap();
+    File metaDataFile = new File(getMetaDataFilename(directory));
+    if (!metaDataFile.exists()) {
+      return new RollupIndex(directory, maxCardinality, rollups, excludedKeys, 0);
+    }
+    try {
+      long numIndexedEvents;
+      try (DataInputStream input = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(metaDataFile)))) {
+        int version = input.readInt();
+        if (version != VERSION) {
+          throw new IllegalStateException("unsupported rollup index version " + version);
+        }
+        numIndexedEvents = input.readLong();
+        int numEventTypes = input.readInt();
+        for (int i = 0; i < numEventTypes; i++) {
+          String eventType = input.readUTF();
+          Set<String> keys = Sets.newHashSet();
+          int numKeys = input.readInt();
+          for (int j = 0; j < numKeys; j++) {
+            keys.add(input.readUTF());
+          }
+          excludedKeys.put(eventType, keys);
+        }
+      }
+      File[] eventTypeDirectories = new File(directory).listFiles();
+      for (File eventTypeDirectory : eventTypeDirectories == null ?
+          new File[0] : eventTypeDirectories) {
+        File[] partitionFiles = eventTypeDirectory.listFiles();
+        if (!eventTypeDirectory.isDirectory() || partitionFiles == null) {
+          continue;
+        }
+        SortedMap<String, Rollup> eventTypeRollups = Maps.newTreeMap();
+        for (File partitionFile : partitionFiles) {
+          if (partitionFile.getName().matches("[0-9]{8}\\.ser")) {
+            eventTypeRollups.put(partitionFile.getName().substring(0, 8),
+                readRollup(partitionFile));
+          }
+        }
+        rollups.put(eventTypeDirectory.getName(), eventTypeRollups);
+      }
+      return new RollupIndex(directory, maxCardinality, rollups, excludedKeys, numIndexedEvents);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static Rollup readRollup(File file) throws IOException {
+    try (DataInputStream input = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      Rollup rollup = new Rollup();
+      rollup.numEvents = input.readInt();
+      int numKeys = input.readInt();
+      for (int i = 0; i < numKeys; i++) {
+        String key = input.readUTF();
+        int numValues = input.readInt();
+        Multiset<String> valueCounts = HashMultiset.create();
+        for (int j = 0; j < numValues; j++) {
+          valueCounts.add(input.readUTF(), input.readInt());
+        }
+        rollup.valueCounts.put(key, valueCounts);
+      }
+      return rollup;
+    }
+  }
+
+  private static String getMetaDataFilename(String directory) {
+    return directory + "/meta_data.ser";
+  }
+
+  private static File getPartitionFile(String directory, String eventType, String date) {
+    return new File(String.format("%s/%s/%s.ser", directory, eventType, date));
+  }
+
+  // the counters of an event type on a date
+  public static class Rollup {
+    private int numEvents;
+    // from key to value to number of events
+    private final Map<String, Multiset<String>> valueCounts = Maps.newHashMap();
+  }
+}
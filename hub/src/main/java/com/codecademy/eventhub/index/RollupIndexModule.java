@@ -0,0 +1,18 @@
+package com.codecademy.eventhub.index;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+
+import javax.inject.Named;
+
+public class RollupIndexModule extends AbstractModule {
+  @Override
+  protected void configure() {}
+
+  @Provides
+  public RollupIndex getRollupIndex(
+      @Named("eventhub.directory") String directory,
+      @Named("eventhub.rollupindex.maxCardinality") int maxCardinality) {
+    return RollupIndex.build(directory + "/rollup_index/", maxCardinality);
+  }
+}
@@ -1,5 +1,6 @@
 package com.codecademy.eventhub.index;
 
+import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
 import com.google.common.io.Files;
 
@@ -17,10 +18,11 @@ import java.util.Map;
 public class ShardedEventIndex implements Closeable {
   private final String filename;
   private final EventIndex.Factory eventIndexFactory;
-  // O(numEventTypes), from eventType to its index
-  private final Map<String, EventIndex> eventIndexMap;
+  // O(numEventTypes), from eventType to its index, both maps are copied on write so that they are
+  // read without locking
+  private volatile Map<String, EventIndex> eventIndexMap;
   // O(numEventTypes)
-  private final Map<String, Integer> eventTypeIdMap;
+  private volatile Map<String, Integer> eventTypeIdMap;
 
   public ShardedEventIndex(String filename, EventIndex.Factory eventIndexFactory,
       Map<String, EventIndex> eventIndexMap, Map<String, Integer> eventTypeIdMap) {
@@ -36,13 +38,23 @@ public class ShardedEventIndex implements Closeable {
   }
 
   public int ensureEventType(String eventType) {
-    if (eventTypeIdMap.containsKey(eventType)) {
-      return eventTypeIdMap.get(eventType);
+    Integer eventTypeId = eventTypeIdMap.get(eventType);
+    if (eventTypeId != null) {
+      return eventTypeId;
     }
     synchronized (this) {
-      int eventTypeId = eventIndexMap.size();
-      eventTypeIdMap.put(eventType, eventTypeId);
-      eventIndexMap.put(eventType, eventIndexFactory.build(eventType));
+      eventTypeId = eventTypeIdMap.get(eventType);
+      if (eventTypeId != null) {
+        return eventTypeId;
+      }
+      eventTypeId = eventIndexMap.size();
+      Map<String, EventIndex> newEventIndexMap = Maps.newHashMap(eventIndexMap);
+      newEventIndexMap.put(eventType, eventIndexFactory.build(eventType));
+      Map<String, Integer> newEventTypeIdMap = Maps.newHashMap(eventTypeIdMap);
+      newEventTypeIdMap.put(eventType, eventTypeId);
+      // the index is published first, the event type is only enumerated once it has an id
+      eventIndexMap = newEventIndexMap;
+      eventTypeIdMap = newEventTypeIdMap;
       persistEventTypeIdMap();
       return eventTypeId;
     }
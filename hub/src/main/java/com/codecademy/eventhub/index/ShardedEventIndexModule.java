@@ -17,6 +17,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 public class ShardedEventIndexModule extends AbstractModule {
   @Override
@@ -62,7 +63,7 @@ public class ShardedEventIndexModule extends AbstractModule {
             dates.add(file.getName().substring(0, 8));
           }
         }
-        SortedMap<String, IdList> eventIdListMap = Maps.newTreeMap();
+        SortedMap<String, IdList> eventIdListMap = new ConcurrentSkipListMap<>();
         for (String date : dates) {
           eventIdListMap.put(date, dmaIdListFactory.build(
               EventIndex.getEventIdListFilename(
@@ -0,0 +1,380 @@
+package com.codecademy.eventhub.index;
+
+import com.codecademy.eventhub.base.HyperLogLog;
+import com.codecademy.eventhub.base.KeyValueCallback;
+import com.codecademy.eventhub.model.Event;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * UniqueUserIndex keeps a HyperLogLog sketch of the users who did an event of each type per day,
+ * and per property value for the keys with at most maxCardinality distinct values for that event
+ * type, so that the approximate number of users over any date range is a merge of a few fixed
+ * size sketches. ActiveUserIndex answers the same exactly with bitmaps that grow with the users.
+ *
+ * The sketches are kept in memory and persisted on close, one file per (event type, date), along
+ * with the number of events indexed. Events added after the last close are indexed again at
+ * startup, see EventHub.
+ */
+public class UniqueUserIndex implements Closeable {
+  private static final Set<String> KEYS_IGNORED = Sets.newHashSet("", "date",
+      "external_user_id", "event_type");
+  private static final int VERSION = 1;
+
+  private final String directory;
+  private final int precision;
+  private final int maxCardinality;
+  // from event type to date to sketches
+  private final Map<String, SortedMap<String, Sketches>> sketches;
+  // from event type to key to its distinct values, up to maxCardinality
+  private final Map<String, Map<String, Set<String>>> distinctValues;
+  // from event type to the keys with too many distinct values
+  private final Map<String, Set<String>> excludedKeys;
+  private final Set<String> dirtyPartitions;
+  private long numIndexedEvents;
+
+  public UniqueUserIndex(String directory, int precision, int maxCardinality,
+      Map<String, SortedMap<String, Sketches>> sketches, Map<String, Set<String>> excludedKeys,
+      long numIndexedEvents) {
+    this.directory = directory;
+    this.precision = precision;
+    this.maxCardinality = maxCardinality;
+    this.sketches = sketches;
+    this.excludedKeys = excludedKeys;
+    this.distinctValues = Maps.newHashMap();
+    this.dirtyPartitions = Sets.newHashSet();
+    this.numIndexedEvents = numIndexedEvents;
+    for (Map.Entry<String, SortedMap<String, Sketches>> eventType : sketches.entrySet()) {
+      for (Sketches dailySketches : eventType.getValue().values()) {
+        for (Map.Entry<String, Map<String, HyperLogLog>> key :
+            dailySketches.valueUsers.entrySet()) {
+          getDistinctValues(eventType.getKey(), key.getKey()).addAll(key.getValue().keySet());
+        }
+      }
+    }
+  }
+
+  public synchronized long getNumIndexedEvents() {
+    return numIndexedEvents;
+  }
+
+  public synchronized void addEvent(long eventId, Event event, final int userId) {
+    numIndexedEvents = Math.max(numIndexedEvents, eventId + 1);
+    final String eventType = event.getEventType();
+    final Sketches dailySketches = getSketches(eventType, event.getDate());
+    dailySketches.users.add(userId);
+    event.enumerate(new KeyValueCallback() {
+      @Override
+      public void callback(String key, String value) {
+        if (KEYS_IGNORED.contains(key) || isExcluded(eventType, key)) {
+          return;
+        }
+        Set<String> values = getDistinctValues(eventType, key);
+        if (values.add(value) && values.size() > maxCardinality) {
+          exclude(eventType, key);
+          return;
+        }
+        Map<String, HyperLogLog> valueUsers = dailySketches.valueUsers.get(key);
+        if (valueUsers == null) {
+          valueUsers = Maps.newHashMap();
+          dailySketches.valueUsers.put(key, valueUsers);
+        }
+        HyperLogLog users = valueUsers.get(value);
+        if (users == null) {
+          users = new HyperLogLog(precision);
+          valueUsers.put(value, users);
+        }
+        users.add(userId);
+      }
+    });
+    dirtyPartitions.add(getPartitionKey(eventType, event.getDate()));
+  }
+
+  // the sketch of the users who did an event of the type within the dates, both inclusive as in
+  // EventIndex
+  public synchronized HyperLogLog getUsers(String eventType, String startDate, String endDate) {
+    HyperLogLog users = new HyperLogLog(precision);
+    for (Sketches dailySketches : getSketches(eventType, startDate, endDate).values()) {
+      users.merge(dailySketches.users);
+    }
+    return users;
+  }
+
+  // the sketches of the users who did an event of the type within the dates for each value of the
+  // key, or null when the key has too many values to be sketched
+  public synchronized Map<String, HyperLogLog> getUsers(String eventType, String key,
+      String startDate, String endDate) {
+    if (KEYS_IGNORED.contains(key) || isExcluded(eventType, key)) {
+      return null;
+    }
+    Map<String, HyperLogLog> users = Maps.newTreeMap();
+    for (Sketches dailySketches : getSketches(eventType, startDate, endDate).values()) {
+      Map<String, HyperLogLog> valueUsers = dailySketches.valueUsers.get(key);
+      if (valueUsers == null) {
+        continue;
+      }
+      for (Map.Entry<String, HyperLogLog> value : valueUsers.entrySet()) {
+        HyperLogLog merged = users.get(value.getKey());
+        if (merged == null) {
+          users.put(value.getKey(), value.getValue().copy());
+        } else {
+          merged.merge(value.getValue());
+        }
+      }
+    }
+    return users;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (String partitionKey : dirtyPartitions) {
+      String[] eventTypeAndDate = partitionKey.split("\0");
+      writeSketches(getPartitionFile(directory, eventTypeAndDate[0], eventTypeAndDate[1]),
+          sketches.get(eventTypeAndDate[0]).get(eventTypeAndDate[1]));
+    }
+    dirtyPartitions.clear();
+    writeMetaData();
+  }
+
+  public synchronized String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    int numPartitions = 0;
+    long numSketches = 0;
+    long sizeInBytes = 0;
+    for (SortedMap<String, Sketches> eventType : sketches.values()) {
+      numPartitions += eventType.size();
+      for (Sketches dailySketches : eventType.values()) {
+        numSketches++;
+        sizeInBytes += dailySketches.users.getSizeInBytes();
+        for (Map<String, HyperLogLog> valueUsers : dailySketches.valueUsers.values()) {
+          for (HyperLogLog users : valueUsers.values()) {
+            numSketches++;
+            sizeInBytes += users.getSizeInBytes();
+          }
+        }
+      }
+    }
+    return String.format(
+        indent + "directory: %s\n" +
+        indent + "precision: %d\n" +
+        indent + "max cardinality: %d\n" +
+        indent + "num indexed events: %d\n" +
+        indent + "num partitions: %d\n" +
+        indent + "num sketches: %d\n" +
+        indent + "sketches size: %d bytes",
+        directory, precision, maxCardinality, numIndexedEvents, numPartitions, numSketches,
+        sizeInBytes);
+  }
+
+  private SortedMap<String, Sketches> getSketches(String eventType, String startDate,
+      String endDate) {
+    SortedMap<String, Sketches> eventTypeSketches = sketches.get(eventType);
+    if (eventTypeSketches == null) {
+      return Maps.newTreeMap();
+    }
+    return eventTypeSketches.subMap(startDate, EventIndex.nextDate(endDate));
+  }
+
+  private boolean isExcluded(String eventType, String key) {
+    Set<String> keys = excludedKeys.get(eventType);
+    return keys != null && keys.contains(key);
+  }
+
+  private void exclude(String eventType, String key) {
+    Set<String> keys = excludedKeys.get(eventType);
+    if (keys == null) {
+      keys = Sets.newHashSet();
+      excludedKeys.put(eventType, keys);
+    }
+    keys.add(key);
+    distinctValues.get(eventType).remove(key);
+    SortedMap<String, Sketches> eventTypeSketches = sketches.get(eventType);
+    if (eventTypeSketches == null) {
+      return;
+    }
+    for (Map.Entry<String, Sketches> dailySketches : eventTypeSketches.entrySet()) {
+      if (dailySketches.getValue().valueUsers.remove(key) != null) {
+        dirtyPartitions.add(getPartitionKey(eventType, dailySketches.getKey()));
+      }
+    }
+  }
+
+  private Set<String> getDistinctValues(String eventType, String key) {
+    Map<String, Set<String>> keys = distinctValues.get(eventType);
+    if (keys == null) {
+      keys = Maps.newHashMap();
+      distinctValues.put(eventType, keys);
+    }
+    Set<String> values = keys.get(key);
+    if (values == null) {
+      values = Sets.newHashSet();
+      keys.put(key, values);
+    }
+    return values;
+  }
+
+  private Sketches getSketches(String eventType, String date) {
+    SortedMap<String, Sketches> eventTypeSketches = sketches.get(eventType);
+    if (eventTypeSketches == null) {
+      eventTypeSketches = Maps.newTreeMap();
+      sketches.put(eventType, eventTypeSketches);
+    }
+    Sketches dailySketches = eventTypeSketches.get(date);
+    if (dailySketches == null) {
+      dailySketches = new Sketches(new HyperLogLog(precision));
+      eventTypeSketches.put(date, dailySketches);
+    }
+    return dailySketches;
+  }
+
+  private static String getPartitionKey(String eventType, String date) {
+    return eventType + "\0" + date;
+  }
+
+  private void writeSketches(File file, Sketches dailySketches) throws IOException {
+    //noinspection ResultOfMethodCallIgnored
+    file.getParentFile().mkdirs();
+    File newFile = new File(file.getPath() + ".new");
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      dailySketches.users.writeTo(output);
+      output.writeInt(dailySketches.valueUsers.size());
+      for (Map.Entry<String, Map<String, HyperLogLog>> key :
+          dailySketches.valueUsers.entrySet()) {
+        output.writeUTF(key.getKey());
+        output.writeInt(key.getValue().size());
+        for (Map.Entry<String, HyperLogLog> value : key.getValue().entrySet()) {
+          output.writeUTF(value.getKey());
+          value.getValue().writeTo(output);
+        }
+      }
+    }
+    Files.move(newFile, file);
+  }
+
+  private void writeMetaData() throws IOException {
+    //noinspection ResultOfMethodCallIgnored
+    new File(directory).mkdirs();
+    File file = new File(getMetaDataFilename(directory));
+    File newFile = new File(file.getPath() + ".new");
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      output.writeInt(VERSION);
+      output.writeLong(numIndexedEvents);
+      output.writeInt(excludedKeys.size());
+      for (Map.Entry<String, Set<String>> eventType : excludedKeys.entrySet()) {
+        output.writeUTF(eventType.getKey());
+        output.writeInt(eventType.getValue().size());
+        for (String key : eventType.getValue()) {
+          output.writeUTF(key);
+        }
+      }
+    }
+    Files.move(newFile, file);
+  }
+
+  // the precision of the persisted sketches is kept, as sketches of different precisions don't
+  // merge
+  public static UniqueUserIndex build(String directory, int precision, int maxCardinality) {
+    Map<String, SortedMap<String, Sketches>> sketches = Maps.newHashMap();
+    Map<String, Set<String>> excludedKeys = Maps.newHashMap();
+    File metaDataFile = new File(getMetaDataFilename(directory));
+    if (!metaDataFile.exists()) {
+      return new UniqueUserIndex(directory, precision, maxCardinality, sketches, excludedKeys, 0);
+    }
+    try {
+      long numIndexedEvents;
+      try (DataInputStream input = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(metaDataFile)))) {
+        int version = input.readInt();
+        if (version != VERSION) {
+          throw new IllegalStateException("unsupported unique user index version " + version);
+        }
+        numIndexedEvents = input.readLong();
+        int numEventTypes = input.readInt();
+        for (int i = 0; i < numEventTypes; i++) {
+          String eventType = input.readUTF();
+          Set<String> keys = Sets.newHashSet();
+          int numKeys = input.readInt();
+          for (int j = 0; j < numKeys; j++) {
+            keys.add(input.readUTF());
+          }
+          excludedKeys.put(eventType, keys);
+        }
+      }
+      File[] eventTypeDirectories = new File(directory).listFiles();
+      for (File eventTypeDirectory : eventTypeDirectories == null ?
+          new File[0] : eventTypeDirectories) {
+        File[] partitionFiles = eventTypeDirectory.listFiles();
+        if (!eventTypeDirectory.isDirectory() || partitionFiles == null) {
+          continue;
+        }
+        SortedMap<String, Sketches> eventTypeSketches = Maps.newTreeMap();
+        for (File partitionFile : partitionFiles) {
+          if (partitionFile.getName().matches("[0-9]{8}\\.ser")) {
+            Sketches dailySketches = readSketches(partitionFile);
+            precision = dailySketches.users.getPrecision();
+            eventTypeSketches.put(partitionFile.getName().substring(0, 8), dailySketches);
+          }
+        }
+        sketches.put(eventTypeDirectory.getName(), eventTypeSketches);
+      }
+      return new UniqueUserIndex(directory, precision, maxCardinality, sketches, excludedKeys,
+          numIndexedEvents);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static Sketches readSketches(File file) throws IOException {
+    try (DataInputStream input = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      Sketches dailySketches = new Sketches(HyperLogLog.readFrom(input));
+      int numKeys = input.readInt();
+      for (int i = 0; i < numKeys; i++) {
+        String key = input.readUTF();
+        int numValues = input.readInt();
+        Map<String, HyperLogLog> valueUsers = Maps.newHashMap();
+        for (int j = 0; j < numValues; j++) {
+          valueUsers.put(input.readUTF(), HyperLogLog.readFrom(input));
+        }
+        dailySketches.valueUsers.put(key, valueUsers);
+      }
+      return dailySketches;
+    }
+  }
+
+  private static String getMetaDataFilename(String directory) {
+    return directory + "/meta_data.ser";
+  }
+
+  private static File getPartitionFile(String directory, String eventType, String date) {
+    return new File(String.format("%s/%s/%s.ser", directory, eventType, date));
+  }
+
+  // the sketches of an event type on a date
+  public static class Sketches {
+    private final HyperLogLog users;
+    // from key to value to users
+    private final Map<String, Map<String, HyperLogLog>> valueUsers;
+
+    private Sketches(HyperLogLog users) {
+      this.users = users;
+      this.valueUsers = Maps.newHashMap();
+    }
+  }
+}
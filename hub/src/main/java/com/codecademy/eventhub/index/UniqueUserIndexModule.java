@@ -0,0 +1,19 @@
+package com.codecademy.eventhub.index;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+
+import javax.inject.Named;
+
+public class UniqueUserIndexModule extends AbstractModule {
+  @Override
+  protected void configure() {}
+
+  @Provides
+  public UniqueUserIndex getUniqueUserIndex(
+      @Named("eventhub.directory") String directory,
+      @Named("eventhub.uniqueuserindex.precision") int precision,
+      @Named("eventhub.uniqueuserindex.maxCardinality") int maxCardinality) {
+    return UniqueUserIndex.build(directory + "/unique_user_index/", precision, maxCardinality);
+  }
+}
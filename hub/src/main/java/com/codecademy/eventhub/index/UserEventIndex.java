@@ -1,8 +1,10 @@
 package com.codecademy.eventhub.index;
 
 import com.google.common.cache.LoadingCache;
-import com.codecademy.eventhub.base.ByteBufferUtil;
+import com.codecademy.eventhub.list.DmaFile;
+import com.codecademy.eventhub.list.DmaFileUtil;
 import com.codecademy.eventhub.list.DmaList;
+import com.codecademy.eventhub.query.QueryContext;
 
 import java.io.Closeable;
 import java.io.File;
@@ -10,7 +12,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteOrder;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -75,17 +77,24 @@ public class UserEventIndex implements Closeable {
     Block block = findBlock(indexEntry, blockOffset);
 
     int offsetInCurrentBlock = recordOffset % numRecordsPerBlock;
+    QueryContext context = QueryContext.current();
+    int numEventsScanned = 0;
     for (int i = 0; i < maxRecords; i++) {
       if (offsetInCurrentBlock >= numRecordsPerBlock) {
         block = blockFactory.find(block.getMetaData().getNextBlockPointer());
         offsetInCurrentBlock = 0;
       }
+      if (++numEventsScanned == QueryContext.CHECK_INTERVAL) {
+        context.onEventsScanned(numEventsScanned);
+        numEventsScanned = 0;
+      }
       // TODO: extract an iterator and fetch ahead?
       if (!callback.shouldContinueOnEventId(block.getRecord(offsetInCurrentBlock))) {
-        return;
+        break;
       }
       offsetInCurrentBlock++;
     }
+    context.onEventsScanned(numEventsScanned);
   }
 
   public synchronized void addEvent(int userId, long eventId) {
@@ -161,20 +170,22 @@ public class UserEventIndex implements Closeable {
 
   public static class Block {
     private final MetaData metaData;
-    private final ByteBuffer byteBuffer;
+    private final DmaFile file;
+    private final long position; // of the first record
 
-    public Block(MetaData metaData, ByteBuffer byteBuffer) {
+    public Block(MetaData metaData, DmaFile file, long position) {
       this.metaData = metaData;
-      this.byteBuffer = byteBuffer;
+      this.file = file;
+      this.position = position;
     }
 
     public void add(long record) {
       int recordOffset = metaData.getNumRecordsAndIncrement();
-      byteBuffer.putLong(recordOffset * ID_SIZE, record);
+      file.putLong(position + (long) recordOffset * ID_SIZE, record);
     }
 
     public long getRecord(int offsetInCurrentBlock) {
-      return byteBuffer.getLong(offsetInCurrentBlock * ID_SIZE);
+      return file.getLong(position + (long) offsetInCurrentBlock * ID_SIZE);
     }
 
     public MetaData getMetaData() {
@@ -182,84 +193,92 @@ public class UserEventIndex implements Closeable {
     }
 
     public int findOffset(long id) {
-      return ByteBufferUtil.binarySearchOffset(byteBuffer, 0, metaData.getNumRecords(), id, ID_SIZE);
+      return DmaFileUtil.binarySearchOffset(file, position, 0, metaData.getNumRecords(), id,
+          ID_SIZE);
     }
 
     public static class MetaData {
       public static final int SIZE = 40;
 
-      private final ByteBuffer byteBuffer;
+      private final DmaFile file;
+      private final long position;
 
-      public MetaData(ByteBuffer byteBuffer) {
-        this.byteBuffer = byteBuffer;
+      public MetaData(DmaFile file, long position) {
+        this.file = file;
+        this.position = position;
       }
 
       public int getBlockOffset() {
-        return byteBuffer.getInt(0);
+        return file.getInt(position);
       }
 
       public void setBlockOffset(int blockOffset) {
-        byteBuffer.putInt(0, blockOffset);
+        file.putInt(position, blockOffset);
       }
 
       public int getNumRecords() {
-        return byteBuffer.getInt(4);
+        return file.getInt(position + 4);
       }
 
       public void setNumRecords(int numRecords) {
-        byteBuffer.putInt(4, numRecords);
+        file.putInt(position + 4, numRecords);
       }
 
       public synchronized int getNumRecordsAndIncrement() {
         int numRecords = getNumRecords();
-        byteBuffer.putInt(4, numRecords + 1);
+        file.putInt(position + 4, numRecords + 1);
         return numRecords;
       }
 
       public long getPointer() {
-        return byteBuffer.getLong(8);
+        return file.getLong(position + 8);
       }
 
       public void setPointer(long pointer) {
-        byteBuffer.putLong(8, pointer);
+        file.putLong(position + 8, pointer);
       }
 
       public long getMinId() {
-        return byteBuffer.getLong(16);
+        return file.getLong(position + 16);
       }
 
       public void setMinId(long minId) {
-        byteBuffer.putLong(16, minId);
+        file.putLong(position + 16, minId);
       }
 
       public long getPrevBlockPointer() {
-        return byteBuffer.getLong(24);
+        return file.getLong(position + 24);
       }
 
       public void setPrevBlockPointer(long prevBlockPointer) {
-        byteBuffer.putLong(24, prevBlockPointer);
+        file.putLong(position + 24, prevBlockPointer);
       }
 
       public long getNextBlockPointer() {
-        return byteBuffer.getLong(32);
+        return file.getLong(position + 32);
       }
 
       public void setNextBlockPointer(long nextBlockPointer) {
-        byteBuffer.putLong(32, nextBlockPointer);
+        file.putLong(position + 32, nextBlockPointer);
       }
     }
 
+    /**
+     * Pointers are 64-bit positions in the concatenation of all block files, hence
+     * numBlocksPerFile has to stay the same for the lifetime of the index. It's persisted along
+     * with currentPointer when the factory is closed.
+     */
     public static class Factory implements Closeable {
       private final String filename;
       private final int numBlocksPerFile;
       private long currentPointer;
-      private final LoadingCache<Integer, MappedByteBuffer> buffers;
+      private final LoadingCache<Integer, DmaFile> files;
       private final int numRecordsPerBlock;
 
-      public Factory(String filename, LoadingCache<Integer, MappedByteBuffer> buffers,
+      public Factory(String filename, LoadingCache<Integer, DmaFile> files,
           int numRecordsPerBlock, int numBlocksPerFile, long currentPointer) {
         this.filename = filename;
-        this.buffers = buffers;
+        this.files = files;
         this.numRecordsPerBlock = numRecordsPerBlock;
         this.numBlocksPerFile = numBlocksPerFile;
         this.currentPointer = currentPointer;
@@ -270,38 +289,25 @@ public class UserEventIndex implements Closeable {
       }
 
       public Block find(long pointer) {
-        final int fileSize = numBlocksPerFile * (
-            numRecordsPerBlock * UserEventIndex.ID_SIZE + UserEventIndex.Block.MetaData.SIZE);
-        MappedByteBuffer byteBuffer = buffers.getUnchecked((int) (pointer / fileSize));
-        ByteBuffer metaDataByteBuffer = byteBuffer.duplicate();
-        metaDataByteBuffer.position((int) (pointer % fileSize));
-        metaDataByteBuffer = metaDataByteBuffer.slice();
-        ByteBuffer blockByteBuffer = byteBuffer.duplicate();
-        blockByteBuffer.position((int) (pointer % fileSize) + Block.MetaData.SIZE);
-        blockByteBuffer = blockByteBuffer.slice();
-        return new Block(new Block.MetaData(metaDataByteBuffer), blockByteBuffer);
+        long fileSize = getFileSize(numRecordsPerBlock, numBlocksPerFile);
+        DmaFile file = files.getUnchecked((int) (pointer / fileSize));
+        long position = pointer % fileSize;
+        return new Block(new Block.MetaData(file, position), file, position + MetaData.SIZE);
       }
 
       public synchronized Block build(int blockOffset, long id) {
-        final int fileSize = numBlocksPerFile * (
-            numRecordsPerBlock * UserEventIndex.ID_SIZE + UserEventIndex.Block.MetaData.SIZE);
+        long fileSize = getFileSize(numRecordsPerBlock, numBlocksPerFile);
         long pointer = currentPointer;
-        MappedByteBuffer byteBuffer = buffers.getUnchecked((int) (pointer / fileSize));
-        int blockSize = numRecordsPerBlock * ID_SIZE + MetaData.SIZE;
-        currentPointer += blockSize;
-        ByteBuffer metaDataByteBuffer = byteBuffer.duplicate();
-        metaDataByteBuffer.position((int) (pointer % fileSize));
-        metaDataByteBuffer = metaDataByteBuffer.slice();
-        ByteBuffer blockByteBuffer = byteBuffer.duplicate();
-        blockByteBuffer.position((int) (pointer % fileSize) + Block.MetaData.SIZE);
-        blockByteBuffer = blockByteBuffer.slice();
-
-        Block.MetaData metaData = new Block.MetaData(metaDataByteBuffer);
+        DmaFile file = files.getUnchecked((int) (pointer / fileSize));
+        currentPointer += getBlockSize(numRecordsPerBlock);
+        long position = pointer % fileSize;
+
+        Block.MetaData metaData = new Block.MetaData(file, position);
         metaData.setBlockOffset(blockOffset);
         metaData.setPointer(pointer);
         metaData.setMinId(id);
 
-        Block block = new Block(metaData, blockByteBuffer);
+        Block block = new Block(metaData, file, position + MetaData.SIZE);
         block.add(id);
 
         return block;
@@ -313,8 +319,17 @@ public class UserEventIndex implements Closeable {
         new File(filename).getParentFile().mkdirs();
         try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filename))) {
           oos.writeLong(currentPointer);
+          oos.writeInt(numBlocksPerFile);
         }
-        buffers.invalidateAll();
+        files.invalidateAll();
+      }
+
+      public static int getBlockSize(int numRecordsPerBlock) {
+        return numRecordsPerBlock * ID_SIZE + MetaData.SIZE;
+      }
+
+      public static long getFileSize(int numRecordsPerBlock, int numBlocksPerFile) {
+        return (long) numBlocksPerFile * getBlockSize(numRecordsPerBlock);
       }
     }
   }
@@ -367,9 +382,11 @@ public class UserEventIndex implements Closeable {
 
     public static class Schema implements com.codecademy.eventhub.base.Schema<IndexEntry> {
       private final int numPointers;
+      private final ByteOrder byteOrder;
 
-      public Schema(int numPointers) {
+      public Schema(int numPointers, ByteOrder byteOrder) {
         this.numPointers = numPointers;
+        this.byteOrder = byteOrder;
       }
 
       @Override
@@ -379,7 +396,7 @@ public class UserEventIndex implements Closeable {
 
       @Override
       public byte[] toBytes(IndexEntry indexEntry) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(getObjectSize());
+        ByteBuffer byteBuffer = ByteBuffer.allocate(getObjectSize()).order(byteOrder);
         byteBuffer.putInt(indexEntry.getNumRecords());
         byteBuffer.putLong(indexEntry.getMinId());
         for (int i = 0; i < numPointers; i++) {
@@ -391,7 +408,7 @@ public class UserEventIndex implements Closeable {
 
       @Override
       public IndexEntry fromBytes(byte[] bytes) {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes).order(byteOrder);
         long[] pointers = new long[numPointers];
         long[] minIds = new long[numPointers];
         int numRecords = byteBuffer.getInt();
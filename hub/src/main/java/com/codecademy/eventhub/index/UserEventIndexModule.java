@@ -7,7 +7,8 @@ import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
-import com.codecademy.eventhub.base.ByteBufferUtil;
+import com.codecademy.eventhub.list.DmaFile;
+import com.codecademy.eventhub.list.DmaFileFactories;
 import com.codecademy.eventhub.list.DmaList;
 
 import javax.inject.Named;
@@ -15,7 +16,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.nio.MappedByteBuffer;
 
 public class UserEventIndexModule extends AbstractModule {
   @Override
@@ -32,9 +32,13 @@ public class UserEventIndexModule extends AbstractModule {
       @Named("eventhub.usereventindex.directory") String directory,
       @Named("eventhub.usereventindex.numPointersPerIndexEntry") int numPointers,
       @Named("eventhub.usereventindex.numIndexEntryPerFile") int numIndexEntryPerFile,
-      @Named("eventhub.usereventindex.indexEntryFileCacheSize") int indexEntryFileCacheSize) {
-    return DmaList.build(new UserEventIndex.IndexEntry.Schema(numPointers),
-        directory, numIndexEntryPerFile, indexEntryFileCacheSize);
+      @Named("eventhub.usereventindex.indexEntryFileCacheSize") int indexEntryFileCacheSize,
+      @Named("eventhub.usereventindex.indexEntryBackend") String indexEntryBackend,
+      DmaFileFactories dmaFileFactories) {
+    DmaFile.Factory dmaFileFactory = dmaFileFactories.get(indexEntryBackend);
+    return DmaList.build(
+        new UserEventIndex.IndexEntry.Schema(numPointers, dmaFileFactory.getByteOrder()),
+        directory, numIndexEntryPerFile, indexEntryFileCacheSize, dmaFileFactory);
   }
 
   @Provides
@@ -48,41 +52,46 @@ public class UserEventIndexModule extends AbstractModule {
       final @Named("eventhub.usereventindex.directory") String directory,
       @Named("eventhub.usereventindex.blockCacheSize") int blockCacheSize,
       @Named("eventhub.usereventindex.numRecordsPerBlock") int numRecordsPerBlock,
-      @Named("eventhub.usereventindex.numBlocksPerFile") int numBlocksPerFile) {
-    final int fileSize = numBlocksPerFile * (
-        numRecordsPerBlock * UserEventIndex.ID_SIZE + UserEventIndex.Block.MetaData.SIZE);
-    LoadingCache<Integer, MappedByteBuffer> buffers = CacheBuilder.newBuilder()
+      @Named("eventhub.usereventindex.numBlocksPerFile") int numBlocksPerFile,
+      DmaFileFactories dmaFileFactories) {
+    String filename = directory + "block_factory.ser";
+    File file = new File(filename);
+    long currentPointer = 0;
+    if (file.exists()) {
+      try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+        currentPointer = ois.readLong();
+        // block_factory.ser written before numBlocksPerFile was persisted only has currentPointer
+        if (ois.available() > 0) {
+          numBlocksPerFile = ois.readInt();
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    final DmaFile.Factory dmaFileFactory = dmaFileFactories.get(DmaFileFactories.MMAP);
+    final long fileSize = UserEventIndex.Block.Factory.getFileSize(
+        numRecordsPerBlock, numBlocksPerFile);
+    LoadingCache<Integer, DmaFile> files = CacheBuilder.newBuilder()
         .maximumSize(blockCacheSize)
         .recordStats()
-        .removalListener(new RemovalListener<Integer, MappedByteBuffer>() {
+        .removalListener(new RemovalListener<Integer, DmaFile>() {
           @Override
-          public void onRemoval(RemovalNotification<Integer, MappedByteBuffer> notification) {
-            MappedByteBuffer value = notification.getValue();
+          public void onRemoval(RemovalNotification<Integer, DmaFile> notification) {
+            DmaFile value = notification.getValue();
             if (value != null) {
-              value.force();
+              value.close();
             }
           }})
-        .build(new CacheLoader<Integer, MappedByteBuffer>() {
+        .build(new CacheLoader<Integer, DmaFile>() {
           @Override
-          public MappedByteBuffer load(Integer key) throws Exception {
-            return ByteBufferUtil.createNewBuffer(
+          public DmaFile load(Integer key) throws Exception {
+            return dmaFileFactory.open(
                 String.format("%s/block_%d.mem", directory, key), fileSize);
           }
         });
-
-    String filename = directory + "block_factory.ser";
-    File file = new File(filename);
-    if (file.exists()) {
-      try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-        long currentPointer = ois.readLong();
-        return new UserEventIndex.Block.Factory(filename, buffers, numRecordsPerBlock,
-            numBlocksPerFile, currentPointer);
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
-    }
-    return new UserEventIndex.Block.Factory(filename, buffers, numRecordsPerBlock,
-        numBlocksPerFile, 0);
+    return new UserEventIndex.Block.Factory(filename, files, numRecordsPerBlock,
+        numBlocksPerFile, currentPointer);
   }
 
   @Provides
@@ -0,0 +1,105 @@
+package com.codecademy.eventhub.jobs;
+
+import com.codecademy.eventhub.EventHub;
+import com.codecademy.eventhub.EventHubModule;
+import com.codecademy.eventhub.index.ActiveUserIndexModule;
+import com.codecademy.eventhub.index.DatedEventIndexModule;
+import com.codecademy.eventhub.index.InvertedEventIndexModule;
+import com.codecademy.eventhub.index.PropertiesIndexModule;
+import com.codecademy.eventhub.index.RollupIndexModule;
+import com.codecademy.eventhub.index.ShardedEventIndexModule;
+import com.codecademy.eventhub.index.UniqueUserIndexModule;
+import com.codecademy.eventhub.index.UserEventIndexModule;
+import com.codecademy.eventhub.list.DmaFileModule;
+import com.codecademy.eventhub.list.DmaIdListModule;
+import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.storage.EventStorageModule;
+import com.codecademy.eventhub.storage.UserStorageModule;
+import com.google.common.collect.Maps;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.fusesource.leveldbjni.JniDBFactory.asString;
+
+/**
+ * Converts a big endian (headerless) data directory to a little endian one by replaying its
+ * users, aliases and events, in id order, into an empty directory so every id is preserved.
+ *
+ * Usage: ConvertToLittleEndian <source directory> <target directory>
+ */
+public class ConvertToLittleEndian {
+  private static final String CURRENT_ID_KEY = "__eventtracker__id";
+
+  public static void main(String[] args) throws Exception {
+    String sourceDirectory = args[0];
+    String targetDirectory = args[1];
+    if (new File(targetDirectory).exists()) {
+      throw new IllegalArgumentException(targetDirectory + " already exists");
+    }
+
+    // read the id map before the source EventHub holds the lock on it
+    Map<String, Integer> idMap = Maps.newHashMap();
+    try (DB idMapDb = JniDBFactory.factory.open(
+        new File(sourceDirectory + "/user_storage/id_map.db"), new Options())) {
+      try (DBIterator iterator = idMapDb.iterator()) {
+        for (iterator.seekToFirst(); iterator.hasNext(); iterator.next()) {
+          String key = asString(iterator.peekNext().getKey());
+          if (!CURRENT_ID_KEY.equals(key)) {
+            idMap.put(key, Integer.parseInt(asString(iterator.peekNext().getValue())));
+          }
+        }
+      }
+    }
+
+    try (EventHub source = createEventHub(sourceDirectory);
+        EventHub target = createEventHub(targetDirectory)) {
+      int numUsers = source.getNumUsers();
+      for (int userId = 0; userId < numUsers; userId++) {
+        target.addOrUpdateUser(source.getUser(userId));
+      }
+      for (Map.Entry<String, Integer> entry : idMap.entrySet()) {
+        User user = source.getUser(entry.getValue());
+        if (!entry.getKey().equals(user.getExternalId())) {
+          target.aliasUser(entry.getKey(), user.getExternalId());
+        }
+      }
+      long numEvents = source.getNumEvents();
+      for (long eventId = 0; eventId < numEvents; eventId++) {
+        target.addEvent(source.getEvent(eventId));
+      }
+      System.out.println(String.format("converted %d users, %d aliases and %d events",
+          numUsers, idMap.size() - numUsers, numEvents));
+    }
+  }
+
+  private static EventHub createEventHub(String directory) throws Exception {
+    Properties properties = new Properties();
+    properties.load(EventHub.class.getClassLoader().getResourceAsStream("hub.properties"));
+    properties.putAll(System.getProperties());
+    properties.setProperty("eventhub.directory", directory);
+
+    Injector injector = Guice.createInjector(
+        new DmaFileModule(),
+        new DmaIdListModule(),
+        new DatedEventIndexModule(),
+        new ShardedEventIndexModule(),
+        new PropertiesIndexModule(),
+        new InvertedEventIndexModule(),
+        new ActiveUserIndexModule(),
+        new RollupIndexModule(),
+        new UniqueUserIndexModule(),
+        new UserEventIndexModule(),
+        new EventStorageModule(),
+        new UserStorageModule(),
+        new EventHubModule(properties));
+    return injector.getInstance(EventHub.class);
+  }
+}
@@ -0,0 +1,351 @@
+package com.codecademy.eventhub.list;
+
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * BufferPool is a fixed size, LRU managed pool of direct buffers shared by all the files opened
+ * through PooledDmaFile. Pages are allocated lazily, up to numPages, and dirty pages are written
+ * back to their file when they are evicted or when the file is forced.
+ *
+ * The pages are spread by hash over numSegments segments, each with its own lock and its own
+ * share of the pages, so that a miss reading its page from the file, or the write back of the page
+ * it evicts, only blocks the accesses to the same segment rather than every reader of the pool.
+ */
+public class BufferPool {
+  private final int pageSize;
+  private final int numPages;
+  private final Segment[] segments;
+
+  public BufferPool(int pageSize, int numPages, int numSegments) {
+    this.pageSize = pageSize;
+    this.numPages = numPages;
+    // every segment has room for at least a page
+    this.segments = new Segment[Math.max(1, Math.min(numSegments, numPages))];
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment(
+          numPages / segments.length + (i < numPages % segments.length ? 1 : 0));
+    }
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  public int getInt(PooledDmaFile file, long position) {
+    int offset = (int) (position % pageSize);
+    if (offset + 4 > pageSize) {
+      byte[] bytes = new byte[4];
+      read(file, position, bytes, 0, 4);
+      return ByteBuffer.wrap(bytes).order(file.getByteOrder()).getInt();
+    }
+    Page page = lockPage(file, position / pageSize);
+    try {
+      return page.buffer.getInt(offset);
+    } finally {
+      page.segment.lock.unlock();
+    }
+  }
+
+  public void putInt(PooledDmaFile file, long position, int value) {
+    int offset = (int) (position % pageSize);
+    if (offset + 4 > pageSize) {
+      write(file, position,
+          ByteBuffer.allocate(4).order(file.getByteOrder()).putInt(value).array(), 0, 4);
+      return;
+    }
+    Page page = lockPage(file, position / pageSize);
+    try {
+      page.buffer.putInt(offset, value);
+      page.isDirty = true;
+    } finally {
+      page.segment.lock.unlock();
+    }
+  }
+
+  public long getLong(PooledDmaFile file, long position) {
+    int offset = (int) (position % pageSize);
+    if (offset + 8 > pageSize) {
+      byte[] bytes = new byte[8];
+      read(file, position, bytes, 0, 8);
+      return ByteBuffer.wrap(bytes).order(file.getByteOrder()).getLong();
+    }
+    Page page = lockPage(file, position / pageSize);
+    try {
+      return page.buffer.getLong(offset);
+    } finally {
+      page.segment.lock.unlock();
+    }
+  }
+
+  public void putLong(PooledDmaFile file, long position, long value) {
+    int offset = (int) (position % pageSize);
+    if (offset + 8 > pageSize) {
+      write(file, position,
+          ByteBuffer.allocate(8).order(file.getByteOrder()).putLong(value).array(), 0, 8);
+      return;
+    }
+    Page page = lockPage(file, position / pageSize);
+    try {
+      page.buffer.putLong(offset, value);
+      page.isDirty = true;
+    } finally {
+      page.segment.lock.unlock();
+    }
+  }
+
+  public void read(PooledDmaFile file, long position, byte[] bytes, int offset, int length) {
+    while (length > 0) {
+      int offsetInPage = (int) (position % pageSize);
+      int numBytes = Math.min(length, pageSize - offsetInPage);
+      Page page = lockPage(file, position / pageSize);
+      try {
+        ByteBuffer duplicate = page.buffer.duplicate();
+        duplicate.position(offsetInPage);
+        duplicate.get(bytes, offset, numBytes);
+      } finally {
+        page.segment.lock.unlock();
+      }
+      position += numBytes;
+      offset += numBytes;
+      length -= numBytes;
+    }
+  }
+
+  public void write(PooledDmaFile file, long position, byte[] bytes, int offset, int length) {
+    while (length > 0) {
+      int offsetInPage = (int) (position % pageSize);
+      int numBytes = Math.min(length, pageSize - offsetInPage);
+      Page page = lockPage(file, position / pageSize);
+      try {
+        ByteBuffer duplicate = page.buffer.duplicate();
+        duplicate.position(offsetInPage);
+        duplicate.put(bytes, offset, numBytes);
+        page.isDirty = true;
+      } finally {
+        page.segment.lock.unlock();
+      }
+      position += numBytes;
+      offset += numBytes;
+      length -= numBytes;
+    }
+  }
+
+  // called by the factory on a file it hasn't closed
+  void flush(PooledDmaFile file) {
+    for (Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        for (Map.Entry<PageKey, Page> entry : segment.pages.entrySet()) {
+          if (entry.getKey().file == file) {
+            segment.writeBack(entry.getKey(), entry.getValue());
+          }
+        }
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+  }
+
+  // writes back the pages of the file and frees them, before the file is closed, once the factory
+  // has marked it closed so that no page of it is staged again
+  void evict(PooledDmaFile file) {
+    for (Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        Iterator<Map.Entry<PageKey, Page>> iterator = segment.pages.entrySet().iterator();
+        while (iterator.hasNext()) {
+          Map.Entry<PageKey, Page> entry = iterator.next();
+          if (entry.getKey().file == file) {
+            segment.writeBack(entry.getKey(), entry.getValue());
+            segment.freeBuffers.add(entry.getValue().buffer);
+            iterator.remove();
+          }
+        }
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+  }
+
+  public String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    int numAllocatedPages = 0;
+    long numHits = 0, numMisses = 0, numEvictions = 0, numWriteBacks = 0;
+    for (Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        numAllocatedPages += segment.numAllocatedPages;
+        numHits += segment.numHits;
+        numMisses += segment.numMisses;
+        numEvictions += segment.numEvictions;
+        numWriteBacks += segment.numWriteBacks;
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return String.format(
+        indent + "page size: %d\n" +
+        indent + "num segments: %d\n" +
+        indent + "num pages: %d/%d\n" +
+        indent + "num hits: %d\n" +
+        indent + "num misses: %d\n" +
+        indent + "num evictions: %d\n" +
+        indent + "num write backs: %d",
+        pageSize, segments.length, numAllocatedPages, numPages, numHits, numMisses, numEvictions,
+        numWriteBacks);
+  }
+
+  // returns the page with its segment locked, to be unlocked by the caller once done with the page
+  private Page lockPage(PooledDmaFile file, long pageIndex) {
+    while (true) {
+      PageKey pageKey = new PageKey(file.getOpenFile(), pageIndex);
+      Segment segment = segments[(pageKey.hashCode() & Integer.MAX_VALUE) % segments.length];
+      segment.lock.lock();
+      // unless the factory closed the file in the meantime, in which case it evicts or has evicted
+      // its pages and the page is staged for the file it reopens instead
+      if (pageKey.file.isOpen()) {
+        try {
+          return segment.getPage(pageKey);
+        } catch (RuntimeException e) {
+          segment.lock.unlock();
+          throw e;
+        }
+      }
+      segment.lock.unlock();
+    }
+  }
+
+  private class Segment {
+    private final ReentrantLock lock;
+    private final int numPages;
+    // in access order, i.e. the eldest entry is the least recently used page
+    private final LinkedHashMap<PageKey, Page> pages;
+    private final List<ByteBuffer> freeBuffers;
+    private int numAllocatedPages;
+    private long numHits;
+    private long numMisses;
+    private long numEvictions;
+    private long numWriteBacks;
+
+    private Segment(int numPages) {
+      this.lock = new ReentrantLock();
+      this.numPages = numPages;
+      this.pages = new LinkedHashMap<>(16, 0.75f, true);
+      this.freeBuffers = Lists.newArrayList();
+      this.numAllocatedPages = 0;
+    }
+
+    private Page getPage(PageKey pageKey) {
+      Page page = pages.get(pageKey);
+      if (page != null) {
+        numHits++;
+        return page;
+      }
+      numMisses++;
+      page = new Page(this, allocateBuffer());
+      // buffers are recycled across files, which don't necessarily share the same byte order
+      page.buffer.order(pageKey.file.getByteOrder());
+      try {
+        page.buffer.clear();
+        long pageStart = pageKey.pageIndex * pageSize;
+        while (page.buffer.hasRemaining()) {
+          int numBytesRead = pageKey.file.getChannel().read(page.buffer,
+              pageStart + page.buffer.position());
+          if (numBytesRead < 0) {
+            break;
+          }
+        }
+        while (page.buffer.hasRemaining()) {
+          page.buffer.put((byte) 0);
+        }
+        page.buffer.clear();
+      } catch (IOException e) {
+        freeBuffers.add(page.buffer);
+        throw new RuntimeException(e);
+      }
+      pages.put(pageKey, page);
+      return page;
+    }
+
+    private ByteBuffer allocateBuffer() {
+      if (!freeBuffers.isEmpty()) {
+        return freeBuffers.remove(freeBuffers.size() - 1);
+      }
+      if (numAllocatedPages < numPages) {
+        numAllocatedPages++;
+        return ByteBuffer.allocateDirect(pageSize);
+      }
+      Iterator<Map.Entry<PageKey, Page>> iterator = pages.entrySet().iterator();
+      Map.Entry<PageKey, Page> eldest = iterator.next();
+      writeBack(eldest.getKey(), eldest.getValue());
+      iterator.remove();
+      numEvictions++;
+      return eldest.getValue().buffer;
+    }
+
+    private void writeBack(PageKey pageKey, Page page) {
+      if (!page.isDirty) {
+        return;
+      }
+      long pageStart = pageKey.pageIndex * pageSize;
+      // never write past the end of the file, otherwise the file would silently grow
+      int numBytes = (int) Math.min(pageSize, pageKey.file.size() - pageStart);
+      try {
+        ByteBuffer duplicate = page.buffer.duplicate();
+        duplicate.position(0);
+        duplicate.limit(Math.max(numBytes, 0));
+        while (duplicate.hasRemaining()) {
+          pageKey.file.getChannel().write(duplicate, pageStart + duplicate.position());
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      page.isDirty = false;
+      numWriteBacks++;
+    }
+  }
+
+  private static class Page {
+    private final Segment segment;
+    private final ByteBuffer buffer;
+    private boolean isDirty;
+
+    private Page(Segment segment, ByteBuffer buffer) {
+      this.segment = segment;
+      this.buffer = buffer;
+      this.isDirty = false;
+    }
+  }
+
+  private static class PageKey {
+    private final PooledDmaFile file;
+    private final long pageIndex;
+
+    private PageKey(PooledDmaFile file, long pageIndex) {
+      this.file = file;
+      this.pageIndex = pageIndex;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof PageKey)) {
+        return false;
+      }
+      PageKey pageKey = (PageKey) o;
+      return file == pageKey.file && pageIndex == pageKey.pageIndex;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(file) + (int) (pageIndex ^ (pageIndex >>> 32));
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package com.codecademy.eventhub.list;
+
+import java.io.Closeable;
+import java.nio.ByteOrder;
+
+/**
+ * DmaFile is the storage backend underneath DmaList and DmaIdList. It exposes a file as a flat,
+ * randomly addressable region of bytes; whether the bytes are reached through a memory mapping or
+ * through positional reads into a buffer pool is up to the implementation.
+ */
+public interface DmaFile extends Closeable {
+  long size();
+  int getInt(long position);
+  void putInt(long position, int value);
+  long getLong(long position);
+  void putLong(long position, long value);
+  void get(long position, byte[] bytes, int offset, int length);
+  void put(long position, byte[] bytes, int offset, int length);
+  // the returned DmaFile supersedes this one, though readers holding this one can still read
+  // the bytes it covered before the expansion
+  DmaFile expand(long newSize);
+  void force();
+  @Override
+  void close();
+
+  public interface Factory {
+    // opens the file and grows it to minSize if it's smaller
+    DmaFile open(String filename, long minSize);
+    // the byte order ints and longs are read and written in
+    ByteOrder getByteOrder();
+    // closes the files still open, once the structures using the factory are closed
+    void close();
+    String getVarz(int indentation);
+  }
+}
@@ -0,0 +1,37 @@
+package com.codecademy.eventhub.list;
+
+import java.nio.ByteOrder;
+
+/**
+ * Resolves the backend configured for a structure, e.g.
+ * eventhub.journaleventstorage.metaDataBackend, to its DmaFile.Factory. "mmap" maps the files
+ * while "pread" goes through the shared BufferPool.
+ */
+public class DmaFileFactories {
+  public static final String MMAP = "mmap";
+  public static final String PREAD = "pread";
+
+  private final DmaFile.Factory mappedDmaFileFactory;
+  private final DmaFile.Factory pooledDmaFileFactory;
+
+  public DmaFileFactories(BufferPool bufferPool, ByteOrder byteOrder, int maxIdleFiles) {
+    this.mappedDmaFileFactory = new MappedDmaFile.Factory(byteOrder);
+    this.pooledDmaFileFactory = new PooledDmaFile.Factory(bufferPool, byteOrder, maxIdleFiles);
+  }
+
+  public DmaFile.Factory get(String backend) {
+    switch (backend) {
+      case MMAP:
+        return mappedDmaFileFactory;
+      case PREAD:
+        return pooledDmaFileFactory;
+      default:
+        throw new IllegalArgumentException("unknown dma file backend: " + backend);
+    }
+  }
+
+  public void close() {
+    mappedDmaFileFactory.close();
+    pooledDmaFileFactory.close();
+  }
+}
@@ -0,0 +1,35 @@
+package com.codecademy.eventhub.list;
+
+import com.codecademy.eventhub.base.DataFormat;
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+
+import javax.inject.Named;
+
+public class DmaFileModule extends AbstractModule {
+  @Override
+  protected void configure() {}
+
+  @Provides
+  @Singleton
+  public BufferPool getBufferPool(
+      @Named("eventhub.bufferpool.pageSize") int pageSize,
+      @Named("eventhub.bufferpool.numPages") int numPages,
+      @Named("eventhub.bufferpool.numSegments") int numSegments) {
+    return new BufferPool(pageSize, numPages, numSegments);
+  }
+
+  @Provides
+  @Singleton
+  public DataFormat getDataFormat(@Named("eventhub.directory") String directory) {
+    return DataFormat.open(directory);
+  }
+
+  @Provides
+  @Singleton
+  public DmaFileFactories getDmaFileFactories(BufferPool bufferPool, DataFormat dataFormat,
+      @Named("eventhub.pooleddmafile.maxIdleFiles") int maxIdleFiles) {
+    return new DmaFileFactories(bufferPool, dataFormat.getByteOrder(), maxIdleFiles);
+  }
+}
@@ -0,0 +1,20 @@
+package com.codecademy.eventhub.list;
+
+public class DmaFileUtil {
+  // records are sorted longs of recordSize bytes, starting at position
+  public static int binarySearchOffset(DmaFile file, long position, int startOffset,
+      int endOffset, long id, int recordSize) {
+    while (startOffset < endOffset) {
+      int offset = (startOffset + endOffset) >>> 1;
+      long value = file.getLong(position + (long) offset * recordSize);
+      if (value == id) {
+        return offset;
+      } else if (value < id) {
+        startOffset = offset + 1;
+      } else {
+        endOffset = offset;
+      }
+    }
+    return endOffset;
+  }
+}
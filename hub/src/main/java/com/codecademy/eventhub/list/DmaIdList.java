@@ -1,10 +1,6 @@
 package com.codecademy.eventhub.list;
 
-import com.codecademy.eventhub.base.ByteBufferUtil;
-
 import java.io.Closeable;
-import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 
 /**
  * Currently, it can contain up to MAX_NUM_RECORDS records. ((2^31 - 1) - 4) / 8, i.e. largest
@@ -17,14 +13,14 @@ public class DmaIdList implements IdList, Closeable {
   static final int SIZE_OF_DATA = 8; // each data is a long number
   private static final int MAX_NUM_RECORDS = (Integer.MAX_VALUE - META_DATA_SIZE) / SIZE_OF_DATA;
 
-  private final String filename;
-  private MappedByteBuffer buffer;
-  private int numRecords;
+  // a record is written before numRecords counts it, readers read numRecords before the file it
+  // may have been expanded to, whose regions already mapped stay valid
+  private volatile DmaFile file;
+  private volatile int numRecords;
   private long capacity;
 
-  public DmaIdList(String filename, MappedByteBuffer buffer, int numRecords, int capacity) {
-    this.filename = filename;
-    this.buffer = buffer;
+  public DmaIdList(DmaFile file, int numRecords, int capacity) {
+    this.file = file;
     this.numRecords = numRecords;
     this.capacity = capacity;
   }
@@ -36,38 +32,39 @@ public class DmaIdList implements IdList, Closeable {
           String.format("DmaIdList reaches its maximum number of records: %d", numRecords));
     }
     if (numRecords == capacity) {
-      buffer = ByteBufferUtil.expandBuffer(filename, buffer,
+      file = file.expand(
           META_DATA_SIZE + Math.min(MAX_NUM_RECORDS, 2 * capacity) * SIZE_OF_DATA);
       capacity *= 2;
     }
-    buffer.putLong(id);
-    buffer.putInt(0, ++numRecords);
+    file.putLong(META_DATA_SIZE + (long) numRecords * SIZE_OF_DATA, id);
+    file.putInt(0, ++numRecords);
   }
 
   @Override
   public int getStartOffset(long eventId) {
-    ByteBuffer duplicate = buffer.duplicate();
-    duplicate.position(META_DATA_SIZE);
-    duplicate = duplicate.slice();
-    return ByteBufferUtil.binarySearchOffset(duplicate, 0, numRecords, eventId, SIZE_OF_DATA);
+    int numRecords = this.numRecords;
+    return DmaFileUtil.binarySearchOffset(file, META_DATA_SIZE, 0, numRecords, eventId,
+        SIZE_OF_DATA);
   }
 
   @Override
   public Iterator subList(int startOffset, int maxRecords) {
+    int numRecords = this.numRecords;
     int endOffset = startOffset + maxRecords;
     endOffset = Math.min(endOffset < 0 ? Integer.MAX_VALUE : endOffset, numRecords);
-    return new Iterator(buffer, startOffset, endOffset);
+    return new Iterator(file, startOffset, endOffset);
   }
 
   @Override
   public Iterator iterator() {
-    return new Iterator(buffer, 0, numRecords);
+    int numRecords = this.numRecords;
+    return new Iterator(file, 0, numRecords);
   }
 
   @Override
   public void close() {
-    buffer.force();
-    buffer = null;
+    file.close();
+    file = null;
   }
 
   public interface Factory {
@@ -76,13 +73,13 @@ public class DmaIdList implements IdList, Closeable {
   }
 
   public static class Iterator implements IdList.Iterator {
-    private final MappedByteBuffer buffer;
+    private final DmaFile file;
     private final long start;
     private final long end;
     private long offset;
 
-    public Iterator(MappedByteBuffer buffer, long start, long end) {
-      this.buffer = buffer;
+    public Iterator(DmaFile file, long start, long end) {
+      this.file = file;
       this.start = start;
       this.end = end;
       this.offset = 0;
@@ -96,7 +93,7 @@ public class DmaIdList implements IdList, Closeable {
     @Override
     public long next() {
       long kthRecord = start + (offset++);
-      return buffer.getLong(META_DATA_SIZE + (int) kthRecord * SIZE_OF_DATA);
+      return file.getLong(META_DATA_SIZE + kthRecord * SIZE_OF_DATA);
     }
   }
 }
@@ -1,23 +1,28 @@
 package com.codecademy.eventhub.list;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
 
+import javax.inject.Named;
 import java.io.File;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 
 public class DmaIdListModule extends AbstractModule {
   @Override
-  protected void configure() {
-    bind(DmaIdList.Factory.class).to(DmaIdListFactory.class);
+  protected void configure() {}
+
+  @Provides
+  public DmaIdList.Factory getDmaIdListFactory(
+      DmaFileFactories dmaFileFactories,
+      @Named("eventhub.dmaidlist.backend") String backend) {
+    return new DmaIdListFactory(dmaFileFactories.get(backend));
   }
 
   private static class DmaIdListFactory implements DmaIdList.Factory {
+    private final DmaFile.Factory dmaFileFactory;
     private int defaultCapacity;
 
-    private DmaIdListFactory() {
+    private DmaIdListFactory(DmaFile.Factory dmaFileFactory) {
+      this.dmaFileFactory = dmaFileFactory;
       this.defaultCapacity = 10;
     }
 
@@ -28,28 +33,16 @@ public class DmaIdListModule extends AbstractModule {
 
     @Override
     public DmaIdList build(String filename) {
-      try {
-        File file = new File(filename);
-        if (!file.exists()) {
-          //noinspection ResultOfMethodCallIgnored
-          file.getParentFile().mkdirs();
-          //noinspection ResultOfMethodCallIgnored
-          file.createNewFile();
-          try (RandomAccessFile raf = new RandomAccessFile(new File(filename), "rw")) {
-            raf.setLength(DmaIdList.META_DATA_SIZE + defaultCapacity * DmaIdList.SIZE_OF_DATA);
-          }
-        }
-        try (RandomAccessFile raf = new RandomAccessFile(new File(filename), "rw")) {
-          FileChannel channel = raf.getChannel();
-          MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
-          int numRecords = buffer.getInt();
-          int capacity = (int) (raf.length() - DmaIdList.META_DATA_SIZE) / DmaIdList.SIZE_OF_DATA;
-          buffer.position(DmaIdList.META_DATA_SIZE + numRecords * DmaIdList.SIZE_OF_DATA);
-          return new DmaIdList(filename, buffer, numRecords, capacity);
-        }
-      } catch (IOException e) {
-        throw new RuntimeException(e);
+      File file = new File(filename);
+      if (!file.exists()) {
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
       }
+      DmaFile dmaFile = dmaFileFactory.open(filename,
+          DmaIdList.META_DATA_SIZE + (long) defaultCapacity * DmaIdList.SIZE_OF_DATA);
+      int numRecords = dmaFile.getInt(0);
+      int capacity = (int) ((dmaFile.size() - DmaIdList.META_DATA_SIZE) / DmaIdList.SIZE_OF_DATA);
+      return new DmaIdList(dmaFile, numRecords, capacity);
     }
   }
 }
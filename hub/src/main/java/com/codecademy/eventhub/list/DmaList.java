@@ -5,76 +5,97 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
-import com.codecademy.eventhub.base.ByteBufferUtil;
 import com.codecademy.eventhub.base.Schema;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
 /**
- * numRecordsPerFile * schema.getObjectSize() can't exceed MappedByteBuffer size limit, i.e.
- * numRecordsPerFile < (2^31 - 1) / schema.getObjectSize()
+ * Records are addressed with 64-bit positions within each file, so numRecordsPerFile is only
+ * bound by the number of records, not by the MappedByteBuffer size limit.
+ *
+ * The meta data file stores maxId followed by numRecordsPerFile. The latter is persisted when the
+ * list is created and takes precedence over the configured value afterwards, since changing it
+ * would move every record to a different file. Meta data files written before numRecordsPerFile
+ * was persisted only contain maxId; they are upgraded in place with the configured value.
  */
 public class DmaList<T> implements Closeable {
+  private static final int META_DATA_SIZE = 12; // maxId, numRecordsPerFile
+
   private final String directory;
   private final Schema<T> schema;
   private final MappedByteBuffer metaDataBuffer;
   // O(numFiles)
-  private LoadingCache<Integer, MappedByteBuffer> buffers;
+  private LoadingCache<Integer, DmaFile> files;
+  private final DmaFile.Factory dmaFileFactory;
   private long maxId;
   private int numRecordsPerFile;
 
   public DmaList(String directory, Schema<T> schema, MappedByteBuffer metaDataBuffer,
-      LoadingCache<Integer, MappedByteBuffer> buffers, long maxId, int numRecordsPerFile) {
+      LoadingCache<Integer, DmaFile> files, DmaFile.Factory dmaFileFactory, long maxId,
+      int numRecordsPerFile) {
     this.directory = directory;
     this.schema = schema;
     this.metaDataBuffer = metaDataBuffer;
-    this.buffers = buffers;
+    this.files = files;
+    this.dmaFileFactory = dmaFileFactory;
     this.maxId = maxId;
     this.numRecordsPerFile = numRecordsPerFile;
   }
 
   public void add(T t) {
-    int currentBufferIndex = (int) (maxId / numRecordsPerFile);
-    ByteBuffer duplicate = buffers.getUnchecked(currentBufferIndex).duplicate();
-    duplicate.position((int) (maxId % numRecordsPerFile) * schema.getObjectSize());
-    duplicate.put(schema.toBytes(t));
+    int currentFileIndex = (int) (maxId / numRecordsPerFile);
+    files.getUnchecked(currentFileIndex).put(getPosition(maxId), schema.toBytes(t), 0,
+        schema.getObjectSize());
     metaDataBuffer.putLong(0, ++maxId);
   }
 
   public void update(long id, T t) {
     if (id > maxId) {
       maxId = id;
+      metaDataBuffer.putLong(0, maxId);
     }
-    int currentBufferIndex = (int) (id / numRecordsPerFile);
-    ByteBuffer duplicate = buffers.getUnchecked(currentBufferIndex).duplicate();
-    duplicate.position((int) (id % numRecordsPerFile) * schema.getObjectSize());
-    duplicate.put(schema.toBytes(t));
+    int currentFileIndex = (int) (id / numRecordsPerFile);
+    files.getUnchecked(currentFileIndex).put(getPosition(id), schema.toBytes(t), 0,
+        schema.getObjectSize());
   }
 
   public T get(long kthRecord) {
-    int objectSize = schema.getObjectSize();
-    byte[] bytes = new byte[objectSize];
-    ByteBuffer newBuffer = buffers.getUnchecked((int) (kthRecord / numRecordsPerFile)).duplicate();
-    newBuffer.position((int) (kthRecord % numRecordsPerFile) * objectSize);
-    newBuffer.get(bytes, 0, objectSize);
-    return schema.fromBytes(bytes);
+    return schema.fromBytes(getBytes(kthRecord));
   }
 
   public byte[] getBytes(long kthRecord) {
     int objectSize = schema.getObjectSize();
     byte[] bytes = new byte[objectSize];
-    ByteBuffer newBuffer = buffers.getUnchecked((int) (kthRecord / numRecordsPerFile)).duplicate();
-    newBuffer.position((int) (kthRecord % numRecordsPerFile) * objectSize);
-    newBuffer.get(bytes, 0, objectSize);
+    files.getUnchecked((int) (kthRecord / numRecordsPerFile))
+        .get(getPosition(kthRecord), bytes, 0, objectSize);
     return bytes;
   }
 
+  // copies numRecords consecutive records into bytes with one read per file rather than one per
+  // record
+  public void getBytes(long firstRecord, int numRecords, byte[] bytes) {
+    int objectSize = schema.getObjectSize();
+    int offset = 0;
+    while (numRecords > 0) {
+      int numRecordsInFile = (int) Math.min(numRecords,
+          numRecordsPerFile - firstRecord % numRecordsPerFile);
+      files.getUnchecked((int) (firstRecord / numRecordsPerFile))
+          .get(getPosition(firstRecord), bytes, offset, numRecordsInFile * objectSize);
+      firstRecord += numRecordsInFile;
+      numRecords -= numRecordsInFile;
+      offset += numRecordsInFile * objectSize;
+    }
+  }
+
+  private long getPosition(long kthRecord) {
+    return (kthRecord % numRecordsPerFile) * schema.getObjectSize();
+  }
+
   public long getMaxId() {
     return maxId;
   }
@@ -83,43 +104,55 @@ public class DmaList<T> implements Closeable {
     String indent  = new String(new char[indentation]).replace('\0', ' ');
     return String.format(
         indent + "directory: %s\n" +
-        indent + "buffer: %s",
-        directory, buffers.stats().toString());
+        indent + "num records per file: %d\n" +
+        indent + "files: %s\n" +
+        "%s",
+        directory, numRecordsPerFile, files.stats().toString(),
+        dmaFileFactory.getVarz(indentation));
   }
 
   @Override
   public void close() {
-    buffers.invalidateAll();
+    files.invalidateAll();
   }
 
   public static <T> DmaList<T> build(final Schema<T> schema, final String directory,
-      final int numRecordsPerFile, int cacheSize) {
+      int configuredNumRecordsPerFile, int cacheSize, final DmaFile.Factory dmaFileFactory) {
     //noinspection ResultOfMethodCallIgnored
     new File(directory).mkdirs();
-    try (RandomAccessFile raf = new RandomAccessFile(new File(
-          String.format("%s/meta_data.mem", directory)), "rw")) {
-      MappedByteBuffer metaDataBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
-      long numRecords = metaDataBuffer.getLong();
-      final int fileSize = numRecordsPerFile * schema.getObjectSize();
-      LoadingCache<Integer, MappedByteBuffer> buffers = CacheBuilder.newBuilder()
+    File metaDataFile = new File(String.format("%s/meta_data.mem", directory));
+    try (RandomAccessFile raf = new RandomAccessFile(metaDataFile, "rw")) {
+      MappedByteBuffer metaDataBuffer =
+          raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, META_DATA_SIZE);
+      metaDataBuffer.order(dmaFileFactory.getByteOrder());
+      long numRecords = metaDataBuffer.getLong(0);
+      int numRecordsPerFile = metaDataBuffer.getInt(8);
+      // zero for new lists as well as legacy meta data files, which are only 8 bytes long
+      if (numRecordsPerFile == 0) {
+        numRecordsPerFile = configuredNumRecordsPerFile;
+        metaDataBuffer.putInt(8, numRecordsPerFile);
+      }
+      final long fileSize = (long) numRecordsPerFile * schema.getObjectSize();
+      LoadingCache<Integer, DmaFile> files = CacheBuilder.newBuilder()
           .maximumSize(cacheSize)
           .recordStats()
-          .removalListener(new RemovalListener<Integer, MappedByteBuffer>() {
+          .removalListener(new RemovalListener<Integer, DmaFile>() {
             @Override
-            public void onRemoval(RemovalNotification<Integer, MappedByteBuffer> notification) {
-              MappedByteBuffer value = notification.getValue();
+            public void onRemoval(RemovalNotification<Integer, DmaFile> notification) {
+              DmaFile value = notification.getValue();
               if (value != null) {
-                value.force();
+                value.close();
               }
             }})
-          .build(new CacheLoader<Integer, MappedByteBuffer>() {
+          .build(new CacheLoader<Integer, DmaFile>() {
             @Override
-            public MappedByteBuffer load(Integer key) throws Exception {
-              return ByteBufferUtil.createNewBuffer(
+            public DmaFile load(Integer key) throws Exception {
+              return dmaFileFactory.open(
                   String.format("%s/dma_list_%d.mem", directory, key), fileSize);
             }
           });
-      return new DmaList<>(directory, schema, metaDataBuffer, buffers, numRecords, numRecordsPerFile);
+      return new DmaList<>(directory, schema, metaDataBuffer, files, dmaFileFactory, numRecords,
+          numRecordsPerFile);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -0,0 +1,192 @@
+package com.codecademy.eventhub.list;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The file is mapped as consecutive regions of regionSize bytes, each in its own
+ * MappedByteBuffer, so the file itself is addressed with 64-bit positions and isn't bound by
+ * the (2^31 - 1) bytes limit of a single MappedByteBuffer. Accesses straddling two regions fall
+ * back to a byte copy.
+ */
+public class MappedDmaFile implements DmaFile {
+  private static final int DEFAULT_REGION_SIZE = 1 << 30;
+
+  private final String filename;
+  private final int regionSize;
+  private final ByteOrder byteOrder;
+  private final MappedByteBuffer[] regions;
+  private final long size;
+
+  public MappedDmaFile(String filename, int regionSize, ByteOrder byteOrder,
+      MappedByteBuffer[] regions, long size) {
+    this.filename = filename;
+    this.regionSize = regionSize;
+    this.byteOrder = byteOrder;
+    this.regions = regions;
+    this.size = size;
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public int getInt(long position) {
+    MappedByteBuffer region = regions[(int) (position / regionSize)];
+    int offset = (int) (position % regionSize);
+    if (offset + 4 <= region.capacity()) {
+      return region.getInt(offset);
+    }
+    byte[] bytes = new byte[4];
+    get(position, bytes, 0, 4);
+    return ByteBuffer.wrap(bytes).order(byteOrder).getInt();
+  }
+
+  @Override
+  public void putInt(long position, int value) {
+    MappedByteBuffer region = regions[(int) (position / regionSize)];
+    int offset = (int) (position % regionSize);
+    if (offset + 4 <= region.capacity()) {
+      region.putInt(offset, value);
+      return;
+    }
+    put(position, ByteBuffer.allocate(4).order(byteOrder).putInt(value).array(), 0, 4);
+  }
+
+  @Override
+  public long getLong(long position) {
+    MappedByteBuffer region = regions[(int) (position / regionSize)];
+    int offset = (int) (position % regionSize);
+    if (offset + 8 <= region.capacity()) {
+      return region.getLong(offset);
+    }
+    byte[] bytes = new byte[8];
+    get(position, bytes, 0, 8);
+    return ByteBuffer.wrap(bytes).order(byteOrder).getLong();
+  }
+
+  @Override
+  public void putLong(long position, long value) {
+    MappedByteBuffer region = regions[(int) (position / regionSize)];
+    int offset = (int) (position % regionSize);
+    if (offset + 8 <= region.capacity()) {
+      region.putLong(offset, value);
+      return;
+    }
+    put(position, ByteBuffer.allocate(8).order(byteOrder).putLong(value).array(), 0, 8);
+  }
+
+  @Override
+  public void get(long position, byte[] bytes, int offset, int length) {
+    while (length > 0) {
+      ByteBuffer duplicate = regions[(int) (position / regionSize)].duplicate();
+      duplicate.position((int) (position % regionSize));
+      int numBytes = Math.min(length, duplicate.remaining());
+      duplicate.get(bytes, offset, numBytes);
+      position += numBytes;
+      offset += numBytes;
+      length -= numBytes;
+    }
+  }
+
+  @Override
+  public void put(long position, byte[] bytes, int offset, int length) {
+    while (length > 0) {
+      ByteBuffer duplicate = regions[(int) (position / regionSize)].duplicate();
+      duplicate.position((int) (position % regionSize));
+      int numBytes = Math.min(length, duplicate.remaining());
+      duplicate.put(bytes, offset, numBytes);
+      position += numBytes;
+      offset += numBytes;
+      length -= numBytes;
+    }
+  }
+
+  @Override
+  public DmaFile expand(long newSize) {
+    force();
+    try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
+      raf.setLength(newSize);
+      // regions which are already fully mapped are kept as is
+      int numFullRegions = (int) (size / regionSize);
+      MappedByteBuffer[] newRegions = map(raf.getChannel(), regionSize, byteOrder, newSize,
+          Arrays.copyOf(regions, numFullRegions));
+      return new MappedDmaFile(filename, regionSize, byteOrder, newRegions, newSize);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void force() {
+    for (MappedByteBuffer region : regions) {
+      region.force();
+    }
+  }
+
+  @Override
+  public void close() {
+    force();
+  }
+
+  private static MappedByteBuffer[] map(FileChannel channel, int regionSize, ByteOrder byteOrder,
+      long size, MappedByteBuffer[] mappedRegions) throws IOException {
+    int numRegions = Math.max(1, (int) ((size + regionSize - 1) / regionSize));
+    MappedByteBuffer[] regions = Arrays.copyOf(mappedRegions, numRegions);
+    for (int i = mappedRegions.length; i < numRegions; i++) {
+      long position = (long) i * regionSize;
+      regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, position,
+          Math.min(regionSize, size - position));
+      regions[i].order(byteOrder);
+    }
+    return regions;
+  }
+
+  public static class Factory implements DmaFile.Factory {
+    private final int regionSize;
+    private final ByteOrder byteOrder;
+
+    public Factory(ByteOrder byteOrder) {
+      this(DEFAULT_REGION_SIZE, byteOrder);
+    }
+
+    public Factory(int regionSize, ByteOrder byteOrder) {
+      this.regionSize = regionSize;
+      this.byteOrder = byteOrder;
+    }
+
+    @Override
+    public DmaFile open(String filename, long minSize) {
+      try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
+        long size = Math.max(minSize, raf.length());
+        MappedByteBuffer[] regions = map(raf.getChannel(), regionSize, byteOrder, size,
+            new MappedByteBuffer[0]);
+        return new MappedDmaFile(filename, regionSize, byteOrder, regions, size);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    // the mappings outlive the files they were made from, there is nothing left open to close
+    @Override
+    public void close() {}
+
+    @Override
+    public ByteOrder getByteOrder() {
+      return byteOrder;
+    }
+
+    @Override
+    public String getVarz(int indentation) {
+      String indent  = new String(new char[indentation]).replace('\0', ' ');
+      return indent + "backend: mmap";
+    }
+  }
+}
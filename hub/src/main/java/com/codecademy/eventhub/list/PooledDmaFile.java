@@ -0,0 +1,255 @@
+package com.codecademy.eventhub.list;
+
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PooledDmaFile reaches the file through positional reads and writes on its FileChannel, staging
+ * the pages in a BufferPool shared with the other pooled files. Unlike MappedDmaFile, the amount
+ * of memory used is bounded by the pool instead of being left to the page cache.
+ *
+ * Every open of a file through the factory must be matched by a close. Once the last one is, the
+ * file is idle but stays open, since the lists close the files they evict from their caches while
+ * other threads may still be reading them. The factory closes the least recently released idle
+ * files beyond maxIdleFiles, and a reader still holding one of those is redirected to the file the
+ * factory has open for the same path, reopening it if needed.
+ */
+public class PooledDmaFile implements DmaFile {
+  private final String path;
+  private final Factory factory;
+  private final BufferPool bufferPool;
+  private final ByteOrder byteOrder;
+  // closed once the factory has evicted the pages of the file
+  private final RandomAccessFile raf;
+  // written with the factory held, false once the factory closes the file
+  private volatile boolean isOpen;
+  // number of opens not matched by a close yet, guarded by the factory
+  private int numOwners;
+  private volatile long size;
+
+  private PooledDmaFile(String path, Factory factory) throws IOException {
+    this.path = path;
+    this.factory = factory;
+    this.bufferPool = factory.bufferPool;
+    this.byteOrder = factory.byteOrder;
+    this.raf = new RandomAccessFile(path, "rw");
+    this.isOpen = true;
+    this.numOwners = 0;
+    this.size = raf.length();
+  }
+
+  // returns the file the pages are to be staged for
+  PooledDmaFile getOpenFile() {
+    return isOpen ? this : factory.reopen(path);
+  }
+
+  boolean isOpen() {
+    return isOpen;
+  }
+
+  // called with the segment of a page of the file held
+  FileChannel getChannel() {
+    return raf.getChannel();
+  }
+
+  ByteOrder getByteOrder() {
+    return byteOrder;
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public int getInt(long position) {
+    return bufferPool.getInt(this, position);
+  }
+
+  @Override
+  public void putInt(long position, int value) {
+    bufferPool.putInt(this, position, value);
+  }
+
+  @Override
+  public long getLong(long position) {
+    return bufferPool.getLong(this, position);
+  }
+
+  @Override
+  public void putLong(long position, long value) {
+    bufferPool.putLong(this, position, value);
+  }
+
+  @Override
+  public void get(long position, byte[] bytes, int offset, int length) {
+    bufferPool.read(this, position, bytes, offset, length);
+  }
+
+  @Override
+  public void put(long position, byte[] bytes, int offset, int length) {
+    bufferPool.write(this, position, bytes, offset, length);
+  }
+
+  @Override
+  public DmaFile expand(long newSize) {
+    try {
+      synchronized (factory) {
+        PooledDmaFile file = getOpenFile();
+        file.raf.setLength(newSize);
+        file.size = newSize;
+        return file;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void force() {
+    try {
+      synchronized (factory) {
+        PooledDmaFile file = getOpenFile();
+        bufferPool.flush(file);
+        file.raf.getChannel().force(false);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (factory) {
+      // already closed by the factory, or idle
+      if (!isOpen || numOwners == 0) {
+        return;
+      }
+      bufferPool.flush(this);
+      if (--numOwners == 0) {
+        factory.release(this);
+      }
+    }
+  }
+
+  public static class Factory implements DmaFile.Factory {
+    private final BufferPool bufferPool;
+    private final ByteOrder byteOrder;
+    private final int maxIdleFiles;
+    // a file is open once, so that its pages are never staged twice, guarded by the factory
+    private final Map<String, PooledDmaFile> files;
+    // the open files without owners, the eldest entry is the least recently released one
+    private final LinkedHashMap<String, PooledDmaFile> idleFiles;
+
+    public Factory(BufferPool bufferPool, ByteOrder byteOrder, int maxIdleFiles) {
+      this.bufferPool = bufferPool;
+      this.byteOrder = byteOrder;
+      this.maxIdleFiles = maxIdleFiles;
+      this.files = Maps.newHashMap();
+      this.idleFiles = new LinkedHashMap<>();
+    }
+
+    @Override
+    public DmaFile open(String filename, long minSize) {
+      try {
+        String path = new File(filename).getCanonicalPath();
+        synchronized (this) {
+          PooledDmaFile file = getOrOpen(path);
+          idleFiles.remove(path);
+          file.numOwners++;
+          if (file.size() < minSize) {
+            file.expand(minSize);
+          }
+          return file;
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public ByteOrder getByteOrder() {
+      return byteOrder;
+    }
+
+    @Override
+    public synchronized void close() {
+      for (PooledDmaFile file : files.values()) {
+        closeFile(file);
+      }
+      files.clear();
+      idleFiles.clear();
+    }
+
+    @Override
+    public String getVarz(int indentation) {
+      String indent  = new String(new char[indentation]).replace('\0', ' ');
+      int numOpenFiles, numIdleFiles;
+      synchronized (this) {
+        numOpenFiles = files.size();
+        numIdleFiles = idleFiles.size();
+      }
+      return indent + "backend: pread\n" +
+          indent + "num open files: " + numOpenFiles + "\n" +
+          indent + "num idle files: " + numIdleFiles + "\n" +
+          bufferPool.getVarz(indentation);
+    }
+
+    // called by a reader of a file closed since it got it
+    private synchronized PooledDmaFile reopen(String path) {
+      try {
+        PooledDmaFile file = files.get(path);
+        if (file == null) {
+          file = getOrOpen(path);
+          release(file);
+        }
+        return file;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private PooledDmaFile getOrOpen(String path) throws IOException {
+      PooledDmaFile file = files.get(path);
+      if (file == null) {
+        file = new PooledDmaFile(path, this);
+        files.put(path, file);
+      }
+      return file;
+    }
+
+    private void release(PooledDmaFile file) {
+      idleFiles.put(file.path, file);
+      Iterator<PooledDmaFile> iterator = idleFiles.values().iterator();
+      while (idleFiles.size() > maxIdleFiles) {
+        PooledDmaFile eldest = iterator.next();
+        // the file just released is the most recent one, it's kept however small maxIdleFiles is
+        if (eldest == file) {
+          break;
+        }
+        iterator.remove();
+        files.remove(eldest.path);
+        closeFile(eldest);
+      }
+    }
+
+    private void closeFile(PooledDmaFile file) {
+      // before the eviction, so that the readers racing with it stage their pages elsewhere
+      file.isOpen = false;
+      bufferPool.evict(file);
+      try {
+        file.raf.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
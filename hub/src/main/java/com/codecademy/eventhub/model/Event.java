@@ -3,8 +3,10 @@ package com.codecademy.eventhub.model;
 import com.google.common.collect.Maps;
 import com.codecademy.eventhub.base.ByteBufferMap;
 import com.codecademy.eventhub.base.KeyValueCallback;
+import com.codecademy.eventhub.storage.filter.CompiledFilter;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Map;
 
 public class Event {
@@ -30,6 +32,11 @@ public class Event {
     return byteBufferMap.get(key);
   }
 
+  // evaluated against the serialized properties, without decoding them
+  public boolean matches(CompiledFilter filter) {
+    return filter.accept(byteBufferMap);
+  }
+
   public void enumerate(KeyValueCallback callback) {
     byteBufferMap.enumerate(callback);
   }
@@ -38,8 +45,12 @@ public class Event {
     return byteBufferMap.toByteBuffer();
   }
 
+  public ByteBuffer toByteBuffer(ByteOrder byteOrder) {
+    return byteBufferMap.withByteOrder(byteOrder).toByteBuffer();
+  }
+
   public static Event fromByteBuffer(ByteBuffer byteBuffer) {
-    return new Event(new ByteBufferMap(byteBuffer.duplicate()));
+    return new Event(new ByteBufferMap(byteBuffer.duplicate().order(byteBuffer.order())));
   }
 
   @Override
@@ -3,8 +3,10 @@ package com.codecademy.eventhub.model;
 import com.google.common.collect.Maps;
 import com.codecademy.eventhub.base.ByteBufferMap;
 import com.codecademy.eventhub.base.KeyValueCallback;
+import com.codecademy.eventhub.storage.filter.CompiledFilter;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Map;
 
 public class User {
@@ -22,6 +24,11 @@ public class User {
     return byteBufferMap.get(key);
   }
 
+  // evaluated against the serialized properties, without decoding them
+  public boolean matches(CompiledFilter filter) {
+    return filter.accept(byteBufferMap);
+  }
+
   public void enumerate(KeyValueCallback callback) {
     byteBufferMap.enumerate(callback);
   }
@@ -30,13 +37,17 @@ public class User {
     return byteBufferMap.toByteBuffer();
   }
 
+  public ByteBuffer toByteBuffer(ByteOrder byteOrder) {
+    return byteBufferMap.withByteOrder(byteOrder).toByteBuffer();
+  }
+
   @Override
   public String toString() {
     return String.format("external user id: %s" + getExternalId());
   }
 
   public static User fromByteBuffer(ByteBuffer byteBuffer) {
-    return new User(new ByteBufferMap(byteBuffer.duplicate()));
+    return new User(new ByteBufferMap(byteBuffer.duplicate().order(byteBuffer.order())));
   }
 
   public static class Builder {
@@ -0,0 +1,183 @@
+package com.codecademy.eventhub.query;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * QueryCache keeps the results of funnel and cohort queries, least recently used first out once
+ * the results take more than maxSizeInBytes.
+ *
+ * A result is dropped as soon as an event of one of its event types is added within its dates, or
+ * a user is updated when it filters users. Events are added on the current date, so the results of
+ * queries over past dates stay until they are evicted, while those of queries reaching the
+ * current date only last until the next matching event.
+ *
+ * Queries run concurrently with the events being added, so a miss reserves the key and returns the
+ * reservation: the result is only kept if the reservation is still the entry of the key when put,
+ * i.e. nothing invalidated the key while it was computed. A computation which fails releases its
+ * reservation instead, otherwise it would never be evicted.
+ */
+public class QueryCache {
+  // rough size of an entry besides its result, i.e. key, hash map and multimap entries
+  private static final int ENTRY_OVERHEAD_IN_BYTES = 256;
+
+  private final long maxSizeInBytes;
+  // in access order, the least recently used first
+  private final LinkedHashMap<Key, Entry> entries;
+  private final SetMultimap<String, Key> keysByEventType;
+  private final Set<Key> userFilteredKeys;
+  private long sizeInBytes;
+  private long numHits;
+  private long numMisses;
+  private long numEvictions;
+  private long numInvalidations;
+
+  public QueryCache(long maxSizeInBytes) {
+    this.maxSizeInBytes = maxSizeInBytes;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true /* accessOrder */);
+    this.keysByEventType = HashMultimap.create();
+    this.userFilteredKeys = Sets.newHashSet();
+  }
+
+  // on a miss, the entry has no result and is the reservation to put the computed result with
+  public synchronized Entry get(Key key) {
+    Entry entry = entries.get(key);
+    if (entry != null && entry.result != null) {
+      numHits++;
+      return entry;
+    }
+    numMisses++;
+    // while the key is computed by another query, the reservation is never kept
+    Entry reservation = new Entry();
+    if (entry == null && maxSizeInBytes > 0) {
+      entries.put(key, reservation);
+      for (String eventType : key.eventTypes) {
+        keysByEventType.put(eventType, key);
+      }
+      if (key.isUserFiltered) {
+        userFilteredKeys.add(key);
+      }
+    }
+    return reservation;
+  }
+
+  public synchronized void put(Key key, Entry reservation, Object result,
+      long resultSizeInBytes) {
+    // invalidated, evicted or released since the miss, possibly reserved again by another query
+    if (entries.get(key) != reservation) {
+      return;
+    }
+    reservation.result = result;
+    reservation.sizeInBytes = resultSizeInBytes + ENTRY_OVERHEAD_IN_BYTES;
+    sizeInBytes += reservation.sizeInBytes;
+    Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+    while (sizeInBytes > maxSizeInBytes && iterator.hasNext()) {
+      Map.Entry<Key, Entry> eldest = iterator.next();
+      iterator.remove();
+      unregister(eldest.getKey(), eldest.getValue());
+      numEvictions++;
+    }
+  }
+
+  // drops the reservation of a miss whose result won't be put, e.g. the query was cancelled
+  public synchronized void release(Key key, Entry reservation) {
+    if (entries.get(key) == reservation && reservation.result == null) {
+      entries.remove(key);
+      unregister(key, reservation);
+    }
+  }
+
+  public synchronized void onEvent(String eventType, String date) {
+    List<Key> invalidatedKeys = Lists.newArrayList();
+    for (Key key : keysByEventType.get(eventType)) {
+      if (key.startDate.compareTo(date) <= 0 && date.compareTo(key.endDate) <= 0) {
+        invalidatedKeys.add(key);
+      }
+    }
+    invalidate(invalidatedKeys);
+  }
+
+  public synchronized void onUserUpdate() {
+    invalidate(Lists.newArrayList(userFilteredKeys));
+  }
+
+  public synchronized String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    return String.format(
+        indent + "max size: %d bytes\n" +
+        indent + "size: %d bytes\n" +
+        indent + "num entries: %d\n" +
+        indent + "num hits: %d\n" +
+        indent + "num misses: %d\n" +
+        indent + "num evictions: %d\n" +
+        indent + "num invalidations: %d",
+        maxSizeInBytes, sizeInBytes, entries.size(), numHits, numMisses, numEvictions,
+        numInvalidations);
+  }
+
+  private void invalidate(List<Key> keys) {
+    for (Key key : keys) {
+      unregister(key, entries.remove(key));
+      numInvalidations++;
+    }
+  }
+
+  private void unregister(Key key, Entry entry) {
+    sizeInBytes -= entry.sizeInBytes;
+    for (String eventType : key.eventTypes) {
+      keysByEventType.remove(eventType, key);
+    }
+    userFilteredKeys.remove(key);
+  }
+
+  /**
+   * A normalized query: the parameters that determine its result, compared with equals, along
+   * with the event types and the dates, both inclusive, of the events it reads.
+   */
+  public static class Key {
+    private final List<Object> parameters;
+    private final Set<String> eventTypes;
+    private final String startDate;
+    private final String endDate;
+    private final boolean isUserFiltered;
+
+    public Key(List<Object> parameters, Set<String> eventTypes, String startDate, String endDate,
+        boolean isUserFiltered) {
+      this.parameters = parameters;
+      this.eventTypes = eventTypes;
+      this.startDate = startDate;
+      this.endDate = endDate;
+      this.isUserFiltered = isUserFiltered;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && parameters.equals(((Key) o).parameters);
+    }
+
+    @Override
+    public int hashCode() {
+      return parameters.hashCode();
+    }
+  }
+
+  public static class Entry {
+    // null while computed
+    private Object result;
+    private long sizeInBytes;
+
+    private Entry() {}
+
+    public Object getResult() {
+      return result;
+    }
+  }
+}
@@ -0,0 +1,8 @@
+package com.codecademy.eventhub.query;
+
+// thrown from within a scan once its query is cancelled or past its deadline
+public class QueryCancelledException extends RuntimeException {
+  public QueryCancelledException(String message) {
+    super(message);
+  }
+}
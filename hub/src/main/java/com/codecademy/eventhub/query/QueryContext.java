@@ -0,0 +1,151 @@
+package com.codecademy.eventhub.query;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * QueryContext tracks the progress of a running query and lets it be cancelled. The scans of the
+ * indices find the query of their thread through current() and report the events they go through
+ * every CHECK_INTERVAL events, which is also when a cancelled or late query is stopped by a
+ * QueryCancelledException. As ScanScope, the context doesn't follow a query to the pool's threads,
+ * tasks enter it themselves, e.g.
+ *   try (QueryContext.Scope scope = context.enter()) { ... }
+ */
+public class QueryContext {
+  public static final int CHECK_INTERVAL = 1024;
+  // the context of the scans run outside of any query, which are never cancelled
+  public static final QueryContext NONE = new QueryContext(0, "", Long.MAX_VALUE);
+  private static final ThreadLocal<QueryContext> CURRENT = new ThreadLocal<QueryContext>() {
+    @Override
+    protected QueryContext initialValue() {
+      return NONE;
+    }
+  };
+
+  private final long id;
+  private final String description;
+  private final long startTimeMillis;
+  private final long deadlineMillis;
+  private final AtomicLong numEventsScanned;
+  private final AtomicLong numUsersProcessed;
+  private volatile boolean isCancelled;
+
+  public QueryContext(long id, String description, long deadlineMillis) {
+    this.id = id;
+    this.description = description;
+    this.startTimeMillis = System.currentTimeMillis();
+    this.deadlineMillis = deadlineMillis;
+    this.numEventsScanned = new AtomicLong();
+    this.numUsersProcessed = new AtomicLong();
+    this.isCancelled = false;
+  }
+
+  public static QueryContext current() {
+    return CURRENT.get();
+  }
+
+  // makes this the query of the current thread until the scope is closed
+  public Scope enter() {
+    Scope scope = new Scope(CURRENT.get());
+    CURRENT.set(this);
+    return scope;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public void cancel() {
+    isCancelled = true;
+  }
+
+  public void onEventsScanned(int numEvents) {
+    if (this == NONE) {
+      return;
+    }
+    numEventsScanned.addAndGet(numEvents);
+    checkCancelled();
+  }
+
+  public void onUsersProcessed(int numUsers) {
+    if (this == NONE) {
+      return;
+    }
+    numUsersProcessed.addAndGet(numUsers);
+    checkCancelled();
+  }
+
+  public void checkCancelled() {
+    if (isCancelled) {
+      throw new QueryCancelledException(String.format("query %d cancelled", id));
+    }
+    if (System.currentTimeMillis() > deadlineMillis) {
+      throw new QueryCancelledException(String.format("query %d past its deadline", id));
+    }
+  }
+
+  public Progress getProgress() {
+    long now = System.currentTimeMillis();
+    return new Progress(id, description, now - startTimeMillis, deadlineMillis - now,
+        numEventsScanned.get(), numUsersProcessed.get(), isCancelled);
+  }
+
+  public static class Scope implements Closeable {
+    private final QueryContext previous;
+
+    private Scope(QueryContext previous) {
+      this.previous = previous;
+    }
+
+    @Override
+    public void close() {
+      CURRENT.set(previous);
+    }
+  }
+
+  // a snapshot of the progress of a query
+  public static class Progress {
+    private final long id;
+    private final String description;
+    private final long elapsedMillis;
+    private final long remainingMillis;
+    private final long numEventsScanned;
+    private final long numUsersProcessed;
+    private final boolean isCancelled;
+
+    public Progress(long id, String description, long elapsedMillis, long remainingMillis,
+        long numEventsScanned, long numUsersProcessed, boolean isCancelled) {
+      this.id = id;
+      this.description = description;
+      this.elapsedMillis = elapsedMillis;
+      this.remainingMillis = remainingMillis;
+      this.numEventsScanned = numEventsScanned;
+      this.numUsersProcessed = numUsersProcessed;
+      this.isCancelled = isCancelled;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public String getDescription() {
+      return description;
+    }
+
+    public long getRemainingMillis() {
+      return remainingMillis;
+    }
+
+    public long getNumEventsScanned() {
+      return numEventsScanned;
+    }
+
+    public long getNumUsersProcessed() {
+      return numUsersProcessed;
+    }
+
+    public boolean isCancelled() {
+      return isCancelled;
+    }
+  }
+}
@@ -0,0 +1,283 @@
+package com.codecademy.eventhub.query;
+
+import com.codecademy.eventhub.storage.filter.And;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.Regex;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * QueryParser parses the query language into a QueryStatement, e.g.
+ *   FUNNEL signup, view_course[course = "intro"], finish_course
+ *       FROM 20130101 TO 20130107 WITHIN 7 DAYS WHERE plan = "pro"
+ *   COHORT signup THEN visit FROM 20130101 TO 20130131 EVERY 7 DAYS COLUMNS 4
+ *   COUNT purchase[country ~ "^U"] FROM 20130101 TO 20130107
+ *   COUNT purchase FROM 20130101 TO 20130107 BY country
+ *   USERS WHERE plan = "pro" AND country ~ "^U" LIMIT 100
+ *
+ * Keywords are case insensitive. Predicates are conjunctions of key = value, an exact match, and
+ * key ~ regex terms. Names and values are quoted when they aren't made of letters, digits and
+ * _.:- only. Malformed queries are rejected with an IllegalArgumentException.
+ */
+public class QueryParser {
+  private static final int DEFAULT_USERS_LIMIT = 100;
+
+  private final String query;
+  private final List<Token> tokens;
+  private int position;
+
+  private QueryParser(String query) {
+    this.query = query;
+    this.tokens = tokenize(query);
+    this.position = 0;
+  }
+
+  public static QueryStatement parse(String query) {
+    QueryParser parser = new QueryParser(query);
+    QueryStatement statement = parser.parseStatement();
+    if (parser.position < parser.tokens.size()) {
+      throw parser.error("unexpected " + parser.tokens.get(parser.position).text);
+    }
+    return statement;
+  }
+
+  private QueryStatement parseStatement() {
+    String keyword = nextWord().toUpperCase();
+    switch (keyword) {
+      case "FUNNEL":
+        return parseFunnel();
+      case "COHORT":
+        return parseCohort();
+      case "COUNT":
+        return parseSegmentation();
+      case "USERS":
+        return parseUserLookup();
+      default:
+        throw error("expected FUNNEL, COHORT, COUNT or USERS but was " + keyword);
+    }
+  }
+
+  private QueryStatement parseFunnel() {
+    List<QueryStatement.EventPredicate> steps = Lists.newArrayList(parseEventPredicate());
+    while (acceptSymbol(",")) {
+      steps.add(parseEventPredicate());
+    }
+    expectKeyword("FROM");
+    String startDate = parseDate();
+    expectKeyword("TO");
+    String endDate = parseDate();
+    expectKeyword("WITHIN");
+    int numDaysToCompleteFunnel = parsePositiveInt();
+    expectKeyword("DAYS");
+    Filter userFilter = acceptKeyword("WHERE") ? parseFilter() : TrueFilter.INSTANCE;
+    return new QueryStatement.Funnel(steps, startDate, endDate, numDaysToCompleteFunnel,
+        userFilter);
+  }
+
+  private QueryStatement parseCohort() {
+    QueryStatement.EventPredicate row = parseEventPredicate();
+    expectKeyword("THEN");
+    QueryStatement.EventPredicate column = parseEventPredicate();
+    expectKeyword("FROM");
+    String startDate = parseDate();
+    expectKeyword("TO");
+    String endDate = parseDate();
+    expectKeyword("EVERY");
+    int numDaysPerCohort = parsePositiveInt();
+    expectKeyword("DAYS");
+    expectKeyword("COLUMNS");
+    int numColumns = parsePositiveInt();
+    return new QueryStatement.Cohort(row, column, startDate, endDate, numDaysPerCohort,
+        numColumns);
+  }
+
+  private QueryStatement parseSegmentation() {
+    QueryStatement.EventPredicate event = parseEventPredicate();
+    expectKeyword("FROM");
+    String startDate = parseDate();
+    expectKeyword("TO");
+    String endDate = parseDate();
+    String key = null;
+    if (acceptKeyword("BY")) {
+      // the breakdowns come from the rollups, which aren't filtered
+      if (event.getFilter() != TrueFilter.INSTANCE) {
+        throw error("BY isn't supported along with a predicate");
+      }
+      key = nextName();
+    }
+    return new QueryStatement.Segmentation(event, startDate, endDate, key);
+  }
+
+  private QueryStatement parseUserLookup() {
+    Filter filter = acceptKeyword("WHERE") ? parseFilter() : TrueFilter.INSTANCE;
+    int limit = acceptKeyword("LIMIT") ? parsePositiveInt() : DEFAULT_USERS_LIMIT;
+    return new QueryStatement.UserLookup(filter, limit);
+  }
+
+  private QueryStatement.EventPredicate parseEventPredicate() {
+    String eventType = nextName();
+    Filter filter = TrueFilter.INSTANCE;
+    if (acceptSymbol("[")) {
+      filter = parseFilter();
+      expectSymbol("]");
+    }
+    return new QueryStatement.EventPredicate(eventType, filter);
+  }
+
+  private Filter parseFilter() {
+    List<Filter> terms = Lists.newArrayList(parseTerm());
+    while (acceptKeyword("AND")) {
+      terms.add(parseTerm());
+    }
+    return terms.size() == 1 ? terms.get(0) : new And(terms);
+  }
+
+  private Filter parseTerm() {
+    String key = nextName();
+    if (acceptSymbol("=")) {
+      return new ExactMatch(key, nextName());
+    }
+    expectSymbol("~");
+    String regex = nextName();
+    try {
+      return new Regex(key, Pattern.compile(regex));
+    } catch (PatternSyntaxException e) {
+      throw error("invalid regex " + regex);
+    }
+  }
+
+  private String parseDate() {
+    String date = nextWord();
+    if (!date.matches("[0-9]{8}")) {
+      throw error("expected a yyyyMMdd date but was " + date);
+    }
+    return date;
+  }
+
+  private int parsePositiveInt() {
+    String number = nextWord();
+    if (!number.matches("[0-9]{1,9}") || Integer.parseInt(number) == 0) {
+      throw error("expected a positive number but was " + number);
+    }
+    return Integer.parseInt(number);
+  }
+
+  private boolean acceptKeyword(String keyword) {
+    if (position < tokens.size() && !tokens.get(position).isQuoted
+        && tokens.get(position).text.equalsIgnoreCase(keyword)) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  private void expectKeyword(String keyword) {
+    if (!acceptKeyword(keyword)) {
+      throw error("expected " + keyword);
+    }
+  }
+
+  private boolean acceptSymbol(String symbol) {
+    if (position < tokens.size() && tokens.get(position).isSymbol
+        && tokens.get(position).text.equals(symbol)) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  private void expectSymbol(String symbol) {
+    if (!acceptSymbol(symbol)) {
+      throw error("expected " + symbol);
+    }
+  }
+
+  // a word or a quoted string
+  private String nextName() {
+    if (position < tokens.size() && tokens.get(position).isQuoted) {
+      return tokens.get(position++).text;
+    }
+    return nextWord();
+  }
+
+  private String nextWord() {
+    if (position == tokens.size()) {
+      throw error("unexpected end of query");
+    }
+    Token token = tokens.get(position);
+    if (token.isSymbol || token.isQuoted) {
+      throw error("unexpected " + token.text);
+    }
+    position++;
+    return token.text;
+  }
+
+  private IllegalArgumentException error(String message) {
+    int offset = position < tokens.size() ? tokens.get(position).offset : query.length();
+    return new IllegalArgumentException(String.format("%s at %d in: %s", message, offset, query));
+  }
+
+  private static List<Token> tokenize(String query) {
+    List<Token> tokens = Lists.newArrayList();
+    int i = 0;
+    while (i < query.length()) {
+      char c = query.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (",[]=~".indexOf(c) >= 0) {
+        tokens.add(new Token(String.valueOf(c), i, true, false));
+        i++;
+      } else if (c == '"') {
+        StringBuilder text = new StringBuilder();
+        int start = i++;
+        while (i < query.length() && query.charAt(i) != '"') {
+          // a backslash escapes the next character, quotes included
+          if (query.charAt(i) == '\\' && i + 1 < query.length()) {
+            i++;
+          }
+          text.append(query.charAt(i++));
+        }
+        if (i == query.length()) {
+          throw new IllegalArgumentException(String.format(
+              "unterminated string at %d in: %s", start, query));
+        }
+        i++;
+        tokens.add(new Token(text.toString(), start, false, true));
+      } else {
+        int start = i;
+        while (i < query.length() && isWordCharacter(query.charAt(i))) {
+          i++;
+        }
+        if (i == start) {
+          throw new IllegalArgumentException(String.format(
+              "unexpected %c at %d in: %s", c, start, query));
+        }
+        tokens.add(new Token(query.substring(start, i), start, false, false));
+      }
+    }
+    return tokens;
+  }
+
+  private static boolean isWordCharacter(char c) {
+    return Character.isLetterOrDigit(c) || "_.:-".indexOf(c) >= 0;
+  }
+
+  private static class Token {
+    private final String text;
+    private final int offset;
+    private final boolean isSymbol;
+    private final boolean isQuoted;
+
+    private Token(String text, int offset, boolean isSymbol, boolean isQuoted) {
+      this.text = text;
+      this.offset = offset;
+      this.isSymbol = isSymbol;
+      this.isQuoted = isQuoted;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package com.codecademy.eventhub.query;
+
+import com.codecademy.eventhub.index.InvertedEventIndex;
+import com.codecademy.eventhub.index.InvertedUserIndex;
+
+import java.util.List;
+
+/**
+ * The plan QueryPlanner chose for a query: for each of its predicates, the access path its events
+ * or users are found through and the filter left to evaluate on them, along with the estimated
+ * number of rows it yields and the cost of getting them, see QueryPlanner for the cost model.
+ * The steps going through the inverted indices hold the index queries EventHub.query runs them
+ * with.
+ */
+public class QueryPlan {
+  private final QueryStatement statement;
+  private final String type;
+  private final List<Step> steps;
+
+  public QueryPlan(QueryStatement statement, String type, List<Step> steps) {
+    this.statement = statement;
+    this.type = type;
+    this.steps = steps;
+  }
+
+  public QueryStatement getStatement() {
+    return statement;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public List<Step> getSteps() {
+    return steps;
+  }
+
+  public long getEstimatedCost() {
+    long estimatedCost = 0;
+    for (Step step : steps) {
+      estimatedCost += step.estimatedCost;
+    }
+    return estimatedCost;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder plan = new StringBuilder(String.format("%s, estimated cost: %d",
+        type, getEstimatedCost()));
+    for (int i = 0; i < steps.size(); i++) {
+      Step step = steps.get(i);
+      plan.append(String.format("\n  %d. %s: %s", i + 1, step.predicate, step.accessPath.name));
+      if (step.residualFilter != null) {
+        plan.append(String.format(", then %s", step.residualFilter));
+      }
+      plan.append(String.format(", estimated rows: %d, estimated cost: %d", step.estimatedRows,
+          step.estimatedCost));
+    }
+    return plan.toString();
+  }
+
+  public enum AccessPath {
+    EVENT_INDEX("event index"),
+    INVERTED_INDEX("inverted event index"),
+    BLOOM_FILTER("bloom filters and event journal"),
+    JOURNAL_SCAN("event journal scan"),
+    ROLLUP("rollups"),
+    ACTIVE_USER_INDEX("active user bitmaps"),
+    USER_TIMELINES("user timelines"),
+    INVERTED_USER_INDEX("inverted user index"),
+    USER_JOURNAL("user journal");
+
+    private final String name;
+
+    AccessPath(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  public static class Step {
+    private final String predicate;
+    private final AccessPath accessPath;
+    // the query of INVERTED_INDEX steps, null otherwise
+    private final InvertedEventIndex.Query eventQuery;
+    // the query of INVERTED_USER_INDEX steps, null otherwise
+    private final InvertedUserIndex.Query userQuery;
+    // the part of the predicate the access path doesn't answer, null when there's none
+    private final String residualFilter;
+    private final long estimatedRows;
+    private final long estimatedCost;
+
+    public Step(String predicate, AccessPath accessPath, String residualFilter,
+        long estimatedRows, long estimatedCost) {
+      this(predicate, accessPath, null, null, residualFilter, estimatedRows, estimatedCost);
+    }
+
+    public Step(String predicate, InvertedEventIndex.Query eventQuery, String residualFilter,
+        long estimatedRows, long estimatedCost) {
+      this(predicate, AccessPath.INVERTED_INDEX, eventQuery, null, residualFilter, estimatedRows,
+          estimatedCost);
+    }
+
+    public Step(String predicate, InvertedUserIndex.Query userQuery, String residualFilter,
+        long estimatedRows, long estimatedCost) {
+      this(predicate, AccessPath.INVERTED_USER_INDEX, null, userQuery, residualFilter,
+          estimatedRows, estimatedCost);
+    }
+
+    private Step(String predicate, AccessPath accessPath, InvertedEventIndex.Query eventQuery,
+        InvertedUserIndex.Query userQuery, String residualFilter, long estimatedRows,
+        long estimatedCost) {
+      this.predicate = predicate;
+      this.accessPath = accessPath;
+      this.eventQuery = eventQuery;
+      this.userQuery = userQuery;
+      this.residualFilter = residualFilter;
+      this.estimatedRows = estimatedRows;
+      this.estimatedCost = estimatedCost;
+    }
+
+    public String getPredicate() {
+      return predicate;
+    }
+
+    public AccessPath getAccessPath() {
+      return accessPath;
+    }
+
+    public InvertedEventIndex.Query getEventQuery() {
+      return eventQuery;
+    }
+
+    public InvertedUserIndex.Query getUserQuery() {
+      return userQuery;
+    }
+
+    public String getResidualFilter() {
+      return residualFilter;
+    }
+
+    public long getEstimatedRows() {
+      return estimatedRows;
+    }
+
+    public long getEstimatedCost() {
+      return estimatedCost;
+    }
+  }
+}
@@ -0,0 +1,367 @@
+package com.codecademy.eventhub.query;
+
+import com.codecademy.eventhub.index.InvertedEventIndex;
+import com.codecademy.eventhub.index.InvertedUserIndex;
+import com.codecademy.eventhub.index.RollupIndex;
+import com.codecademy.eventhub.storage.EventStorage;
+import com.codecademy.eventhub.storage.UserStorage;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.Regex;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+import com.codecademy.eventhub.storage.visitor.Visitor;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import org.joda.time.DateTime;
+import org.joda.time.Days;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * QueryPlanner picks, for each predicate of a query, the access path EventHub finds its events or
+ * users through: the exact match terms are pushed down to the inverted indices when they cover
+ * them, the bloom filters of the events skip those which can't match the remaining terms, and the
+ * journals are read for the rest. EventHub.query runs the plan, with the index queries its steps
+ * were planned with.
+ *
+ * The cost of a step is the number of ids enumerated plus JOURNAL_READ_COST for each event or user
+ * read. The number of events of a type is taken from the rollups, as are the selectivities of the
+ * terms on keys with few enough values, the other terms are assumed to keep a fixed fraction of
+ * the events and the terms to be independent.
+ */
+public class QueryPlanner {
+  private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormat.forPattern("yyyyMMdd");
+  // the cost of reading an event or a user from its journal, relative to enumerating an id
+  private static final int JOURNAL_READ_COST = 10;
+  private static final double DEFAULT_EXACT_MATCH_SELECTIVITY = 0.1;
+  private static final double DEFAULT_REGEX_SELECTIVITY = 0.5;
+
+  private final InvertedEventIndex invertedEventIndex;
+  private final RollupIndex rollupIndex;
+  private final EventStorage eventStorage;
+  private final UserStorage userStorage;
+
+  public QueryPlanner(InvertedEventIndex invertedEventIndex, RollupIndex rollupIndex,
+      EventStorage eventStorage, UserStorage userStorage) {
+    this.invertedEventIndex = invertedEventIndex;
+    this.rollupIndex = rollupIndex;
+    this.eventStorage = eventStorage;
+    this.userStorage = userStorage;
+  }
+
+  public QueryPlan plan(QueryStatement statement) {
+    if (statement instanceof QueryStatement.Funnel) {
+      return new QueryPlan(statement, "funnel", planFunnel((QueryStatement.Funnel) statement));
+    } else if (statement instanceof QueryStatement.Cohort) {
+      return new QueryPlan(statement, "cohort", planCohort((QueryStatement.Cohort) statement));
+    } else if (statement instanceof QueryStatement.Segmentation) {
+      return new QueryPlan(statement, "segmentation",
+          planSegmentation((QueryStatement.Segmentation) statement));
+    } else if (statement instanceof QueryStatement.UserLookup) {
+      return new QueryPlan(statement, "users",
+          planUserLookup((QueryStatement.UserLookup) statement));
+    }
+    throw new IllegalArgumentException("unsupported query: " + statement);
+  }
+
+  // the first step is enumerated from the event indices, the users who did it are filtered and
+  // the remaining steps are looked for in their timelines
+  private List<QueryPlan.Step> planFunnel(QueryStatement.Funnel funnel) {
+    List<QueryPlan.Step> steps = Lists.newArrayList();
+    List<QueryStatement.EventPredicate> funnelSteps = funnel.getSteps();
+    QueryPlan.Step firstStep = planEvents(funnelSteps.get(0), funnel.getStartDate(),
+        funnel.getEndDate());
+    steps.add(firstStep);
+    long numUsers = Math.min(firstStep.getEstimatedRows(), userStorage.getNumRecords());
+    Filter userFilter = funnel.getUserFilter();
+    if (userFilter != TrueFilter.INSTANCE) {
+      long numFilteredUsers = Math.round(numUsers * getUserSelectivity(userFilter));
+      steps.add(new QueryPlan.Step("users " + describe(userFilter),
+          QueryPlan.AccessPath.USER_JOURNAL, null, numFilteredUsers, JOURNAL_READ_COST * numUsers));
+      numUsers = numFilteredUsers;
+    }
+    if (funnelSteps.size() == 1) {
+      return steps;
+    }
+
+    long numEventsPerUser =
+        Math.max(1, eventStorage.getNumRecords() / Math.max(1, userStorage.getNumRecords()));
+    steps.add(new QueryPlan.Step("timelines of the users of the first step",
+        QueryPlan.AccessPath.USER_TIMELINES, null, numUsers, numUsers * numEventsPerUser));
+    String lastDate = DATE_TIME_FORMATTER.parseDateTime(funnel.getEndDate())
+        .plusDays(funnel.getNumDaysToCompleteFunnel()).toString(DATE_TIME_FORMATTER);
+    for (QueryStatement.EventPredicate step : funnelSteps.subList(1, funnelSteps.size())) {
+      long numEvents = getNumEvents(step.getEventType(), funnel.getStartDate(), lastDate);
+      double selectivity = getSelectivity(step.getEventType(), step.getFilter(),
+          funnel.getStartDate(), lastDate, numEvents);
+      long numCandidates = Math.min(numUsers, numEvents);
+      boolean isFiltered = step.getFilter() != TrueFilter.INSTANCE;
+      numUsers = Math.round(numCandidates * selectivity);
+      steps.add(new QueryPlan.Step(describe(step), QueryPlan.AccessPath.USER_TIMELINES,
+          isFiltered ? describe(step.getFilter()) : null, numUsers,
+          isFiltered ? JOURNAL_READ_COST * numCandidates : 0));
+    }
+    return steps;
+  }
+
+  // the windows of the rows and the columns overlap by a day, see EventHub.getRetentionTable
+  private List<QueryPlan.Step> planCohort(QueryStatement.Cohort cohort) {
+    DateTime startDate = DATE_TIME_FORMATTER.parseDateTime(cohort.getStartDate());
+    int numDaysPerCohort = cohort.getNumDaysPerCohort();
+    int numRows = (Days.daysBetween(startDate, DATE_TIME_FORMATTER.parseDateTime(
+        cohort.getEndDate())).getDays() + 1) / numDaysPerCohort;
+    List<QueryPlan.Step> steps = Lists.newArrayList();
+    steps.add(planCohortEvents(cohort.getRow(), cohort.getStartDate(),
+        startDate.plusDays(numRows * numDaysPerCohort).toString(DATE_TIME_FORMATTER)));
+    steps.add(planCohortEvents(cohort.getColumn(), cohort.getStartDate(),
+        startDate.plusDays((numRows + cohort.getNumColumns()) * numDaysPerCohort)
+            .toString(DATE_TIME_FORMATTER)));
+    return steps;
+  }
+
+  // the users of unfiltered predicates are read from a bitmap per day, no event is read
+  private QueryPlan.Step planCohortEvents(QueryStatement.EventPredicate predicate,
+      String startDate, String endDate) {
+    if (predicate.getFilter() != TrueFilter.INSTANCE) {
+      return planEvents(predicate, startDate, endDate);
+    }
+    return new QueryPlan.Step(describe(predicate), QueryPlan.AccessPath.ACTIVE_USER_INDEX, null,
+        getNumEvents(predicate.getEventType(), startDate, endDate),
+        getNumDays(startDate, endDate));
+  }
+
+  private List<QueryPlan.Step> planSegmentation(QueryStatement.Segmentation segmentation) {
+    QueryStatement.EventPredicate event = segmentation.getEvent();
+    String startDate = segmentation.getStartDate();
+    String endDate = segmentation.getEndDate();
+    List<QueryPlan.Step> steps = Lists.newArrayList();
+    if (event.getFilter() != TrueFilter.INSTANCE) {
+      steps.add(planEvents(event, startDate, endDate));
+      return steps;
+    }
+    int numDays = getNumDays(startDate, endDate);
+    if (segmentation.getKey() == null) {
+      steps.add(new QueryPlan.Step(describe(event), QueryPlan.AccessPath.ROLLUP, null, numDays,
+          numDays));
+      return steps;
+    }
+    Map<String, int[]> counts = rollupIndex.getCounts(event.getEventType(),
+        segmentation.getKey(), startDate, endDate);
+    if (counts == null) {
+      throw new IllegalArgumentException(String.format(
+          "%s of %s has too many values to be rolled up", segmentation.getKey(),
+          event.getEventType()));
+    }
+    steps.add(new QueryPlan.Step(describe(event) + " by " + segmentation.getKey(),
+        QueryPlan.AccessPath.ROLLUP, null, (long) numDays * counts.size(), numDays));
+    return steps;
+  }
+
+  // users are read from their journal up to the limit, those not covered by the inverted user
+  // index are scanned in id order
+  private List<QueryPlan.Step> planUserLookup(QueryStatement.UserLookup userLookup) {
+    Filter filter = userLookup.getFilter();
+    int numUsers = userStorage.getNumRecords();
+    List<QueryPlan.Step> steps = Lists.newArrayList();
+    InvertedUserIndex.Query query =
+        filter == TrueFilter.INSTANCE ? null : userStorage.getIndexedQuery(filter);
+    if (query != null) {
+      long numCandidates = query.getUserIds().getCardinality();
+      Filter remainingFilter = query.getRemainingFilter();
+      boolean isComplete = remainingFilter == TrueFilter.INSTANCE;
+      long numMatchingUsers = isComplete ?
+          numCandidates : Math.round(numCandidates * getUserSelectivity(remainingFilter));
+      long numUsersRead = isComplete ? Math.min(userLookup.getLimit(), numCandidates) :
+          getNumScanned(numCandidates, numMatchingUsers, userLookup.getLimit());
+      steps.add(new QueryPlan.Step("users " + describe(filter), query,
+          isComplete ? null : describe(remainingFilter),
+          Math.min(userLookup.getLimit(), numMatchingUsers),
+          numCandidates + JOURNAL_READ_COST * numUsersRead));
+      return steps;
+    }
+    long numMatchingUsers = Math.round(numUsers * getUserSelectivity(filter));
+    steps.add(new QueryPlan.Step("users " + describe(filter), QueryPlan.AccessPath.USER_JOURNAL,
+        null, Math.min(userLookup.getLimit(), numMatchingUsers),
+        JOURNAL_READ_COST * getNumScanned(numUsers, numMatchingUsers, userLookup.getLimit())));
+    return steps;
+  }
+
+  // the events of the predicate within the dates, through the inverted index when it covers some
+  // of the terms as EventHub does, then through the bloom filters when there are exact matches
+  // left and by reading every event otherwise
+  private QueryPlan.Step planEvents(QueryStatement.EventPredicate predicate, String startDate,
+      String endDate) {
+    String eventType = predicate.getEventType();
+    Filter filter = predicate.getFilter();
+    long numEvents = getNumEvents(eventType, startDate, endDate);
+    if (filter == TrueFilter.INSTANCE) {
+      return new QueryPlan.Step(describe(predicate), QueryPlan.AccessPath.EVENT_INDEX, null,
+          numEvents, numEvents);
+    }
+    double selectivity = getSelectivity(eventType, filter, startDate, endDate, numEvents);
+    InvertedEventIndex.Query query = invertedEventIndex.getQuery(eventType, filter);
+    if (query != null) {
+      long numCandidates = invertedEventIndex.getNumMatchingEvents(query, startDate, endDate);
+      Filter remainingFilter = query.getRemainingFilter();
+      if (remainingFilter == TrueFilter.INSTANCE) {
+        return new QueryPlan.Step(describe(predicate), query, null, numCandidates,
+            numCandidates);
+      }
+      // the candidates already match the indexed terms, they're left out of the selectivity
+      double indexedSelectivity = numEvents == 0 ? 1 : (double) numCandidates / numEvents;
+      double remainingSelectivity = Math.min(1, selectivity / Math.max(indexedSelectivity, 1e-9));
+      return new QueryPlan.Step(describe(predicate), query, describe(remainingFilter),
+          Math.round(numCandidates * remainingSelectivity),
+          numCandidates + JOURNAL_READ_COST * Math.round(numCandidates
+              * Math.min(1, getExactMatchSelectivity(eventType, remainingFilter, startDate,
+                  endDate, numEvents) / Math.max(indexedSelectivity, 1e-9))));
+    }
+    double exactMatchSelectivity =
+        getExactMatchSelectivity(eventType, filter, startDate, endDate, numEvents);
+    boolean hasExactMatch = exactMatchSelectivity < 1;
+    return new QueryPlan.Step(describe(predicate),
+        hasExactMatch ? QueryPlan.AccessPath.BLOOM_FILTER : QueryPlan.AccessPath.JOURNAL_SCAN,
+        describe(filter), Math.round(numEvents * selectivity),
+        numEvents + JOURNAL_READ_COST * Math.round(numEvents * exactMatchSelectivity));
+  }
+
+  private long getNumEvents(String eventType, String startDate, String endDate) {
+    long numEvents = 0;
+    for (int count : rollupIndex.getCounts(eventType, startDate, endDate)) {
+      numEvents += count;
+    }
+    return numEvents;
+  }
+
+  // the fraction of the events of the type within the dates matching every term of the filter
+  private double getSelectivity(String eventType, Filter filter, String startDate,
+      String endDate, long numEvents) {
+    double selectivity = 1;
+    for (Filter term : getTerms(filter)) {
+      selectivity *= getTermSelectivity(eventType, term, startDate, endDate, numEvents);
+    }
+    return selectivity;
+  }
+
+  // the fraction of the events which pass the bloom filters, i.e. match the exact match terms
+  private double getExactMatchSelectivity(String eventType, Filter filter, String startDate,
+      String endDate, long numEvents) {
+    double selectivity = 1;
+    for (Filter term : getTerms(filter)) {
+      if (term instanceof ExactMatch) {
+        selectivity *= getTermSelectivity(eventType, term, startDate, endDate, numEvents);
+      }
+    }
+    return selectivity;
+  }
+
+  private double getTermSelectivity(String eventType, Filter term, String startDate,
+      String endDate, long numEvents) {
+    String key = term instanceof ExactMatch ?
+        ((ExactMatch) term).getKey() : ((Regex) term).getKey();
+    Map<String, int[]> counts = rollupIndex.getCounts(eventType, key, startDate, endDate);
+    if (counts == null || numEvents == 0) {
+      return term instanceof ExactMatch ?
+          DEFAULT_EXACT_MATCH_SELECTIVITY : DEFAULT_REGEX_SELECTIVITY;
+    }
+    long numMatchingEvents = 0;
+    for (Map.Entry<String, int[]> value : counts.entrySet()) {
+      if (term.accept(new ValueVisitor(value.getKey()))) {
+        for (int count : value.getValue()) {
+          numMatchingEvents += count;
+        }
+      }
+    }
+    return (double) numMatchingEvents / numEvents;
+  }
+
+  // exact when the inverted user index covers the filter, the defaults otherwise
+  private double getUserSelectivity(Filter filter) {
+    int numUsers = userStorage.getNumRecords();
+    InvertedUserIndex.Query query = userStorage.getIndexedQuery(filter);
+    double selectivity = 1;
+    if (query != null && numUsers > 0) {
+      selectivity = (double) query.getUserIds().getCardinality() / numUsers;
+      if (query.getRemainingFilter() == TrueFilter.INSTANCE) {
+        return selectivity;
+      }
+    }
+    for (Filter term : getTerms(filter)) {
+      selectivity *= term instanceof ExactMatch && query == null ?
+          DEFAULT_EXACT_MATCH_SELECTIVITY : term instanceof Regex ? DEFAULT_REGEX_SELECTIVITY : 1;
+    }
+    return selectivity;
+  }
+
+  // the number of users scanned in id order before the limit is reached
+  private static long getNumScanned(long numUsers, long numMatchingUsers, int limit) {
+    if (numMatchingUsers <= limit) {
+      return numUsers;
+    }
+    return Math.min(numUsers, Math.round((double) numUsers * limit / numMatchingUsers));
+  }
+
+  private static int getNumDays(String startDate, String endDate) {
+    return Days.daysBetween(DATE_TIME_FORMATTER.parseDateTime(startDate),
+        DATE_TIME_FORMATTER.parseDateTime(endDate)).getDays() + 1;
+  }
+
+  private static List<Filter> getTerms(Filter filter) {
+    final List<Filter> terms = Lists.newArrayList();
+    filter.accept(new Visitor() {
+      @Override
+      public boolean visit(ExactMatch exactMatch) {
+        terms.add(exactMatch);
+        return true;
+      }
+
+      @Override
+      public boolean visit(Regex regex) {
+        terms.add(regex);
+        return true;
+      }
+    });
+    return terms;
+  }
+
+  private static String describe(QueryStatement.EventPredicate predicate) {
+    return predicate.getFilter() == TrueFilter.INSTANCE ? predicate.getEventType() :
+        String.format("%s[%s]", predicate.getEventType(), describe(predicate.getFilter()));
+  }
+
+  private static String describe(Filter filter) {
+    List<String> terms = Lists.newArrayList();
+    for (Filter term : getTerms(filter)) {
+      if (term instanceof ExactMatch) {
+        terms.add(String.format("%s = \"%s\"", ((ExactMatch) term).getKey(),
+            ((ExactMatch) term).getValue()));
+      } else {
+        terms.add(String.format("%s ~ \"%s\"", ((Regex) term).getKey(),
+            ((Regex) term).getPattern().pattern()));
+      }
+    }
+    return Joiner.on(" and ").join(terms);
+  }
+
+  // matches a term against a single value of its key
+  private static class ValueVisitor implements Visitor {
+    private final String value;
+
+    private ValueVisitor(String value) {
+      this.value = value;
+    }
+
+    @Override
+    public boolean visit(ExactMatch exactMatch) {
+      return exactMatch.getValue().equals(value);
+    }
+
+    @Override
+    public boolean visit(Regex regex) {
+      return regex.getPattern().matcher(value).matches();
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package com.codecademy.eventhub.query;
+
+import com.codecademy.eventhub.storage.filter.Filter;
+
+import java.util.List;
+
+/**
+ * A query parsed by QueryParser, planned by QueryPlanner and run by EventHub.query. The filters
+ * are conjunctions of ExactMatch and Regex terms, TrueFilter when there is none.
+ */
+public abstract class QueryStatement {
+  // an event type along with the filter its events have to match
+  public static class EventPredicate {
+    private final String eventType;
+    private final Filter filter;
+
+    public EventPredicate(String eventType, Filter filter) {
+      this.eventType = eventType;
+      this.filter = filter;
+    }
+
+    public String getEventType() {
+      return eventType;
+    }
+
+    public Filter getFilter() {
+      return filter;
+    }
+  }
+
+  // FUNNEL step, step... FROM date TO date WITHIN n DAYS [WHERE user predicate]
+  public static class Funnel extends QueryStatement {
+    private final List<EventPredicate> steps;
+    private final String startDate;
+    private final String endDate;
+    private final int numDaysToCompleteFunnel;
+    private final Filter userFilter;
+
+    public Funnel(List<EventPredicate> steps, String startDate, String endDate,
+        int numDaysToCompleteFunnel, Filter userFilter) {
+      this.steps = steps;
+      this.startDate = startDate;
+      this.endDate = endDate;
+      this.numDaysToCompleteFunnel = numDaysToCompleteFunnel;
+      this.userFilter = userFilter;
+    }
+
+    public List<EventPredicate> getSteps() {
+      return steps;
+    }
+
+    public String getStartDate() {
+      return startDate;
+    }
+
+    public String getEndDate() {
+      return endDate;
+    }
+
+    public int getNumDaysToCompleteFunnel() {
+      return numDaysToCompleteFunnel;
+    }
+
+    public Filter getUserFilter() {
+      return userFilter;
+    }
+  }
+
+  // COHORT row step THEN column step FROM date TO date EVERY n DAYS COLUMNS n
+  public static class Cohort extends QueryStatement {
+    private final EventPredicate row;
+    private final EventPredicate column;
+    private final String startDate;
+    private final String endDate;
+    private final int numDaysPerCohort;
+    private final int numColumns;
+
+    public Cohort(EventPredicate row, EventPredicate column, String startDate, String endDate,
+        int numDaysPerCohort, int numColumns) {
+      this.row = row;
+      this.column = column;
+      this.startDate = startDate;
+      this.endDate = endDate;
+      this.numDaysPerCohort = numDaysPerCohort;
+      this.numColumns = numColumns;
+    }
+
+    public EventPredicate getRow() {
+      return row;
+    }
+
+    public EventPredicate getColumn() {
+      return column;
+    }
+
+    public String getStartDate() {
+      return startDate;
+    }
+
+    public String getEndDate() {
+      return endDate;
+    }
+
+    public int getNumDaysPerCohort() {
+      return numDaysPerCohort;
+    }
+
+    public int getNumColumns() {
+      return numColumns;
+    }
+  }
+
+  // COUNT step FROM date TO date [BY key], the key is null when the counts aren't broken down
+  public static class Segmentation extends QueryStatement {
+    private final EventPredicate event;
+    private final String startDate;
+    private final String endDate;
+    private final String key;
+
+    public Segmentation(EventPredicate event, String startDate, String endDate, String key) {
+      this.event = event;
+      this.startDate = startDate;
+      this.endDate = endDate;
+      this.key = key;
+    }
+
+    public EventPredicate getEvent() {
+      return event;
+    }
+
+    public String getStartDate() {
+      return startDate;
+    }
+
+    public String getEndDate() {
+      return endDate;
+    }
+
+    public String getKey() {
+      return key;
+    }
+  }
+
+  // USERS [WHERE user predicate] [LIMIT n]
+  public static class UserLookup extends QueryStatement {
+    private final Filter filter;
+    private final int limit;
+
+    public UserLookup(Filter filter, int limit) {
+      this.filter = filter;
+      this.limit = limit;
+    }
+
+    public Filter getFilter() {
+      return filter;
+    }
+
+    public int getLimit() {
+      return limit;
+    }
+  }
+}
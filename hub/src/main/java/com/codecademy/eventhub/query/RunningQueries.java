@@ -0,0 +1,88 @@
+package com.codecademy.eventhub.query;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RunningQueries registers the queries being run so that they can be listed along with their
+ * progress and cancelled, e.g.
+ *   try (RunningQueries.Query query = runningQueries.start("funnel ...", deadlineMillis)) { ... }
+ * A query runs until its deadline, no later than maxDeadlineMillis after it started.
+ */
+public class RunningQueries {
+  private final long maxDeadlineMillis;
+  private final AtomicLong nextId;
+  private final ConcurrentMap<Long, QueryContext> queries;
+  private final AtomicLong numQueries;
+  private final AtomicLong numCancelledQueries;
+
+  public RunningQueries(long maxDeadlineMillis) {
+    this.maxDeadlineMillis = maxDeadlineMillis;
+    this.nextId = new AtomicLong(1);
+    this.queries = Maps.newConcurrentMap();
+    this.numQueries = new AtomicLong();
+    this.numCancelledQueries = new AtomicLong();
+  }
+
+  // starts a query on the current thread, with the max deadline when none is given
+  public Query start(String description, long deadlineMillis) {
+    long timeoutMillis = deadlineMillis > 0 ?
+        Math.min(deadlineMillis, maxDeadlineMillis) : maxDeadlineMillis;
+    QueryContext context = new QueryContext(nextId.getAndIncrement(), description,
+        System.currentTimeMillis() + timeoutMillis);
+    queries.put(context.getId(), context);
+    numQueries.incrementAndGet();
+    return new Query(context, context.enter());
+  }
+
+  public List<QueryContext.Progress> getProgresses() {
+    List<QueryContext.Progress> progresses = Lists.newArrayList();
+    for (QueryContext context : queries.values()) {
+      progresses.add(context.getProgress());
+    }
+    return progresses;
+  }
+
+  public void cancel(long id) {
+    QueryContext context = queries.get(id);
+    if (context == null) {
+      throw new IllegalArgumentException("no such running query: " + id);
+    }
+    context.cancel();
+    numCancelledQueries.incrementAndGet();
+  }
+
+  public String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    return String.format(
+        indent + "max deadline: %d ms\n" +
+        indent + "num running queries: %d\n" +
+        indent + "num queries: %d\n" +
+        indent + "num cancelled queries: %d",
+        maxDeadlineMillis, queries.size(), numQueries.get(), numCancelledQueries.get());
+  }
+
+  public class Query implements AutoCloseable {
+    private final QueryContext context;
+    private final QueryContext.Scope scope;
+
+    private Query(QueryContext context, QueryContext.Scope scope) {
+      this.context = context;
+      this.scope = scope;
+    }
+
+    public QueryContext getContext() {
+      return context;
+    }
+
+    @Override
+    public void close() {
+      scope.close();
+      queries.remove(context.getId());
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package com.codecademy.eventhub.query;
+
+import com.codecademy.eventhub.base.Bitmap;
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.filter.CompiledFilter;
+import com.codecademy.eventhub.storage.filter.Filter;
+import org.joda.time.DateTime;
+import org.joda.time.Days;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * StandingCohort keeps the retention table of EventHub.getRetentionTable along with the users of
+ * each row and column window. A user joining a window only updates the cells of that window, so
+ * an event costs at most numColumns bitmap lookups per window it falls in.
+ */
+public class StandingCohort extends StandingQuery {
+  private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormat.forPattern("yyyyMMdd");
+
+  private final String startDate;
+  private final int numDaysPerCohort;
+  private final int numColumns;
+  private final String rowEventType;
+  private final String columnEventType;
+  private final Filter rowEventFilter;
+  private final Filter columnEventFilter;
+  private final CompiledFilter compiledRowEventFilter;
+  private final CompiledFilter compiledColumnEventFilter;
+  private final DateTime startDateTime;
+  private final Bitmap[] rowUserIds;
+  private final Bitmap[] columnUserIds;
+  private final int[][] retentionTable;
+
+  public StandingCohort(String startDate, String endDate, int numDaysPerCohort, int numColumns,
+      String rowEventType, String columnEventType, Filter rowEventFilter,
+      Filter columnEventFilter) {
+    this(startDate, numDaysPerCohort, numColumns, rowEventType, columnEventType, rowEventFilter,
+        columnEventFilter, getNumRows(startDate, endDate, numDaysPerCohort));
+  }
+
+  private StandingCohort(String startDate, int numDaysPerCohort, int numColumns,
+      String rowEventType, String columnEventType, Filter rowEventFilter, Filter columnEventFilter,
+      int numRows) {
+    this.startDate = startDate;
+    this.numDaysPerCohort = numDaysPerCohort;
+    this.numColumns = numColumns;
+    this.rowEventType = rowEventType;
+    this.columnEventType = columnEventType;
+    this.rowEventFilter = rowEventFilter;
+    this.columnEventFilter = columnEventFilter;
+    this.compiledRowEventFilter = CompiledFilter.compile(rowEventFilter);
+    this.compiledColumnEventFilter = CompiledFilter.compile(columnEventFilter);
+    this.startDateTime = DATE_TIME_FORMATTER.parseDateTime(startDate);
+    this.rowUserIds = newBitmaps(numRows);
+    this.columnUserIds = newBitmaps(numRows + numColumns);
+    this.retentionTable = new int[numRows][numColumns + 1];
+  }
+
+  public String getStartDate() {
+    return startDate;
+  }
+
+  // the last date of the last column window
+  public String getLastDate() {
+    return DATE_TIME_FORMATTER.print(
+        startDateTime.plusDays(columnUserIds.length * numDaysPerCohort));
+  }
+
+  public String getRowEventType() {
+    return rowEventType;
+  }
+
+  public String getColumnEventType() {
+    return columnEventType;
+  }
+
+  @Override
+  public void addEvent(long eventId, Event event, int userId, String indexedDate) {
+    boolean isRowEvent = event.getEventType().equals(rowEventType);
+    boolean isColumnEvent = event.getEventType().equals(columnEventType);
+    if (!isRowEvent && !isColumnEvent) {
+      return;
+    }
+    int day = Days.daysBetween(startDateTime, DATE_TIME_FORMATTER.parseDateTime(event.getDate()))
+        .getDays();
+    if (day < 0) {
+      return;
+    }
+    // windows share their boundary day, as in getRetentionTable
+    int lastWindow = day / numDaysPerCohort;
+    int firstWindow = day % numDaysPerCohort == 0 ? lastWindow - 1 : lastWindow;
+    for (int window = Math.max(0, firstWindow); window <= lastWindow; window++) {
+      if (isRowEvent && window < rowUserIds.length && !rowUserIds[window].contains(userId)
+          && event.matches(compiledRowEventFilter)) {
+        addRowUser(window, userId);
+      }
+      if (isColumnEvent && window < columnUserIds.length
+          && !columnUserIds[window].contains(userId)
+          && event.matches(compiledColumnEventFilter)) {
+        addColumnUser(window, userId);
+      }
+    }
+  }
+
+  @Override
+  public int[][] getResult() {
+    int[][] result = new int[retentionTable.length][];
+    for (int i = 0; i < retentionTable.length; i++) {
+      result[i] = retentionTable[i].clone();
+    }
+    return result;
+  }
+
+  @Override
+  public long getSizeInBytes() {
+    long sizeInBytes = 4L * retentionTable.length * (numColumns + 1);
+    for (Bitmap bitmap : rowUserIds) {
+      sizeInBytes += bitmap.getSizeInBytes();
+    }
+    for (Bitmap bitmap : columnUserIds) {
+      sizeInBytes += bitmap.getSizeInBytes();
+    }
+    return sizeInBytes;
+  }
+
+  @Override
+  protected void writeTo(DataOutput output) throws IOException {
+    output.writeUTF(startDate);
+    output.writeInt(numDaysPerCohort);
+    output.writeInt(numColumns);
+    output.writeUTF(rowEventType);
+    output.writeUTF(columnEventType);
+    writeFilter(output, rowEventFilter);
+    writeFilter(output, columnEventFilter);
+    output.writeInt(rowUserIds.length);
+    for (Bitmap bitmap : rowUserIds) {
+      bitmap.writeTo(output);
+    }
+    for (Bitmap bitmap : columnUserIds) {
+      bitmap.writeTo(output);
+    }
+    for (int[] row : retentionTable) {
+      for (int cell : row) {
+        output.writeInt(cell);
+      }
+    }
+  }
+
+  static StandingCohort readFrom(DataInput input) throws IOException {
+    StandingCohort cohort = new StandingCohort(input.readUTF(), input.readInt(), input.readInt(),
+        input.readUTF(), input.readUTF(), readFilter(input), readFilter(input), input.readInt());
+    for (int i = 0; i < cohort.rowUserIds.length; i++) {
+      cohort.rowUserIds[i] = Bitmap.readFrom(input);
+    }
+    for (int i = 0; i < cohort.columnUserIds.length; i++) {
+      cohort.columnUserIds[i] = Bitmap.readFrom(input);
+    }
+    for (int[] row : cohort.retentionTable) {
+      for (int j = 0; j < row.length; j++) {
+        row[j] = input.readInt();
+      }
+    }
+    return cohort;
+  }
+
+  private void addRowUser(int row, int userId) {
+    rowUserIds[row].add(userId);
+    retentionTable[row][0]++;
+    for (int j = 0; j < numColumns; j++) {
+      if (columnUserIds[row + j].contains(userId)) {
+        retentionTable[row][j + 1]++;
+      }
+    }
+  }
+
+  private void addColumnUser(int column, int userId) {
+    columnUserIds[column].add(userId);
+    for (int j = 0; j < numColumns; j++) {
+      int row = column - j;
+      if (row >= 0 && row < rowUserIds.length && rowUserIds[row].contains(userId)) {
+        retentionTable[row][j + 1]++;
+      }
+    }
+  }
+
+  private static int getNumRows(String startDate, String endDate, int numDaysPerCohort) {
+    return (Days.daysBetween(DATE_TIME_FORMATTER.parseDateTime(startDate),
+        DATE_TIME_FORMATTER.parseDateTime(endDate)).getDays() + 1) / numDaysPerCohort;
+  }
+
+  private static Bitmap[] newBitmaps(int n) {
+    Bitmap[] bitmaps = new Bitmap[n];
+    for (int i = 0; i < n; i++) {
+      bitmaps[i] = new Bitmap();
+    }
+    return bitmaps;
+  }
+}
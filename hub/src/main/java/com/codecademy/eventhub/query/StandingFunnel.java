@@ -0,0 +1,176 @@
+package com.codecademy.eventhub.query;
+
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.filter.CompiledFilter;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.google.common.collect.Lists;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * StandingFunnel counts the users who did each step of a funnel as EventHub.getFunnelCounts does,
+ * without a user filter, keeping for each user the number of steps matched and the date before
+ * which the remaining steps have to be done, i.e. 5 bytes per user.
+ */
+public class StandingFunnel extends StandingQuery {
+  private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormat.forPattern("yyyyMMdd");
+  private static final int MIN_CAPACITY = 1024;
+
+  private final String startDate;
+  private final String endDate;
+  private final String[] funnelStepsEventTypes;
+  private final int numDaysToCompleteFunnel;
+  private final List<Filter> eventFilters;
+  private final CompiledFilter[] compiledEventFilters;
+  private final int[] funnelCounts;
+  // by user id, the deadline as yyyyMMdd, only set once the first step is matched
+  private int[] deadlines;
+  private byte[] numMatchedSteps;
+
+  public StandingFunnel(String startDate, String endDate, String[] funnelStepsEventTypes,
+      int numDaysToCompleteFunnel, List<Filter> eventFilters) {
+    this(startDate, endDate, funnelStepsEventTypes, numDaysToCompleteFunnel, eventFilters,
+        new int[funnelStepsEventTypes.length], new int[MIN_CAPACITY], new byte[MIN_CAPACITY]);
+  }
+
+  private StandingFunnel(String startDate, String endDate, String[] funnelStepsEventTypes,
+      int numDaysToCompleteFunnel, List<Filter> eventFilters, int[] funnelCounts, int[] deadlines,
+      byte[] numMatchedSteps) {
+    if (funnelStepsEventTypes.length > Byte.MAX_VALUE) {
+      throw new IllegalArgumentException("too many funnel steps: " + funnelStepsEventTypes.length);
+    }
+    this.startDate = startDate;
+    this.endDate = endDate;
+    this.funnelStepsEventTypes = funnelStepsEventTypes;
+    this.numDaysToCompleteFunnel = numDaysToCompleteFunnel;
+    this.eventFilters = eventFilters;
+    this.compiledEventFilters = new CompiledFilter[eventFilters.size()];
+    for (int i = 0; i < compiledEventFilters.length; i++) {
+      compiledEventFilters[i] = CompiledFilter.compile(eventFilters.get(i));
+    }
+    this.funnelCounts = funnelCounts;
+    this.deadlines = deadlines;
+    this.numMatchedSteps = numMatchedSteps;
+  }
+
+  public String getStartDate() {
+    return startDate;
+  }
+
+  public String getEndDate() {
+    return endDate;
+  }
+
+  public String[] getFunnelStepsEventTypes() {
+    return funnelStepsEventTypes;
+  }
+
+  public List<Filter> getEventFilters() {
+    return eventFilters;
+  }
+
+  @Override
+  public void addEvent(long eventId, Event event, int userId, String indexedDate) {
+    ensureCapacity(userId);
+    int numMatched = numMatchedSteps[userId];
+    if (numMatched == funnelStepsEventTypes.length) {
+      return;
+    }
+    if (numMatched == 0) {
+      if (!event.getEventType().equals(funnelStepsEventTypes[0])
+          || event.getDate().compareTo(startDate) < 0 || event.getDate().compareTo(endDate) > 0
+          || !event.matches(compiledEventFilters[0])) {
+        return;
+      }
+      numMatched = 1;
+      funnelCounts[0]++;
+      deadlines[userId] = Integer.parseInt(DATE_TIME_FORMATTER.print(
+          DATE_TIME_FORMATTER.parseDateTime(indexedDate).plusDays(numDaysToCompleteFunnel)));
+    }
+    // the event of the first step is also checked against the second one, as getFunnelCounts
+    // walks the events of the user from the first step on
+    if (numMatched < funnelStepsEventTypes.length
+        && Integer.parseInt(indexedDate) < deadlines[userId]
+        && event.getEventType().equals(funnelStepsEventTypes[numMatched])
+        && event.matches(compiledEventFilters[numMatched])) {
+      funnelCounts[numMatched]++;
+      numMatched++;
+    }
+    numMatchedSteps[userId] = (byte) numMatched;
+  }
+
+  // whether the later events of the user can't change the result anymore
+  public boolean isDone(int userId, String indexedDate) {
+    if (userId >= numMatchedSteps.length || numMatchedSteps[userId] == 0) {
+      return false;
+    }
+    return numMatchedSteps[userId] == funnelStepsEventTypes.length
+        || Integer.parseInt(indexedDate) >= deadlines[userId];
+  }
+
+  @Override
+  public int[] getResult() {
+    return funnelCounts.clone();
+  }
+
+  @Override
+  public long getSizeInBytes() {
+    return 4L * deadlines.length + numMatchedSteps.length;
+  }
+
+  @Override
+  protected void writeTo(DataOutput output) throws IOException {
+    output.writeUTF(startDate);
+    output.writeUTF(endDate);
+    output.writeInt(funnelStepsEventTypes.length);
+    for (int i = 0; i < funnelStepsEventTypes.length; i++) {
+      output.writeUTF(funnelStepsEventTypes[i]);
+      writeFilter(output, eventFilters.get(i));
+      output.writeInt(funnelCounts[i]);
+    }
+    output.writeInt(numDaysToCompleteFunnel);
+    output.writeInt(deadlines.length);
+    for (int i = 0; i < deadlines.length; i++) {
+      output.writeInt(deadlines[i]);
+    }
+    output.write(numMatchedSteps);
+  }
+
+  static StandingFunnel readFrom(DataInput input) throws IOException {
+    String startDate = input.readUTF();
+    String endDate = input.readUTF();
+    int numSteps = input.readInt();
+    String[] funnelStepsEventTypes = new String[numSteps];
+    List<Filter> eventFilters = Lists.newArrayListWithCapacity(numSteps);
+    int[] funnelCounts = new int[numSteps];
+    for (int i = 0; i < numSteps; i++) {
+      funnelStepsEventTypes[i] = input.readUTF();
+      eventFilters.add(readFilter(input));
+      funnelCounts[i] = input.readInt();
+    }
+    int numDaysToCompleteFunnel = input.readInt();
+    int[] deadlines = new int[input.readInt()];
+    for (int i = 0; i < deadlines.length; i++) {
+      deadlines[i] = input.readInt();
+    }
+    byte[] numMatchedSteps = new byte[deadlines.length];
+    input.readFully(numMatchedSteps);
+    return new StandingFunnel(startDate, endDate, funnelStepsEventTypes, numDaysToCompleteFunnel,
+        eventFilters, funnelCounts, deadlines, numMatchedSteps);
+  }
+
+  private void ensureCapacity(int userId) {
+    if (userId < deadlines.length) {
+      return;
+    }
+    int capacity = Math.max(userId + 1, deadlines.length * 2);
+    deadlines = Arrays.copyOf(deadlines, capacity);
+    numMatchedSteps = Arrays.copyOf(numMatchedSteps, capacity);
+  }
+}
@@ -0,0 +1,168 @@
+package com.codecademy.eventhub.query;
+
+import com.codecademy.eventhub.model.Event;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * StandingQueries keeps the standing queries by name, each persisted in its own file along with
+ * the number of events it has seen. A query is written when it is added and on close, and the
+ * events added since are seen again at startup, see EventHub.
+ *
+ * Funnels assume the events come in date order, as DatedEventIndex does: an event dated before
+ * the first step of a user is not counted.
+ */
+public class StandingQueries implements Closeable {
+  private static final int VERSION = 1;
+  private static final byte FUNNEL = 1;
+  private static final byte COHORT = 2;
+
+  private final String directory;
+  private final Map<String, StandingQuery> queries;
+
+  public StandingQueries(String directory, Map<String, StandingQuery> queries) {
+    this.directory = directory;
+    this.queries = queries;
+  }
+
+  // the number of events seen by every query
+  public synchronized long getNumIndexedEvents() {
+    long numIndexedEvents = Long.MAX_VALUE;
+    for (StandingQuery query : queries.values()) {
+      numIndexedEvents = Math.min(numIndexedEvents, query.getNumIndexedEvents());
+    }
+    return numIndexedEvents;
+  }
+
+  public synchronized void addEvent(long eventId, Event event, int userId, String indexedDate) {
+    for (StandingQuery query : queries.values()) {
+      if (eventId < query.getNumIndexedEvents()) {
+        continue;
+      }
+      query.addEvent(eventId, event, userId, indexedDate);
+      query.setNumIndexedEvents(eventId + 1);
+    }
+  }
+
+  // the query is expected to have seen the events before numIndexedEvents
+  public synchronized void add(String name, StandingQuery query, long numIndexedEvents) {
+    if (!name.matches("[A-Za-z0-9_-]+")) {
+      throw new IllegalArgumentException("invalid standing query name: " + name);
+    }
+    if (queries.containsKey(name)) {
+      throw new IllegalArgumentException("standing query already exists: " + name);
+    }
+    query.setNumIndexedEvents(numIndexedEvents);
+    try {
+      write(name, query);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    queries.put(name, query);
+  }
+
+  public synchronized void remove(String name) {
+    if (queries.remove(name) == null) {
+      throw new IllegalArgumentException("no such standing query: " + name);
+    }
+    //noinspection ResultOfMethodCallIgnored
+    getFile(directory, name).delete();
+  }
+
+  public synchronized Object getResult(String name) {
+    StandingQuery query = queries.get(name);
+    if (query == null) {
+      throw new IllegalArgumentException("no such standing query: " + name);
+    }
+    return query.getResult();
+  }
+
+  public synchronized List<String> getNames() {
+    List<String> names = Lists.newArrayList(queries.keySet());
+    Collections.sort(names);
+    return names;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (Map.Entry<String, StandingQuery> query : queries.entrySet()) {
+      write(query.getKey(), query.getValue());
+    }
+  }
+
+  public synchronized String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    StringBuilder varz = new StringBuilder(String.format(
+        indent + "directory: %s\n" +
+        indent + "num queries: %d",
+        directory, queries.size()));
+    for (String name : getNames()) {
+      StandingQuery query = queries.get(name);
+      varz.append(String.format("\n" + indent + "%s: %s, %d events, %d bytes", name,
+          query.getClass().getSimpleName(), query.getNumIndexedEvents(), query.getSizeInBytes()));
+    }
+    return varz.toString();
+  }
+
+  private void write(String name, StandingQuery query) throws IOException {
+    //noinspection ResultOfMethodCallIgnored
+    new File(directory).mkdirs();
+    File file = getFile(directory, name);
+    File newFile = new File(file.getPath() + ".new");
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      output.writeInt(VERSION);
+      output.writeByte(query instanceof StandingFunnel ? FUNNEL : COHORT);
+      output.writeLong(query.getNumIndexedEvents());
+      query.writeTo(output);
+    }
+    Files.move(newFile, file);
+  }
+
+  public static StandingQueries build(String directory) {
+    Map<String, StandingQuery> queries = Maps.newHashMap();
+    File[] files = new File(directory).listFiles();
+    try {
+      for (File file : files == null ? new File[0] : files) {
+        if (!file.getName().endsWith(".ser")) {
+          continue;
+        }
+        try (DataInputStream input = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)))) {
+          int version = input.readInt();
+          if (version != VERSION) {
+            throw new IllegalStateException("unsupported standing query version " + version);
+          }
+          byte type = input.readByte();
+          long numIndexedEvents = input.readLong();
+          StandingQuery query = type == FUNNEL ?
+              StandingFunnel.readFrom(input) : StandingCohort.readFrom(input);
+          query.setNumIndexedEvents(numIndexedEvents);
+          queries.put(file.getName().substring(0, file.getName().length() - ".ser".length()),
+              query);
+        }
+      }
+      return new StandingQueries(directory, queries);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static File getFile(String directory, String name) {
+    return new File(String.format("%s/%s.ser", directory, name));
+  }
+}
@@ -0,0 +1,91 @@
+package com.codecademy.eventhub.query;
+
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.filter.And;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.Regex;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+import com.google.common.collect.Lists;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A query whose result is kept up to date as the events are added, rather than computed when
+ * read. Events are expected in the order they were added, see StandingQueries.
+ */
+public abstract class StandingQuery {
+  private static final byte TRUE_FILTER = 0;
+  private static final byte AND = 1;
+  private static final byte EXACT_MATCH = 2;
+  private static final byte REGEX = 3;
+
+  private long numIndexedEvents;
+
+  // indexedDate is the date the event was indexed under in DatedEventIndex
+  public abstract void addEvent(long eventId, Event event, int userId, String indexedDate);
+
+  // a copy of the current result
+  public abstract Object getResult();
+
+  public abstract long getSizeInBytes();
+
+  protected abstract void writeTo(DataOutput output) throws IOException;
+
+  public long getNumIndexedEvents() {
+    return numIndexedEvents;
+  }
+
+  void setNumIndexedEvents(long numIndexedEvents) {
+    this.numIndexedEvents = numIndexedEvents;
+  }
+
+  protected static void writeFilter(DataOutput output, Filter filter) throws IOException {
+    if (filter == TrueFilter.INSTANCE) {
+      output.writeByte(TRUE_FILTER);
+    } else if (filter instanceof And) {
+      List<Filter> filters = ((And) filter).getFilters();
+      output.writeByte(AND);
+      output.writeInt(filters.size());
+      for (Filter child : filters) {
+        writeFilter(output, child);
+      }
+    } else if (filter instanceof ExactMatch) {
+      output.writeByte(EXACT_MATCH);
+      output.writeUTF(((ExactMatch) filter).getKey());
+      output.writeUTF(((ExactMatch) filter).getValue());
+    } else if (filter instanceof Regex) {
+      output.writeByte(REGEX);
+      output.writeUTF(((Regex) filter).getKey());
+      output.writeUTF(((Regex) filter).getPattern().pattern());
+      output.writeInt(((Regex) filter).getPattern().flags());
+    } else {
+      throw new IllegalArgumentException("unsupported filter " + filter.getClass());
+    }
+  }
+
+  protected static Filter readFilter(DataInput input) throws IOException {
+    byte type = input.readByte();
+    switch (type) {
+      case TRUE_FILTER:
+        return TrueFilter.INSTANCE;
+      case AND:
+        int numFilters = input.readInt();
+        List<Filter> filters = Lists.newArrayListWithCapacity(numFilters);
+        for (int i = 0; i < numFilters; i++) {
+          filters.add(readFilter(input));
+        }
+        return new And(filters);
+      case EXACT_MATCH:
+        return new ExactMatch(input.readUTF(), input.readUTF());
+      case REGEX:
+        return new Regex(input.readUTF(), Pattern.compile(input.readUTF(), input.readInt()));
+      default:
+        throw new IllegalStateException("unsupported filter type " + type);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package com.codecademy.eventhub.query;
+
+/**
+ * UserSample keeps the users whose hashed id falls in a fixed fraction of the hash range, so the
+ * same users are kept by every query of the same fraction and a sample of a smaller fraction is a
+ * subset of one of a larger fraction. A count over the sample is scaled back by the fraction,
+ * along with the 95% confidence interval of the binomial sampling of the users.
+ */
+public class UserSample {
+  public static final UserSample ALL = new UserSample(1.0);
+  private static final double Z_95 = 1.96;
+
+  private final double fraction;
+  private final long threshold;
+
+  public UserSample(double fraction) {
+    if (!(fraction > 0 && fraction <= 1)) {
+      throw new IllegalArgumentException("sample fraction not in (0, 1]: " + fraction);
+    }
+    this.fraction = fraction;
+    this.threshold = (long) (fraction * (1L << 53));
+  }
+
+  public double getFraction() {
+    return fraction;
+  }
+
+  public boolean isAll() {
+    return fraction == 1.0;
+  }
+
+  public boolean contains(int userId) {
+    return isAll() || (hash(userId) >>> 11) < threshold;
+  }
+
+  public Estimate estimate(int sampledCount) {
+    if (isAll()) {
+      return new Estimate(sampledCount, sampledCount, sampledCount);
+    }
+    double count = sampledCount / fraction;
+    double margin = Z_95 * Math.sqrt(sampledCount * (1 - fraction)) / fraction;
+    return new Estimate(Math.round(count), Math.max(sampledCount, Math.round(count - margin)),
+        Math.round(count + margin));
+  }
+
+  public Estimate[] estimate(int[] sampledCounts) {
+    Estimate[] estimates = new Estimate[sampledCounts.length];
+    for (int i = 0; i < sampledCounts.length; i++) {
+      estimates[i] = estimate(sampledCounts[i]);
+    }
+    return estimates;
+  }
+
+  public Estimate[][] estimate(int[][] sampledCounts) {
+    Estimate[][] estimates = new Estimate[sampledCounts.length][];
+    for (int i = 0; i < sampledCounts.length; i++) {
+      estimates[i] = estimate(sampledCounts[i]);
+    }
+    return estimates;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof UserSample && ((UserSample) o).fraction == fraction;
+  }
+
+  @Override
+  public int hashCode() {
+    return Double.valueOf(fraction).hashCode();
+  }
+
+  // the finalizer of MurmurHash3, as in HyperLogLog, with a different offset so that samples
+  // aren't correlated with the sketch registers
+  private static long hash(int userId) {
+    long hash = (userId & 0xFFFFFFFFL) + 0xC2B2AE3D27D4EB4FL;
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  // a count scaled back from a sample, with the bounds of its 95% confidence interval
+  public static class Estimate {
+    private final long count;
+    private final long lowerBound;
+    private final long upperBound;
+
+    public Estimate(long count, long lowerBound, long upperBound) {
+      this.count = count;
+      this.lowerBound = lowerBound;
+      this.upperBound = upperBound;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getLowerBound() {
+      return lowerBound;
+    }
+
+    public long getUpperBound() {
+      return upperBound;
+    }
+  }
+}
@@ -1,6 +1,9 @@
 package com.codecademy.eventhub.storage;
 
+import com.codecademy.eventhub.base.BlockedBloomFilter;
 import com.codecademy.eventhub.storage.filter.ExactMatch;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
 import com.codecademy.eventhub.base.BloomFilter;
 import com.codecademy.eventhub.base.KeyValueCallback;
 import com.codecademy.eventhub.list.DmaList;
@@ -8,35 +11,113 @@ import com.codecademy.eventhub.model.Event;
 import com.codecademy.eventhub.storage.filter.Regex;
 import com.codecademy.eventhub.storage.visitor.DelayedVisitorProxy;
 import com.codecademy.eventhub.storage.visitor.Visitor;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 
 import javax.inject.Provider;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Events are added with a blocked bloom filter sized for their event type: as many blocks as
+ * numBitsPerProperty bits for the mean number of properties of the events of that type take, and
+ * at least as many as the event itself needs. The location, size and number of hashes of each
+ * filter are stored alongside, so filter sizes can change over time.
+ *
+ * The statistics of each event type are persisted on close, and those of the filters added since,
+ * e.g. before a crash, are read back from their locations when the storage is built.
+ *
+ * The fixed size filters of data directories predating blocked filters are still read for the
+ * events they cover, i.e. the first numLegacyBloomFilters events.
+ */
 public class BloomFilteredEventStorage extends DelegateEventStorage {
-  private final DmaList<BloomFilter> bloomFilterDmaList;
-  private final Provider<BloomFilter> bloomFilterProvider;
-  private long numConditionCheck;
-  private long numBloomFilterRejection;
+  // the most bloom filters read at once
+  private static final int MAX_RUN_LENGTH = 1024;
+  private static final int STATS_VERSION = 1;
+
+  private final DmaList<BloomFilter> legacyBloomFilterDmaList;
+  private final BloomFilter.Schema legacyBloomFilterSchema;
+  private final long numLegacyBloomFilters;
+  private final DmaList<BlockedBloomFilter.Location> locationDmaList;
+  private final BlockedBloomFilter.Location.Schema locationSchema;
+  private final DmaList<byte[]> blockDmaList;
+  private final int numBitsPerProperty;
+  private final String statsFilename;
+  // added to by addEvent while getVarz reads them
+  private final ConcurrentMap<Integer, EventTypeStats> eventTypeStats;
+  private final AtomicLong numConditionCheck;
+  private final AtomicLong numBloomFilterRejection;
 
   public BloomFilteredEventStorage(EventStorage eventStorage,
-      DmaList<BloomFilter> bloomFilterDmaList, Provider<BloomFilter> bloomFilterProvider) {
+      DmaList<BloomFilter> legacyBloomFilterDmaList, BloomFilter.Schema legacyBloomFilterSchema,
+      DmaList<BlockedBloomFilter.Location> locationDmaList,
+      BlockedBloomFilter.Location.Schema locationSchema, DmaList<byte[]> blockDmaList,
+      int numBitsPerProperty, String statsFilename) {
     super(eventStorage);
-    this.bloomFilterDmaList = bloomFilterDmaList;
-    this.bloomFilterProvider = bloomFilterProvider;
-    this.numConditionCheck = 0;
-    this.numBloomFilterRejection = 0;
+    this.legacyBloomFilterDmaList = legacyBloomFilterDmaList;
+    this.legacyBloomFilterSchema = legacyBloomFilterSchema;
+    this.numLegacyBloomFilters = legacyBloomFilterDmaList.getMaxId();
+    this.locationDmaList = locationDmaList;
+    this.locationSchema = locationSchema;
+    this.blockDmaList = blockDmaList;
+    this.numBitsPerProperty = numBitsPerProperty;
+    this.statsFilename = statsFilename;
+    this.eventTypeStats = Maps.newConcurrentMap();
+    this.numConditionCheck = new AtomicLong();
+    this.numBloomFilterRejection = new AtomicLong();
+    long numBloomFiltersInStats = readStats();
+    // a location may be added without its event when interrupted in between
+    long numBloomFilters = Math.min(locationDmaList.getMaxId(),
+        eventStorage.getNumRecords() - numLegacyBloomFilters);
+    for (long i = numBloomFiltersInStats; i < numBloomFilters; i++) {
+      BlockedBloomFilter.Location location = locationDmaList.get(i);
+      getEventTypeStats(eventStorage.getEventTypeId(numLegacyBloomFilters + i)).add(
+          location.getNumKeys(), location.getNumBlocks(), location.getNumHashes());
+    }
   }
 
   @Override
   public long addEvent(Event event, int userId, int eventTypeId) {
-    final BloomFilter bloomFilter = bloomFilterProvider.get();
+    final List<BlockedBloomFilter.Key> keys = Lists.newArrayList();
     event.enumerate(new KeyValueCallback() {
       @Override
       public void callback(String key, String value) {
-        bloomFilter.add(getBloomFilterKey(key, value));
+        keys.add(BlockedBloomFilter.getKey(getBloomFilterKey(key, value)));
       }
     });
-    bloomFilterDmaList.add(bloomFilter);
+    EventTypeStats stats = getEventTypeStats(eventTypeId);
+    // the mean rather than the most, which a single outlier would raise for good
+    int numBlocks = BlockedBloomFilter.getNumBlocks(
+        Math.max(keys.size(), stats.getMeanNumKeys()), numBitsPerProperty);
+    int numHashes = BlockedBloomFilter.getNumHashes(keys.size(), numBlocks);
+    byte[] bloomFilter = new byte[numBlocks * BlockedBloomFilter.BLOCK_SIZE];
+    for (BlockedBloomFilter.Key key : keys) {
+      BlockedBloomFilter.add(bloomFilter, 0, numBlocks, numHashes, key);
+    }
+    long firstBlockId = blockDmaList.getMaxId();
+    for (int i = 0; i < numBlocks; i++) {
+      blockDmaList.add(Arrays.copyOfRange(bloomFilter, i * BlockedBloomFilter.BLOCK_SIZE,
+          (i + 1) * BlockedBloomFilter.BLOCK_SIZE));
+    }
+    locationDmaList.add(
+        new BlockedBloomFilter.Location(firstBlockId, numBlocks, keys.size(), numHashes));
+    stats.add(keys.size(), numBlocks, numHashes);
     return super.addEvent(event, userId, eventTypeId);
   }
 
@@ -45,53 +126,304 @@ public class BloomFilteredEventStorage extends DelegateEventStorage {
     return new DelayedVisitorProxy(new Provider<Visitor>() {
       @Override
       public Visitor get() {
-        final BloomFilter bloomFilter = bloomFilterDmaList.get(eventId);
+        BloomFilterVisitor bloomFilterVisitor = new BloomFilterVisitor();
+        if (eventId < numLegacyBloomFilters) {
+          bloomFilterVisitor.setLegacyBloomFilter(legacyBloomFilterDmaList.getBytes(eventId), 0);
+        } else {
+          BlockedBloomFilter.Location location =
+              locationDmaList.get(eventId - numLegacyBloomFilters);
+          byte[] bloomFilter = new byte[location.getNumBlocks() * BlockedBloomFilter.BLOCK_SIZE];
+          blockDmaList.getBytes(location.getFirstBlockId(), location.getNumBlocks(), bloomFilter);
+          bloomFilterVisitor.setBloomFilter(bloomFilter, 0, location.getNumBlocks(),
+              location.getNumHashes());
+        }
         final Visitor visitorFromSuper = BloomFilteredEventStorage.super.getFilterVisitor(eventId);
-        numConditionCheck++;
-        return new BloomFilteredFilterVisitor(bloomFilter, visitorFromSuper);
+        numConditionCheck.incrementAndGet();
+        return new BloomFilteredFilterVisitor(bloomFilterVisitor, visitorFromSuper);
       }
     });
   }
 
+  // rejects what the bloom filters can before any event gets read, so that only the remaining
+  // events are fetched in batch. Each filter term is hashed once for the whole batch and the bloom
+  // filters of consecutive event ids are read with a single copy
+  @Override
+  public void visitEvents(long[] eventIds, Filter filter, Callback callback) {
+    if (filter == TrueFilter.INSTANCE) {
+      super.visitEvents(eventIds, filter, callback);
+      return;
+    }
+    BloomFilterVisitor bloomFilterVisitor = new BloomFilterVisitor();
+    byte[] locations = new byte[0];
+    byte[] bloomFilters = new byte[0];
+    long[] candidateEventIds = new long[eventIds.length];
+    int numCandidates = 0;
+    int runStart = 0;
+    while (runStart < eventIds.length) {
+      boolean isLegacy = eventIds[runStart] < numLegacyBloomFilters;
+      int runEnd = runStart + 1;
+      while (runEnd < eventIds.length && runEnd - runStart < MAX_RUN_LENGTH
+          && eventIds[runEnd] == eventIds[runEnd - 1] + 1
+          && (eventIds[runEnd] < numLegacyBloomFilters) == isLegacy) {
+        runEnd++;
+      }
+      int runLength = runEnd - runStart;
+      if (isLegacy) {
+        int bloomFilterSize = legacyBloomFilterSchema.getObjectSize();
+        bloomFilters = ensureCapacity(bloomFilters, runLength * bloomFilterSize);
+        legacyBloomFilterDmaList.getBytes(eventIds[runStart], runLength, bloomFilters);
+        for (int i = 0; i < runLength; i++) {
+          bloomFilterVisitor.setLegacyBloomFilter(bloomFilters, i * bloomFilterSize);
+          numConditionCheck.incrementAndGet();
+          if (filter.accept(bloomFilterVisitor)) {
+            candidateEventIds[numCandidates++] = eventIds[runStart + i];
+          }
+        }
+      } else {
+        int locationSize = locationSchema.getObjectSize();
+        locations = ensureCapacity(locations, runLength * locationSize);
+        locationDmaList.getBytes(eventIds[runStart] - numLegacyBloomFilters, runLength,
+            locations);
+        // the blocks of consecutive events are consecutive too
+        BlockedBloomFilter.Location first = locationSchema.fromBytes(locations, 0);
+        BlockedBloomFilter.Location last =
+            locationSchema.fromBytes(locations, (runLength - 1) * locationSize);
+        int numBlocks = (int) (last.getFirstBlockId() + last.getNumBlocks()
+            - first.getFirstBlockId());
+        bloomFilters = ensureCapacity(bloomFilters, numBlocks * BlockedBloomFilter.BLOCK_SIZE);
+        blockDmaList.getBytes(first.getFirstBlockId(), numBlocks, bloomFilters);
+        for (int i = 0; i < runLength; i++) {
+          BlockedBloomFilter.Location location =
+              locationSchema.fromBytes(locations, i * locationSize);
+          bloomFilterVisitor.setBloomFilter(bloomFilters,
+              (int) (location.getFirstBlockId() - first.getFirstBlockId())
+                  * BlockedBloomFilter.BLOCK_SIZE,
+              location.getNumBlocks(), location.getNumHashes());
+          numConditionCheck.incrementAndGet();
+          if (filter.accept(bloomFilterVisitor)) {
+            candidateEventIds[numCandidates++] = eventIds[runStart + i];
+          }
+        }
+      }
+      runStart = runEnd;
+    }
+    super.visitEvents(Arrays.copyOf(candidateEventIds, numCandidates), filter, callback);
+  }
+
   @Override
   public String getVarz(int indentation) {
     String indent  = new String(new char[indentation]).replace('\0', ' ');
+    StringBuilder eventTypeVarz = new StringBuilder();
+    List<Integer> eventTypeIds = Lists.newArrayList(eventTypeStats.keySet());
+    Collections.sort(eventTypeIds);
+    for (int eventTypeId : eventTypeIds) {
+      eventTypeVarz.append("\n").append(indent).append("  event type ").append(eventTypeId)
+          .append(": ").append(eventTypeStats.get(eventTypeId).getVarz());
+    }
     return String.format(
         "%s\n\n" +
         indent + this.getClass().getName() + "\n" +
         indent + "==================\n" +
         indent + "num condition check: %d\n" +
-        indent + "num bloomfilter rejection: %d",
-        super.getVarz(indentation), numConditionCheck, numBloomFilterRejection);
+        indent + "num bloomfilter rejection: %d\n" +
+        indent + "num legacy bloomfilters: %d\n" +
+        indent + "num bits per property: %d\n" +
+        indent + "bloomfilters:%s",
+        super.getVarz(indentation), numConditionCheck.get(), numBloomFilterRejection.get(),
+        numLegacyBloomFilters, numBitsPerProperty, eventTypeVarz.toString());
   }
 
   @Override
   public void close() throws IOException {
-    bloomFilterDmaList.close();
+    writeStats();
+    legacyBloomFilterDmaList.close();
+    locationDmaList.close();
+    blockDmaList.close();
     super.close();
   }
 
+  private EventTypeStats getEventTypeStats(int eventTypeId) {
+    EventTypeStats stats = eventTypeStats.get(eventTypeId);
+    if (stats == null) {
+      eventTypeStats.putIfAbsent(eventTypeId, new EventTypeStats());
+      stats = eventTypeStats.get(eventTypeId);
+    }
+    return stats;
+  }
+
+  // returns the number of bloom filters the persisted statistics cover
+  private long readStats() {
+    File file = new File(statsFilename);
+    if (!file.exists()) {
+      return 0;
+    }
+    try (DataInputStream input = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      int version = input.readInt();
+      if (version != STATS_VERSION) {
+        throw new IllegalStateException("unsupported bloom filter stats version " + version);
+      }
+      long numBloomFilters = input.readLong();
+      int numEventTypes = input.readInt();
+      for (int i = 0; i < numEventTypes; i++) {
+        eventTypeStats.put(input.readInt(), EventTypeStats.readFrom(input));
+      }
+      return numBloomFilters;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // called by close, while no event is added
+  private void writeStats() throws IOException {
+    File file = new File(statsFilename);
+    File newFile = new File(statsFilename + ".new");
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      output.writeInt(STATS_VERSION);
+      output.writeLong(locationDmaList.getMaxId());
+      output.writeInt(eventTypeStats.size());
+      for (Map.Entry<Integer, EventTypeStats> stats : eventTypeStats.entrySet()) {
+        output.writeInt(stats.getKey());
+        stats.getValue().writeTo(output);
+      }
+    }
+    Files.move(newFile, file);
+  }
+
   private static String getBloomFilterKey(String key, String value) {
     return key + value;
   }
 
+  private static byte[] ensureCapacity(byte[] bytes, int capacity) {
+    return bytes.length >= capacity ? bytes : new byte[Math.max(capacity, 2 * bytes.length)];
+  }
+
+  private static class EventTypeStats {
+    private long numBloomFilters;
+    private long numKeys;
+    private long numBlocks;
+    // summed over the filters
+    private double falsePositiveRate;
+
+    public synchronized int getMeanNumKeys() {
+      return numBloomFilters == 0 ? 0 : (int) ((numKeys + numBloomFilters - 1) / numBloomFilters);
+    }
+
+    public synchronized void add(int numKeys, int numBlocks, int numHashes) {
+      this.numBloomFilters++;
+      this.numKeys += numKeys;
+      this.numBlocks += numBlocks;
+      this.falsePositiveRate +=
+          BlockedBloomFilter.getFalsePositiveRate(numKeys, numBlocks, numHashes);
+    }
+
+    public synchronized String getVarz() {
+      return String.format(
+          "%d filters, %.1f properties, %.1f bytes/filter, estimated false positive rate %.6f",
+          numBloomFilters, (double) numKeys / numBloomFilters,
+          (double) numBlocks * BlockedBloomFilter.BLOCK_SIZE / numBloomFilters,
+          falsePositiveRate / numBloomFilters);
+    }
+
+    public synchronized void writeTo(DataOutput output) throws IOException {
+      output.writeLong(numBloomFilters);
+      output.writeLong(numKeys);
+      output.writeLong(numBlocks);
+      output.writeDouble(falsePositiveRate);
+    }
+
+    public static EventTypeStats readFrom(DataInput input) throws IOException {
+      EventTypeStats stats = new EventTypeStats();
+      stats.numBloomFilters = input.readLong();
+      stats.numKeys = input.readLong();
+      stats.numBlocks = input.readLong();
+      stats.falsePositiveRate = input.readDouble();
+      return stats;
+    }
+  }
+
+  // only answers what the bloom filter can rule out, i.e. a filter accepted by it may still reject
+  // the event. This holds as long as filters are monotone, which And, ExactMatch and Regex are.
+  // The bloom filter is tested straight from its serialized bytes, which can be switched to the
+  // next event's without hashing the filter terms again
+  private class BloomFilterVisitor implements Visitor {
+    private final Map<ExactMatch, BlockedBloomFilter.Key> keys;
+    private final Map<ExactMatch, int[]> legacyBucketIndices;
+    private byte[] bloomFilter;
+    private int offset;
+    private int numBlocks;
+    private int numHashes;
+    private boolean isLegacy;
+
+    public BloomFilterVisitor() {
+      this.keys = new IdentityHashMap<>();
+      this.legacyBucketIndices = new IdentityHashMap<>();
+    }
+
+    public void setBloomFilter(byte[] bloomFilter, int offset, int numBlocks, int numHashes) {
+      this.bloomFilter = bloomFilter;
+      this.offset = offset;
+      this.numBlocks = numBlocks;
+      this.numHashes = numHashes;
+      this.isLegacy = false;
+    }
+
+    public void setLegacyBloomFilter(byte[] bloomFilter, int offset) {
+      this.bloomFilter = bloomFilter;
+      this.offset = offset;
+      this.isLegacy = true;
+    }
+
+    @Override
+    public boolean visit(ExactMatch exactMatch) {
+      boolean isPresent = isLegacy ? isPresentInLegacy(exactMatch) : isPresent(exactMatch);
+      if (!isPresent) {
+        numBloomFilterRejection.incrementAndGet();
+      }
+      return isPresent;
+    }
+
+    @Override
+    public boolean visit(Regex regex) {
+      return true;
+    }
+
+    private boolean isPresent(ExactMatch exactMatch) {
+      BlockedBloomFilter.Key key = keys.get(exactMatch);
+      if (key == null) {
+        key = BlockedBloomFilter.getKey(
+            getBloomFilterKey(exactMatch.getKey(), exactMatch.getValue()));
+        keys.put(exactMatch, key);
+      }
+      return BlockedBloomFilter.isPresent(bloomFilter, offset, numBlocks, numHashes, key);
+    }
+
+    private boolean isPresentInLegacy(ExactMatch exactMatch) {
+      int[] bucketIndices = legacyBucketIndices.get(exactMatch);
+      if (bucketIndices == null) {
+        bucketIndices = BloomFilter.getBucketIndices(
+            getBloomFilterKey(exactMatch.getKey(), exactMatch.getValue()),
+            legacyBloomFilterSchema.getNumHashes(), legacyBloomFilterSchema.getNumBits());
+        legacyBucketIndices.put(exactMatch, bucketIndices);
+      }
+      return BloomFilter.isPresent(bloomFilter, offset, legacyBloomFilterSchema.getObjectSize(),
+          bucketIndices);
+    }
+  }
+
   private class BloomFilteredFilterVisitor implements Visitor {
-    private final BloomFilter bloomFilter;
+    private final BloomFilterVisitor bloomFilterVisitor;
     private final Visitor visitor;
 
-    public BloomFilteredFilterVisitor(BloomFilter bloomFilter, Visitor visitor) {
-      this.bloomFilter = bloomFilter;
+    public BloomFilteredFilterVisitor(BloomFilterVisitor bloomFilterVisitor, Visitor visitor) {
+      this.bloomFilterVisitor = bloomFilterVisitor;
       this.visitor = visitor;
     }
 
     @Override
     public boolean visit(ExactMatch exactMatch) {
-      String bloomFilterKey = getBloomFilterKey(exactMatch.getKey(), exactMatch.getValue());
-      if (!bloomFilter.isPresent(bloomFilterKey)) {
-        numBloomFilterRejection++;
-        return false;
-      }
-      return visitor.visit(exactMatch);
+      return bloomFilterVisitor.visit(exactMatch) && visitor.visit(exactMatch);
     }
 
     @Override
@@ -6,26 +6,28 @@ import com.codecademy.eventhub.base.BloomFilter;
 import com.codecademy.eventhub.base.KeyValueCallback;
 import com.codecademy.eventhub.list.DmaList;
 import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.storage.filter.CompiledFilter;
 import com.codecademy.eventhub.storage.filter.Regex;
 import com.codecademy.eventhub.storage.visitor.DelayedVisitorProxy;
 import com.codecademy.eventhub.storage.visitor.Visitor;
 
 import javax.inject.Provider;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BloomFilteredUserStorage extends DelegateUserStorage {
   private final DmaList<BloomFilter> bloomFilterDmaList;
   private final Provider<BloomFilter> bloomFilterProvider;
-  private long numConditionCheck;
-  private long numBloomFilterRejection;
+  private final AtomicLong numConditionCheck;
+  private final AtomicLong numBloomFilterRejection;
 
   public BloomFilteredUserStorage(UserStorage userStorage,
       DmaList<BloomFilter> bloomFilterDmaList, Provider<BloomFilter> bloomFilterProvider) {
     super(userStorage);
     this.bloomFilterDmaList = bloomFilterDmaList;
     this.bloomFilterProvider = bloomFilterProvider;
-    this.numConditionCheck = 0;
-    this.numBloomFilterRejection = 0;
+    this.numConditionCheck = new AtomicLong();
+    this.numBloomFilterRejection = new AtomicLong();
   }
 
   @Override
@@ -68,12 +70,29 @@ public class BloomFilteredUserStorage extends DelegateUserStorage {
       public Visitor get() {
         final BloomFilter bloomFilter = bloomFilterDmaList.get(userId);
         final Visitor visitorFromSuper = BloomFilteredUserStorage.super.getFilterVisitor(userId);
-        numConditionCheck++;
+        numConditionCheck.incrementAndGet();
         return new BloomFilteredFilterVisitor(bloomFilter, visitorFromSuper);
       }
     });
   }
 
+  // the exact matches are looked up in the bloom filter before the user gets read
+  @Override
+  public boolean matches(int userId, CompiledFilter filter) {
+    if (filter.isAcceptAll()) {
+      return true;
+    }
+    BloomFilter bloomFilter = bloomFilterDmaList.get(userId);
+    numConditionCheck.incrementAndGet();
+    for (ExactMatch exactMatch : filter.getExactMatches()) {
+      if (!bloomFilter.isPresent(getBloomFilterKey(exactMatch.getKey(), exactMatch.getValue()))) {
+        numBloomFilterRejection.incrementAndGet();
+        return false;
+      }
+    }
+    return super.matches(userId, filter);
+  }
+
   @Override
   public String getVarz(int indentation) {
     String indent  = new String(new char[indentation]).replace('\0', ' ');
@@ -83,7 +102,7 @@ public class BloomFilteredUserStorage extends DelegateUserStorage {
         indent + "==================\n" +
         indent + "num condition check: %d\n" +
         indent + "num bloomfilter rejection: %d",
-        super.getVarz(indentation), numConditionCheck, numBloomFilterRejection);
+        super.getVarz(indentation), numConditionCheck.get(), numBloomFilterRejection.get());
   }
 
   @Override
@@ -109,7 +128,7 @@ public class BloomFilteredUserStorage extends DelegateUserStorage {
     public boolean visit(ExactMatch exactMatch) {
       String bloomFilterKey = getBloomFilterKey(exactMatch.getKey(), exactMatch.getValue());
       if (!bloomFilter.isPresent(bloomFilterKey)) {
-        numBloomFilterRejection++;
+        numBloomFilterRejection.incrementAndGet();
         return false;
       }
       return visitor.visit(exactMatch);
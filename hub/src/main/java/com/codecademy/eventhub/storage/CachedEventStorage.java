@@ -1,31 +1,59 @@
 package com.codecademy.eventhub.storage;
 
-import com.google.common.cache.Cache;
+import com.codecademy.eventhub.base.OffHeapCache;
 import com.codecademy.eventhub.model.Event;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 public class CachedEventStorage extends DelegateEventStorage {
-  private final Cache<Long, Event> eventCache;
+  private final OffHeapCache eventCache;
 
-  public CachedEventStorage(EventStorage eventStorage, Cache<Long, Event> eventCache) {
+  public CachedEventStorage(EventStorage eventStorage, OffHeapCache eventCache) {
     super(eventStorage);
     this.eventCache = eventCache;
   }
 
   @Override
-  public Event getEvent(final long eventId) {
-    try {
-      return eventCache.get(eventId, new Callable<Event>() {
-        @Override
-        public Event call() {
-          return CachedEventStorage.super.getEvent(eventId);
-        }
-      });
-    } catch (ExecutionException e) {
-      throw new RuntimeException(e);
+  public Event getEvent(long eventId) {
+    ByteBuffer cachedEvent = eventCache.get(eventId);
+    if (cachedEvent != null) {
+      return Event.fromByteBuffer(cachedEvent);
     }
+    Event event = super.getEvent(eventId);
+    eventCache.put(eventId, event.toByteBuffer(eventCache.getByteOrder()));
+    return event;
+  }
+
+  @Override
+  public Event[] getEvents(long[] eventIds) {
+    Event[] events = new Event[eventIds.length];
+    List<Long> misses = Lists.newArrayList();
+    for (int i = 0; i < eventIds.length; i++) {
+      ByteBuffer cachedEvent = eventCache.get(eventIds[i]);
+      if (cachedEvent != null) {
+        events[i] = Event.fromByteBuffer(cachedEvent);
+      } else {
+        misses.add(eventIds[i]);
+      }
+    }
+    if (misses.isEmpty()) {
+      return events;
+    }
+
+    long[] missedEventIds = Longs.toArray(misses);
+    Event[] missedEvents = super.getEvents(missedEventIds);
+    for (int i = 0; i < missedEventIds.length; i++) {
+      eventCache.put(missedEventIds[i], missedEvents[i].toByteBuffer(eventCache.getByteOrder()));
+    }
+    for (int i = 0, j = 0; i < eventIds.length; i++) {
+      if (events[i] == null) {
+        events[i] = missedEvents[j++];
+      }
+    }
+    return events;
   }
 
   @Override
@@ -35,7 +63,7 @@ public class CachedEventStorage extends DelegateEventStorage {
         "%s\n\n" +
         indent + this.getClass().getName() + "\n" +
         indent + "==================\n" +
-        indent + "eventCache: %s",
-        super.getVarz(indentation), eventCache.stats().toString());
+        indent + "eventCache:\n%s",
+        super.getVarz(indentation), eventCache.getVarz(indentation + 1));
   }
 }
@@ -1,15 +1,14 @@
 package com.codecademy.eventhub.storage;
 
-import com.google.common.cache.Cache;
+import com.codecademy.eventhub.base.OffHeapCache;
 import com.codecademy.eventhub.model.User;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.nio.ByteBuffer;
 
 public class CachedUserStorage extends DelegateUserStorage {
-  private final Cache<Integer, User> userCache;
+  private final OffHeapCache userCache;
 
-  public CachedUserStorage(UserStorage userStorage, Cache<Integer, User> userCache) {
+  public CachedUserStorage(UserStorage userStorage, OffHeapCache userCache) {
     super(userStorage);
     this.userCache = userCache;
   }
@@ -22,17 +21,14 @@ public class CachedUserStorage extends DelegateUserStorage {
   }
 
   @Override
-  public User getUser(final int userId) {
-    try {
-      return userCache.get(userId, new Callable<User>() {
-        @Override
-        public User call() {
-          return CachedUserStorage.super.getUser(userId);
-        }
-      });
-    } catch (ExecutionException e) {
-      throw new RuntimeException(e);
+  public User getUser(int userId) {
+    ByteBuffer cachedUser = userCache.get(userId);
+    if (cachedUser != null) {
+      return User.fromByteBuffer(cachedUser);
     }
+    User user = super.getUser(userId);
+    userCache.put(userId, user.toByteBuffer(userCache.getByteOrder()));
+    return user;
   }
 
   @Override
@@ -42,7 +38,7 @@ public class CachedUserStorage extends DelegateUserStorage {
         "%s\n\n" +
         indent + this.getClass().getName() + "\n" +
         indent + "==================\n" +
-        indent + "userCache: %s",
-        super.getVarz(indentation), userCache.stats().toString());
+        indent + "userCache:\n%s",
+        super.getVarz(indentation), userCache.getVarz(indentation + 1));
   }
 }
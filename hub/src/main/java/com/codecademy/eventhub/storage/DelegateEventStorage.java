@@ -1,6 +1,7 @@
 package com.codecademy.eventhub.storage;
 
 import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.filter.Filter;
 import com.codecademy.eventhub.storage.visitor.Visitor;
 
 import java.io.IOException;
@@ -22,6 +23,18 @@ public class DelegateEventStorage implements EventStorage {
     return eventStorage.getEvent(eventId);
   }
 
+  @Override
+  public Event[] getEvents(long[] eventIds) {
+    return eventStorage.getEvents(eventIds);
+  }
+
+  // goes through getEvents, rather than the delegate's visitEvents, so that the events are
+  // resolved by the outermost decorator
+  @Override
+  public void visitEvents(long[] eventIds, Filter filter, Callback callback) {
+    EventStorageUtil.visitEvents(this, eventIds, filter, callback);
+  }
+
   @Override
   public int getUserId(long eventId) {
     return eventStorage.getUserId(eventId);
@@ -32,6 +45,11 @@ public class DelegateEventStorage implements EventStorage {
     return eventStorage.getEventTypeId(eventId);
   }
 
+  @Override
+  public long getNumRecords() {
+    return eventStorage.getNumRecords();
+  }
+
   @Override
   public Visitor getFilterVisitor(long eventId) {
     return eventStorage.getFilterVisitor(eventId);
@@ -1,6 +1,9 @@
 package com.codecademy.eventhub.storage;
 
+import com.codecademy.eventhub.index.InvertedUserIndex;
 import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.storage.filter.CompiledFilter;
+import com.codecademy.eventhub.storage.filter.Filter;
 import com.codecademy.eventhub.storage.visitor.Visitor;
 
 import java.io.IOException;
@@ -42,6 +45,18 @@ public class DelegateUserStorage implements UserStorage {
     return userStorage.getFilterVisitor(userId);
   }
 
+  // goes through getUser, rather than the delegate's matches, so that the users are resolved by
+  // the outermost decorator
+  @Override
+  public boolean matches(int userId, CompiledFilter filter) {
+    return filter.isAcceptAll() || getUser(userId).matches(filter);
+  }
+
+  @Override
+  public InvertedUserIndex.Query getIndexedQuery(Filter filter) {
+    return userStorage.getIndexedQuery(filter);
+  }
+
   @Override
   public void alias(String fromExternalUserId, int toUserId) {
     userStorage.alias(fromExternalUserId, toUserId);
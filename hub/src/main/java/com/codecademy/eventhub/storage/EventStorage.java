@@ -1,6 +1,7 @@
 package com.codecademy.eventhub.storage;
 
 import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.filter.Filter;
 import com.codecademy.eventhub.storage.visitor.Visitor;
 
 import java.io.Closeable;
@@ -8,8 +9,18 @@ import java.io.Closeable;
 public interface EventStorage extends Closeable {
   long addEvent(Event event, int userId, int eventTypeId);
   Event getEvent(long eventId);
+  // the events are returned in the order of the given ids, which are read in the order they are
+  // laid out on disk rather than one at a time
+  Event[] getEvents(long[] eventIds);
+  // calls back, in the order of the given ids, with the ids of the events accepted by the filter
+  void visitEvents(long[] eventIds, Filter filter, Callback callback);
   int getUserId(long eventId);
   int getEventTypeId(long eventId);
+  long getNumRecords();
   Visitor getFilterVisitor(long eventId);
   String getVarz(int indentation);
+
+  public interface Callback {
+    void onEventId(long eventId);
+  }
 }
@@ -1,18 +1,25 @@
 package com.codecademy.eventhub.storage;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
+import com.codecademy.eventhub.base.BlockedBloomFilter;
 import com.codecademy.eventhub.base.BloomFilter;
+import com.codecademy.eventhub.base.DataFormat;
+import com.codecademy.eventhub.base.FrequencySketch;
+import com.codecademy.eventhub.base.OffHeapCache;
+import com.codecademy.eventhub.list.DmaFileFactories;
 import com.codecademy.eventhub.list.DmaList;
-import com.codecademy.eventhub.model.Event;
 import org.fusesource.hawtjournal.api.Journal;
 
 import javax.inject.Named;
-import javax.inject.Provider;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class EventStorageModule extends AbstractModule {
+  private static final int AVERAGE_RECORD_SIZE = 64; // in bytes
+  private static final int MAX_FREQUENCY_SKETCH_WIDTH = 1 << 24;
+
   @Override
   protected void configure() {}
 
@@ -29,14 +36,22 @@ public class EventStorageModule extends AbstractModule {
     return new BloomFilter.Schema(numHashes, bloomFilterSize);
   }
 
+  @Provides
+  public JournalEventStorage.MetaData.Schema getJournalEventStorageMetaDataSchema(
+      DataFormat dataFormat) {
+    return new JournalEventStorage.MetaData.Schema(dataFormat.getByteOrder());
+  }
+
   @Provides
   public DmaList<JournalEventStorage.MetaData> getJournalEventStorageMetaDataList(
       JournalEventStorage.MetaData.Schema schema,
       @Named("eventhub.eventstorage.directory") String eventStorageDirectory,
       @Named("eventhub.journaleventstorage.numMetaDataPerFile") int numMetaDataPerFile,
-      @Named("eventhub.journaleventstorage.metaDataFileCacheSize") int metaDataFileCacheSize) {
+      @Named("eventhub.journaleventstorage.metaDataFileCacheSize") int metaDataFileCacheSize,
+      @Named("eventhub.journaleventstorage.metaDataBackend") String metaDataBackend,
+      DmaFileFactories dmaFileFactories) {
     return DmaList.build(schema, eventStorageDirectory + "/journal_event_storage_meta_data/", numMetaDataPerFile,
-        metaDataFileCacheSize);
+        metaDataFileCacheSize, dmaFileFactories.get(metaDataBackend));
   }
 
   @Provides
@@ -52,21 +67,31 @@ public class EventStorageModule extends AbstractModule {
   @Provides
   public JournalEventStorage getJournalEventStorage(
       @Named("eventhub.journaleventstorage") Journal eventJournal,
-      DmaList<JournalEventStorage.MetaData> metaDataList) {
-    JournalEventStorage.MetaData.Schema schema = new JournalEventStorage.MetaData.Schema();
-    return new JournalEventStorage(
-        eventJournal, schema, metaDataList, metaDataList.getMaxId());
+      JournalEventStorage.MetaData.Schema schema,
+      DmaList<JournalEventStorage.MetaData> metaDataList,
+      DataFormat dataFormat,
+      @Named("eventhub.journaleventstorage.numReadThreads") int numReadThreads) {
+    ExecutorService readExecutor = Executors.newFixedThreadPool(Math.max(1, numReadThreads),
+        new ThreadFactoryBuilder()
+            .setNameFormat("journal-event-storage-reader-%d")
+            .setDaemon(true)
+            .build());
+    return new JournalEventStorage(eventJournal, schema, metaDataList, dataFormat.getByteOrder(),
+        readExecutor, numReadThreads, metaDataList.getMaxId());
   }
 
   @Provides
   public CachedEventStorage getCachedEventStorage(
       JournalEventStorage journalEventStorage,
-      @Named("eventhub.cachedeventstorage.recordCacheSize") int recordCacheSize) {
-    Cache<Long, Event> eventCache = CacheBuilder.newBuilder()
-        .maximumSize(recordCacheSize)
-        .recordStats()
-        .build();
-
+      @Named("eventhub.cachedeventstorage.cacheSize") long cacheSize,
+      @Named("eventhub.cachedeventstorage.cacheSegmentSize") int cacheSegmentSize,
+      DataFormat dataFormat) {
+    // about one sketch counter per cached record
+    FrequencySketch frequencySketch = new FrequencySketch(
+        (int) Math.min(MAX_FREQUENCY_SKETCH_WIDTH, cacheSize / AVERAGE_RECORD_SIZE));
+    OffHeapCache eventCache = new OffHeapCache(cacheSegmentSize,
+        (int) Math.max(1, cacheSize / cacheSegmentSize), dataFormat.getByteOrder(),
+        frequencySketch);
     return new CachedEventStorage(journalEventStorage, eventCache);
   }
 
@@ -77,27 +102,63 @@ public class EventStorageModule extends AbstractModule {
       @Named("eventhub.bloomfilteredeventstorage.numHashes") int numHashes,
       @Named("eventhub.bloomfilteredeventstorage.bloomFilterSize") int bloomFilterSize,
       @Named("eventhub.bloomfilteredeventstorage.numMetaDataPerFile") int numMetaDataPerFile,
-      @Named("eventhub.bloomfilteredeventstorage.metaDataFileCacheSize") int metaDataFileCacheSize) {
+      @Named("eventhub.bloomfilteredeventstorage.metaDataFileCacheSize") int metaDataFileCacheSize,
+      @Named("eventhub.bloomfilteredeventstorage.metaDataBackend") String metaDataBackend,
+      DmaFileFactories dmaFileFactories) {
     return DmaList.build(new BloomFilter.Schema(numHashes, bloomFilterSize),
         eventStorageDirectory + "/bloom_filtered_event_storage_meta_data/",
         numMetaDataPerFile,
-        metaDataFileCacheSize);
+        metaDataFileCacheSize,
+        dmaFileFactories.get(metaDataBackend));
   }
 
   @Provides
-  @Named("eventhub.bloomfilteredeventstorage")
-  public BloomFilter getBloomFilter(
-      @Named("eventhub.bloomfilteredeventstorage.numHashes") int numHashes,
-      @Named("eventhub.bloomfilteredeventstorage.bloomFilterSize") int bloomFilterSize) {
-    return BloomFilter.build(numHashes, bloomFilterSize);
+  public BlockedBloomFilter.Location.Schema getBlockedBloomFilterLocationSchema(
+      DataFormat dataFormat) {
+    return new BlockedBloomFilter.Location.Schema(dataFormat.getByteOrder());
+  }
+
+  @Provides
+  public DmaList<BlockedBloomFilter.Location> getBlockedBloomFilterLocationDmaList(
+      BlockedBloomFilter.Location.Schema schema,
+      @Named("eventhub.eventstorage.directory") String eventStorageDirectory,
+      @Named("eventhub.bloomfilteredeventstorage.numMetaDataPerFile") int numMetaDataPerFile,
+      @Named("eventhub.bloomfilteredeventstorage.metaDataFileCacheSize") int metaDataFileCacheSize,
+      @Named("eventhub.bloomfilteredeventstorage.metaDataBackend") String metaDataBackend,
+      DmaFileFactories dmaFileFactories) {
+    return DmaList.build(schema,
+        eventStorageDirectory + "/blocked_bloom_filter_locations/",
+        numMetaDataPerFile,
+        metaDataFileCacheSize,
+        dmaFileFactories.get(metaDataBackend));
+  }
+
+  @Provides
+  public DmaList<byte[]> getBlockedBloomFilterBlockDmaList(
+      @Named("eventhub.eventstorage.directory") String eventStorageDirectory,
+      @Named("eventhub.bloomfilteredeventstorage.numMetaDataPerFile") int numMetaDataPerFile,
+      @Named("eventhub.bloomfilteredeventstorage.metaDataFileCacheSize") int metaDataFileCacheSize,
+      @Named("eventhub.bloomfilteredeventstorage.metaDataBackend") String metaDataBackend,
+      DmaFileFactories dmaFileFactories) {
+    return DmaList.build(new BlockedBloomFilter.BlockSchema(),
+        eventStorageDirectory + "/blocked_bloom_filter_blocks/",
+        numMetaDataPerFile,
+        metaDataFileCacheSize,
+        dmaFileFactories.get(metaDataBackend));
   }
 
   @Provides
   public BloomFilteredEventStorage getBloomFilteredEventStorage(
       CachedEventStorage cachedEventStorage,
-      @Named("eventhub.bloomfilteredeventstorage") DmaList<BloomFilter> bloomFilterDmaList,
-      @Named("eventhub.bloomfilteredeventstorage") Provider<BloomFilter> bloomFilterProvider) {
-    return new BloomFilteredEventStorage(cachedEventStorage, bloomFilterDmaList,
-        bloomFilterProvider);
+      @Named("eventhub.bloomfilteredeventstorage") DmaList<BloomFilter> legacyBloomFilterDmaList,
+      BloomFilter.Schema legacyBloomFilterSchema,
+      DmaList<BlockedBloomFilter.Location> locationDmaList,
+      BlockedBloomFilter.Location.Schema locationSchema,
+      DmaList<byte[]> blockDmaList,
+      @Named("eventhub.bloomfilteredeventstorage.numBitsPerProperty") int numBitsPerProperty,
+      @Named("eventhub.eventstorage.directory") String eventStorageDirectory) {
+    return new BloomFilteredEventStorage(cachedEventStorage, legacyBloomFilterDmaList,
+        legacyBloomFilterSchema, locationDmaList, locationSchema, blockDmaList,
+        numBitsPerProperty, eventStorageDirectory + "/blocked_bloom_filter_stats.ser");
   }
 }
@@ -0,0 +1,27 @@
+package com.codecademy.eventhub.storage;
+
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.filter.CompiledFilter;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+
+public class EventStorageUtil {
+  // the batch is read through the given storage's getEvents, and the filter is compiled once for
+  // the batch so that the events are matched without decoding their properties
+  public static void visitEvents(EventStorage eventStorage, long[] eventIds, Filter filter,
+      EventStorage.Callback callback) {
+    if (filter == TrueFilter.INSTANCE) {
+      for (long eventId : eventIds) {
+        callback.onEventId(eventId);
+      }
+      return;
+    }
+    CompiledFilter compiledFilter = CompiledFilter.compile(filter);
+    Event[] events = eventStorage.getEvents(eventIds);
+    for (int i = 0; i < eventIds.length; i++) {
+      if (events[i].matches(compiledFilter)) {
+        callback.onEventId(eventIds[i]);
+      }
+    }
+  }
+}
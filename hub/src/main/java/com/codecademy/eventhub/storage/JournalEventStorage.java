@@ -1,9 +1,11 @@
 package com.codecademy.eventhub.storage;
 
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
 import com.codecademy.eventhub.list.DmaList;
 import com.codecademy.eventhub.model.Event;
 import com.codecademy.eventhub.storage.visitor.DelayedVisitorProxy;
+import com.codecademy.eventhub.storage.filter.Filter;
 import com.codecademy.eventhub.storage.visitor.EventFilterVisitor;
 import com.codecademy.eventhub.storage.visitor.Visitor;
 import org.fusesource.hawtjournal.api.Journal;
@@ -12,18 +14,38 @@ import org.fusesource.hawtjournal.api.Location;
 import javax.inject.Provider;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+/**
+ * Batches of events (getEvents) are read in journal location order. With more than one read
+ * thread, the sorted batch is split in as many contiguous slices, which are read concurrently so
+ * that up to numReadThreads reads are in flight on the device.
+ */
 public class JournalEventStorage implements EventStorage {
   private final Journal eventJournal;
   private final MetaData.Schema schema;
   private final DmaList<MetaData> metaDataList;
+  private final ByteOrder byteOrder;
+  private final ExecutorService readExecutor;
+  private final int numReadThreads;
   private long currentId;
 
   public JournalEventStorage(Journal eventJournal, MetaData.Schema schema,
-      DmaList<MetaData> metaDataList, long currentId) {
+      DmaList<MetaData> metaDataList, ByteOrder byteOrder, ExecutorService readExecutor,
+      int numReadThreads, long currentId) {
     this.eventJournal = eventJournal;
     this.schema = schema;
     this.metaDataList = metaDataList;
+    this.byteOrder = byteOrder;
+    this.readExecutor = readExecutor;
+    this.numReadThreads = numReadThreads;
     this.currentId = currentId;
   }
 
@@ -31,7 +53,7 @@ public class JournalEventStorage implements EventStorage {
   public long addEvent(Event event, int userId, int eventTypeId) {
     try {
       long id = currentId++;
-      byte[] location = JournalUtil.locationToBytes(eventJournal.write(event.toByteBuffer(), true));
+      byte[] location = JournalUtil.locationToBytes(eventJournal.write(event.toByteBuffer(byteOrder), true));
       MetaData metaData = new MetaData(userId, eventTypeId,location);
       metaDataList.add(metaData);
       return id;
@@ -46,12 +68,72 @@ public class JournalEventStorage implements EventStorage {
       Location location = new Location();
       JournalEventStorage.MetaData metaData = metaDataList.get(eventId);
       location.readExternal(ByteStreams.newDataInput(metaData.getLocation()));
-      return Event.fromByteBuffer(eventJournal.read(location));
+      return Event.fromByteBuffer(eventJournal.read(location).order(byteOrder));
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  @Override
+  public Event[] getEvents(long[] eventIds) {
+    try {
+      final Location[] locations = new Location[eventIds.length];
+      Integer[] offsets = new Integer[eventIds.length];
+      for (int i = 0; i < eventIds.length; i++) {
+        locations[i] = new Location();
+        locations[i].readExternal(
+            ByteStreams.newDataInput(metaDataList.get(eventIds[i]).getLocation()));
+        offsets[i] = i;
+      }
+      // sorted by journal file and offset, so that the journal is read mostly sequentially
+      Arrays.sort(offsets, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+          return locations[o1].compareTo(locations[o2]);
+        }
+      });
+      Event[] events = new Event[eventIds.length];
+      if (numReadThreads <= 1 || offsets.length < 2) {
+        readEvents(locations, offsets, 0, offsets.length, events);
+        return events;
+      }
+
+      int sliceSize = (offsets.length + numReadThreads - 1) / numReadThreads;
+      List<Future<Void>> futures = Lists.newArrayListWithCapacity(numReadThreads);
+      for (int from = 0; from < offsets.length; from += sliceSize) {
+        futures.add(readExecutor.submit(new ReadEvents(
+            locations, offsets, from, Math.min(offsets.length, from + sliceSize), events)));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+      return events;
+    } catch (IOException | ExecutionException e) {
+      throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void readEvents(Location[] locations, Integer[] offsets, int from, int to,
+      Event[] events) throws IOException {
+    for (int i = from; i < to; i++) {
+      int offset = offsets[i];
+      events[offset] = Event.fromByteBuffer(eventJournal.read(locations[offset]).order(byteOrder));
+    }
+  }
+
+  @Override
+  public void visitEvents(long[] eventIds, Filter filter, Callback callback) {
+    EventStorageUtil.visitEvents(this, eventIds, filter, callback);
+  }
+
+  @Override
+  public long getNumRecords() {
+    return currentId;
+  }
+
   @Override
   public int getEventTypeId(long eventId) {
     return schema.getEventTypeId(metaDataList.getBytes(eventId));
@@ -75,6 +157,7 @@ public class JournalEventStorage implements EventStorage {
 
   @Override
   public void close() throws IOException {
+    readExecutor.shutdown();
     eventJournal.close();
     metaDataList.close();
   }
@@ -86,8 +169,31 @@ public class JournalEventStorage implements EventStorage {
         indent + this.getClass().getName() + "\n" +
         indent + "==================\n" +
         indent + "current id: %d\n" +
+        indent + "num read threads: %d\n" +
         indent + "metaDataList:\n%s",
-        currentId, metaDataList.getVarz(indentation + 1));
+        currentId, numReadThreads, metaDataList.getVarz(indentation + 1));
+  }
+
+  private class ReadEvents implements Callable<Void> {
+    private final Location[] locations;
+    private final Integer[] offsets;
+    private final int from;
+    private final int to;
+    private final Event[] events;
+
+    public ReadEvents(Location[] locations, Integer[] offsets, int from, int to, Event[] events) {
+      this.locations = locations;
+      this.offsets = offsets;
+      this.from = from;
+      this.to = to;
+      this.events = events;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      readEvents(locations, offsets, from, to, events);
+      return null;
+    }
   }
 
   public static class MetaData {
@@ -107,6 +213,11 @@ public class JournalEventStorage implements EventStorage {
 
     public static class Schema implements com.codecademy.eventhub.base.Schema<MetaData> {
       private static final int LOCATION_SIZE = 13; // in bytes
+      private final ByteOrder byteOrder;
+
+      public Schema(ByteOrder byteOrder) {
+        this.byteOrder = byteOrder;
+      }
 
       @Override
       public int getObjectSize() {
@@ -115,7 +226,7 @@ public class JournalEventStorage implements EventStorage {
 
       @Override
       public byte[] toBytes(MetaData metaData) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(getObjectSize());
+        ByteBuffer byteBuffer = ByteBuffer.allocate(getObjectSize()).order(byteOrder);
         byteBuffer.putInt(metaData.userId)
             .putInt(metaData.eventTypeId)
             .put(metaData.location);
@@ -124,7 +235,7 @@ public class JournalEventStorage implements EventStorage {
 
       @Override
       public MetaData fromBytes(byte[] bytes) {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes).order(byteOrder);
         int userId = byteBuffer.getInt();
         int eventTypeId = byteBuffer.getInt();
         byte[] location = new byte[LOCATION_SIZE];
@@ -133,12 +244,12 @@ public class JournalEventStorage implements EventStorage {
       }
 
       public int getEventTypeId(byte[] bytes) {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes).order(byteOrder);
         return byteBuffer.getInt(4 /* the first 4 bytes are userId*/);
       }
 
       public int getUserId(byte[] bytes) {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes).order(byteOrder);
         return byteBuffer.getInt();
       }
     }
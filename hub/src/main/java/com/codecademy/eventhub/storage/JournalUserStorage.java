@@ -2,8 +2,11 @@ package com.codecademy.eventhub.storage;
 
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
+import com.codecademy.eventhub.index.InvertedUserIndex;
 import com.codecademy.eventhub.list.DmaList;
 import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.storage.filter.CompiledFilter;
+import com.codecademy.eventhub.storage.filter.Filter;
 import com.codecademy.eventhub.storage.visitor.DelayedVisitorProxy;
 import com.codecademy.eventhub.storage.visitor.UserFilterVisitor;
 import com.codecademy.eventhub.storage.visitor.Visitor;
@@ -13,16 +16,25 @@ import org.fusesource.hawtjournal.api.Location;
 import javax.inject.Provider;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class JournalUserStorage implements UserStorage {
   private final Journal userJournal;
   private DmaList<MetaData> metaDataList;
   private final IdMap idMap;
+  private final ByteOrder byteOrder;
+  private final InvertedUserIndex invertedUserIndex;
 
-  public JournalUserStorage(Journal userJournal, DmaList<MetaData> metaDataList, IdMap idMap) {
+  public JournalUserStorage(Journal userJournal, DmaList<MetaData> metaDataList, IdMap idMap,
+      ByteOrder byteOrder, InvertedUserIndex invertedUserIndex) {
     this.userJournal = userJournal;
     this.metaDataList = metaDataList;
     this.idMap = idMap;
+    this.byteOrder = byteOrder;
+    this.invertedUserIndex = invertedUserIndex;
+    for (int userId = invertedUserIndex.getNumIndexedUsers(); userId < getNumRecords(); userId++) {
+      invertedUserIndex.addUser(userId, getUser(userId));
+    }
   }
 
   @Override
@@ -34,10 +46,11 @@ public class JournalUserStorage implements UserStorage {
     User user = new User.Builder(externalUserId, Maps.<String, String>newHashMap()).build();
     try {
       id = idMap.incrementNextAvailableId();
-      byte[] location = JournalUtil.locationToBytes(userJournal.write(user.toByteBuffer(), true));
+      byte[] location = JournalUtil.locationToBytes(userJournal.write(user.toByteBuffer(byteOrder), true));
       MetaData metaData = new MetaData(location);
       metaDataList.add(metaData);
       idMap.put(externalUserId, id);
+      invertedUserIndex.addUser(id, user);
       return id;
     } catch (IOException e) {
       throw new RuntimeException(e);
@@ -53,9 +66,11 @@ public class JournalUserStorage implements UserStorage {
   public synchronized int updateUser(User user) {
     int id = getId(user.getExternalId());
     try {
-      byte[] location = JournalUtil.locationToBytes(userJournal.write(user.toByteBuffer(), true));
+      User oldUser = getUser(id);
+      byte[] location = JournalUtil.locationToBytes(userJournal.write(user.toByteBuffer(byteOrder), true));
       MetaData metaData = new MetaData(location);
       metaDataList.update(id, metaData);
+      invertedUserIndex.updateUser(id, oldUser, user);
       return id;
     } catch (IOException e) {
       throw new RuntimeException(e);
@@ -74,7 +89,7 @@ public class JournalUserStorage implements UserStorage {
       Location location = new Location();
       JournalUserStorage.MetaData metaData = metaDataList.get(userId);
       location.readExternal(ByteStreams.newDataInput(metaData.getLocation()));
-      return User.fromByteBuffer(userJournal.read(location));
+      return User.fromByteBuffer(userJournal.read(location).order(byteOrder));
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -91,6 +106,16 @@ public class JournalUserStorage implements UserStorage {
     });
   }
 
+  @Override
+  public boolean matches(int userId, CompiledFilter filter) {
+    return filter.isAcceptAll() || getUser(userId).matches(filter);
+  }
+
+  @Override
+  public InvertedUserIndex.Query getIndexedQuery(Filter filter) {
+    return invertedUserIndex.getQuery(filter);
+  }
+
   @Override
   public void alias(String fromExternalUserId, int toUserId) {
     idMap.put(fromExternalUserId, toUserId);
@@ -101,6 +126,7 @@ public class JournalUserStorage implements UserStorage {
     idMap.close();
     userJournal.close();
     metaDataList.close();
+    invertedUserIndex.close();
   }
 
   @Override
@@ -110,9 +136,11 @@ public class JournalUserStorage implements UserStorage {
         indent + this.getClass().getName() + "\n" +
         indent + "==================\n" +
         indent + "current id: %d\n" +
-        indent + "metaDataList:\n%s",
+        indent + "metaDataList:\n%s\n" +
+        indent + "invertedUserIndex:\n%s",
         idMap.getCurrentId(),
-        metaDataList.getVarz(indentation + 1));
+        metaDataList.getVarz(indentation + 1),
+        invertedUserIndex.getVarz(indentation + 1));
   }
 
   public static class MetaData {
@@ -1,6 +1,9 @@
 package com.codecademy.eventhub.storage;
 
+import com.codecademy.eventhub.index.InvertedUserIndex;
 import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.storage.filter.CompiledFilter;
+import com.codecademy.eventhub.storage.filter.Filter;
 import com.codecademy.eventhub.storage.visitor.Visitor;
 
 import java.io.Closeable;
@@ -13,6 +16,9 @@ public interface UserStorage extends Closeable {
   int getId(String externalUserId);
   User getUser(int userId);
   Visitor getFilterVisitor(int userId);
+  boolean matches(int userId, CompiledFilter filter);
+  // null when the filter has no term the index answers
+  InvertedUserIndex.Query getIndexedQuery(Filter filter);
   void alias(String fromExternalUserId, int toUserId);
   int getNumRecords();
   String getVarz(int indentation);
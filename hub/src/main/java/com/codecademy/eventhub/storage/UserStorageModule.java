@@ -1,13 +1,15 @@
 package com.codecademy.eventhub.storage;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.codecademy.eventhub.base.BloomFilter;
 import com.codecademy.eventhub.base.DB;
+import com.codecademy.eventhub.base.DataFormat;
+import com.codecademy.eventhub.base.FrequencySketch;
+import com.codecademy.eventhub.base.OffHeapCache;
+import com.codecademy.eventhub.index.InvertedUserIndex;
+import com.codecademy.eventhub.list.DmaFileFactories;
 import com.codecademy.eventhub.list.DmaList;
-import com.codecademy.eventhub.model.User;
 import org.fusesource.hawtjournal.api.Journal;
 import org.fusesource.leveldbjni.JniDBFactory;
 import org.iq80.leveldb.Options;
@@ -18,6 +20,9 @@ import java.io.File;
 import java.io.IOException;
 
 public class UserStorageModule extends AbstractModule {
+  private static final int AVERAGE_RECORD_SIZE = 128; // in bytes
+  private static final int MAX_FREQUENCY_SKETCH_WIDTH = 1 << 24;
+
   @Override
   protected void configure() {}
 
@@ -32,9 +37,11 @@ public class UserStorageModule extends AbstractModule {
       JournalUserStorage.MetaData.Schema schema,
       @Named("eventhub.userstorage.directory") String userStorageDirectory,
       @Named("eventhub.journaluserstorage.numMetaDataPerFile") int numMetaDataPerFile,
-      @Named("eventhub.journaluserstorage.metaDataFileCacheSize") int metaDataFileCacheSize) {
+      @Named("eventhub.journaluserstorage.metaDataFileCacheSize") int metaDataFileCacheSize,
+      @Named("eventhub.journaluserstorage.metaDataBackend") String metaDataBackend,
+      DmaFileFactories dmaFileFactories) {
     return DmaList.build(schema, userStorageDirectory + "/meta_data/", numMetaDataPerFile,
-        metaDataFileCacheSize);
+        metaDataFileCacheSize, dmaFileFactories.get(metaDataBackend));
   }
 
   @Provides
@@ -57,23 +64,37 @@ public class UserStorageModule extends AbstractModule {
     return IdMap.create(new DB(JniDBFactory.factory.open(new File(filename), options)));
   }
 
+  @Provides
+  public InvertedUserIndex getInvertedUserIndex(
+      @Named("eventhub.userstorage.directory") String userStorageDirectory,
+      @Named("eventhub.inverteduserindex.maxCardinality") int maxCardinality) {
+    return InvertedUserIndex.build(userStorageDirectory + "/inverted_user_index.ser",
+        maxCardinality);
+  }
+
   @Provides
   public JournalUserStorage getJournalUserStorage(
       final @Named("eventhub.journaluserstorage") Journal userJournal,
       final DmaList<JournalUserStorage.MetaData> metaDataList,
-      IdMap idMap) {
-    return new JournalUserStorage(userJournal, metaDataList, idMap);
+      IdMap idMap,
+      DataFormat dataFormat,
+      InvertedUserIndex invertedUserIndex) {
+    return new JournalUserStorage(userJournal, metaDataList, idMap, dataFormat.getByteOrder(),
+        invertedUserIndex);
   }
 
   @Provides
   public CachedUserStorage getCachedEventStorage(
       JournalUserStorage journalUserStorage,
-      @Named("eventhub.cacheduserstorage.recordCacheSize") int recordCacheSize) {
-    Cache<Integer, User> userCache = CacheBuilder.newBuilder()
-        .maximumSize(recordCacheSize)
-        .recordStats()
-        .build();
-
+      @Named("eventhub.cacheduserstorage.cacheSize") long cacheSize,
+      @Named("eventhub.cacheduserstorage.cacheSegmentSize") int cacheSegmentSize,
+      DataFormat dataFormat) {
+    // about one sketch counter per cached record
+    FrequencySketch frequencySketch = new FrequencySketch(
+        (int) Math.min(MAX_FREQUENCY_SKETCH_WIDTH, cacheSize / AVERAGE_RECORD_SIZE));
+    OffHeapCache userCache = new OffHeapCache(cacheSegmentSize,
+        (int) Math.max(1, cacheSize / cacheSegmentSize), dataFormat.getByteOrder(),
+        frequencySketch);
     return new CachedUserStorage(journalUserStorage, userCache);
   }
 
@@ -84,11 +105,14 @@ public class UserStorageModule extends AbstractModule {
       @Named("eventhub.bloomfiltereduserstorage.numHashes") int numHashes,
       @Named("eventhub.bloomfiltereduserstorage.bloomFilterSize") int bloomFilterSize,
       @Named("eventhub.bloomfiltereduserstorage.numMetaDataPerFile") int numMetaDataPerFile,
-      @Named("eventhub.bloomfiltereduserstorage.metaDataFileCacheSize") int metaDataFileCacheSize) {
+      @Named("eventhub.bloomfiltereduserstorage.metaDataFileCacheSize") int metaDataFileCacheSize,
+      @Named("eventhub.bloomfiltereduserstorage.metaDataBackend") String metaDataBackend,
+      DmaFileFactories dmaFileFactories) {
     return DmaList.build(new BloomFilter.Schema(numHashes, bloomFilterSize),
         userStorageDirectory + "/bloom_filtered_user_storage_meta_data/",
         numMetaDataPerFile,
-        metaDataFileCacheSize);
+        metaDataFileCacheSize,
+        dmaFileFactories.get(metaDataBackend));
   }
 
   @Provides
@@ -1,6 +1,7 @@
 package com.codecademy.eventhub.storage.filter;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.codecademy.eventhub.storage.visitor.Visitor;
 
 import java.util.List;
@@ -22,6 +23,22 @@ public class And implements Filter {
     return true;
   }
 
+  public List<Filter> getFilters() {
+    return filters;
+  }
+
+  // a conjunction doesn't depend on the order of its filters
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof And
+        && Sets.newHashSet(filters).equals(Sets.newHashSet(((And) o).filters));
+  }
+
+  @Override
+  public int hashCode() {
+    return Sets.newHashSet(filters).hashCode();
+  }
+
   public static And of(Filter... filters) {
     return new And(Lists.newArrayList(filters));
   }
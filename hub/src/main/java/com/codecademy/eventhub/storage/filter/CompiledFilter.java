@@ -0,0 +1,87 @@
+package com.codecademy.eventhub.storage.filter;
+
+import com.codecademy.eventhub.base.ByteBufferMap;
+import com.codecademy.eventhub.storage.visitor.Visitor;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * CompiledFilter is a filter flattened, once per query, into the conjunction of its terms with
+ * their keys and values encoded as the properties of events and users are. It is evaluated against
+ * their serialized properties in place, see ByteBufferMap.indexOf, so that exact matches allocate
+ * nothing and decode nothing. They're checked before the regexes, which decode the values they
+ * match, and the first term rejecting the record stops the evaluation.
+ *
+ * A record without the key of a term is rejected by it, as by EventFilterVisitor.
+ */
+public class CompiledFilter {
+  public static final CompiledFilter ACCEPT_ALL = compile(TrueFilter.INSTANCE);
+
+  private final List<ExactMatch> exactMatches;
+  private final byte[][] exactMatchKeys;
+  private final byte[][] exactMatchValues;
+  private final byte[][] regexKeys;
+  private final Pattern[] regexPatterns;
+
+  private CompiledFilter(List<ExactMatch> exactMatches, List<Regex> regexes) {
+    this.exactMatches = exactMatches;
+    this.exactMatchKeys = new byte[exactMatches.size()][];
+    this.exactMatchValues = new byte[exactMatches.size()][];
+    for (int i = 0; i < exactMatchKeys.length; i++) {
+      exactMatchKeys[i] = ByteBufferMap.encode(exactMatches.get(i).getKey());
+      exactMatchValues[i] = ByteBufferMap.encode(exactMatches.get(i).getValue());
+    }
+    this.regexKeys = new byte[regexes.size()][];
+    this.regexPatterns = new Pattern[regexes.size()];
+    for (int i = 0; i < regexKeys.length; i++) {
+      regexKeys[i] = ByteBufferMap.encode(regexes.get(i).getKey());
+      regexPatterns[i] = regexes.get(i).getPattern();
+    }
+  }
+
+  public boolean accept(ByteBufferMap properties) {
+    for (int i = 0; i < exactMatchKeys.length; i++) {
+      int index = properties.indexOf(exactMatchKeys[i]);
+      if (index < 0 || !properties.valueEquals(index, exactMatchValues[i])) {
+        return false;
+      }
+    }
+    for (int i = 0; i < regexKeys.length; i++) {
+      int index = properties.indexOf(regexKeys[i]);
+      if (index < 0 || !regexPatterns[i].matcher(properties.getValue(index)).matches()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean isAcceptAll() {
+    return exactMatchKeys.length == 0 && regexKeys.length == 0;
+  }
+
+  // the exact match terms, which bloom filters can rule out
+  public List<ExactMatch> getExactMatches() {
+    return exactMatches;
+  }
+
+  public static CompiledFilter compile(Filter filter) {
+    final List<ExactMatch> exactMatches = Lists.newArrayList();
+    final List<Regex> regexes = Lists.newArrayList();
+    filter.accept(new Visitor() {
+      @Override
+      public boolean visit(ExactMatch exactMatch) {
+        exactMatches.add(exactMatch);
+        return true;
+      }
+
+      @Override
+      public boolean visit(Regex regex) {
+        regexes.add(regex);
+        return true;
+      }
+    });
+    return new CompiledFilter(exactMatches, regexes);
+  }
+}
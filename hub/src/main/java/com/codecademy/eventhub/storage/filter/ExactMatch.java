@@ -2,6 +2,8 @@ package com.codecademy.eventhub.storage.filter;
 
 import com.codecademy.eventhub.storage.visitor.Visitor;
 
+import java.util.Objects;
+
 public class ExactMatch implements Filter {
   private final String key;
   private final String value;
@@ -23,4 +25,18 @@ public class ExactMatch implements Filter {
   public String getValue() {
     return value;
   }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ExactMatch)) {
+      return false;
+    }
+    ExactMatch exactMatch = (ExactMatch) o;
+    return key.equals(exactMatch.key) && value.equals(exactMatch.value);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(key, value);
+  }
 }
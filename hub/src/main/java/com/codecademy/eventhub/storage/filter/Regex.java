@@ -2,6 +2,7 @@ package com.codecademy.eventhub.storage.filter;
 
 import com.codecademy.eventhub.storage.visitor.Visitor;
 
+import java.util.Objects;
 import java.util.regex.Pattern;
 
 public class Regex implements Filter {
@@ -25,4 +26,20 @@ public class Regex implements Filter {
   public Pattern getPattern() {
     return pattern;
   }
+
+  // Pattern doesn't implement equals, patterns are compared by their expression and flags
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof Regex)) {
+      return false;
+    }
+    Regex regex = (Regex) o;
+    return key.equals(regex.key) && pattern.pattern().equals(regex.pattern.pattern())
+        && pattern.flags() == regex.pattern.flags();
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(key, pattern.pattern(), pattern.flags());
+  }
 }
@@ -0,0 +1,88 @@
+package com.codecademy.eventhub.base;
+
+import com.google.common.collect.Sets;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class BitmapTest {
+  @Test
+  public void testAll() throws Exception {
+    Random random = new Random(0);
+    // sparse, dense and mixed containers
+    Set<Integer> aSet = Sets.newTreeSet();
+    Set<Integer> bSet = Sets.newTreeSet();
+    for (int i = 0; i < 20000; i++) {
+      aSet.add(random.nextInt(1 << 16));
+      aSet.add((1 << 17) + random.nextInt(1 << 20));
+      bSet.add(random.nextInt(1 << 16));
+      bSet.add(random.nextInt(1 << 18));
+    }
+    Bitmap a = build(aSet);
+    Bitmap b = build(bSet);
+    verify(aSet, a);
+    verify(bSet, b);
+
+    Set<Integer> andSet = Sets.newTreeSet(Sets.intersection(aSet, bSet));
+    verify(andSet, Bitmap.and(a, b));
+    Assert.assertEquals(andSet.size(), Bitmap.andCardinality(a, b));
+    verify(Sets.newTreeSet(Sets.union(aSet, bSet)), Bitmap.or(a, b));
+    // the operands are left untouched
+    verify(aSet, a);
+    verify(bSet, b);
+
+    for (int value : bSet) {
+      a.remove(value);
+      aSet.remove(value);
+    }
+    verify(aSet, a);
+    Assert.assertEquals(0, Bitmap.andCardinality(a, b));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    b.writeTo(new DataOutputStream(bytes));
+    verify(bSet, Bitmap.readFrom(new DataInputStream(
+        new ByteArrayInputStream(bytes.toByteArray()))));
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    Bitmap bitmap = new Bitmap();
+    Assert.assertTrue(bitmap.isEmpty());
+    bitmap.add(70000);
+    bitmap.remove(70000);
+    Assert.assertTrue(bitmap.isEmpty());
+    Assert.assertFalse(bitmap.iterator().hasNext());
+    Bitmap other = new Bitmap();
+    other.add(1);
+    Bitmap and = Bitmap.and(bitmap, other);
+    Assert.assertTrue(and.isEmpty());
+    and.add(2);
+    Assert.assertArrayEquals(new int[] { 2 }, and.toArray());
+  }
+
+  private static Bitmap build(Set<Integer> values) {
+    Bitmap bitmap = new Bitmap();
+    for (int value : values) {
+      bitmap.add(value);
+    }
+    return bitmap;
+  }
+
+  private static void verify(Set<Integer> expected, Bitmap bitmap) {
+    Assert.assertEquals(expected.size(), bitmap.getCardinality());
+    int[] expectedValues = new int[expected.size()];
+    int i = 0;
+    for (int value : new TreeSet<>(expected)) {
+      expectedValues[i++] = value;
+      Assert.assertTrue(bitmap.contains(value));
+    }
+    Assert.assertArrayEquals(expectedValues, bitmap.toArray());
+  }
+}
@@ -0,0 +1,59 @@
+package com.codecademy.eventhub.base;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+
+public class BlockedBloomFilterTest {
+  @Test
+  public void testAll() throws Exception {
+    int numKeys = 100;
+    int numBlocks = BlockedBloomFilter.getNumBlocks(numKeys, 10);
+    Assert.assertEquals(2, numBlocks);
+    int numHashes = BlockedBloomFilter.getNumHashes(numKeys, numBlocks);
+    Assert.assertEquals(7, numHashes);
+
+    // a filter in the middle of a larger array
+    int offset = 3 * BlockedBloomFilter.BLOCK_SIZE;
+    byte[] bytes = new byte[offset + numBlocks * BlockedBloomFilter.BLOCK_SIZE + 1];
+    for (int i = 0; i < numKeys; i++) {
+      BlockedBloomFilter.add(bytes, offset, numBlocks, numHashes,
+          BlockedBloomFilter.getKey("key" + i));
+    }
+    for (int i = 0; i < offset; i++) {
+      Assert.assertEquals(0, bytes[i]);
+    }
+    Assert.assertEquals(0, bytes[bytes.length - 1]);
+    for (int i = 0; i < numKeys; i++) {
+      Assert.assertTrue(BlockedBloomFilter.isPresent(bytes, offset, numBlocks, numHashes,
+          BlockedBloomFilter.getKey("key" + i)));
+    }
+
+    int numFalsePositives = 0;
+    int numTrials = 100000;
+    for (int i = 0; i < numTrials; i++) {
+      if (BlockedBloomFilter.isPresent(bytes, offset, numBlocks, numHashes,
+          BlockedBloomFilter.getKey("other" + i))) {
+        numFalsePositives++;
+      }
+    }
+    double falsePositiveRate = BlockedBloomFilter.getFalsePositiveRate(
+        numKeys, numBlocks, numHashes);
+    Assert.assertTrue(falsePositiveRate > 0.001 && falsePositiveRate < 0.01);
+    // blocking costs some accuracy, but not an order of magnitude
+    Assert.assertTrue((double) numFalsePositives / numTrials < 5 * falsePositiveRate);
+  }
+
+  @Test
+  public void testLocationSchema() throws Exception {
+    BlockedBloomFilter.Location.Schema schema =
+        new BlockedBloomFilter.Location.Schema(ByteOrder.LITTLE_ENDIAN);
+    BlockedBloomFilter.Location location = schema.fromBytes(
+        schema.toBytes(new BlockedBloomFilter.Location(1L << 40, 3, 42, 7)));
+    Assert.assertEquals(1L << 40, location.getFirstBlockId());
+    Assert.assertEquals(3, location.getNumBlocks());
+    Assert.assertEquals(42, location.getNumKeys());
+    Assert.assertEquals(7, location.getNumHashes());
+  }
+}
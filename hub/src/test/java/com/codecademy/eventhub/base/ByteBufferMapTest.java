@@ -4,6 +4,7 @@ import com.google.common.collect.Maps;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.ByteOrder;
 import java.util.Map;
 
 public class ByteBufferMapTest {
@@ -34,6 +35,65 @@ public class ByteBufferMapTest {
     callback.verify(3);
   }
 
+  @Test
+  public void testIndexOf() throws Exception {
+    Map<String, String> properties = Maps.newHashMap();
+    properties.put("a", "b");
+    properties.put("ab", "");
+    properties.put("hello", "world");
+    properties.put("z\u00fcrich", "city");
+
+    // a key beyond ASCII, which is looked for one key at a time rather than by binary search
+    boolean isAscii = true;
+    for (byte b : ByteBufferMap.encode("z\u00fcrich")) {
+      isAscii &= b >= 0;
+    }
+    Assert.assertFalse(isAscii);
+
+    for (ByteOrder byteOrder : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+      ByteBufferMap byteBufferMap = ByteBufferMap.build(properties, byteOrder);
+      Assert.assertEquals(0, byteBufferMap.indexOf(ByteBufferMap.encode("a")));
+      Assert.assertEquals(1, byteBufferMap.indexOf(ByteBufferMap.encode("ab")));
+      Assert.assertEquals(2, byteBufferMap.indexOf(ByteBufferMap.encode("hello")));
+      Assert.assertEquals(3, byteBufferMap.indexOf(ByteBufferMap.encode("z\u00fcrich")));
+      Assert.assertEquals(-1, byteBufferMap.indexOf(ByteBufferMap.encode("")));
+      Assert.assertEquals(-1, byteBufferMap.indexOf(ByteBufferMap.encode("hell")));
+      Assert.assertEquals(-1, byteBufferMap.indexOf(ByteBufferMap.encode("zzz")));
+      Assert.assertEquals(-1, byteBufferMap.indexOf(ByteBufferMap.encode("z\u00fcrichs")));
+
+      Assert.assertTrue(byteBufferMap.valueEquals(0, ByteBufferMap.encode("b")));
+      Assert.assertTrue(byteBufferMap.valueEquals(1, ByteBufferMap.encode("")));
+      Assert.assertFalse(byteBufferMap.valueEquals(1, ByteBufferMap.encode("b")));
+      Assert.assertTrue(byteBufferMap.valueEquals(2, ByteBufferMap.encode("world")));
+      Assert.assertFalse(byteBufferMap.valueEquals(2, ByteBufferMap.encode("worle")));
+      Assert.assertEquals("city", byteBufferMap.getValue(3));
+    }
+  }
+
+  @Test
+  public void testByteOrder() throws Exception {
+    Map<String, String> properties = Maps.newHashMap();
+    properties.put("a", "b");
+    properties.put("hello", "world");
+
+    ByteBufferMap littleEndian = ByteBufferMap.build(properties);
+    Assert.assertEquals(ByteOrder.LITTLE_ENDIAN, littleEndian.getByteOrder());
+    Assert.assertEquals(2, littleEndian.toByteBuffer().get(0));
+
+    ByteBufferMap bigEndian = littleEndian.withByteOrder(ByteOrder.BIG_ENDIAN);
+    Assert.assertEquals(ByteOrder.BIG_ENDIAN, bigEndian.getByteOrder());
+    Assert.assertEquals(2, bigEndian.toByteBuffer().get(3));
+    Assert.assertEquals("b", bigEndian.get("a"));
+    Assert.assertEquals("world", bigEndian.get("hello"));
+    Assert.assertSame(bigEndian, bigEndian.withByteOrder(ByteOrder.BIG_ENDIAN));
+
+    // the byte order of the given buffer is kept
+    bigEndian = new ByteBufferMap(bigEndian.toByteBuffer());
+    Assert.assertEquals("world", bigEndian.get("hello"));
+    Assert.assertEquals(littleEndian.toByteBuffer(),
+        bigEndian.withByteOrder(ByteOrder.LITTLE_ENDIAN).toByteBuffer());
+  }
+
   private static class MyCallback implements KeyValueCallback {
     private final String[] expectedKeys;
     private final String[] expectedValues;
@@ -0,0 +1,100 @@
+package com.codecademy.eventhub.base;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Interleaves reads of a hot working set, as issued by dashboards, with large one-off scans, as
+ * issued by funnel and cohort queries, and reports the hit rate of the hot reads with FIFO
+ * admission, TinyLFU admission and TinyLFU admission with the scans in a ScanScope. The last run
+ * interleaves the one-off reads with the hot reads instead, outside a ScanScope, e.g.
+ *   java -cp ... CacheAdmissionBenchmark [numHotRecords] [numScanRecords]
+ */
+public class CacheAdmissionBenchmark {
+  private static final int RECORD_SIZE = 64; // in bytes
+  private static final int SEGMENT_SIZE = 64 * 1024;
+  private static final int NUM_ROUNDS = 50;
+  private static final int NUM_HOT_READS_PER_ROUND = 100000;
+
+  public static void main(String[] args) {
+    int numHotRecords = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int numScanRecords = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+    // room for twice the hot set
+    int numSegments = Math.max(2, 2 * numHotRecords * (RECORD_SIZE + 4) / SEGMENT_SIZE);
+
+    double fifo = run(new OffHeapCache(SEGMENT_SIZE, numSegments, ByteOrder.nativeOrder()),
+        numHotRecords, numScanRecords, false, false);
+    double tinyLfu = run(new OffHeapCache(SEGMENT_SIZE, numSegments, ByteOrder.nativeOrder(),
+        new FrequencySketch(numSegments * SEGMENT_SIZE / RECORD_SIZE)),
+        numHotRecords, numScanRecords, false, false);
+    double tinyLfuScanScope = run(new OffHeapCache(SEGMENT_SIZE, numSegments,
+        ByteOrder.nativeOrder(), new FrequencySketch(numSegments * SEGMENT_SIZE / RECORD_SIZE)),
+        numHotRecords, numScanRecords, true, false);
+    double tinyLfuInterleaved = run(new OffHeapCache(SEGMENT_SIZE, numSegments,
+        ByteOrder.nativeOrder(), new FrequencySketch(numSegments * SEGMENT_SIZE / RECORD_SIZE)),
+        numHotRecords, numScanRecords, false, true);
+    System.out.println(String.format("hot hit rate, fifo: %.4f", fifo));
+    System.out.println(String.format("hot hit rate, tinylfu: %.4f", tinyLfu));
+    System.out.println(String.format("hot hit rate, tinylfu + scan scope: %.4f",
+        tinyLfuScanScope));
+    System.out.println(String.format("hot hit rate, tinylfu + interleaved one-off reads: %.4f",
+        tinyLfuInterleaved));
+  }
+
+  private static double run(OffHeapCache cache, int numHotRecords, int numScanRecords,
+      boolean isScanScoped, boolean isInterleaved) {
+    Random random = new Random(0);
+    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    long nextScanKey = numHotRecords;
+    long numHotHits = 0;
+    long numHotReads = 0;
+    int numOneOffReadsPerHotRead = Math.max(1, numScanRecords / NUM_HOT_READS_PER_ROUND);
+    for (int round = 0; round < NUM_ROUNDS; round++) {
+      for (int i = 0; i < NUM_HOT_READS_PER_ROUND; i++) {
+        // skewed towards the lower keys
+        long key = (long) (numHotRecords * Math.pow(random.nextDouble(), 2));
+        if (round > 0) {
+          numHotReads++;
+          if (read(cache, key, record) != null) {
+            numHotHits++;
+          }
+        } else {
+          read(cache, key, record);
+        }
+        if (isInterleaved) {
+          nextScanKey = scan(cache, nextScanKey, numOneOffReadsPerHotRead, record);
+        }
+      }
+      if (isInterleaved) {
+        continue;
+      }
+      if (isScanScoped) {
+        try (ScanScope scanScope = ScanScope.open()) {
+          nextScanKey = scan(cache, nextScanKey, numScanRecords, record);
+        }
+      } else {
+        nextScanKey = scan(cache, nextScanKey, numScanRecords, record);
+      }
+    }
+    System.out.println(cache.getVarz(2));
+    return (double) numHotHits / numHotReads;
+  }
+
+  private static long scan(OffHeapCache cache, long firstKey, int numRecords, ByteBuffer record) {
+    for (long key = firstKey; key < firstKey + numRecords; key++) {
+      read(cache, key, record);
+    }
+    return firstKey + numRecords;
+  }
+
+  // reads through the cache, as CachedEventStorage does
+  private static ByteBuffer read(OffHeapCache cache, long key, ByteBuffer record) {
+    ByteBuffer cached = cache.get(key);
+    if (cached == null) {
+      record.putLong(0, key);
+      cache.put(key, record.duplicate());
+    }
+    return cached;
+  }
+}
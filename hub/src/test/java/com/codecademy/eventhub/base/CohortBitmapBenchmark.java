@@ -0,0 +1,109 @@
+package com.codecademy.eventhub.base;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Builds a row cohort of numUsers synthetic users out of 4 times as many, along with numColumns
+ * column cohorts retaining fewer and fewer of them, and reports the time to build the cohorts and
+ * compute the retention cells, and the memory they take, with HashSet<Integer> as getRetentionTable
+ * used to and with Bitmap, e.g.
+ *   java -cp ... CohortBitmapBenchmark [numUsers] [numColumns]
+ */
+public class CohortBitmapBenchmark {
+  private static final int NUM_RUNS = 5;
+
+  public static void main(String[] args) {
+    int numUsers = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int numColumns = args.length > 1 ? Integer.parseInt(args[1]) : 7;
+    int[][] cohorts = getCohorts(numUsers, numColumns);
+
+    for (int run = 0; run < NUM_RUNS; run++) {
+      long usedMemory = getUsedMemory();
+      long startTime = System.nanoTime();
+      List<Set<Integer>> sets = Lists.newArrayList();
+      for (int[] cohort : cohorts) {
+        Set<Integer> set = Sets.newHashSet();
+        for (int userId : cohort) {
+          set.add(userId);
+        }
+        sets.add(set);
+      }
+      long buildTime = System.nanoTime() - startTime;
+      long setsMemory = getUsedMemory() - usedMemory;
+      startTime = System.nanoTime();
+      long checksum = 0;
+      for (int i = 1; i < sets.size(); i++) {
+        for (Integer userId : sets.get(i)) {
+          if (sets.get(0).contains(userId)) {
+            checksum++;
+          }
+        }
+      }
+      long intersectTime = System.nanoTime() - startTime;
+      System.out.println(String.format(
+          "hash set, build: %d ms, retention cells: %d ms, memory: ~%d MB, checksum: %d",
+          buildTime / 1000000, intersectTime / 1000000, setsMemory >> 20, checksum));
+      sets = null;
+
+      usedMemory = getUsedMemory();
+      startTime = System.nanoTime();
+      List<Bitmap> bitmaps = Lists.newArrayList();
+      for (int[] cohort : cohorts) {
+        Bitmap bitmap = new Bitmap();
+        for (int userId : cohort) {
+          bitmap.add(userId);
+        }
+        bitmaps.add(bitmap);
+      }
+      buildTime = System.nanoTime() - startTime;
+      long bitmapsMemory = getUsedMemory() - usedMemory;
+      long bitmapsSize = 0;
+      for (Bitmap bitmap : bitmaps) {
+        bitmapsSize += bitmap.getSizeInBytes();
+      }
+      startTime = System.nanoTime();
+      checksum = 0;
+      for (int i = 1; i < bitmaps.size(); i++) {
+        checksum += Bitmap.andCardinality(bitmaps.get(0), bitmaps.get(i));
+      }
+      intersectTime = System.nanoTime() - startTime;
+      System.out.println(String.format(
+          "bitmap, build: %d ms, retention cells: %d ms, memory: ~%d MB (%d KB of containers), " +
+          "checksum: %d", buildTime / 1000000, intersectTime / 1000000, bitmapsMemory >> 20,
+          bitmapsSize >> 10, checksum));
+    }
+  }
+
+  // the row cohort first, user ids in the order their events would be enumerated, i.e. random
+  private static int[][] getCohorts(int numUsers, int numColumns) {
+    Random random = new Random(0);
+    int numAllUsers = 4 * numUsers;
+    int[][] cohorts = new int[numColumns + 1][];
+    cohorts[0] = new int[numUsers];
+    for (int i = 0; i < numUsers; i++) {
+      cohorts[0][i] = random.nextInt(numAllUsers);
+    }
+    for (int column = 1; column <= numColumns; column++) {
+      double retention = 0.5 / column;
+      cohorts[column] = new int[numUsers];
+      for (int i = 0; i < numUsers; i++) {
+        cohorts[column][i] = random.nextDouble() < retention ?
+            cohorts[0][i] : random.nextInt(numAllUsers);
+      }
+    }
+    return cohorts;
+  }
+
+  private static long getUsedMemory() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
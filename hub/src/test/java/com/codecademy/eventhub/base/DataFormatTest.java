@@ -0,0 +1,70 @@
+package com.codecademy.eventhub.base;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteOrder;
+
+public class DataFormatTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testNewDirectory() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    DataFormat dataFormat = DataFormat.open(directory);
+    Assert.assertEquals(DataFormat.VERSION, dataFormat.getVersion());
+    Assert.assertEquals(ByteOrder.LITTLE_ENDIAN, dataFormat.getByteOrder());
+
+    // the header wins over the files found in the directory
+    createLegacyFile(directory);
+    Assert.assertEquals(ByteOrder.LITTLE_ENDIAN, DataFormat.open(directory).getByteOrder());
+  }
+
+  @Test
+  public void testLegacyDirectory() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    createLegacyFile(directory);
+    Assert.assertEquals(ByteOrder.BIG_ENDIAN, DataFormat.open(directory).getByteOrder());
+    Assert.assertEquals(ByteOrder.BIG_ENDIAN, DataFormat.open(directory).getByteOrder());
+  }
+
+  @Test
+  public void testUnsupportedHeader() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    writeHeader(directory, DataFormat.VERSION + 1, ByteOrder.LITTLE_ENDIAN.toString());
+    try {
+      DataFormat.open(directory);
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage().contains("version"));
+    }
+
+    writeHeader(directory, DataFormat.VERSION, "MIDDLE_ENDIAN");
+    try {
+      DataFormat.open(directory);
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage().contains("byte order"));
+    }
+  }
+
+  private void writeHeader(String directory, int version, String byteOrder) throws Exception {
+    try (ObjectOutputStream oos = new ObjectOutputStream(
+        new FileOutputStream(new File(directory, "data_format.ser")))) {
+      oos.writeInt(version);
+      oos.writeUTF(byteOrder);
+    }
+  }
+
+  private void createLegacyFile(String directory) throws Exception {
+    File file = new File(directory, "user_storage/meta_data/meta_data.mem");
+    Assert.assertTrue(file.getParentFile().mkdirs());
+    Assert.assertTrue(file.createNewFile());
+  }
+}
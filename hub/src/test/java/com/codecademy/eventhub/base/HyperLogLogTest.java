@@ -0,0 +1,64 @@
+package com.codecademy.eventhub.base;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+public class HyperLogLogTest {
+  @Test
+  public void testAll() throws Exception {
+    HyperLogLog a = new HyperLogLog(12);
+    Assert.assertTrue(a.isEmpty());
+    Assert.assertEquals(0, a.getCardinality());
+    for (int i = 0; i < 10; i++) {
+      a.add(i);
+      a.add(i);
+    }
+    // few ids are counted exactly by linear counting
+    Assert.assertEquals(10, a.getCardinality());
+
+    HyperLogLog b = new HyperLogLog(12);
+    for (int i = 0; i < 100000; i++) {
+      a.add(i);
+      b.add(50000 + i);
+    }
+    // a standard error of 1.6%
+    assertWithin(100000, a.getCardinality(), 0.05);
+    assertWithin(100000, b.getCardinality(), 0.05);
+    assertWithin(150000, HyperLogLog.union(a, b).getCardinality(), 0.05);
+    assertWithin(50000, HyperLogLog.intersectionCardinality(a, b), 0.15);
+    // the operands are left untouched
+    assertWithin(100000, a.getCardinality(), 0.05);
+
+    HyperLogLog c = new HyperLogLog(12);
+    c.add(1);
+    Assert.assertEquals(a.getCardinality(), HyperLogLog.union(a, c).getCardinality());
+    Assert.assertEquals(0, HyperLogLog.intersectionCardinality(c, new HyperLogLog(12)));
+
+    try {
+      a.merge(new HyperLogLog(10));
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // dense and sparse sketches
+    for (HyperLogLog sketch : new HyperLogLog[] { a, c }) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      sketch.writeTo(new DataOutputStream(bytes));
+      HyperLogLog read = HyperLogLog.readFrom(new DataInputStream(
+          new ByteArrayInputStream(bytes.toByteArray())));
+      Assert.assertEquals(sketch.getCardinality(), read.getCardinality());
+      Assert.assertEquals(sketch.getCardinality(), HyperLogLog.union(sketch, read).getCardinality());
+    }
+  }
+
+  private void assertWithin(long expected, long actual, double error) {
+    Assert.assertTrue(String.format("expected %d, was %d", expected, actual),
+        Math.abs(actual - expected) <= error * expected);
+  }
+}
@@ -0,0 +1,158 @@
+package com.codecademy.eventhub.base;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class OffHeapCacheTest {
+  @Test
+  public void testAll() throws Exception {
+    // room for two 12 bytes records (+ 4 bytes length) per segment
+    OffHeapCache cache = new OffHeapCache(32, 2, ByteOrder.LITTLE_ENDIAN);
+    Assert.assertNull(cache.get(1));
+    for (int i = 0; i < 4; i++) {
+      cache.put(i, record(i));
+    }
+    Assert.assertEquals(64, cache.getMemoryUsed());
+    for (int i = 0; i < 4; i++) {
+      verify(cache.get(i), i);
+    }
+
+    // evicts the oldest segment, i.e. records 0 and 1
+    ByteBuffer view = cache.get(0);
+    cache.put(4, record(4));
+    Assert.assertEquals(2, cache.getNumEvictions());
+    Assert.assertEquals(64, cache.getMemoryUsed());
+    Assert.assertNull(cache.get(0));
+    Assert.assertNull(cache.get(1));
+    verify(cache.get(2), 2);
+    verify(cache.get(4), 4);
+    // views outlive the eviction of their segment
+    verify(view, 0);
+
+    cache.invalidate(2);
+    Assert.assertNull(cache.get(2));
+    cache.put(3, record(33));
+    verify(cache.get(3), 33);
+
+    // too large to be cached
+    cache.put(5, ByteBuffer.allocate(32));
+    Assert.assertNull(cache.get(5));
+  }
+
+  @Test
+  public void testManyRecords() throws Exception {
+    OffHeapCache cache = new OffHeapCache(1024, 4, ByteOrder.BIG_ENDIAN);
+    int numRecords = 10000;
+    for (int i = 0; i < numRecords; i++) {
+      cache.put(i * 7919L, record(i));
+    }
+    // only the most recent records fit, the others have been evicted
+    int numCached = 0;
+    for (int i = 0; i < numRecords; i++) {
+      ByteBuffer cached = cache.get(i * 7919L);
+      if (cached != null) {
+        verify(cached, i);
+        numCached++;
+      }
+    }
+    Assert.assertTrue(numCached > 0 && numCached <= 4 * 1024 / 16);
+    verify(cache.get((numRecords - 1) * 7919L), numRecords - 1);
+    Assert.assertEquals(numRecords - numCached, cache.getNumEvictions());
+  }
+
+  @Test
+  public void testAdmission() throws Exception {
+    OffHeapCache cache = new OffHeapCache(32, 2, ByteOrder.LITTLE_ENDIAN, new FrequencySketch(64));
+    for (int i = 0; i < 4; i++) {
+      cache.put(i, record(i));
+    }
+    // records 0 and 1 are in the segment to be evicted next, and both are frequently read
+    for (int round = 0; round < 3; round++) {
+      verify(cache.get(0), 0);
+      verify(cache.get(1), 1);
+    }
+    // a record read once doesn't evict them
+    Assert.assertNull(cache.get(4));
+    cache.put(4, record(4));
+    Assert.assertNull(cache.get(4));
+    Assert.assertEquals(0, cache.getNumEvictions());
+    verify(cache.get(0), 0);
+
+    // a record read more often than them does, and as many of them as fit in half a segment are
+    // moved to the new segment rather than evicted
+    for (int round = 0; round < 8; round++) {
+      cache.get(5);
+    }
+    cache.put(5, record(5));
+    verify(cache.get(5), 5);
+    Assert.assertEquals(1, cache.getNumEvictions());
+    verify(cache.get(0), 0);
+    Assert.assertNull(cache.get(1));
+    verify(cache.get(2), 2);
+  }
+
+  @Test
+  public void testAdmissionWithRoomLeft() throws Exception {
+    OffHeapCache cache = new OffHeapCache(48, 2, ByteOrder.LITTLE_ENDIAN, new FrequencySketch(64));
+    for (int i = 0; i < 6; i++) {
+      cache.put(i, record(i));
+    }
+    for (int round = 0; round < 3; round++) {
+      verify(cache.get(3), 3);
+      verify(cache.get(4), 4);
+      verify(cache.get(5), 5);
+    }
+    for (int round = 0; round < 8; round++) {
+      cache.get(6);
+    }
+    // evicts the first segment and leaves room for two more records in the new one
+    cache.put(6, record(6));
+    Assert.assertEquals(3, cache.getNumEvictions());
+
+    // one-off reads outside a ScanScope aren't admitted even though they'd fit, as they'd bring
+    // the eviction of the frequently read records closer
+    for (int i = 7; i < 9; i++) {
+      Assert.assertNull(cache.get(i));
+      cache.put(i, record(i));
+      Assert.assertNull(cache.get(i));
+    }
+    Assert.assertEquals(3, cache.getNumEvictions());
+    for (int i = 3; i < 7; i++) {
+      verify(cache.get(i), i);
+    }
+  }
+
+  @Test
+  public void testScanScope() throws Exception {
+    OffHeapCache cache = new OffHeapCache(32, 2, ByteOrder.LITTLE_ENDIAN, new FrequencySketch(64));
+    cache.put(0, record(0));
+    try (ScanScope scanScope = ScanScope.open()) {
+      Assert.assertTrue(ScanScope.isActive());
+      // cached records are still served, but nothing new is cached
+      verify(cache.get(0), 0);
+      cache.put(1, record(1));
+      Assert.assertNull(cache.get(1));
+    }
+    Assert.assertFalse(ScanScope.isActive());
+    cache.put(1, record(1));
+    verify(cache.get(1), 1);
+  }
+
+  private static ByteBuffer record(int i) {
+    ByteBuffer record = ByteBuffer.allocate(12);
+    record.putInt(i).putLong(-i);
+    record.flip();
+    return record;
+  }
+
+  private static void verify(ByteBuffer cached, int i) {
+    Assert.assertEquals(12, cached.remaining());
+    ByteBuffer record = record(i);
+    byte[] bytes = new byte[12];
+    cached.duplicate().get(bytes);
+    Assert.assertArrayEquals(record.array(), bytes);
+  }
+}
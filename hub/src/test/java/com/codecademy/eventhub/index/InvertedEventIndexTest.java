@@ -0,0 +1,103 @@
+package com.codecademy.eventhub.index;
+
+import com.codecademy.eventhub.integration.GuiceTestCase;
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.filter.And;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.Regex;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Injector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.inject.Provider;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+public class InvertedEventIndexTest extends GuiceTestCase {
+  @Test
+  public void testAll() throws Exception {
+    Provider<InvertedEventIndex> invertedEventIndexProvider = getInvertedEventIndexProvider();
+    InvertedEventIndex invertedEventIndex = invertedEventIndexProvider.get();
+
+    invertedEventIndex.addEvent(0, newEvent("signup", "20130101", "web", "us"));
+    invertedEventIndex.addEvent(1, newEvent("signup", "20130101", "ios", "us"));
+    invertedEventIndex.addEvent(2, newEvent("signup", "20130102", "web", "fr"));
+    invertedEventIndex.addEvent(3, newEvent("pageview", "20130102", "web", "us"));
+    invertedEventIndex.addEvent(4, newEvent("signup", "20130103", "web", "us"));
+    invertedEventIndex.addEvent(5, newEvent("signup", "20130103", "android", "de"));
+
+    Filter filter = And.of(new ExactMatch("platform", "web"), new ExactMatch("country", "us"));
+    InvertedEventIndex.Query query = invertedEventIndex.getQuery("signup", filter);
+    Assert.assertSame(TrueFilter.INSTANCE, query.getRemainingFilter());
+    assertEventIds(new long[] { 0, 4 }, invertedEventIndex, query, "20130101", "20130103");
+    assertEventIds(new long[] { 0 }, invertedEventIndex, query, "20130101", "20130102");
+    assertEventIds(new long[] {}, invertedEventIndex, query, "20130104", "20130105");
+
+    Filter regexFilter = And.of(new ExactMatch("platform", "web"),
+        new Regex("country", Pattern.compile("u.")));
+    query = invertedEventIndex.getQuery("signup", regexFilter);
+    Assert.assertSame(regexFilter, query.getRemainingFilter());
+    assertEventIds(new long[] { 0, 2, 4 }, invertedEventIndex, query, "20130101", "20130103");
+
+    Assert.assertNull(invertedEventIndex.getQuery("signup",
+        new Regex("country", Pattern.compile("u."))));
+    Assert.assertNull(invertedEventIndex.getQuery("signup", TrueFilter.INSTANCE));
+
+    // country goes past the max cardinality of 3 for signups but not for pageviews
+    invertedEventIndex.addEvent(6, newEvent("signup", "20130104", "web", "uk"));
+    Assert.assertNull(invertedEventIndex.getQuery("signup", new ExactMatch("country", "us")));
+    query = invertedEventIndex.getQuery("signup", filter);
+    Assert.assertSame(filter, query.getRemainingFilter());
+    assertEventIds(new long[] { 0, 2, 4, 6 }, invertedEventIndex, query, "20130101", "20130104");
+    query = invertedEventIndex.getQuery("pageview", new ExactMatch("country", "us"));
+    assertEventIds(new long[] { 3 }, invertedEventIndex, query, "20130101", "20130104");
+
+    invertedEventIndex.close();
+    invertedEventIndex = invertedEventIndexProvider.get();
+
+    Assert.assertEquals(7, invertedEventIndex.getNumIndexedEvents());
+    Assert.assertNull(invertedEventIndex.getQuery("signup", new ExactMatch("country", "us")));
+    query = invertedEventIndex.getQuery("signup", new ExactMatch("platform", "web"));
+    assertEventIds(new long[] { 0, 2, 4, 6 }, invertedEventIndex, query, "20130101", "20130104");
+    invertedEventIndex.addEvent(7, newEvent("signup", "20130104", "ios", "us"));
+    query = invertedEventIndex.getQuery("signup", new ExactMatch("platform", "ios"));
+    assertEventIds(new long[] { 1, 7 }, invertedEventIndex, query, "20130101", "20130104");
+  }
+
+  private void assertEventIds(long[] expectedEventIds, InvertedEventIndex invertedEventIndex,
+      InvertedEventIndex.Query query, String startDate, String endDate) {
+    final List<Long> eventIds = Lists.newArrayList();
+    invertedEventIndex.enumerateEventIds(query, startDate, endDate, new EventIndex.Callback() {
+      @Override
+      public void onEventId(long eventId) {
+        eventIds.add(eventId);
+      }
+    });
+    Assert.assertEquals(expectedEventIds.length, eventIds.size());
+    for (int i = 0; i < expectedEventIds.length; i++) {
+      Assert.assertEquals(expectedEventIds[i], eventIds.get(i).longValue());
+    }
+  }
+
+  private Event newEvent(String eventType, String date, String platform, String country) {
+    Map<String, String> properties = Maps.newHashMap();
+    properties.put("platform", platform);
+    properties.put("country", country);
+    return new Event.Builder(eventType, "user", date, properties).build();
+  }
+
+  private Provider<InvertedEventIndex> getInvertedEventIndexProvider() {
+    Properties prop = new Properties();
+    prop.put("eventhub.directory", getTempDirectory());
+    prop.put("eventhub.invertedeventindex.maxCardinality", "3");
+
+    Injector injector = createInjectorFor(prop, new InvertedEventIndexModule());
+    return injector.getProvider(InvertedEventIndex.class);
+  }
+}
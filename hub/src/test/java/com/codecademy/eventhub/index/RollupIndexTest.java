@@ -0,0 +1,79 @@
+package com.codecademy.eventhub.index;
+
+import com.codecademy.eventhub.integration.GuiceTestCase;
+import com.codecademy.eventhub.model.Event;
+import com.google.common.collect.Maps;
+import com.google.inject.Injector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.inject.Provider;
+import java.util.Map;
+import java.util.Properties;
+
+public class RollupIndexTest extends GuiceTestCase {
+  @Test
+  public void testAll() throws Exception {
+    Provider<RollupIndex> rollupIndexProvider = getRollupIndexProvider();
+    RollupIndex rollupIndex = rollupIndexProvider.get();
+
+    rollupIndex.addEvent(0, newEvent("signup", "20130101", "web", "us"));
+    rollupIndex.addEvent(1, newEvent("signup", "20130101", "ios", "us"));
+    rollupIndex.addEvent(2, newEvent("signup", "20130102", "web", "fr"));
+    rollupIndex.addEvent(3, newEvent("pageview", "20130102", "web", "us"));
+    rollupIndex.addEvent(4, newEvent("signup", "20130104", "web", "us"));
+    rollupIndex.addEvent(5, newEvent("signup", "20130104", "android", "de"));
+
+    Assert.assertArrayEquals(new int[] { 2, 1, 0, 2 },
+        rollupIndex.getCounts("signup", "20130101", "20130104"));
+    Assert.assertArrayEquals(new int[] { 1, 0 },
+        rollupIndex.getCounts("signup", "20130102", "20130103"));
+    Assert.assertArrayEquals(new int[] { 0, 1, 0 },
+        rollupIndex.getCounts("pageview", "20130101", "20130103"));
+    Assert.assertArrayEquals(new int[] { 0, 0 },
+        rollupIndex.getCounts("unknown", "20130101", "20130102"));
+
+    Map<String, int[]> counts = rollupIndex.getCounts("signup", "platform", "20130101", "20130104");
+    Assert.assertEquals(3, counts.size());
+    Assert.assertArrayEquals(new int[] { 1, 1, 0, 1 }, counts.get("web"));
+    Assert.assertArrayEquals(new int[] { 1, 0, 0, 0 }, counts.get("ios"));
+    Assert.assertArrayEquals(new int[] { 0, 0, 0, 1 }, counts.get("android"));
+    Assert.assertNull(rollupIndex.getCounts("signup", "external_user_id", "20130101", "20130104"));
+
+    // country goes past the max cardinality of 3 for signups but not for pageviews
+    rollupIndex.addEvent(6, newEvent("signup", "20130104", "web", "uk"));
+    Assert.assertNull(rollupIndex.getCounts("signup", "country", "20130101", "20130104"));
+    Assert.assertArrayEquals(new int[] { 2, 1, 0, 3 },
+        rollupIndex.getCounts("signup", "20130101", "20130104"));
+    counts = rollupIndex.getCounts("pageview", "country", "20130101", "20130104");
+    Assert.assertArrayEquals(new int[] { 0, 1, 0, 0 }, counts.get("us"));
+
+    rollupIndex.close();
+    rollupIndex = rollupIndexProvider.get();
+
+    Assert.assertEquals(7, rollupIndex.getNumIndexedEvents());
+    Assert.assertNull(rollupIndex.getCounts("signup", "country", "20130101", "20130104"));
+    rollupIndex.addEvent(7, newEvent("signup", "20130103", "ios", "us"));
+    Assert.assertArrayEquals(new int[] { 2, 1, 1, 3 },
+        rollupIndex.getCounts("signup", "20130101", "20130104"));
+    counts = rollupIndex.getCounts("signup", "platform", "20130101", "20130104");
+    Assert.assertArrayEquals(new int[] { 1, 0, 1, 0 }, counts.get("ios"));
+    Assert.assertArrayEquals(new int[] { 1, 1, 0, 2 }, counts.get("web"));
+  }
+
+  private Event newEvent(String eventType, String date, String platform, String country) {
+    Map<String, String> properties = Maps.newHashMap();
+    properties.put("platform", platform);
+    properties.put("country", country);
+    return new Event.Builder(eventType, "user", date, properties).build();
+  }
+
+  private Provider<RollupIndex> getRollupIndexProvider() {
+    Properties prop = new Properties();
+    prop.put("eventhub.directory", getTempDirectory());
+    prop.put("eventhub.rollupindex.maxCardinality", "3");
+
+    Injector injector = createInjectorFor(prop, new RollupIndexModule());
+    return injector.getProvider(RollupIndex.class);
+  }
+}
@@ -2,6 +2,7 @@ package com.codecademy.eventhub.index;
 
 import com.google.inject.Injector;
 import com.codecademy.eventhub.integration.GuiceTestCase;
+import com.codecademy.eventhub.list.DmaFileModule;
 import com.codecademy.eventhub.list.DmaIdListModule;
 import org.junit.Assert;
 import org.junit.Test;
@@ -68,9 +69,14 @@ public class ShardedEventIndexTest extends GuiceTestCase {
     Properties prop = new Properties();
     prop.put("eventhub.directory", getTempDirectory());
     prop.put("eventhub.eventindex.initialNumEventIdsPerDay", "1");
+    prop.put("eventhub.dmaidlist.backend", "mmap");
+    prop.put("eventhub.bufferpool.pageSize", "64");
+    prop.put("eventhub.bufferpool.numPages", "2");
+    prop.put("eventhub.bufferpool.numSegments", "2");
+    prop.put("eventhub.pooleddmafile.maxIdleFiles", "2");
 
     Injector injector = createInjectorFor(
-        prop, new DmaIdListModule(), new ShardedEventIndexModule());
+        prop, new DmaFileModule(), new DmaIdListModule(), new ShardedEventIndexModule());
     return injector.getProvider(ShardedEventIndex.class);
   }
 
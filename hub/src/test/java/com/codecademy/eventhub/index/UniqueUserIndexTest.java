@@ -0,0 +1,80 @@
+package com.codecademy.eventhub.index;
+
+import com.codecademy.eventhub.base.HyperLogLog;
+import com.codecademy.eventhub.integration.GuiceTestCase;
+import com.codecademy.eventhub.model.Event;
+import com.google.common.collect.Maps;
+import com.google.inject.Injector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.inject.Provider;
+import java.util.Map;
+import java.util.Properties;
+
+public class UniqueUserIndexTest extends GuiceTestCase {
+  @Test
+  public void testAll() throws Exception {
+    Provider<UniqueUserIndex> uniqueUserIndexProvider = getUniqueUserIndexProvider();
+    UniqueUserIndex uniqueUserIndex = uniqueUserIndexProvider.get();
+
+    uniqueUserIndex.addEvent(0, newEvent("signup", "20130101", "web", "us"), 0);
+    uniqueUserIndex.addEvent(1, newEvent("signup", "20130101", "ios", "us"), 1);
+    uniqueUserIndex.addEvent(2, newEvent("signup", "20130102", "web", "fr"), 0);
+    uniqueUserIndex.addEvent(3, newEvent("pageview", "20130102", "web", "us"), 2);
+    uniqueUserIndex.addEvent(4, newEvent("signup", "20130104", "web", "us"), 3);
+    uniqueUserIndex.addEvent(5, newEvent("signup", "20130104", "android", "de"), 4);
+
+    Assert.assertEquals(4, uniqueUserIndex.getUsers("signup", "20130101", "20130104")
+        .getCardinality());
+    Assert.assertEquals(1, uniqueUserIndex.getUsers("signup", "20130102", "20130103")
+        .getCardinality());
+    Assert.assertEquals(1, uniqueUserIndex.getUsers("pageview", "20130101", "20130104")
+        .getCardinality());
+    Assert.assertTrue(uniqueUserIndex.getUsers("unknown", "20130101", "20130104").isEmpty());
+
+    Map<String, HyperLogLog> users =
+        uniqueUserIndex.getUsers("signup", "platform", "20130101", "20130104");
+    Assert.assertEquals(3, users.size());
+    Assert.assertEquals(2, users.get("web").getCardinality());
+    Assert.assertEquals(1, users.get("ios").getCardinality());
+    Assert.assertEquals(1, users.get("android").getCardinality());
+    Assert.assertNull(uniqueUserIndex.getUsers("signup", "external_user_id", "20130101",
+        "20130104"));
+
+    // country goes past the max cardinality of 3 for signups but not for pageviews
+    uniqueUserIndex.addEvent(6, newEvent("signup", "20130104", "web", "uk"), 5);
+    Assert.assertNull(uniqueUserIndex.getUsers("signup", "country", "20130101", "20130104"));
+    Assert.assertEquals(1, uniqueUserIndex.getUsers("pageview", "country", "20130101", "20130104")
+        .get("us").getCardinality());
+
+    uniqueUserIndex.close();
+    uniqueUserIndex = uniqueUserIndexProvider.get();
+
+    Assert.assertEquals(7, uniqueUserIndex.getNumIndexedEvents());
+    Assert.assertNull(uniqueUserIndex.getUsers("signup", "country", "20130101", "20130104"));
+    uniqueUserIndex.addEvent(7, newEvent("signup", "20130103", "ios", "us"), 6);
+    Assert.assertEquals(6, uniqueUserIndex.getUsers("signup", "20130101", "20130104")
+        .getCardinality());
+    users = uniqueUserIndex.getUsers("signup", "platform", "20130101", "20130104");
+    Assert.assertEquals(2, users.get("ios").getCardinality());
+    Assert.assertEquals(3, users.get("web").getCardinality());
+  }
+
+  private Event newEvent(String eventType, String date, String platform, String country) {
+    Map<String, String> properties = Maps.newHashMap();
+    properties.put("platform", platform);
+    properties.put("country", country);
+    return new Event.Builder(eventType, "user", date, properties).build();
+  }
+
+  private Provider<UniqueUserIndex> getUniqueUserIndexProvider() {
+    Properties prop = new Properties();
+    prop.put("eventhub.directory", getTempDirectory());
+    prop.put("eventhub.uniqueuserindex.precision", "12");
+    prop.put("eventhub.uniqueuserindex.maxCardinality", "3");
+
+    Injector injector = createInjectorFor(prop, new UniqueUserIndexModule());
+    return injector.getProvider(UniqueUserIndex.class);
+  }
+}
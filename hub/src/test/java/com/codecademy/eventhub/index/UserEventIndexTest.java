@@ -2,18 +2,38 @@ package com.codecademy.eventhub.index;
 
 import com.google.inject.Injector;
 import com.codecademy.eventhub.integration.GuiceTestCase;
+import com.codecademy.eventhub.list.DmaFile;
+import com.codecademy.eventhub.list.DmaFileModule;
+import com.codecademy.eventhub.list.MappedDmaFile;
 import org.junit.Assert;
 import org.junit.Test;
 
 import javax.inject.Provider;
-import java.nio.ByteBuffer;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class UserEventIndexTest extends GuiceTestCase {
   @Test
   public void testAll() throws Exception {
-    Provider<UserEventIndex> dmaUserEventIndexProvider = getDmaUserEventIndexProvider();
+    testAll(false);
+  }
+
+  @Test
+  public void testLegacyLayout() throws Exception {
+    testAll(true);
+  }
+
+  private void testAll(boolean isLegacyLayout) throws Exception {
+    String directory = getTempDirectory();
+    Provider<UserEventIndex> dmaUserEventIndexProvider =
+        getDmaUserEventIndexProvider(directory, 2, 2);
     UserEventIndex userEventIndex = dmaUserEventIndexProvider.get();
     userEventIndex.addEvent(0, 10);
     userEventIndex.addEvent(1, 20);
@@ -41,6 +61,14 @@ public class UserEventIndexTest extends GuiceTestCase {
     callback.verify();
 
     userEventIndex.close();
+    if (isLegacyLayout) {
+      // files written before the layout was persisted, they have to be opened with the same
+      // configuration they were written with
+      downgradeToLegacyLayout(directory);
+    } else {
+      // the persisted layout takes precedence over the configured one
+      dmaUserEventIndexProvider = getDmaUserEventIndexProvider(directory, 3, 3);
+    }
     userEventIndex = dmaUserEventIndexProvider.get();
 
     callback = new IdVerificationCallback(new int[] { 20, 50, 80, 110 });
@@ -54,6 +82,31 @@ public class UserEventIndexTest extends GuiceTestCase {
     callback = new IdVerificationCallback(new int[] { 20, 50, 80 });
     userEventIndex.enumerateEventIds(1, userEventIndex.getEventOffset(1, 20), 3, callback);
     callback.verify();
+
+    userEventIndex.addEvent(1, 130);
+    userEventIndex.addEvent(3, 140);
+    callback = new IdVerificationCallback(new int[] { 20, 50, 80, 110, 130 });
+    userEventIndex.enumerateEventIds(1, userEventIndex.getEventOffset(1, 1), Integer.MAX_VALUE, callback);
+    callback.verify();
+    callback = new IdVerificationCallback(new int[] { 140 });
+    userEventIndex.enumerateEventIds(3, userEventIndex.getEventOffset(3, 1), Integer.MAX_VALUE, callback);
+    callback.verify();
+    userEventIndex.close();
+  }
+
+  private void downgradeToLegacyLayout(String directory) throws IOException {
+    String blockFactoryFilename = directory + "/user_event_index/block_factory.ser";
+    long currentPointer;
+    try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(blockFactoryFilename))) {
+      currentPointer = ois.readLong();
+    }
+    try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(blockFactoryFilename))) {
+      oos.writeLong(currentPointer);
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(
+        directory + "/user_event_index/meta_data.mem", "rw")) {
+      raf.setLength(8);
+    }
   }
 
   private static class IdVerificationCallback implements UserEventIndex.Callback {
@@ -81,13 +134,14 @@ public class UserEventIndexTest extends GuiceTestCase {
     int blockOffset = 10;
     long pointer = 2000;
     int minId = 5;
-    ByteBuffer metaDataByteBuffer = ByteBuffer.allocate(UserEventIndex.Block.MetaData.SIZE);
-    ByteBuffer blockByteBuffer = ByteBuffer.allocate(1000);
+    DmaFile file = new MappedDmaFile.Factory(ByteOrder.LITTLE_ENDIAN).open(
+        getTempDirectory() + "/block.mem", UserEventIndex.Block.MetaData.SIZE + 1000);
     long prevBlockPointer = 1000;
     long nextBlockPointer = 3000;
 
-    UserEventIndex.Block.MetaData metaData = new UserEventIndex.Block.MetaData(metaDataByteBuffer);
-    UserEventIndex.Block block = new UserEventIndex.Block(metaData, blockByteBuffer);
+    UserEventIndex.Block.MetaData metaData = new UserEventIndex.Block.MetaData(file, 0);
+    UserEventIndex.Block block = new UserEventIndex.Block(metaData, file,
+        UserEventIndex.Block.MetaData.SIZE);
     metaData.setBlockOffset(blockOffset);
     metaData.setPointer(pointer);
     metaData.setMinId(minId);
@@ -112,8 +166,8 @@ public class UserEventIndexTest extends GuiceTestCase {
     Assert.assertEquals(2, block.findOffset(30));
     Assert.assertEquals(3, block.findOffset(40));
 
-    block = new UserEventIndex.Block(new UserEventIndex.Block.MetaData(metaDataByteBuffer),
-        blockByteBuffer);
+    block = new UserEventIndex.Block(new UserEventIndex.Block.MetaData(file, 0), file,
+        UserEventIndex.Block.MetaData.SIZE);
     Assert.assertEquals(minId, block.getMetaData().getMinId());
     Assert.assertEquals(pointer, block.getMetaData().getPointer());
     Assert.assertEquals(prevBlockPointer, block.getMetaData().getPrevBlockPointer());
@@ -138,7 +192,7 @@ public class UserEventIndexTest extends GuiceTestCase {
     UserEventIndex.IndexEntry indexEntry = new UserEventIndex.IndexEntry(
         new AtomicInteger(numRecords), minId, pointers, minIds);
     UserEventIndex.IndexEntry.Schema schema = new UserEventIndex.IndexEntry.Schema(
-        numPointers);
+        numPointers, ByteOrder.LITTLE_ENDIAN);
 
     Assert.assertEquals(minId, indexEntry.getMinId());
     Assert.assertEquals(numRecords, indexEntry.getNumRecords());
@@ -149,13 +203,15 @@ public class UserEventIndexTest extends GuiceTestCase {
     Assert.assertEquals(1L, indexEntry.getMinIdInIndex(0));
     Assert.assertEquals(-1, indexEntry.getMinIdInIndex(1));
 
+    DmaFile file = new MappedDmaFile.Factory(ByteOrder.LITTLE_ENDIAN).open(
+        getTempDirectory() + "/block.mem", 5 * UserEventIndex.Block.MetaData.SIZE);
     for (int i = 1; i < 5; i++) {
       UserEventIndex.Block.MetaData metaData = new UserEventIndex.Block.MetaData(
-          ByteBuffer.allocate(UserEventIndex.Block.MetaData.SIZE));
+          file, i * UserEventIndex.Block.MetaData.SIZE);
       metaData.setBlockOffset(i);
       metaData.setPointer(i * 100);
       metaData.setMinId(i * 10);
-      indexEntry.shiftBlock(new UserEventIndex.Block(metaData, null));
+      indexEntry.shiftBlock(new UserEventIndex.Block(metaData, null, 0));
     }
     Assert.assertEquals(400L, indexEntry.getPointer(0));
     Assert.assertEquals(300L, indexEntry.getPointer(1));
@@ -175,18 +231,24 @@ public class UserEventIndexTest extends GuiceTestCase {
     Assert.assertEquals(20L, indexEntry.getMinIdInIndex(2));
   }
 
-  private Provider<UserEventIndex> getDmaUserEventIndexProvider() {
+  private Provider<UserEventIndex> getDmaUserEventIndexProvider(String directory,
+      int numIndexEntryPerFile, int numBlocksPerFile) {
     Properties prop = new Properties();
-    prop.put("eventhub.directory", getTempDirectory());
+    prop.put("eventhub.directory", directory);
     prop.put("eventhub.usereventindex.numPointersPerIndexEntry", "2");
-    prop.put("eventhub.usereventindex.numIndexEntryPerFile", "2");
+    prop.put("eventhub.usereventindex.numIndexEntryPerFile", String.valueOf(numIndexEntryPerFile));
     prop.put("eventhub.usereventindex.indexEntryFileCacheSize", "2");
+    prop.put("eventhub.usereventindex.indexEntryBackend", "pread");
+    prop.put("eventhub.bufferpool.pageSize", "64");
+    prop.put("eventhub.bufferpool.numPages", "2");
+    prop.put("eventhub.bufferpool.numSegments", "2");
+    prop.put("eventhub.pooleddmafile.maxIdleFiles", "2");
     prop.put("eventhub.usereventindex.numRecordsPerBlock", "2");
-    prop.put("eventhub.usereventindex.numBlocksPerFile", "2");
+    prop.put("eventhub.usereventindex.numBlocksPerFile", String.valueOf(numBlocksPerFile));
     prop.put("eventhub.usereventindex.blockCacheSize", "2");
 
     Injector injector = createInjectorFor(
-        prop, new UserEventIndexModule());
+        prop, new DmaFileModule(), new UserEventIndexModule());
     return injector.getProvider(UserEventIndex.class);
   }
 }
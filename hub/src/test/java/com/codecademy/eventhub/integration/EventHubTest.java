@@ -9,24 +9,42 @@ import com.google.inject.Injector;
 import com.google.inject.Key;
 import com.google.inject.name.Names;
 import com.codecademy.eventhub.*;
+import com.codecademy.eventhub.index.ActiveUserIndex;
+import com.codecademy.eventhub.index.ActiveUserIndexModule;
 import com.codecademy.eventhub.index.DatedEventIndex;
 import com.codecademy.eventhub.index.DatedEventIndexModule;
 import com.codecademy.eventhub.index.EventIndex;
+import com.codecademy.eventhub.index.InvertedEventIndex;
+import com.codecademy.eventhub.index.InvertedEventIndexModule;
 import com.codecademy.eventhub.index.PropertiesIndex;
 import com.codecademy.eventhub.index.PropertiesIndexModule;
+import com.codecademy.eventhub.index.RollupIndex;
+import com.codecademy.eventhub.index.RollupIndexModule;
 import com.codecademy.eventhub.index.ShardedEventIndex;
 import com.codecademy.eventhub.index.ShardedEventIndexModule;
+import com.codecademy.eventhub.index.UniqueUserIndex;
+import com.codecademy.eventhub.index.UniqueUserIndexModule;
 import com.codecademy.eventhub.index.UserEventIndex;
 import com.codecademy.eventhub.index.UserEventIndexModule;
+import com.codecademy.eventhub.list.DmaFileFactories;
+import com.codecademy.eventhub.list.DmaFileModule;
 import com.codecademy.eventhub.list.DmaIdListModule;
 import com.codecademy.eventhub.model.Event;
 import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.query.QueryCache;
+import com.codecademy.eventhub.query.QueryCancelledException;
+import com.codecademy.eventhub.query.QueryContext;
+import com.codecademy.eventhub.query.QueryPlan;
+import com.codecademy.eventhub.query.RunningQueries;
+import com.codecademy.eventhub.query.StandingQueries;
+import com.codecademy.eventhub.query.UserSample;
 import com.codecademy.eventhub.storage.EventStorage;
 import com.codecademy.eventhub.storage.EventStorageModule;
 import com.codecademy.eventhub.storage.JournalEventStorage;
 import com.codecademy.eventhub.storage.JournalUserStorage;
 import com.codecademy.eventhub.storage.UserStorageModule;
 import com.codecademy.eventhub.storage.UserStorage;
+import com.codecademy.eventhub.storage.filter.And;
 import com.codecademy.eventhub.storage.filter.ExactMatch;
 import com.codecademy.eventhub.storage.filter.Filter;
 import com.codecademy.eventhub.storage.filter.Regex;
@@ -41,7 +59,9 @@ import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 public class EventHubTest extends GuiceTestCase {
@@ -173,6 +193,49 @@ public class EventHubTest extends GuiceTestCase {
         Lists.transform(eventHub.findUsers(new ExactMatch("external_user_id", "16")), getExternalUserId));
   }
 
+  @Test
+  public void testFindUsers() throws Exception {
+    Provider<EventHub> eventHubProvider = getEventHubProvider();
+    EventHub eventHub = eventHubProvider.get();
+
+    for (int i = 0; i < 10; i++) {
+      eventHub.addOrUpdateUser(new User.Builder("user" + i, ImmutableMap.of(
+          "plan", i % 2 == 0 ? "free" : "pro", "country", i < 5 ? "us" : "fr")).build());
+    }
+    // moves user1 from the pro plan to the free one
+    eventHub.addOrUpdateUser(new User.Builder("user1", ImmutableMap.of(
+        "plan", "free", "country", "us")).build());
+
+    Filter filter = And.of(new ExactMatch("plan", "free"), new ExactMatch("country", "us"));
+    assertUserPages(eventHub, filter, "user0", "user1", "user2", "user4");
+    assertUserPages(eventHub, new ExactMatch("plan", "pro"), "user3", "user5", "user7", "user9");
+    assertUserPages(eventHub, And.of(new ExactMatch("plan", "pro"),
+        new Regex("external_user_id", Pattern.compile("user[5-9]"))), "user5", "user7", "user9");
+    assertUserPages(eventHub, new Regex("plan", Pattern.compile("pr.")),
+        "user3", "user5", "user7", "user9");
+    assertUserPages(eventHub, new ExactMatch("plan", "enterprise"));
+
+    eventHub.close();
+    eventHub = eventHubProvider.get();
+
+    assertUserPages(eventHub, filter, "user0", "user1", "user2", "user4");
+    assertUserPages(eventHub, new ExactMatch("plan", "pro"), "user3", "user5", "user7", "user9");
+  }
+
+  private void assertUserPages(EventHub eventHub, Filter filter, String... externalUserIds) {
+    List<String> foundExternalUserIds = Lists.newArrayList();
+    int cursor = 0;
+    do {
+      EventHub.UserPage userPage = eventHub.findUsers(filter, cursor, 3);
+      Assert.assertTrue(userPage.getUsers().size() <= 3);
+      for (User user : userPage.getUsers()) {
+        foundExternalUserIds.add(user.getExternalId());
+      }
+      cursor = userPage.getNextCursor();
+    } while (cursor != EventHub.UserPage.NO_MORE_USERS);
+    Assert.assertEquals(Lists.newArrayList(externalUserIds), foundExternalUserIds);
+  }
+
   @Test
   public void testConcurrentAddEvent() throws Exception {
     Injector injector = getInjector();
@@ -181,12 +244,19 @@ public class EventHubTest extends GuiceTestCase {
     final ShardedEventIndex shardedEventIndex = injector.getInstance(ShardedEventIndex.class);
     final DatedEventIndex datedEventIndex = injector.getInstance(DatedEventIndex.class);
     final PropertiesIndex propertiesIndex = injector.getInstance(PropertiesIndex.class);
+    final InvertedEventIndex invertedEventIndex = injector.getInstance(InvertedEventIndex.class);
+    final ActiveUserIndex activeUserIndex = injector.getInstance(ActiveUserIndex.class);
+    final RollupIndex rollupIndex = injector.getInstance(RollupIndex.class);
+    final UniqueUserIndex uniqueUserIndex = injector.getInstance(UniqueUserIndex.class);
     final UserEventIndex userEventIndex = injector.getInstance(UserEventIndex.class);
     final EventStorage eventStorage = injector.getInstance(JournalEventStorage.class);
     final UserStorage userStorage = injector.getInstance(JournalUserStorage.class);
 
     final EventHub eventHub = new EventHub(directory, shardedEventIndex, datedEventIndex,
-        propertiesIndex, userEventIndex, eventStorage, userStorage);
+        propertiesIndex, invertedEventIndex, activeUserIndex, rollupIndex, uniqueUserIndex,
+        userEventIndex, eventStorage, userStorage, new ForkJoinPool(2), new QueryCache(1024 * 1024),
+        StandingQueries.build(directory + "/standing_queries/"),
+        injector.getInstance(DmaFileFactories.class));
 
     final int NUM_EVENTS = 2000;
     final int NUM_THREADS = 20; // NUM_EVENTS needs to be muliple of NUM_THREADS
@@ -320,6 +390,305 @@ public class EventHubTest extends GuiceTestCase {
             eventFilters, new ExactMatch("foo3", "bar3")));
   }
 
+  @Test
+  public void testCachedQueries() throws Exception {
+    EventHub eventHub = getEventHubProvider().get();
+
+    final String[] DATES = { "20130101", "20130102" };
+    final String[] funnelSteps = { "signup", "visit" };
+    List<Filter> eventFilters = Lists.<Filter>newArrayList(TrueFilter.INSTANCE, TrueFilter.INSTANCE);
+    Map<String, String> properties = ImmutableMap.of();
+    addEvent(eventHub, "signup", "10", DATES[0], properties);
+    addEvent(eventHub, "signup", "11", DATES[0], properties);
+    addEvent(eventHub, "visit", "10", DATES[1], properties);
+
+    Assert.assertArrayEquals(new int[] { 2, 1 }, eventHub.getFunnelCounts(DATES[0], DATES[0],
+        funnelSteps, 2 /* numDaysToCompleteFunnel */, eventFilters, TrueFilter.INSTANCE));
+    int[][] retentionTable = eventHub.getRetentionTable(DATES[0], DATES[0], 1, 1, "signup",
+        "visit", TrueFilter.INSTANCE, TrueFilter.INSTANCE);
+    Assert.assertArrayEquals(new int[][] { { 2, 1 } }, retentionTable);
+    // callers get their own copy of cached results
+    retentionTable[0][0] = 0;
+    Assert.assertArrayEquals(new int[][] { { 2, 1 } }, eventHub.getRetentionTable(DATES[0],
+        DATES[0], 1, 1, "signup", "visit", TrueFilter.INSTANCE, TrueFilter.INSTANCE));
+
+    // an event within the dates of the cached results invalidates them
+    addEvent(eventHub, "visit", "11", DATES[1], properties);
+    Assert.assertArrayEquals(new int[] { 2, 2 }, eventHub.getFunnelCounts(DATES[0], DATES[0],
+        funnelSteps, 2 /* numDaysToCompleteFunnel */, eventFilters, TrueFilter.INSTANCE));
+    Assert.assertArrayEquals(new int[][] { { 2, 2 } }, eventHub.getRetentionTable(DATES[0],
+        DATES[0], 1, 1, "signup", "visit", TrueFilter.INSTANCE, TrueFilter.INSTANCE));
+
+    // user filtered results are invalidated by user updates
+    Assert.assertArrayEquals(new int[] { 0, 0 }, eventHub.getFunnelCounts(DATES[0], DATES[0],
+        funnelSteps, 2 /* numDaysToCompleteFunnel */, eventFilters, new ExactMatch("plan", "pro")));
+    eventHub.addOrUpdateUser(new User.Builder("10", ImmutableMap.of("plan", "pro")).build());
+    Assert.assertArrayEquals(new int[] { 1, 1 }, eventHub.getFunnelCounts(DATES[0], DATES[0],
+        funnelSteps, 2 /* numDaysToCompleteFunnel */, eventFilters, new ExactMatch("plan", "pro")));
+  }
+
+  @Test
+  public void testStandingQueries() throws Exception {
+    Provider<EventHub> eventHubProvider = getEventHubProvider();
+    final EventHub firstEventHub = eventHubProvider.get();
+    EventHub eventHub = firstEventHub;
+
+    final String[] EVENT_TYPES = { "eventType1", "eventType2", "eventType3" };
+    final String[] DATES = { "20130101", "20130102", "20130103", "20130104", "20130105", "20130106" };
+    final String[] funnelSteps = { EVENT_TYPES[0], EVENT_TYPES[1], EVENT_TYPES[1], EVENT_TYPES[2] };
+    final List<Filter> eventFilters = Lists.<Filter>newArrayList(TrueFilter.INSTANCE,
+        new ExactMatch("foo", "bar"), TrueFilter.INSTANCE, TrueFilter.INSTANCE);
+    final Filter rowEventFilter = new ExactMatch("foo", "bar");
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    Thread addStandingQueries = new Thread() {
+      @Override
+      public void run() {
+        try {
+          firstEventHub.addStandingFunnel("funnel", DATES[1], DATES[3], funnelSteps,
+              2 /* numDaysToCompleteFunnel */, eventFilters);
+          firstEventHub.addStandingCohort("cohort", DATES[0], DATES[3], 2, 1, EVENT_TYPES[0],
+              EVENT_TYPES[1], rowEventFilter, TrueFilter.INSTANCE);
+        } catch (Throwable e) {
+          error.set(e);
+        }
+      }
+    };
+    Random random = new Random(0);
+    for (int i = 0; i < DATES.length; i++) {
+      // the queries are added half way while events keep being added, the events before them
+      // are backfilled
+      if (i == DATES.length / 2) {
+        addStandingQueries.start();
+      }
+      for (int j = 0; j < 100; j++) {
+        addEvent(eventHub, EVENT_TYPES[random.nextInt(EVENT_TYPES.length)],
+            String.valueOf(random.nextInt(30)), DATES[i],
+            ImmutableMap.of("foo", random.nextBoolean() ? "bar" : "baz"));
+      }
+    }
+    addStandingQueries.join();
+    Assert.assertNull(error.get());
+
+    int[] funnelCounts = eventHub.getFunnelCounts(DATES[1], DATES[3], funnelSteps,
+        2 /* numDaysToCompleteFunnel */, eventFilters, TrueFilter.INSTANCE);
+    int[][] retentionTable = eventHub.getRetentionTable(DATES[0], DATES[3], 2, 1, EVENT_TYPES[0],
+        EVENT_TYPES[1], rowEventFilter, TrueFilter.INSTANCE);
+    Assert.assertArrayEquals(funnelCounts, (int[]) eventHub.getStandingQueryResult("funnel"));
+    Assert.assertArrayEquals(retentionTable,
+        (int[][]) eventHub.getStandingQueryResult("cohort"));
+
+    eventHub.close();
+    eventHub = eventHubProvider.get();
+
+    Assert.assertEquals(Lists.newArrayList("cohort", "funnel"), eventHub.getStandingQueryNames());
+    Assert.assertArrayEquals(funnelCounts, (int[]) eventHub.getStandingQueryResult("funnel"));
+    Assert.assertArrayEquals(retentionTable,
+        (int[][]) eventHub.getStandingQueryResult("cohort"));
+    eventHub.removeStandingQuery("cohort");
+
+    eventHub.close();
+    eventHub = eventHubProvider.get();
+
+    Assert.assertEquals(Lists.newArrayList("funnel"), eventHub.getStandingQueryNames());
+  }
+
+  @Test
+  public void testFunnelAcrossTasks() throws Exception {
+    EventHub eventHub = getEventHubProvider().get();
+
+    final String[] EVENT_TYPES = { "eventType1", "eventType2", "eventType3" };
+    final String[] DATES = { "20130101", "20130102", "20130103" };
+    Map<String, String> properties = ImmutableMap.of();
+    // enough users for the funnel to be split into several tasks
+    for (int i = 0; i < 1000; i++) {
+      String externalUserId = String.valueOf(i);
+      eventHub.addOrUpdateUser(new User.Builder(externalUserId,
+          ImmutableMap.of("third", String.valueOf(i % 3 == 0))).build());
+      addEvent(eventHub, EVENT_TYPES[0], externalUserId, DATES[0], properties);
+      if (i % 2 == 0) {
+        addEvent(eventHub, EVENT_TYPES[1], externalUserId, DATES[1], properties);
+      }
+      if (i % 4 == 0) {
+        addEvent(eventHub, EVENT_TYPES[2], externalUserId, DATES[2], properties);
+      }
+    }
+
+    List<Filter> eventFilters = Lists.<Filter>newArrayList(TrueFilter.INSTANCE, TrueFilter.INSTANCE, TrueFilter.INSTANCE);
+    Assert.assertArrayEquals(new int[] { 1000, 500, 250 },
+        eventHub.getFunnelCounts(DATES[0], DATES[2], EVENT_TYPES, 7 /* numDaysToCompleteFunnel */,
+            eventFilters, TrueFilter.INSTANCE));
+    Assert.assertArrayEquals(new int[] { 334, 167, 84 },
+        eventHub.getFunnelCounts(DATES[0], DATES[2], EVENT_TYPES, 7 /* numDaysToCompleteFunnel */,
+            eventFilters, new ExactMatch("third", "true")));
+
+    // the user ids follow the external ones, the sample keeps the same users at every step
+    UserSample sample = new UserSample(0.1);
+    int[] sampledFunnelCounts = new int[3];
+    for (int i = 0; i < 1000; i++) {
+      if (sample.contains(i)) {
+        sampledFunnelCounts[0]++;
+        sampledFunnelCounts[1] += i % 2 == 0 ? 1 : 0;
+        sampledFunnelCounts[2] += i % 4 == 0 ? 1 : 0;
+      }
+    }
+    Assert.assertArrayEquals(sampledFunnelCounts,
+        eventHub.getFunnelCounts(DATES[0], DATES[2], EVENT_TYPES, 7 /* numDaysToCompleteFunnel */,
+            eventFilters, TrueFilter.INSTANCE, sample));
+    UserSample.Estimate estimate = sample.estimate(sampledFunnelCounts[0]);
+    Assert.assertTrue(estimate.getLowerBound() <= 1000 && 1000 <= estimate.getUpperBound());
+
+    // the scans report their progress to the query of the thread, which stops them once cancelled
+    RunningQueries runningQueries = new RunningQueries(60000);
+    try (RunningQueries.Query query = runningQueries.start("funnel", 0)) {
+      eventHub.getFunnelCounts(DATES[0], DATES[1], EVENT_TYPES, 7 /* numDaysToCompleteFunnel */,
+          eventFilters, new ExactMatch("third", "false"));
+      QueryContext.Progress progress = query.getContext().getProgress();
+      Assert.assertTrue(progress.getNumEventsScanned() >= 1000);
+      Assert.assertEquals(666, progress.getNumUsersProcessed());
+
+      query.getContext().cancel();
+      try {
+        eventHub.getFunnelCounts(DATES[0], DATES[2], EVENT_TYPES, 7 /* numDaysToCompleteFunnel */,
+            eventFilters, new ExactMatch("third", "false"));
+        Assert.fail();
+      } catch (QueryCancelledException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testQueriesWhileAddingEvents() throws Exception {
+    final EventHub eventHub = getEventHubProvider().get();
+
+    final String[] EVENT_TYPES = { "signup", "purchase" };
+    final String[] DATES = { "20130101", "20130102", "20130103", "20130104" };
+    final int NUM_USERS = 200;
+    final Map<String, String> properties = ImmutableMap.of();
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        // new event types, dates and users show up while the queries run
+        for (int i = 0; i < NUM_USERS; i++) {
+          String date = DATES[i * DATES.length / NUM_USERS];
+          addEvent(eventHub, EVENT_TYPES[0], String.valueOf(i), date, properties);
+          addEvent(eventHub, EVENT_TYPES[1], String.valueOf(i), date, properties);
+        }
+      }
+    });
+    writer.start();
+    // the funnel needs both event types to exist
+    while (eventHub.getNumEvents() < EVENT_TYPES.length) {
+      Thread.yield();
+    }
+
+    // every query sees the events up to its snapshot, in which every signup was followed by a
+    // purchase but the last one
+    List<Filter> eventFilters = Lists.<Filter>newArrayList(TrueFilter.INSTANCE, TrueFilter.INSTANCE);
+    int numUsers = 0;
+    do {
+      int[] funnelCounts = eventHub.getFunnelCounts(DATES[0], DATES[DATES.length - 1], EVENT_TYPES,
+          7 /* numDaysToCompleteFunnel */, eventFilters, TrueFilter.INSTANCE);
+      Assert.assertTrue(funnelCounts[0] >= numUsers);
+      Assert.assertTrue(funnelCounts[0] - funnelCounts[1] <= 1);
+      numUsers = funnelCounts[0];
+      List<Event> userEvents = eventHub.getUserEvents(String.valueOf(numUsers / 2), 0, 10);
+      Assert.assertTrue(userEvents.size() <= 2);
+    } while (writer.isAlive());
+    writer.join();
+    Assert.assertEquals(2 * NUM_USERS, eventHub.getNumEvents());
+    Assert.assertArrayEquals(new int[] { NUM_USERS, NUM_USERS },
+        eventHub.getFunnelCounts(DATES[0], DATES[DATES.length - 1], EVENT_TYPES,
+            7 /* numDaysToCompleteFunnel */, eventFilters, TrueFilter.INSTANCE));
+  }
+
+  @Test
+  public void testQueryLanguage() throws Exception {
+    EventHub eventHub = getEventHubProvider().get();
+
+    final String[] DATES = { "20130101", "20130102", "20130103" };
+    eventHub.addOrUpdateUser(new User.Builder("10", ImmutableMap.of("plan", "pro")).build());
+    eventHub.addOrUpdateUser(new User.Builder("11", ImmutableMap.of("plan", "free")).build());
+    addEvent(eventHub, "signup", "10", DATES[0], ImmutableMap.of("source", "web"));
+    addEvent(eventHub, "signup", "11", DATES[0], ImmutableMap.of("source", "web"));
+    addEvent(eventHub, "signup", "12", DATES[0], ImmutableMap.of("source", "ios"));
+    addEvent(eventHub, "signup", "13", DATES[1], ImmutableMap.of("source", "web"));
+    // course has too many values to be indexed or rolled up
+    for (int i = 0; i < 6; i++) {
+      addEvent(eventHub, "visit", String.valueOf(10 + i % 4), DATES[1 + i % 2],
+          ImmutableMap.of("source", i % 3 == 0 ? "ios" : "web", "course", "c" + i));
+    }
+
+    Assert.assertArrayEquals(eventHub.getFunnelCounts(DATES[0], DATES[1],
+            new String[] { "signup", "visit" }, 2 /* numDaysToCompleteFunnel */,
+            Lists.<Filter>newArrayList(new ExactMatch("source", "web"), TrueFilter.INSTANCE),
+            new ExactMatch("plan", "pro")),
+        (int[]) eventHub.query("FUNNEL signup[source = web], visit FROM 20130101 TO 20130102"
+            + " WITHIN 2 DAYS WHERE plan = pro"));
+    QueryPlan plan = eventHub.explain("FUNNEL signup[source = web], visit FROM 20130101"
+        + " TO 20130102 WITHIN 2 DAYS");
+    Assert.assertEquals(QueryPlan.AccessPath.INVERTED_INDEX,
+        plan.getSteps().get(0).getAccessPath());
+    Assert.assertNull(plan.getSteps().get(0).getResidualFilter());
+    // the query the funnel runs its first step with
+    Assert.assertNotNull(plan.getSteps().get(0).getEventQuery());
+    Assert.assertEquals(3, plan.getSteps().get(0).getEstimatedRows());
+    Assert.assertEquals(QueryPlan.AccessPath.USER_TIMELINES,
+        plan.getSteps().get(plan.getSteps().size() - 1).getAccessPath());
+
+    Assert.assertArrayEquals(eventHub.getRetentionTable(DATES[0], DATES[1], 1, 1, "signup",
+            "visit", TrueFilter.INSTANCE, new ExactMatch("source", "web")),
+        (int[][]) eventHub.query("COHORT signup THEN visit[source = web] FROM 20130101"
+            + " TO 20130102 EVERY 1 DAYS COLUMNS 1"));
+    plan = eventHub.explain("COHORT signup THEN visit[source = web] FROM 20130101 TO 20130102"
+        + " EVERY 1 DAYS COLUMNS 1");
+    Assert.assertEquals(QueryPlan.AccessPath.ACTIVE_USER_INDEX,
+        plan.getSteps().get(0).getAccessPath());
+    Assert.assertEquals(QueryPlan.AccessPath.INVERTED_INDEX,
+        plan.getSteps().get(1).getAccessPath());
+
+    @SuppressWarnings("unchecked")
+    Map<String, int[]> counts = (Map<String, int[]>) eventHub.query(
+        "COUNT signup FROM 20130101 TO 20130102 BY source");
+    Assert.assertEquals(Sets.newHashSet("ios", "web"), counts.keySet());
+    Assert.assertArrayEquals(new int[] { 2, 1 }, counts.get("web"));
+    Assert.assertArrayEquals(new int[] { 1, 0 }, counts.get("ios"));
+    Assert.assertEquals(QueryPlan.AccessPath.ROLLUP, eventHub.explain(
+        "COUNT signup FROM 20130101 TO 20130102 BY source").getSteps().get(0).getAccessPath());
+    Assert.assertArrayEquals(new int[] { 0, 1, 0 }, (int[]) eventHub.query(
+        "COUNT visit[course = c4] FROM 20130101 TO 20130103"));
+    Assert.assertArrayEquals(new int[] { 0, 2, 1 }, (int[]) eventHub.query(
+        "COUNT visit[course ~ \"c[0-2]\"] FROM 20130101 TO 20130103"));
+    Assert.assertArrayEquals(new int[] { 0, 1, 0 }, (int[]) eventHub.query(
+        "COUNT visit[source = web AND course = c4] FROM 20130101 TO 20130103"));
+
+    // exact matches on keys which aren't indexed skip the events through the bloom filters
+    QueryPlan bloomFilterPlan = eventHub.explain(
+        "COUNT visit[course = c4] FROM 20130101 TO 20130103");
+    QueryPlan journalScanPlan = eventHub.explain(
+        "COUNT visit[course ~ \"c[0-2]\"] FROM 20130101 TO 20130103");
+    Assert.assertEquals(QueryPlan.AccessPath.BLOOM_FILTER,
+        bloomFilterPlan.getSteps().get(0).getAccessPath());
+    Assert.assertEquals(QueryPlan.AccessPath.JOURNAL_SCAN,
+        journalScanPlan.getSteps().get(0).getAccessPath());
+    Assert.assertNull(bloomFilterPlan.getSteps().get(0).getEventQuery());
+    Assert.assertTrue(bloomFilterPlan.getEstimatedCost() < journalScanPlan.getEstimatedCost());
+    plan = eventHub.explain("COUNT visit[source = web AND course = c4] FROM 20130101 TO 20130103");
+    Assert.assertEquals(QueryPlan.AccessPath.INVERTED_INDEX,
+        plan.getSteps().get(0).getAccessPath());
+    Assert.assertNotNull(plan.getSteps().get(0).getResidualFilter());
+    Assert.assertTrue(plan.getEstimatedCost() < bloomFilterPlan.getEstimatedCost());
+
+    @SuppressWarnings("unchecked")
+    List<User> users = (List<User>) eventHub.query("USERS WHERE plan = pro");
+    Assert.assertEquals(1, users.size());
+    Assert.assertEquals("10", users.get(0).getExternalId());
+    Assert.assertEquals(QueryPlan.AccessPath.INVERTED_USER_INDEX,
+        eventHub.explain("USERS WHERE plan = pro").getSteps().get(0).getAccessPath());
+    Assert.assertEquals(QueryPlan.AccessPath.USER_JOURNAL,
+        eventHub.explain("USERS LIMIT 1").getSteps().get(0).getAccessPath());
+  }
+
   @Test
   public void testGetEventsByExternalUserId() throws Exception {
     Provider<EventHub> eventHubProvider = getEventHubProvider();
@@ -441,6 +810,76 @@ public class EventHubTest extends GuiceTestCase {
     }
   }
 
+  @Test
+  public void testActiveUsers() throws Exception {
+    Provider<EventHub> eventHubProvider = getEventHubProvider();
+    EventHub eventHub = eventHubProvider.get();
+
+    final String[] DATES = { "20130101", "20130102", "20130103", "20130104" };
+    Map<String, String> properties = ImmutableMap.of("source", "web");
+    addEvent(eventHub, "signup", "10", DATES[0], properties);
+    addEvent(eventHub, "visit", "10", DATES[0], properties);
+    addEvent(eventHub, "signup", "11", DATES[0], properties);
+    addEvent(eventHub, "visit", "10", DATES[1], properties);
+    addEvent(eventHub, "visit", "10", DATES[1], properties);
+    addEvent(eventHub, "visit", "11", DATES[2], properties);
+    addEvent(eventHub, "visit", "12", DATES[2], properties);
+    addEvent(eventHub, "signup", "12", DATES[3], properties);
+
+    Assert.assertArrayEquals(new int[] { 1, 1, 2, 0 },
+        eventHub.getActiveUserCounts("visit", DATES[0], DATES[3], 1));
+    Assert.assertArrayEquals(new int[] { 1, 1, 3, 3 },
+        eventHub.getActiveUserCounts("visit", DATES[0], DATES[3], 3));
+    Assert.assertArrayEquals(new int[] { 2, 2, 3, 3 },
+        eventHub.getActiveUserCounts(null, DATES[0], DATES[3], 3));
+
+    // unfiltered cohorts come from the active user index, filtered ones from the events
+    int[][] retentionTable = eventHub.getRetentionTable(DATES[0], DATES[3], 1, 2, "signup",
+        "visit", TrueFilter.INSTANCE, TrueFilter.INSTANCE);
+    Assert.assertArrayEquals(retentionTable, eventHub.getRetentionTable(DATES[0], DATES[3], 1, 2,
+        "signup", "visit", new ExactMatch("source", "web"), new ExactMatch("source", "web")));
+
+    eventHub.close();
+    eventHub = eventHubProvider.get();
+
+    Assert.assertArrayEquals(new int[] { 1, 1, 3, 3 },
+        eventHub.getActiveUserCounts("visit", DATES[0], DATES[3], 3));
+    Assert.assertArrayEquals(retentionTable, eventHub.getRetentionTable(DATES[0], DATES[3], 1, 2,
+        "signup", "visit", TrueFilter.INSTANCE, TrueFilter.INSTANCE));
+  }
+
+  @Test
+  public void testApproximateQueries() throws Exception {
+    Provider<EventHub> eventHubProvider = getEventHubProvider();
+    EventHub eventHub = eventHubProvider.get();
+
+    final String[] DATES = { "20130101", "20130102", "20130103", "20130104" };
+    addEvent(eventHub, "signup", "10", DATES[0], ImmutableMap.of("source", "web"));
+    addEvent(eventHub, "visit", "10", DATES[0], ImmutableMap.of("source", "web"));
+    addEvent(eventHub, "signup", "11", DATES[0], ImmutableMap.of("source", "ios"));
+    addEvent(eventHub, "visit", "10", DATES[1], ImmutableMap.of("source", "web"));
+    addEvent(eventHub, "visit", "11", DATES[2], ImmutableMap.of("source", "ios"));
+    addEvent(eventHub, "visit", "12", DATES[2], ImmutableMap.of("source", "web"));
+    addEvent(eventHub, "signup", "12", DATES[3], ImmutableMap.of("source", "web"));
+
+    // few users are counted exactly by the sketches
+    Assert.assertEquals(3, eventHub.getApproximateUniqueUserCount("visit", DATES[0], DATES[3]));
+    Assert.assertEquals(1, eventHub.getApproximateUniqueUserCount("visit", DATES[1], DATES[1]));
+    Assert.assertEquals(ImmutableMap.of("ios", 1L, "web", 2L),
+        eventHub.getApproximateUniqueUserCounts("visit", "source", DATES[0], DATES[3]));
+    int[][] retentionTable = eventHub.getRetentionTable(DATES[0], DATES[3], 1, 2, "signup",
+        "visit", TrueFilter.INSTANCE, TrueFilter.INSTANCE);
+    Assert.assertArrayEquals(retentionTable, eventHub.getApproximateRetentionTable(DATES[0],
+        DATES[3], 1, 2, "signup", "visit"));
+
+    eventHub.close();
+    eventHub = eventHubProvider.get();
+
+    Assert.assertEquals(3, eventHub.getApproximateUniqueUserCount("visit", DATES[0], DATES[3]));
+    Assert.assertArrayEquals(retentionTable, eventHub.getApproximateRetentionTable(DATES[0],
+        DATES[3], 1, 2, "signup", "visit"));
+  }
+
   private void addEvent(EventHub eventHub, String eventType, String externalUserId, String day,
       Map<String, String> property) {
     eventHub.addEvent(new Event.Builder(eventType, externalUserId, day, property).build());
@@ -453,38 +892,65 @@ public class EventHubTest extends GuiceTestCase {
   private Injector getInjector() {
     Properties prop = new Properties();
     prop.put("eventhub.directory", getTempDirectory());
+    prop.put("eventhub.bufferpool.pageSize", "64");
+    prop.put("eventhub.bufferpool.numPages", "4");
+    prop.put("eventhub.bufferpool.numSegments", "2");
+    prop.put("eventhub.pooleddmafile.maxIdleFiles", "2");
+    prop.put("eventhub.dmaidlist.backend", "pread");
     prop.put("eventhub.eventindex.initialNumEventIdsPerDay", "10");
+    prop.put("eventhub.invertedeventindex.maxCardinality", "4");
+    prop.put("eventhub.rollupindex.maxCardinality", "4");
+    prop.put("eventhub.uniqueuserindex.precision", "12");
+    prop.put("eventhub.uniqueuserindex.maxCardinality", "4");
+    prop.put("eventhub.query.parallelism", "2");
+    prop.put("eventhub.querycache.maxSizeInBytes", "65536");
+    prop.put("eventhub.query.maxDeadlineMillis", "60000");
     prop.put("eventhub.usereventindex.numPointersPerIndexEntry", "2");
     prop.put("eventhub.usereventindex.numIndexEntryPerFile", "2");
     prop.put("eventhub.usereventindex.indexEntryFileCacheSize", "2");
+    prop.put("eventhub.usereventindex.indexEntryBackend", "mmap");
     prop.put("eventhub.usereventindex.numRecordsPerBlock", "2");
     prop.put("eventhub.usereventindex.numBlocksPerFile", "2");
     prop.put("eventhub.usereventindex.blockCacheSize", "2");
     prop.put("eventhub.journaleventstorage.numMetaDataPerFile", "10");
     prop.put("eventhub.journaleventstorage.metaDataFileCacheSize", "10");
+    prop.put("eventhub.journaleventstorage.metaDataBackend", "pread");
     prop.put("eventhub.journaleventstorage.journalFileSize", "1024");
     prop.put("eventhub.journaleventstorage.journalWriteBatchSize", "1024");
-    prop.put("eventhub.cachedeventstorage.recordCacheSize", "10");
+    prop.put("eventhub.journaleventstorage.numReadThreads", "2");
+    prop.put("eventhub.cachedeventstorage.cacheSize", "1280");
+    prop.put("eventhub.cachedeventstorage.cacheSegmentSize", "256");
     prop.put("eventhub.bloomfilteredeventstorage.bloomFilterSize", "64");
     prop.put("eventhub.bloomfilteredeventstorage.numHashes", "1");
+    prop.put("eventhub.bloomfilteredeventstorage.numBitsPerProperty", "10");
     prop.put("eventhub.bloomfilteredeventstorage.numMetaDataPerFile", "10");
     prop.put("eventhub.bloomfilteredeventstorage.metaDataFileCacheSize", "10");
+    prop.put("eventhub.bloomfilteredeventstorage.metaDataBackend", "mmap");
     prop.put("eventhub.journaluserstorage.numMetaDataPerFile", "10");
     prop.put("eventhub.journaluserstorage.metaDataFileCacheSize", "10");
+    prop.put("eventhub.journaluserstorage.metaDataBackend", "mmap");
     prop.put("eventhub.journaluserstorage.journalFileSize", "1024");
     prop.put("eventhub.journaluserstorage.journalWriteBatchSize", "1024");
-    prop.put("eventhub.cacheduserstorage.recordCacheSize", "10");
+    prop.put("eventhub.inverteduserindex.maxCardinality", "4");
+    prop.put("eventhub.cacheduserstorage.cacheSize", "1280");
+    prop.put("eventhub.cacheduserstorage.cacheSegmentSize", "256");
     prop.put("eventhub.bloomfiltereduserstorage.numMetaDataPerFile", "10");
     prop.put("eventhub.bloomfiltereduserstorage.metaDataFileCacheSize", "10");
+    prop.put("eventhub.bloomfiltereduserstorage.metaDataBackend", "pread");
     prop.put("eventhub.bloomfiltereduserstorage.bloomFilterSize", "64");
     prop.put("eventhub.bloomfiltereduserstorage.numHashes", "1");
 
     return createInjectorFor(new Properties(),
         new EventHubModule(prop),
+        new DmaFileModule(),
         new DmaIdListModule(),
         new ShardedEventIndexModule(),
         new DatedEventIndexModule(),
         new PropertiesIndexModule(),
+        new InvertedEventIndexModule(),
+        new ActiveUserIndexModule(),
+        new RollupIndexModule(),
+        new UniqueUserIndexModule(),
         new UserEventIndexModule(),
         new EventStorageModule(),
         new UserStorageModule());
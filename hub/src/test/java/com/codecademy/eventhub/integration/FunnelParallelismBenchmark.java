@@ -0,0 +1,115 @@
+package com.codecademy.eventhub.integration;
+
+import com.codecademy.eventhub.EventHub;
+import com.codecademy.eventhub.EventHubModule;
+import com.codecademy.eventhub.index.ActiveUserIndexModule;
+import com.codecademy.eventhub.index.DatedEventIndexModule;
+import com.codecademy.eventhub.index.InvertedEventIndexModule;
+import com.codecademy.eventhub.index.PropertiesIndexModule;
+import com.codecademy.eventhub.index.RollupIndexModule;
+import com.codecademy.eventhub.index.ShardedEventIndexModule;
+import com.codecademy.eventhub.index.UniqueUserIndexModule;
+import com.codecademy.eventhub.index.UserEventIndexModule;
+import com.codecademy.eventhub.list.DmaFileModule;
+import com.codecademy.eventhub.list.DmaIdListModule;
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.EventStorageModule;
+import com.codecademy.eventhub.storage.UserStorageModule;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.inject.Guice;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Adds a 3 step funnel done by numUsers synthetic users over a week to an EventHub in a temporary
+ * directory, then reports the time to compute the funnel with a query pool of 1, 2, 4... threads
+ * up to the number of cores, e.g.
+ *   java -cp ... FunnelParallelismBenchmark [numUsers]
+ */
+public class FunnelParallelismBenchmark {
+  private static final String[] FUNNEL_STEPS = { "signup", "view_course", "finish_course" };
+  private static final String[] DATES = { "20130101", "20130102", "20130103", "20130104",
+      "20130105", "20130106", "20130107" };
+  private static final int NUM_RUNS = 3;
+
+  public static void main(String[] args) throws Exception {
+    int numUsers = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+    String directory = Files.createTempDir().getCanonicalPath() + "/";
+
+    EventHub eventHub = getEventHub(directory, 1);
+    Random random = new Random(0);
+    long startTime = System.nanoTime();
+    for (int userId = 0; userId < numUsers; userId++) {
+      String externalUserId = "user" + userId;
+      int day = random.nextInt(DATES.length);
+      // half the users view a course, a third of those finish it
+      eventHub.addEvent(newEvent(FUNNEL_STEPS[0], externalUserId, DATES[day]));
+      if (random.nextInt(2) == 0) {
+        day = Math.min(DATES.length - 1, day + random.nextInt(2));
+        eventHub.addEvent(newEvent(FUNNEL_STEPS[1], externalUserId, DATES[day]));
+        if (random.nextInt(3) == 0) {
+          eventHub.addEvent(newEvent(FUNNEL_STEPS[2], externalUserId, DATES[day]));
+        }
+      }
+    }
+    System.out.println(String.format("added %d users in %d s", numUsers,
+        (System.nanoTime() - startTime) / 1000000000));
+    eventHub.close();
+
+    List<Filter> eventFilters = Lists.<Filter>newArrayList(
+        TrueFilter.INSTANCE, TrueFilter.INSTANCE, TrueFilter.INSTANCE);
+    int numCores = Runtime.getRuntime().availableProcessors();
+    long baseline = 0;
+    for (int parallelism = 1; parallelism <= numCores; parallelism *= 2) {
+      eventHub = getEventHub(directory, parallelism);
+      long bestTime = Long.MAX_VALUE;
+      int[] funnelCounts = null;
+      for (int run = 0; run < NUM_RUNS; run++) {
+        startTime = System.nanoTime();
+        funnelCounts = eventHub.getFunnelCounts(DATES[0], DATES[DATES.length - 1],
+            FUNNEL_STEPS, 7 /* numDaysToCompleteFunnel */, eventFilters, TrueFilter.INSTANCE);
+        bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+      }
+      if (parallelism == 1) {
+        baseline = bestTime;
+      }
+      System.out.println(String.format("parallelism: %d, funnel: %d ms, speedup: %.2f, counts: %s",
+          parallelism, bestTime / 1000000, (double) baseline / bestTime,
+          Arrays.toString(funnelCounts)));
+      eventHub.close();
+    }
+  }
+
+  private static Event newEvent(String eventType, String externalUserId, String date) {
+    return new Event.Builder(eventType, externalUserId, date, Maps.<String, String>newHashMap())
+        .build();
+  }
+
+  private static EventHub getEventHub(String directory, int parallelism) throws Exception {
+    Properties properties = new Properties();
+    properties.load(EventHub.class.getClassLoader().getResourceAsStream("hub.properties"));
+    properties.put("eventhub.directory", directory);
+    properties.put("eventhub.query.parallelism", String.valueOf(parallelism));
+    return Guice.createInjector(
+        new DmaFileModule(),
+        new DmaIdListModule(),
+        new DatedEventIndexModule(),
+        new ShardedEventIndexModule(),
+        new PropertiesIndexModule(),
+        new InvertedEventIndexModule(),
+        new ActiveUserIndexModule(),
+        new RollupIndexModule(),
+        new UniqueUserIndexModule(),
+        new UserEventIndexModule(),
+        new EventStorageModule(),
+        new UserStorageModule(),
+        new EventHubModule(properties)).getInstance(EventHub.class);
+  }
+}
@@ -0,0 +1,93 @@
+package com.codecademy.eventhub.list;
+
+import com.codecademy.eventhub.base.ByteBufferMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Map;
+
+/**
+ * Compares big endian and little endian records on the hot paths touched by queries: scanning
+ * the ids of a DmaIdList, scanning the longs of a DmaFile and looking up ByteBufferMap
+ * properties, e.g.
+ *   java -cp ... ByteOrderBenchmark [numRecords]
+ */
+public class ByteOrderBenchmark {
+  private static final int NUM_ROUNDS = 5;
+
+  public static void main(String[] args) throws Exception {
+    int numRecords = args.length > 0 ? Integer.parseInt(args[0]) : 16 * 1024 * 1024;
+    System.out.println("native byte order: " + ByteOrder.nativeOrder());
+    for (ByteOrder byteOrder : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+      benchmarkIdList(byteOrder, numRecords);
+      benchmarkDmaFile(byteOrder, numRecords);
+      benchmarkByteBufferMap(byteOrder, numRecords / 16);
+    }
+  }
+
+  private static void benchmarkIdList(ByteOrder byteOrder, int numRecords) throws IOException {
+    File directory = Files.createTempDir();
+    DmaFile.Factory dmaFileFactory = new MappedDmaFile.Factory(byteOrder);
+    DmaFile file = dmaFileFactory.open(directory + "/id_list.mem", 4 + 8L * numRecords);
+    DmaIdList idList = new DmaIdList(file, 0, numRecords);
+    for (int i = 0; i < numRecords; i++) {
+      idList.add(i);
+    }
+    long sum = 0;
+    long start = System.nanoTime();
+    for (int round = 0; round < NUM_ROUNDS; round++) {
+      IdList.Iterator iterator = idList.iterator();
+      while (iterator.hasNext()) {
+        sum += iterator.next();
+      }
+    }
+    report(byteOrder, "DmaIdList scan", (long) NUM_ROUNDS * numRecords, start, sum);
+    idList.close();
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private static void benchmarkDmaFile(ByteOrder byteOrder, int numRecords) throws IOException {
+    File directory = Files.createTempDir();
+    DmaFile.Factory dmaFileFactory = new PooledDmaFile.Factory(
+        new BufferPool(64 * 1024, 16 * 1024, 64), byteOrder, 1024);
+    DmaFile file = dmaFileFactory.open(directory + "/longs.mem", 8L * numRecords);
+    for (int i = 0; i < numRecords; i++) {
+      file.putLong(8L * i, i);
+    }
+    long sum = 0;
+    long start = System.nanoTime();
+    for (int round = 0; round < NUM_ROUNDS; round++) {
+      for (int i = 0; i < numRecords; i++) {
+        sum += file.getLong(8L * i);
+      }
+    }
+    report(byteOrder, "pooled DmaFile scan", (long) NUM_ROUNDS * numRecords, start, sum);
+    file.close();
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private static void benchmarkByteBufferMap(ByteOrder byteOrder, int numRecords) {
+    Map<String, String> properties = Maps.newHashMap();
+    for (int i = 0; i < 16; i++) {
+      properties.put("key" + i, "value" + i);
+    }
+    ByteBufferMap byteBufferMap = ByteBufferMap.build(properties, byteOrder);
+    long sum = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < numRecords; i++) {
+      sum += byteBufferMap.get("key" + (i & 15)).length();
+    }
+    report(byteOrder, "ByteBufferMap get", numRecords, start, sum);
+  }
+
+  private static void report(ByteOrder byteOrder, String operation, long numRecords, long start,
+      long checksum) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("%s %s: %.0f records/s (checksum %d)", byteOrder, operation,
+        numRecords / seconds, checksum));
+  }
+}
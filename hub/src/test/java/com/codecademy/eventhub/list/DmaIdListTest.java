@@ -10,9 +10,19 @@ import java.util.Properties;
 public class DmaIdListTest extends GuiceTestCase {
   @Test
   public void testDmaIdList() throws Exception {
-    DmaIdList.Factory dmaIdListFactory = getDmaIdListFactory();
+    testDmaIdList(DmaFileFactories.MMAP);
+  }
+
+  @Test
+  public void testPooledDmaIdList() throws Exception {
+    testDmaIdList(DmaFileFactories.PREAD);
+  }
+
+  private void testDmaIdList(String backend) throws Exception {
+    String directory = getTempDirectory();
+    DmaIdList.Factory dmaIdListFactory = getDmaIdListFactory(directory, backend);
     dmaIdListFactory.setDefaultCapacity(2);
-    String filename = getTempDirectory() + "/simple_id_list.ser";
+    String filename = directory + "/simple_id_list.ser";
     IdList idList = dmaIdListFactory.build(filename);
     long[] ids = new long[] { 10, 20, 30, 40, 50 };
 
@@ -48,9 +58,16 @@ public class DmaIdListTest extends GuiceTestCase {
     Assert.assertFalse(iterator.hasNext());
   }
 
-  private DmaIdList.Factory getDmaIdListFactory() {
+  private DmaIdList.Factory getDmaIdListFactory(String directory, String backend) {
+    Properties prop = new Properties();
+    prop.put("eventhub.directory", directory);
+    prop.put("eventhub.dmaidlist.backend", backend);
+    prop.put("eventhub.bufferpool.pageSize", "16");
+    prop.put("eventhub.bufferpool.numPages", "2");
+    prop.put("eventhub.bufferpool.numSegments", "2");
+    prop.put("eventhub.pooleddmafile.maxIdleFiles", "2");
     Injector injector = createInjectorFor(
-        new Properties(), new DmaIdListModule());
+        prop, new DmaFileModule(), new DmaIdListModule());
     return injector.getInstance(DmaIdList.Factory.class);
   }
 }
@@ -0,0 +1,85 @@
+package com.codecademy.eventhub.list;
+
+import com.codecademy.eventhub.base.Schema;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Compares random and sequential reads on DmaList between the mmap and pread backends. Run it
+ * with a small heap and, ideally, in a memory limited cgroup so that the page cache can't hold
+ * the whole list, e.g.
+ *   java -Xmx256m -cp ... DmaListBenchmark [numRecords] [numPages]
+ */
+public class DmaListBenchmark {
+  private static final int OBJECT_SIZE = 64;
+  private static final int NUM_RECORDS_PER_FILE = 1024 * 1024;
+  private static final int PAGE_SIZE = 64 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    int numRecords = args.length > 0 ? Integer.parseInt(args[0]) : 16 * 1024 * 1024;
+    int numPages = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+    ByteOrder byteOrder = ByteOrder.nativeOrder();
+    benchmark("mmap", new MappedDmaFile.Factory(byteOrder), numRecords);
+    benchmark("pread",
+        new PooledDmaFile.Factory(new BufferPool(PAGE_SIZE, numPages, 64), byteOrder, 1024),
+        numRecords);
+  }
+
+  private static void benchmark(String name, DmaFile.Factory dmaFileFactory, int numRecords)
+      throws IOException {
+    File directory = Files.createTempDir();
+    DmaList<byte[]> list = DmaList.build(new BytesSchema(), directory.getAbsolutePath(),
+        NUM_RECORDS_PER_FILE, 16, dmaFileFactory);
+    byte[] record = new byte[OBJECT_SIZE];
+    long start = System.nanoTime();
+    for (int i = 0; i < numRecords; i++) {
+      list.add(record);
+    }
+    report(name, "sequential write", numRecords, start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < numRecords; i++) {
+      list.getBytes(i);
+    }
+    report(name, "sequential read", numRecords, start);
+
+    Random random = new Random(0);
+    start = System.nanoTime();
+    for (int i = 0; i < numRecords; i++) {
+      list.getBytes(random.nextInt(numRecords));
+    }
+    report(name, "random read", numRecords, start);
+    System.out.println(list.getVarz(2));
+    list.close();
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private static void report(String name, String operation, int numRecords, long start) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("%s %s: %.0f records/s", name, operation,
+        numRecords / seconds));
+  }
+
+  private static class BytesSchema implements Schema<byte[]> {
+    @Override
+    public int getObjectSize() {
+      return OBJECT_SIZE;
+    }
+
+    @Override
+    public byte[] toBytes(byte[] bytes) {
+      return bytes;
+    }
+
+    @Override
+    public byte[] fromBytes(byte[] bytes) {
+      return bytes;
+    }
+  }
+}
@@ -1,29 +1,158 @@
 package com.codecademy.eventhub.list;
 
 import com.codecademy.eventhub.base.Schema;
+import com.google.common.io.PatternFilenameFilter;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class DmaListTest {
+  private static final MetaData[] METADATAS = new MetaData[] {
+      new MetaData(1, new byte[] { 0b00000000, 0, 0, 0, 0b00101010, 0, 0, 0, 0b00110011, 0, 0, 0, 0b00000001 } ),
+      new MetaData(3, new byte[] { 0b00000010, 0, 0, 0, 0b00101101, 0, 0, 0, 0b01001100, 0, 0, 0, 0b00100001 } ),
+      new MetaData(5, new byte[] { 0b00000100, 0, 0, 0, 0b00100101, 0, 0, 0, 0b01010101, 0, 0, 0, 0b01000001 } ),
+      new MetaData(7, new byte[] { 0b01000100, 0, 0, 0, 0b01101110, 0, 0, 0, 0b00011110, 0, 0, 0, 0b01000101 } )
+  };
+
   @Rule
   public TemporaryFolder folder = new TemporaryFolder();
 
   @Test
   public void testAll() throws Exception {
+    testAll(new MappedDmaFile.Factory(ByteOrder.LITTLE_ENDIAN));
+  }
+
+  @Test
+  public void testPooled() throws Exception {
+    // pages smaller than a record and fewer pages than files, so that records straddle pages
+    // and pages get evicted
+    testAll(new PooledDmaFile.Factory(new BufferPool(16, 2, 2), ByteOrder.LITTLE_ENDIAN, 1));
+  }
+
+  @Test
+  public void testPooledIdleFiles() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    PooledDmaFile.Factory dmaFileFactory =
+        new PooledDmaFile.Factory(new BufferPool(16, 2, 2), ByteOrder.LITTLE_ENDIAN, 1);
+    DmaFile file = dmaFileFactory.open(directory + "/a.mem", 8);
+    file.putLong(0, 42);
+    file.close();
+    // releasing another file closes the first one, as only one idle file is kept open
+    dmaFileFactory.open(directory + "/b.mem", 8).close();
+    Assert.assertTrue(dmaFileFactory.getVarz(0).contains("num open files: 1\n"));
+    // while a reader still holding it gets the file reopened
+    Assert.assertEquals(42, file.getLong(0));
+    Assert.assertTrue(dmaFileFactory.getVarz(0).contains("num open files: 1\n"));
+    dmaFileFactory.close();
+    Assert.assertTrue(dmaFileFactory.getVarz(0).contains("num open files: 0\n"));
+  }
+
+  @Test
+  public void testPooledConcurrentReads() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    final PooledDmaFile.Factory dmaFileFactory =
+        new PooledDmaFile.Factory(new BufferPool(16, 4, 2), ByteOrder.LITTLE_ENDIAN, 1);
+    final DmaFile[] files = new DmaFile[3];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = dmaFileFactory.open(directory + "/" + i + ".mem", 8 * 64);
+      for (int j = 0; j < 64; j++) {
+        files[i].putLong(8 * j, 64 * i + j);
+      }
+      // only one idle file is kept open, the readers keep getting their files reopened
+      files[i].close();
+    }
+
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final int offset = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 1000; j++) {
+              int fileIndex = (offset + j) % files.length;
+              int index = (offset * 7 + j) % 64;
+              Assert.assertEquals(64 * fileIndex + index, files[fileIndex].getLong(8 * index));
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertNull(error.get());
+    dmaFileFactory.close();
+  }
+
+  @Test
+  public void testMultipleRegions() throws Exception {
+    // regions smaller than a record, so that every access straddles regions
+    testAll(new MappedDmaFile.Factory(16, ByteOrder.LITTLE_ENDIAN));
+  }
+
+  @Test
+  public void testBigEndian() throws Exception {
+    testAll(new MappedDmaFile.Factory(16, ByteOrder.BIG_ENDIAN));
+    testAll(new PooledDmaFile.Factory(new BufferPool(16, 2, 2), ByteOrder.BIG_ENDIAN, 1));
+  }
+
+  @Test
+  public void testPersistedLayout() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    DmaList<MetaData> list = DmaList.build(MetaData.getSchema(), directory, 2, 1,
+        new MappedDmaFile.Factory(ByteOrder.LITTLE_ENDIAN));
+    for (MetaData metaData : METADATAS) {
+      list.add(metaData);
+    }
+    list.close();
+
+    // the number of records per file the list was created with takes precedence
+    list = DmaList.build(MetaData.getSchema(), directory, 3, 1, new MappedDmaFile.Factory(ByteOrder.LITTLE_ENDIAN));
+    verify(list, METADATAS.length);
+    Assert.assertEquals(2,
+        new File(directory).listFiles(new PatternFilenameFilter("dma_list_.*")).length);
+  }
+
+  @Test
+  public void testLegacyLayout() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    DmaList<MetaData> list = DmaList.build(MetaData.getSchema(), directory, 2, 1,
+        new MappedDmaFile.Factory(ByteOrder.LITTLE_ENDIAN));
+    for (MetaData metaData : METADATAS) {
+      list.add(metaData);
+    }
+    list.close();
+    // meta data files written before the layout was persisted only contain maxId
+    try (RandomAccessFile raf = new RandomAccessFile(directory + "/meta_data.mem", "rw")) {
+      raf.setLength(8);
+    }
+
+    list = DmaList.build(MetaData.getSchema(), directory, 2, 1, new MappedDmaFile.Factory(ByteOrder.LITTLE_ENDIAN));
+    verify(list, METADATAS.length);
+    list.close();
+    list = DmaList.build(MetaData.getSchema(), directory, 3, 1, new MappedDmaFile.Factory(ByteOrder.LITTLE_ENDIAN));
+    verify(list, METADATAS.length);
+  }
+
+  private void testAll(DmaFile.Factory dmaFileFactory) throws Exception {
     int numRecordsPerFile = 2;
     int cacheSize = 1;
     String directory = folder.newFolder().getCanonicalPath();
-    DmaList<MetaData> list = DmaList.build(MetaData.getSchema(), directory, numRecordsPerFile, cacheSize);
-    MetaData[] metaDatas = new MetaData[] {
-        new MetaData(1, new byte[] { 0b00000000, 0, 0, 0, 0b00101010, 0, 0, 0, 0b00110011, 0, 0, 0, 0b00000001 } ),
-        new MetaData(3, new byte[] { 0b00000010, 0, 0, 0, 0b00101101, 0, 0, 0, 0b01001100, 0, 0, 0, 0b00100001 } ),
-        new MetaData(5, new byte[] { 0b00000100, 0, 0, 0, 0b00100101, 0, 0, 0, 0b01010101, 0, 0, 0, 0b01000001 } ),
-        new MetaData(7, new byte[] { 0b01000100, 0, 0, 0, 0b01101110, 0, 0, 0, 0b00011110, 0, 0, 0, 0b01000101 } )
-    };
+    DmaList<MetaData> list = DmaList.build(MetaData.getSchema(), directory, numRecordsPerFile,
+        cacheSize, dmaFileFactory);
+    MetaData[] metaDatas = METADATAS;
 
     for (int i = 0; i < metaDatas.length - 1; i++) {
       list.add(metaDatas[i]);
@@ -34,7 +163,8 @@ public class DmaListTest {
     }
 
     list.close();
-    list = DmaList.build(MetaData.getSchema(), directory, numRecordsPerFile, cacheSize);
+    list = DmaList.build(MetaData.getSchema(), directory, numRecordsPerFile, cacheSize,
+        dmaFileFactory);
     list.add(metaDatas[3]);
     for (int i = 0; i < metaDatas.length; i++) {
       Assert.assertEquals(metaDatas[i].getUserId(), list.get(i).getUserId());
@@ -46,6 +176,14 @@ public class DmaListTest {
     Assert.assertEquals(metaDatas.length, list.getMaxId());
   }
 
+  private void verify(DmaList<MetaData> list, int numRecords) {
+    Assert.assertEquals(numRecords, list.getMaxId());
+    for (int i = 0; i < numRecords; i++) {
+      Assert.assertEquals(METADATAS[i].getUserId(), list.get(i).getUserId());
+      Assert.assertArrayEquals(METADATAS[i].getLocation(), list.get(i).getLocation());
+    }
+  }
+
   private static class MetaData {
     private final long userId;
     private final byte[] location;
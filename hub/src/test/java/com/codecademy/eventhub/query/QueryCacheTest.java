@@ -0,0 +1,114 @@
+package com.codecademy.eventhub.query;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QueryCacheTest {
+  @Test
+  public void testAll() throws Exception {
+    QueryCache queryCache = new QueryCache(1000);
+    QueryCache.Key key1 = newKey("1", "a", "20130101", "20130103", false);
+    QueryCache.Key key2 = newKey("2", "b", "20130101", "20130103", true);
+
+    QueryCache.Entry entry = queryCache.get(key1);
+    Assert.assertNull(entry.getResult());
+    queryCache.put(key1, entry, "result1", 100);
+    Assert.assertEquals("result1",
+        queryCache.get(newKey("1", "a", "20130101", "20130103", false)).getResult());
+
+    // an event outside the dates or of another type doesn't invalidate the result
+    queryCache.onEvent("a", "20130104");
+    queryCache.onEvent("b", "20130102");
+    Assert.assertEquals("result1", queryCache.get(key1).getResult());
+    queryCache.onEvent("a", "20130103");
+    Assert.assertNull(queryCache.get(key1).getResult());
+
+    // invalidated while computed, not kept
+    entry = queryCache.get(key2);
+    Assert.assertNull(entry.getResult());
+    queryCache.onUserUpdate();
+    queryCache.put(key2, entry, "result2", 100);
+    entry = queryCache.get(key2);
+    Assert.assertNull(entry.getResult());
+    queryCache.put(key2, entry, "result2", 100);
+    Assert.assertEquals("result2", queryCache.get(key2).getResult());
+
+    // over budget, the least recently used result is evicted
+    QueryCache.Key key3 = newKey("3", "a", "20130101", "20130101", false);
+    entry = queryCache.get(key3);
+    Assert.assertNull(entry.getResult());
+    queryCache.put(key3, entry, "result3", 600);
+    Assert.assertNull(queryCache.get(key2).getResult());
+    Assert.assertEquals("result3", queryCache.get(key3).getResult());
+  }
+
+  @Test
+  public void testReservedAgain() throws Exception {
+    QueryCache queryCache = new QueryCache(1000);
+    QueryCache.Key key = newKey("1", "a", "20130101", "20130103", false);
+
+    // the key is invalidated while the first query computes it and reserved by a second one, the
+    // late result of the first query, computed before the event, is dropped
+    QueryCache.Entry firstReservation = queryCache.get(key);
+    queryCache.onEvent("a", "20130102");
+    QueryCache.Entry secondReservation = queryCache.get(key);
+    queryCache.put(key, firstReservation, "stale", 100);
+    Assert.assertNull(queryCache.get(key).getResult());
+    queryCache.put(key, secondReservation, "fresh", 100);
+    Assert.assertEquals("fresh", queryCache.get(key).getResult());
+
+    // a query missing while the key is computed by another one doesn't keep its result
+    queryCache.onEvent("a", "20130102");
+    firstReservation = queryCache.get(key);
+    secondReservation = queryCache.get(key);
+    queryCache.put(key, secondReservation, "second", 100);
+    Assert.assertNull(queryCache.get(key).getResult());
+    queryCache.put(key, firstReservation, "first", 100);
+    Assert.assertEquals("first", queryCache.get(key).getResult());
+  }
+
+  @Test
+  public void testRelease() throws Exception {
+    QueryCache queryCache = new QueryCache(1000);
+    QueryCache.Key key1 = newKey("1", "a", "20130101", "20130103", false);
+    QueryCache.Key key2 = newKey("2", "a", "20130101", "20130103", true);
+
+    // the computation of key1 failed, its reservation is dropped
+    QueryCache.Entry entry = queryCache.get(key1);
+    Assert.assertNull(entry.getResult());
+    Assert.assertTrue(queryCache.getVarz(0).contains("num entries: 1\n"));
+    queryCache.release(key1, entry);
+    Assert.assertTrue(queryCache.getVarz(0).contains("num entries: 0\n"));
+    queryCache.put(key1, entry, "result1", 100);
+    entry = queryCache.get(key1);
+    Assert.assertNull(entry.getResult());
+    queryCache.put(key1, entry, "result1", 100);
+    Assert.assertEquals("result1", queryCache.get(key1).getResult());
+
+    // a result already put is kept
+    queryCache.release(key1, entry);
+    Assert.assertEquals("result1", queryCache.get(key1).getResult());
+
+    // a failed query doesn't release the reservation of another query
+    QueryCache.Entry failedReservation = queryCache.get(key2);
+    queryCache.onUserUpdate();
+    entry = queryCache.get(key2);
+    queryCache.release(key2, failedReservation);
+    queryCache.put(key2, entry, "result2", 100);
+    Assert.assertEquals("result2", queryCache.get(key2).getResult());
+
+    entry = queryCache.get(newKey("3", "a", "20130101", "20130103", true));
+    queryCache.release(newKey("3", "a", "20130101", "20130103", true), entry);
+    queryCache.onUserUpdate();
+    queryCache.onEvent("a", "20130102");
+    Assert.assertTrue(queryCache.getVarz(0).contains("num entries: 0\n"));
+  }
+
+  private static QueryCache.Key newKey(String id, String eventType, String startDate,
+      String endDate, boolean isUserFiltered) {
+    return new QueryCache.Key(Lists.<Object>newArrayList(id), Sets.newHashSet(eventType),
+        startDate, endDate, isUserFiltered);
+  }
+}
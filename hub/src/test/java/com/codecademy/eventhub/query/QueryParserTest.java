@@ -0,0 +1,92 @@
+package com.codecademy.eventhub.query;
+
+import com.codecademy.eventhub.storage.filter.And;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.Regex;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+public class QueryParserTest {
+  @Test
+  public void testFunnel() throws Exception {
+    QueryStatement.Funnel funnel = (QueryStatement.Funnel) QueryParser.parse(
+        "funnel signup, view_course[course = \"intro to \\\"java\\\"\"], finish_course"
+            + " FROM 20130101 TO 20130107 WITHIN 7 DAYS WHERE plan = pro AND country ~ \"^U\"");
+    Assert.assertEquals(3, funnel.getSteps().size());
+    Assert.assertEquals("signup", funnel.getSteps().get(0).getEventType());
+    Assert.assertSame(TrueFilter.INSTANCE, funnel.getSteps().get(0).getFilter());
+    Assert.assertEquals("view_course", funnel.getSteps().get(1).getEventType());
+    Assert.assertEquals(new ExactMatch("course", "intro to \"java\""),
+        funnel.getSteps().get(1).getFilter());
+    Assert.assertEquals("20130101", funnel.getStartDate());
+    Assert.assertEquals("20130107", funnel.getEndDate());
+    Assert.assertEquals(7, funnel.getNumDaysToCompleteFunnel());
+    Assert.assertEquals(new And(Lists.<Filter>newArrayList(new ExactMatch("plan", "pro"),
+        new Regex("country", Pattern.compile("^U")))), funnel.getUserFilter());
+  }
+
+  @Test
+  public void testCohort() throws Exception {
+    QueryStatement.Cohort cohort = (QueryStatement.Cohort) QueryParser.parse(
+        "COHORT signup THEN visit[source = web] FROM 20130101 TO 20130131 EVERY 7 DAYS COLUMNS 4");
+    Assert.assertEquals("signup", cohort.getRow().getEventType());
+    Assert.assertEquals("visit", cohort.getColumn().getEventType());
+    Assert.assertEquals(new ExactMatch("source", "web"), cohort.getColumn().getFilter());
+    Assert.assertEquals(7, cohort.getNumDaysPerCohort());
+    Assert.assertEquals(4, cohort.getNumColumns());
+  }
+
+  @Test
+  public void testSegmentation() throws Exception {
+    QueryStatement.Segmentation segmentation = (QueryStatement.Segmentation) QueryParser.parse(
+        "COUNT purchase[country ~ \"^U\"] FROM 20130101 TO 20130107");
+    Assert.assertEquals(new Regex("country", Pattern.compile("^U")),
+        segmentation.getEvent().getFilter());
+    Assert.assertNull(segmentation.getKey());
+    segmentation = (QueryStatement.Segmentation) QueryParser.parse(
+        "COUNT purchase FROM 20130101 TO 20130107 BY country");
+    Assert.assertEquals("country", segmentation.getKey());
+  }
+
+  @Test
+  public void testUserLookup() throws Exception {
+    QueryStatement.UserLookup userLookup =
+        (QueryStatement.UserLookup) QueryParser.parse("USERS");
+    Assert.assertSame(TrueFilter.INSTANCE, userLookup.getFilter());
+    Assert.assertEquals(100, userLookup.getLimit());
+    userLookup = (QueryStatement.UserLookup) QueryParser.parse("users where plan = pro limit 5");
+    Assert.assertEquals(new ExactMatch("plan", "pro"), userLookup.getFilter());
+    Assert.assertEquals(5, userLookup.getLimit());
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    assertRejected("SELECT events", "expected FUNNEL, COHORT, COUNT or USERS but was SELECT");
+    assertRejected("SELECT * FROM events", "unexpected * at 7");
+    assertRejected("FUNNEL signup FROM 2013 TO 20130107 WITHIN 7 DAYS",
+        "expected a yyyyMMdd date");
+    assertRejected("FUNNEL signup FROM 20130101 TO 20130107 WITHIN 0 DAYS",
+        "expected a positive number");
+    assertRejected("FUNNEL signup FROM 20130101 TO 20130107", "expected WITHIN at 39");
+    assertRejected("FUNNEL signup FROM 20130101 TO", "unexpected end of query at 30");
+    assertRejected("USERS WHERE plan = \"pro", "unterminated string at 19");
+    assertRejected("USERS WHERE plan ~ \"[\"", "invalid regex [");
+    assertRejected("USERS LIMIT 5 foo", "unexpected foo at 14");
+    assertRejected("COUNT purchase[country = US] FROM 20130101 TO 20130107 BY plan",
+        "BY isn't supported along with a predicate");
+  }
+
+  private static void assertRejected(String query, String message) {
+    try {
+      QueryParser.parse(query);
+      Assert.fail("parsed " + query);
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package com.codecademy.eventhub.query;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RunningQueriesTest {
+  @Test
+  public void testAll() throws Exception {
+    RunningQueries runningQueries = new RunningQueries(60000);
+    Assert.assertSame(QueryContext.NONE, QueryContext.current());
+    // scans outside of a query are never stopped
+    QueryContext.NONE.cancel();
+    QueryContext.NONE.onEventsScanned(QueryContext.CHECK_INTERVAL);
+
+    try (RunningQueries.Query query = runningQueries.start("funnel", 0)) {
+      Assert.assertSame(query.getContext(), QueryContext.current());
+      QueryContext.current().onEventsScanned(10);
+      QueryContext.current().onUsersProcessed(2);
+      Assert.assertEquals(1, runningQueries.getProgresses().size());
+      QueryContext.Progress progress = runningQueries.getProgresses().get(0);
+      Assert.assertEquals("funnel", progress.getDescription());
+      Assert.assertEquals(10, progress.getNumEventsScanned());
+      Assert.assertEquals(2, progress.getNumUsersProcessed());
+
+      runningQueries.cancel(progress.getId());
+      Assert.assertTrue(runningQueries.getProgresses().get(0).isCancelled());
+      try {
+        QueryContext.current().onEventsScanned(1);
+        Assert.fail();
+      } catch (QueryCancelledException e) {
+        // expected
+      }
+    }
+    Assert.assertSame(QueryContext.NONE, QueryContext.current());
+    Assert.assertTrue(runningQueries.getProgresses().isEmpty());
+
+    try {
+      runningQueries.cancel(1);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // the deadline is the one of the query, up to the max
+    try (RunningQueries.Query query = runningQueries.start("cohort", 1)) {
+      Thread.sleep(10);
+      try {
+        query.getContext().checkCancelled();
+        Assert.fail();
+      } catch (QueryCancelledException e) {
+        // expected
+      }
+    }
+    try (RunningQueries.Query query = runningQueries.start("cohort", Long.MAX_VALUE)) {
+      Assert.assertTrue(runningQueries.getProgresses().get(0).getRemainingMillis() <= 60000);
+    }
+  }
+}
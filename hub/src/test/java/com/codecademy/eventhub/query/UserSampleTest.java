@@ -0,0 +1,50 @@
+package com.codecademy.eventhub.query;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UserSampleTest {
+  @Test
+  public void testAll() throws Exception {
+    UserSample all = UserSample.ALL;
+    UserSample tenth = new UserSample(0.1);
+    UserSample hundredth = new UserSample(0.01);
+    int numTenth = 0;
+    int numHundredth = 0;
+    for (int userId = 0; userId < 100000; userId++) {
+      Assert.assertTrue(all.contains(userId));
+      // the same users at every call, a smaller sample is a subset of a larger one
+      Assert.assertEquals(tenth.contains(userId), new UserSample(0.1).contains(userId));
+      if (hundredth.contains(userId)) {
+        Assert.assertTrue(tenth.contains(userId));
+        numHundredth++;
+      }
+      numTenth += tenth.contains(userId) ? 1 : 0;
+    }
+    Assert.assertEquals(10000, numTenth, 300);
+    Assert.assertEquals(1000, numHundredth, 100);
+
+    UserSample.Estimate estimate = all.estimate(42);
+    Assert.assertEquals(42, estimate.getCount());
+    Assert.assertEquals(42, estimate.getLowerBound());
+    Assert.assertEquals(42, estimate.getUpperBound());
+
+    // 100 users sampled out of 1000: 1.96 * sqrt(100 * 0.9) / 0.1 = 186
+    estimate = tenth.estimate(100);
+    Assert.assertEquals(1000, estimate.getCount());
+    Assert.assertEquals(814, estimate.getLowerBound());
+    Assert.assertEquals(1186, estimate.getUpperBound());
+    // never below the users actually seen
+    Assert.assertEquals(1, tenth.estimate(1).getLowerBound());
+    Assert.assertEquals(0, tenth.estimate(new int[] { 0 })[0].getUpperBound());
+
+    Assert.assertEquals(tenth, new UserSample(0.1));
+    Assert.assertNotEquals(tenth, hundredth);
+    try {
+      new UserSample(0);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -3,15 +3,23 @@ package com.codecademy.eventhub.storage;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
+import com.codecademy.eventhub.base.BloomFilter;
 import com.codecademy.eventhub.storage.filter.And;
 import com.codecademy.eventhub.storage.filter.ExactMatch;
 import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
 import com.codecademy.eventhub.integration.GuiceTestCase;
+import com.codecademy.eventhub.list.DmaFileModule;
+import com.codecademy.eventhub.list.DmaList;
 import com.codecademy.eventhub.model.Event;
 import org.junit.Assert;
 import org.junit.Test;
 
 import javax.inject.Provider;
+import java.io.File;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -75,23 +83,137 @@ public class BloomFilteredEventStorageTest extends GuiceTestCase {
       Assert.assertEquals(userIds[i], eventStorage.getUserId(i));
       Assert.assertEquals(eventTypeIds[i], eventStorage.getEventTypeId(i));
     }
+
+    long[] eventIds = new long[] { 2, 0, 1, 0 };
+    Event[] events = eventStorage.getEvents(eventIds);
+    Assert.assertEquals(eventIds.length, events.length);
+    for (int i = 0; i < eventIds.length; i++) {
+      Assert.assertEquals(eventTypes[(int) eventIds[i]], events[i].getEventType());
+    }
+    List<Long> acceptedEventIds = Lists.newArrayList();
+    eventStorage.visitEvents(new long[] { 0, 1, 2 }, new ExactMatch("foo3", "bar3"),
+        new CollectEventIds(acceptedEventIds));
+    Assert.assertEquals(Lists.newArrayList(1L, 2L), acceptedEventIds);
+    acceptedEventIds.clear();
+    // runs of consecutive ids are read at once, the others one at a time
+    eventStorage.visitEvents(new long[] { 0, 2, 0, 1 }, And.of(new ExactMatch("foo2", "bar2"),
+        new ExactMatch("foo1", "bar1")), new CollectEventIds(acceptedEventIds));
+    Assert.assertEquals(Lists.newArrayList(0L, 0L), acceptedEventIds);
+    acceptedEventIds.clear();
+    eventStorage.visitEvents(new long[] { 0, 1, 2 }, TrueFilter.INSTANCE,
+        new CollectEventIds(acceptedEventIds));
+    Assert.assertEquals(Lists.newArrayList(0L, 1L, 2L), acceptedEventIds);
+  }
+
+  @Test
+  public void testLegacyBloomFilters() throws Exception {
+    Injector injector = getInjector();
+    // a data directory written before blocked bloom filters
+    DmaList<BloomFilter> legacyBloomFilterDmaList = injector.getInstance(Key.get(
+        new TypeLiteral<DmaList<BloomFilter>>() {},
+        Names.named("eventhub.bloomfilteredeventstorage")));
+    CachedEventStorage cachedEventStorage = injector.getInstance(CachedEventStorage.class);
+    BloomFilter bloomFilter = BloomFilter.build(1, 64);
+    bloomFilter.add("foo1bar1");
+    legacyBloomFilterDmaList.add(bloomFilter);
+    cachedEventStorage.addEvent(new Event.Builder("a", "x", "20130101",
+        ImmutableMap.of("foo1", "bar1")).build(), 1, 1);
+    legacyBloomFilterDmaList.close();
+    cachedEventStorage.close();
+
+    BloomFilteredEventStorage eventStorage = injector.getInstance(BloomFilteredEventStorage.class);
+    eventStorage.addEvent(new Event.Builder("b", "y", "20130102",
+        ImmutableMap.of("foo2", "bar2")).build(), 2, 2);
+    Assert.assertTrue(new ExactMatch("foo1", "bar1").accept(eventStorage.getFilterVisitor(0)));
+    Assert.assertFalse(new ExactMatch("foo2", "bar2").accept(eventStorage.getFilterVisitor(0)));
+    Assert.assertTrue(new ExactMatch("foo2", "bar2").accept(eventStorage.getFilterVisitor(1)));
+    Assert.assertFalse(new ExactMatch("foo1", "bar1").accept(eventStorage.getFilterVisitor(1)));
+    for (String value : new String[] { "bar1", "bar2" }) {
+      List<Long> acceptedEventIds = Lists.newArrayList();
+      eventStorage.visitEvents(new long[] { 0, 1 }, new ExactMatch("foo" + value.charAt(3), value),
+          new CollectEventIds(acceptedEventIds));
+      Assert.assertEquals(Lists.newArrayList(value.equals("bar1") ? 0L : 1L), acceptedEventIds);
+    }
+    Assert.assertTrue(eventStorage.getVarz(0).contains("num legacy bloomfilters: 1"));
+    eventStorage.close();
+  }
+
+  @Test
+  public void testEventTypeStats() throws Exception {
+    Injector injector = getInjector();
+    Provider<BloomFilteredEventStorage> bloomFilteredEventStorageProvider =
+        injector.getProvider(BloomFilteredEventStorage.class);
+    BloomFilteredEventStorage eventStorage = bloomFilteredEventStorageProvider.get();
+    // an outlier, as many properties as take 4 blocks, then events needing a block each
+    ImmutableMap.Builder<String, String> outlierProperties = ImmutableMap.builder();
+    for (int i = 0; i < 200; i++) {
+      outlierProperties.put("foo" + i, "bar" + i);
+    }
+    eventStorage.addEvent(new Event.Builder("a", "x", "20130101", outlierProperties.build())
+        .build(), 1, 1);
+    for (int i = 0; i < 7; i++) {
+      eventStorage.addEvent(new Event.Builder("a", "x", "20130101",
+          ImmutableMap.of("foo", "bar")).build(), 1, 1);
+    }
+    // sized for the mean number of keys, the properties along with the event type, user and
+    // date, i.e. 4, 4, 3, 2, 2, 1, 1, 1 blocks rather than 4 each
+    String varz = "event type 1: 8 filters, 28.9 properties, 144.0 bytes/filter";
+    Assert.assertTrue(eventStorage.getVarz(0).contains(varz));
+    eventStorage.close();
+
+    // persisted on close
+    eventStorage = bloomFilteredEventStorageProvider.get();
+    Assert.assertTrue(eventStorage.getVarz(0).contains(varz));
+    eventStorage.close();
+
+    // or read back from the locations of the filters added since
+    String eventStorageDirectory = injector.getInstance(
+        Key.get(String.class, Names.named("eventhub.eventstorage.directory")));
+    Assert.assertTrue(new File(eventStorageDirectory + "/blocked_bloom_filter_stats.ser").delete());
+    eventStorage = bloomFilteredEventStorageProvider.get();
+    Assert.assertTrue(eventStorage.getVarz(0).contains(varz));
+    eventStorage.close();
+  }
+
+  private static class CollectEventIds implements EventStorage.Callback {
+    private final List<Long> eventIds;
+
+    private CollectEventIds(List<Long> eventIds) {
+      this.eventIds = eventIds;
+    }
+
+    @Override
+    public void onEventId(long eventId) {
+      eventIds.add(eventId);
+    }
   }
 
   private Provider<BloomFilteredEventStorage> getBloomFilteredEventStorageProvider() {
+    return getInjector().getProvider(BloomFilteredEventStorage.class);
+  }
+
+  private Injector getInjector() {
     Properties prop = new Properties();
     prop.put("eventhub.directory", getTempDirectory());
     prop.put("eventhub.journaleventstorage.numMetaDataPerFile", "1");
     prop.put("eventhub.journaleventstorage.metaDataFileCacheSize", "1");
+    prop.put("eventhub.journaleventstorage.metaDataBackend", "pread");
     prop.put("eventhub.journaleventstorage.journalFileSize", "1024");
     prop.put("eventhub.journaleventstorage.journalWriteBatchSize", "1024");
-    prop.put("eventhub.cachedeventstorage.recordCacheSize", "1");
+    prop.put("eventhub.journaleventstorage.numReadThreads", "2");
+    prop.put("eventhub.cachedeventstorage.cacheSize", "512");
+    prop.put("eventhub.cachedeventstorage.cacheSegmentSize", "256");
     prop.put("eventhub.bloomfilteredeventstorage.bloomFilterSize", "64");
     prop.put("eventhub.bloomfilteredeventstorage.numHashes", "1");
+    prop.put("eventhub.bloomfilteredeventstorage.numBitsPerProperty", "10");
     prop.put("eventhub.bloomfilteredeventstorage.numMetaDataPerFile", "1");
     prop.put("eventhub.bloomfilteredeventstorage.metaDataFileCacheSize", "1");
+    prop.put("eventhub.bloomfilteredeventstorage.metaDataBackend", "mmap");
+    prop.put("eventhub.bufferpool.pageSize", "64");
+    prop.put("eventhub.bufferpool.numPages", "2");
+    prop.put("eventhub.bufferpool.numSegments", "2");
+    prop.put("eventhub.pooleddmafile.maxIdleFiles", "2");
 
-    Injector injector = createInjectorFor(
-        prop, new EventStorageModule());
-    return injector.getProvider(BloomFilteredEventStorage.class);
+    return createInjectorFor(prop, new DmaFileModule(), new EventStorageModule());
   }
 }
@@ -2,19 +2,27 @@ package com.codecademy.eventhub.storage;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Injector;
 import com.codecademy.eventhub.storage.filter.And;
+import com.codecademy.eventhub.storage.filter.CompiledFilter;
 import com.codecademy.eventhub.storage.filter.ExactMatch;
 import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.Regex;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+import com.codecademy.eventhub.index.InvertedUserIndex;
 import com.codecademy.eventhub.integration.GuiceTestCase;
+import com.codecademy.eventhub.list.DmaFileModule;
 import com.codecademy.eventhub.model.User;
 import org.junit.Assert;
 import org.junit.Test;
 
 import javax.inject.Provider;
+import java.io.File;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.regex.Pattern;
 
 public class BloomFilteredUserStorageTest extends GuiceTestCase {
   @Test
@@ -63,6 +71,8 @@ public class BloomFilteredUserStorageTest extends GuiceTestCase {
     for (int i = 0; i < externalIds.length - 1; i++) {
       Assert.assertTrue(matchedFilters.get(i).accept(userStorage.getFilterVisitor(i)));
       Assert.assertFalse(unmatchedFilters.get(i).accept(userStorage.getFilterVisitor(i)));
+      Assert.assertTrue(userStorage.matches(i, CompiledFilter.compile(matchedFilters.get(i))));
+      Assert.assertFalse(userStorage.matches(i, CompiledFilter.compile(unmatchedFilters.get(i))));
       Assert.assertEquals(externalIds[i], userStorage.getUser(i).getExternalId());
       Assert.assertEquals(i, userStorage.getId(externalIds[i]));
       for (Map.Entry<String, String> entry : properties[i].entrySet()) {
@@ -79,6 +89,8 @@ public class BloomFilteredUserStorageTest extends GuiceTestCase {
     for (int i = 0; i < externalIds.length; i++) {
       Assert.assertTrue(matchedFilters.get(i).accept(userStorage.getFilterVisitor(i)));
       Assert.assertFalse(unmatchedFilters.get(i).accept(userStorage.getFilterVisitor(i)));
+      Assert.assertTrue(userStorage.matches(i, CompiledFilter.compile(matchedFilters.get(i))));
+      Assert.assertFalse(userStorage.matches(i, CompiledFilter.compile(unmatchedFilters.get(i))));
       Assert.assertEquals(externalIds[i], userStorage.getUser(i).getExternalId());
       Assert.assertEquals(i, userStorage.getId(externalIds[i]));
       for (Map.Entry<String, String> entry : properties[i].entrySet()) {
@@ -96,21 +108,84 @@ public class BloomFilteredUserStorageTest extends GuiceTestCase {
     }
   }
 
+  @Test
+  public void testIndexedQuery() throws Exception {
+    String directory = getTempDirectory();
+    Provider<BloomFilteredUserStorage> bloomFilteredUserStorageProvider =
+        getBloomFilteredUserStorageProvider(directory);
+    BloomFilteredUserStorage userStorage = bloomFilteredUserStorageProvider.get();
+    String[] externalIds = new String[] { "x", "y", "z" };
+    for (String externalId : externalIds) {
+      userStorage.ensureUser(externalId);
+      userStorage.updateUser(new User.Builder(externalId,
+          Maps.newHashMap(ImmutableMap.of("foo", "bar", "hello", externalId))).build());
+    }
+    userStorage.updateUser(new User.Builder("y",
+        Maps.newHashMap(ImmutableMap.of("foo", "baz", "hello", "y"))).build());
+
+    assertUserIds(userStorage, new ExactMatch("foo", "bar"), 0, 2);
+    assertUserIds(userStorage, new ExactMatch("foo", "baz"), 1);
+    assertUserIds(userStorage, And.of(new ExactMatch("foo", "bar"), new ExactMatch("hello", "z")), 2);
+    Assert.assertNull(userStorage.getIndexedQuery(new ExactMatch("external_user_id", "x")));
+    Assert.assertNull(userStorage.getIndexedQuery(new Regex("foo", Pattern.compile("ba."))));
+    userStorage.close();
+
+    userStorage = bloomFilteredUserStorageProvider.get();
+    assertUserIds(userStorage, new ExactMatch("foo", "bar"), 0, 2);
+    // hello goes past the max cardinality of 4
+    for (String externalId : new String[] { "u", "v" }) {
+      userStorage.ensureUser(externalId);
+      userStorage.updateUser(new User.Builder(externalId,
+          Maps.newHashMap(ImmutableMap.of("foo", "bar", "hello", externalId))).build());
+    }
+    Assert.assertNull(userStorage.getIndexedQuery(new ExactMatch("hello", "x")));
+    InvertedUserIndex.Query query = userStorage.getIndexedQuery(
+        And.of(new ExactMatch("foo", "bar"), new ExactMatch("hello", "x")));
+    Assert.assertEquals(4, query.getUserIds().getCardinality());
+    Assert.assertFalse(query.getRemainingFilter() instanceof TrueFilter);
+
+    // without the index file, as after a crash, the index is rebuilt from the users
+    userStorage.close();
+    Assert.assertTrue(new File(directory + "/user_storage/inverted_user_index.ser").delete());
+    userStorage = bloomFilteredUserStorageProvider.get();
+    assertUserIds(userStorage, new ExactMatch("foo", "bar"), 0, 2, 3, 4);
+    assertUserIds(userStorage, new ExactMatch("foo", "baz"), 1);
+  }
+
+  private void assertUserIds(UserStorage userStorage, Filter filter, int... userIds) {
+    InvertedUserIndex.Query query = userStorage.getIndexedQuery(filter);
+    Assert.assertSame(TrueFilter.INSTANCE, query.getRemainingFilter());
+    Assert.assertArrayEquals(userIds, query.getUserIds().toArray());
+  }
+
   private Provider<BloomFilteredUserStorage> getBloomFilteredUserStorageProvider() {
+    return getBloomFilteredUserStorageProvider(getTempDirectory());
+  }
+
+  private Provider<BloomFilteredUserStorage> getBloomFilteredUserStorageProvider(
+      String directory) {
     Properties prop = new Properties();
-    prop.put("eventhub.directory", getTempDirectory());
+    prop.put("eventhub.directory", directory);
     prop.put("eventhub.journaluserstorage.numMetaDataPerFile", "1");
     prop.put("eventhub.journaluserstorage.metaDataFileCacheSize", "1");
+    prop.put("eventhub.journaluserstorage.metaDataBackend", "pread");
     prop.put("eventhub.journaluserstorage.journalFileSize", "1024");
     prop.put("eventhub.journaluserstorage.journalWriteBatchSize", "1024");
-    prop.put("eventhub.cacheduserstorage.recordCacheSize", "1");
+    prop.put("eventhub.inverteduserindex.maxCardinality", "4");
+    prop.put("eventhub.cacheduserstorage.cacheSize", "512");
+    prop.put("eventhub.cacheduserstorage.cacheSegmentSize", "256");
     prop.put("eventhub.bloomfiltereduserstorage.bloomFilterSize", "64");
     prop.put("eventhub.bloomfiltereduserstorage.numHashes", "1");
     prop.put("eventhub.bloomfiltereduserstorage.numMetaDataPerFile", "1");
     prop.put("eventhub.bloomfiltereduserstorage.metaDataFileCacheSize", "1");
+    prop.put("eventhub.bloomfiltereduserstorage.metaDataBackend", "mmap");
+    prop.put("eventhub.bufferpool.pageSize", "64");
+    prop.put("eventhub.bufferpool.numPages", "2");
+    prop.put("eventhub.bufferpool.numSegments", "2");
+    prop.put("eventhub.pooleddmafile.maxIdleFiles", "2");
 
     Injector injector = createInjectorFor(
-        prop, new UserStorageModule());
+        prop, new DmaFileModule(), new UserStorageModule());
     return injector.getProvider(BloomFilteredUserStorage.class);
   }
 }
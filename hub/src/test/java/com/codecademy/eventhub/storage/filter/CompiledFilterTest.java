@@ -0,0 +1,70 @@
+package com.codecademy.eventhub.storage.filter;
+
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.visitor.EventFilterVisitor;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class CompiledFilterTest {
+  @Test
+  public void testAll() throws Exception {
+    Event event = new Event.Builder("signup", "10", "20130101",
+        Maps.newHashMap(ImmutableMap.of("plan", "pro", "country", "US",
+            "citt\u00e0", "Z\u00fcrich")))
+        .build();
+
+    Assert.assertTrue(CompiledFilter.ACCEPT_ALL.isAcceptAll());
+    Assert.assertTrue(event.matches(CompiledFilter.ACCEPT_ALL));
+    Assert.assertTrue(event.matches(CompiledFilter.compile(new ExactMatch("plan", "pro"))));
+    Assert.assertFalse(event.matches(CompiledFilter.compile(new ExactMatch("plan", "pr"))));
+    Assert.assertFalse(event.matches(CompiledFilter.compile(new ExactMatch("plan", "pro2"))));
+    // a missing key rejects the event
+    Assert.assertFalse(event.matches(CompiledFilter.compile(new ExactMatch("foo", "pro"))));
+    Assert.assertFalse(event.matches(CompiledFilter.compile(
+        new Regex("foo", Pattern.compile(".*")))));
+    Assert.assertTrue(event.matches(
+        CompiledFilter.compile(new ExactMatch("citt\u00e0", "Z\u00fcrich"))));
+    Assert.assertTrue(event.matches(
+        CompiledFilter.compile(new ExactMatch("event_type", "signup"))));
+
+    CompiledFilter filter = CompiledFilter.compile(And.of(
+        new Regex("country", Pattern.compile("U.")), TrueFilter.INSTANCE,
+        And.of(new ExactMatch("plan", "pro"))));
+    Assert.assertFalse(filter.isAcceptAll());
+    Assert.assertEquals(Lists.newArrayList(new ExactMatch("plan", "pro")),
+        filter.getExactMatches());
+    Assert.assertTrue(event.matches(filter));
+    Assert.assertFalse(event.matches(CompiledFilter.compile(And.of(
+        new Regex("country", Pattern.compile("U.")), new ExactMatch("plan", "free")))));
+  }
+
+  @Test
+  public void testSameAsVisitor() throws Exception {
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      Map<String, String> properties = Maps.newHashMap();
+      for (int j = random.nextInt(8); j > 0; j--) {
+        properties.put("k" + random.nextInt(10), "v" + random.nextInt(3));
+      }
+      Event event = new Event.Builder("e", "u", "20130101", properties).build();
+      List<Filter> terms = Lists.newArrayList();
+      for (int j = random.nextInt(3); j >= 0; j--) {
+        terms.add(random.nextBoolean()
+            ? new ExactMatch("k" + random.nextInt(10), "v" + random.nextInt(3))
+            : new Regex("k" + random.nextInt(10),
+                Pattern.compile("v[0-" + random.nextInt(3) + "]")));
+      }
+      Filter filter = new And(terms);
+      Assert.assertEquals(filter.accept(new EventFilterVisitor(event)),
+          event.matches(CompiledFilter.compile(filter)));
+    }
+  }
+}
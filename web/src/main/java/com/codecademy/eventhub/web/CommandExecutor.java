@@ -0,0 +1,152 @@
+package com.codecademy.eventhub.web;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CommandExecutor runs the commands of a pool on threads of their own, at most numThreads at a
+ * time with up to queueSize waiting, so that a burst of queries doesn't hold up the ingestion. A
+ * command finding the queue full is rejected at once with a SaturatedException hinting when to
+ * retry, the Jetty thread only waits for the commands it got in.
+ */
+public class CommandExecutor implements Closeable {
+  private final String name;
+  private final int numThreads;
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong numExecuted;
+  private final AtomicLong numRejected;
+  private final AtomicLong totalWaitNanos;
+  private final AtomicLong maxWaitNanos;
+  private final AtomicLong totalRunNanos;
+
+  public CommandExecutor(final String name, int numThreads, int queueSize, final int priority) {
+    this.name = name;
+    this.numThreads = numThreads;
+    this.executor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          private final AtomicInteger numThreads = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + numThreads.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+          }
+        });
+    this.numExecuted = new AtomicLong();
+    this.numRejected = new AtomicLong();
+    this.totalWaitNanos = new AtomicLong();
+    this.maxWaitNanos = new AtomicLong();
+    this.totalRunNanos = new AtomicLong();
+  }
+
+  // runs the task on the pool and waits for it, the exceptions of the task are rethrown as is
+  public void execute(final Task task) throws IOException {
+    final long submitTime = System.nanoTime();
+    Future<Void> future;
+    try {
+      future = executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          long startTime = System.nanoTime();
+          long waitNanos = startTime - submitTime;
+          totalWaitNanos.addAndGet(waitNanos);
+          long maxWait = maxWaitNanos.get();
+          while (waitNanos > maxWait && !maxWaitNanos.compareAndSet(maxWait, waitNanos)) {
+            maxWait = maxWaitNanos.get();
+          }
+          try {
+            task.run();
+          } finally {
+            totalRunNanos.addAndGet(System.nanoTime() - startTime);
+            numExecuted.incrementAndGet();
+          }
+          return null;
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      numRejected.incrementAndGet();
+      throw new SaturatedException(name, getRetryAfterSeconds());
+    }
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(name + " command interrupted");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  // the time for the threads to go through the queue at the average run time so far
+  public int getRetryAfterSeconds() {
+    long numExecuted = Math.max(1, this.numExecuted.get());
+    double averageRunSeconds = totalRunNanos.get() / 1e9 / numExecuted;
+    return (int) Math.max(1,
+        Math.ceil(averageRunSeconds * (executor.getQueue().size() + 1) / numThreads));
+  }
+
+  public String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    long numExecuted = Math.max(1, this.numExecuted.get());
+    return String.format(
+        indent + "num threads: %d\n" +
+        indent + "num active: %d\n" +
+        indent + "queue depth: %d\n" +
+        indent + "num executed: %d\n" +
+        indent + "num rejected: %d\n" +
+        indent + "average wait: %.3f ms\n" +
+        indent + "max wait: %.3f ms\n" +
+        indent + "average run: %.3f ms",
+        numThreads, executor.getActiveCount(), executor.getQueue().size(), this.numExecuted.get(),
+        numRejected.get(), totalWaitNanos.get() / 1e6 / numExecuted, maxWaitNanos.get() / 1e6,
+        totalRunNanos.get() / 1e6 / numExecuted);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+  public interface Task {
+    void run() throws IOException;
+  }
+
+  public static class SaturatedException extends RuntimeException {
+    private final int retryAfterSeconds;
+
+    public SaturatedException(String name, int retryAfterSeconds) {
+      super(name + " pool saturated");
+      this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+      return retryAfterSeconds;
+    }
+  }
+}
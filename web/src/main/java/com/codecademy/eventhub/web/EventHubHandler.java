@@ -2,11 +2,17 @@ package com.codecademy.eventhub.web;
 
 import com.codecademy.eventhub.EventHub;
 import com.codecademy.eventhub.EventHubModule;
+import com.codecademy.eventhub.index.ActiveUserIndexModule;
 import com.codecademy.eventhub.index.DatedEventIndexModule;
+import com.codecademy.eventhub.index.InvertedEventIndexModule;
 import com.codecademy.eventhub.index.PropertiesIndexModule;
+import com.codecademy.eventhub.index.RollupIndexModule;
 import com.codecademy.eventhub.index.ShardedEventIndexModule;
+import com.codecademy.eventhub.index.UniqueUserIndexModule;
 import com.codecademy.eventhub.index.UserEventIndexModule;
+import com.codecademy.eventhub.list.DmaFileModule;
 import com.codecademy.eventhub.list.DmaIdListModule;
+import com.codecademy.eventhub.query.QueryCancelledException;
 import com.codecademy.eventhub.storage.EventStorageModule;
 import com.codecademy.eventhub.storage.UserStorageModule;
 import com.codecademy.eventhub.web.commands.Command;
@@ -37,6 +43,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
@@ -44,18 +51,23 @@ import java.util.Properties;
 public class EventHubHandler extends AbstractHandler implements Closeable {
   private final EventHub eventHub;
   private final Map<String, Provider<Command>> commandsMap;
+  private final Map<String, CommandExecutor> executorsMap;
+  private final Collection<CommandExecutor> executors;
   public static boolean isLogging;
   private static Log log = LogFactory.getLog(EventHubHandler.class);
 
-  public EventHubHandler(EventHub eventHub, Map<String, Provider<Command>> commandsMaps) {
+  public EventHubHandler(EventHub eventHub, Map<String, Provider<Command>> commandsMaps,
+      Map<String, CommandExecutor> executorsMap, Collection<CommandExecutor> executors) {
     this.eventHub = eventHub;
     this.commandsMap = commandsMaps;
+    this.executorsMap = executorsMap;
+    this.executors = executors;
     isLogging = true;
   }
 
   @Override
-  public void handle(String target, Request baseRequest, HttpServletRequest request,
-      HttpServletResponse response) throws IOException, ServletException {
+  public void handle(String target, Request baseRequest, final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException, ServletException {
     request.setCharacterEncoding("utf-8");
     try{
       if (isLogging) {
@@ -71,16 +83,34 @@ public class EventHubHandler extends AbstractHandler implements Closeable {
           break;
         case "/varz":
           response.getWriter().println(eventHub.getVarz());
+          for (CommandExecutor executor : executors) {
+            response.getWriter().println(String.format("\n==== %s pool ====\n%s",
+                executor.getName(), executor.getVarz(0)));
+          }
           baseRequest.setHandled(true);
           break;
         default:
-          Provider<Command> commandProvider = commandsMap.get(target);
+          final Provider<Command> commandProvider = commandsMap.get(target);
           if (commandProvider != null) {
-            commandProvider.get().execute(request, response);
+            executorsMap.get(target).execute(new CommandExecutor.Task() {
+              @Override
+              public void run() throws IOException {
+                commandProvider.get().execute(request, response);
+              }
+            });
             baseRequest.setHandled(true);
           }
           break;
       }
+    } catch (CommandExecutor.SaturatedException e) {
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+      response.getWriter().println("\"" + e.getMessage() + "\"");
+      baseRequest.setHandled(true);
+    } catch (QueryCancelledException e) {
+      response.setStatus(HttpServletResponse.SC_REQUEST_TIMEOUT);
+      response.getWriter().println("\"" + e.getMessage() + "\"");
+      baseRequest.setHandled(true);
     }catch (Exception e){
       log.error("unknownException", e);
     }
@@ -88,6 +118,9 @@ public class EventHubHandler extends AbstractHandler implements Closeable {
 
   @Override
   public void close() throws IOException {
+    for (CommandExecutor executor : executors) {
+      executor.close();
+    }
     eventHub.close();
   }
 
@@ -106,10 +139,15 @@ public class EventHubHandler extends AbstractHandler implements Closeable {
     properties.putAll(System.getProperties());
 
     Injector injector = Guice.createInjector(Modules.override(
+        new DmaFileModule(),
         new DmaIdListModule(),
         new DatedEventIndexModule(),
         new ShardedEventIndexModule(),
         new PropertiesIndexModule(),
+        new InvertedEventIndexModule(),
+        new ActiveUserIndexModule(),
+        new RollupIndexModule(),
+        new UniqueUserIndexModule(),
         new UserEventIndexModule(),
         new EventStorageModule(),
         new UserStorageModule(),
@@ -13,16 +13,24 @@ import com.google.inject.Injector;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.codecademy.eventhub.base.KeyValueCallback;
+import com.codecademy.eventhub.index.ActiveUserIndex;
 import com.codecademy.eventhub.index.DatedEventIndex;
+import com.codecademy.eventhub.index.InvertedEventIndex;
 import com.codecademy.eventhub.index.PropertiesIndex;
+import com.codecademy.eventhub.index.RollupIndex;
 import com.codecademy.eventhub.index.ShardedEventIndex;
+import com.codecademy.eventhub.index.UniqueUserIndex;
 import com.codecademy.eventhub.index.UserEventIndex;
+import com.codecademy.eventhub.list.DmaFileFactories;
 import com.codecademy.eventhub.model.Event;
 import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.query.QueryCache;
+import com.codecademy.eventhub.query.StandingQueries;
 import com.codecademy.eventhub.storage.BloomFilteredEventStorage;
 import com.codecademy.eventhub.storage.BloomFilteredUserStorage;
 import com.codecademy.eventhub.web.commands.Command;
 import com.codecademy.eventhub.web.commands.Path;
+import com.codecademy.eventhub.web.commands.Pool;
 import org.reflections.Reflections;
 
 import javax.inject.Named;
@@ -30,6 +38,7 @@ import javax.inject.Provider;
 import java.lang.reflect.Type;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 public class Module extends AbstractModule {
   private static final String PACKAGE_NAME = "com.codecademy.eventhub.web.commands";
@@ -53,25 +62,75 @@ public class Module extends AbstractModule {
       ShardedEventIndex shardedEventIndex,
       DatedEventIndex datedEventIndex,
       PropertiesIndex propertiesIndex,
+      InvertedEventIndex invertedEventIndex,
+      ActiveUserIndex activeUserIndex,
+      RollupIndex rollupIndex,
+      UniqueUserIndex uniqueUserIndex,
       UserEventIndex userEventIndex,
       BloomFilteredEventStorage eventStorage,
-      BloomFilteredUserStorage userStorage) {
+      BloomFilteredUserStorage userStorage,
+      @Named("eventhub.querypool") ForkJoinPool queryPool,
+      QueryCache queryCache,
+      StandingQueries standingQueries,
+      DmaFileFactories dmaFileFactories) {
     return new EventHub(directory, shardedEventIndex, datedEventIndex, propertiesIndex,
-        userEventIndex, eventStorage, userStorage);
+        invertedEventIndex, activeUserIndex, rollupIndex, uniqueUserIndex, userEventIndex,
+        eventStorage, userStorage, queryPool, queryCache, standingQueries,
+        dmaFileFactories);
   }
 
   @Provides
-  private EventHubHandler getEventHubHandler(Injector injector, EventHub eventHub)
+  @Singleton
+  @Named("eventhubhandler.pool.ingest")
+  private CommandExecutor getIngestExecutor(
+      @Named("eventhubhandler.pool.ingest.numThreads") int numThreads,
+      @Named("eventhubhandler.pool.ingest.queueSize") int queueSize,
+      @Named("eventhubhandler.pool.ingest.priority") int priority) {
+    return new CommandExecutor("ingest", numThreads, queueSize, priority);
+  }
+
+  @Provides
+  @Singleton
+  @Named("eventhubhandler.pool.query")
+  private CommandExecutor getQueryExecutor(
+      @Named("eventhubhandler.pool.query.numThreads") int numThreads,
+      @Named("eventhubhandler.pool.query.queueSize") int queueSize,
+      @Named("eventhubhandler.pool.query.priority") int priority) {
+    return new CommandExecutor("query", numThreads, queueSize, priority);
+  }
+
+  @Provides
+  @Singleton
+  @Named("eventhubhandler.pool.bulk")
+  private CommandExecutor getBulkExecutor(
+      @Named("eventhubhandler.pool.bulk.numThreads") int numThreads,
+      @Named("eventhubhandler.pool.bulk.queueSize") int queueSize,
+      @Named("eventhubhandler.pool.bulk.priority") int priority) {
+    return new CommandExecutor("bulk", numThreads, queueSize, priority);
+  }
+
+  @Provides
+  private EventHubHandler getEventHubHandler(Injector injector, EventHub eventHub,
+      @Named("eventhubhandler.pool.ingest") CommandExecutor ingestExecutor,
+      @Named("eventhubhandler.pool.query") CommandExecutor queryExecutor,
+      @Named("eventhubhandler.pool.bulk") CommandExecutor bulkExecutor)
       throws ClassNotFoundException {
+    Map<Pool.Type, CommandExecutor> executors = Maps.newEnumMap(Pool.Type.class);
+    executors.put(Pool.Type.INGEST, ingestExecutor);
+    executors.put(Pool.Type.QUERY, queryExecutor);
+    executors.put(Pool.Type.BULK, bulkExecutor);
     Map<String, Provider<Command>> commandsMap = Maps.newHashMap();
+    Map<String, CommandExecutor> executorsMap = Maps.newHashMap();
     Reflections reflections = new Reflections(PACKAGE_NAME);
     Set<Class<? extends Command>> commandClasses = reflections.getSubTypesOf(Command.class);
     for (Class<? extends Command> commandClass : commandClasses) {
       String path = commandClass.getAnnotation(Path.class).value();
+      Pool pool = commandClass.getAnnotation(Pool.class);
       //noinspection unchecked
       commandsMap.put(path, (Provider<Command>) injector.getProvider(commandClass));
+      executorsMap.put(path, executors.get(pool == null ? Pool.Type.QUERY : pool.value()));
     }
-    return new EventHubHandler(eventHub, commandsMap);
+    return new EventHubHandler(eventHub, commandsMap, executorsMap, executors.values());
   }
 
   private static class UserJsonSerializer implements JsonSerializer<User> {
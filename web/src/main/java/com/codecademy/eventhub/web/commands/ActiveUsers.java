@@ -0,0 +1,32 @@
+package com.codecademy.eventhub.web.commands;
+
+import com.codecademy.eventhub.EventHub;
+import com.google.gson.Gson;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@Path("/events/active_users")
+public class ActiveUsers extends Command {
+  private final Gson gson;
+  private final EventHub eventHub;
+
+  @Inject
+  public ActiveUsers(Gson gson, EventHub eventHub) {
+    this.gson = gson;
+    this.eventHub = eventHub;
+  }
+
+  @Override
+  public void execute(final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException {
+    int[] activeUserCounts = eventHub.getActiveUserCounts(
+        request.getParameter("event_type"),
+        request.getParameter("start_date"),
+        request.getParameter("end_date"),
+        Integer.parseInt(request.getParameter("num_days_per_window")));
+    response.getWriter().println(gson.toJson(activeUserCounts));
+  }
+}
@@ -9,6 +9,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
 @Path("/users/add_or_update")
+@Pool(Pool.Type.INGEST)
 public class AddOrUpdateUser extends Command {
   private final EventHub eventHub;
 
@@ -18,7 +19,7 @@ public class AddOrUpdateUser extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     int userId = eventHub.addOrUpdateUser(new User.Builder(
         request.getParameter("external_user_id"),
@@ -0,0 +1,39 @@
+package com.codecademy.eventhub.web.commands;
+
+import com.codecademy.eventhub.EventHub;
+import com.google.gson.Gson;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@Path("/standing_queries/add_cohort")
+@Pool(Pool.Type.BULK)
+public class AddStandingCohort extends Command {
+  private final Gson gson;
+  private final EventHub eventHub;
+
+  @Inject
+  public AddStandingCohort(Gson gson, EventHub eventHub) {
+    this.gson = gson;
+    this.eventHub = eventHub;
+  }
+
+  @Override
+  public void execute(final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException {
+    String name = request.getParameter("name");
+    eventHub.addStandingCohort(
+        name,
+        request.getParameter("start_date"),
+        request.getParameter("end_date"),
+        Integer.parseInt(request.getParameter("num_days_per_row")),
+        Integer.parseInt(request.getParameter("num_columns")),
+        request.getParameter("row_event_type"),
+        request.getParameter("column_event_type"),
+        getFilter(request.getParameterValues("refk[]"), request.getParameterValues("refv[]")),
+        getFilter(request.getParameterValues("cefk[]"), request.getParameterValues("cefv[]")));
+    response.getWriter().println(gson.toJson(eventHub.getStandingQueryResult(name)));
+  }
+}
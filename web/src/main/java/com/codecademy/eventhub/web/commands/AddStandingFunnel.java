@@ -0,0 +1,37 @@
+package com.codecademy.eventhub.web.commands;
+
+import com.codecademy.eventhub.EventHub;
+import com.google.gson.Gson;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@Path("/standing_queries/add_funnel")
+@Pool(Pool.Type.BULK)
+public class AddStandingFunnel extends Command {
+  private final Gson gson;
+  private final EventHub eventHub;
+
+  @Inject
+  public AddStandingFunnel(Gson gson, EventHub eventHub) {
+    this.gson = gson;
+    this.eventHub = eventHub;
+  }
+
+  @Override
+  public void execute(final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException {
+    String name = request.getParameter("name");
+    String[] funnelSteps = request.getParameterValues("funnel_steps[]");
+    eventHub.addStandingFunnel(
+        name,
+        request.getParameter("start_date"),
+        request.getParameter("end_date"),
+        funnelSteps,
+        Integer.parseInt(request.getParameter("num_days_to_complete_funnel")),
+        getFunnelEventFilters(request, funnelSteps));
+    response.getWriter().println(gson.toJson(eventHub.getStandingQueryResult(name)));
+  }
+}
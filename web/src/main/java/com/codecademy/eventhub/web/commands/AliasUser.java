@@ -8,6 +8,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
 @Path("/users/alias")
+@Pool(Pool.Type.INGEST)
 public class AliasUser extends Command {
   private final EventHub eventHub;
 
@@ -17,7 +18,7 @@ public class AliasUser extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     eventHub.aliasUser(
         request.getParameter("from_external_user_id"),
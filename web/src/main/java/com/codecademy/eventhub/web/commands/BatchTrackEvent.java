@@ -16,6 +16,7 @@ import java.util.List;
 import java.util.Map;
 
 @Path("/events/batch_track")
+@Pool(Pool.Type.INGEST)
 public class BatchTrackEvent extends Command {
   private final Gson gson;
   private final DateHelper dateHelper;
@@ -29,7 +30,7 @@ public class BatchTrackEvent extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
 
     List<Map<String, String>> events = gson.fromJson(
@@ -0,0 +1,27 @@
+package com.codecademy.eventhub.web.commands;
+
+import com.codecademy.eventhub.query.RunningQueries;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+// cheap, and has to get through while the query pool is saturated
+@Path("/queries/cancel")
+@Pool(Pool.Type.INGEST)
+public class CancelQuery extends Command {
+  private final RunningQueries runningQueries;
+
+  @Inject
+  public CancelQuery(RunningQueries runningQueries) {
+    this.runningQueries = runningQueries;
+  }
+
+  @Override
+  public void execute(final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException {
+    runningQueries.cancel(Long.parseLong(request.getParameter("id")));
+    response.getWriter().println("\"OK\"");
+  }
+}
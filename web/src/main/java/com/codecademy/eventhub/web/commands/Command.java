@@ -1,8 +1,10 @@
 package com.codecademy.eventhub.web.commands;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.codecademy.eventhub.query.UserSample;
 import com.codecademy.eventhub.storage.filter.And;
 import com.codecademy.eventhub.storage.filter.ExactMatch;
 import com.codecademy.eventhub.storage.filter.Filter;
@@ -41,6 +43,35 @@ public abstract class Command {
     return ret;
   }
 
+  // the filters of every step (efk[], efv[]) merged with those of each step (efk0[], efv0[]...)
+  protected List<Filter> getFunnelEventFilters(HttpServletRequest request, String[] funnelSteps) {
+    List<Filter> eventFilters = Lists.newArrayList();
+    for (int i = 0; i < funnelSteps.length; i++) {
+      Filter filter = getFilter(
+          merge(request.getParameterValues("efk[]"), request.getParameterValues("efk" + i + "[]")),
+          merge(request.getParameterValues("efv[]"), request.getParameterValues("efv" + i + "[]")));
+      eventFilters.add(filter);
+    }
+    return eventFilters;
+  }
+
+  // the fraction of the users sampled (sample), all of them when omitted
+  protected UserSample getSample(HttpServletRequest request) {
+    String sample = request.getParameter("sample");
+    return sample == null ? UserSample.ALL : new UserSample(Double.parseDouble(sample));
+  }
+
+  // how long the query may run (deadline_ms), up to the max of the server when omitted
+  protected long getDeadlineMillis(HttpServletRequest request) {
+    String deadlineMillis = request.getParameter("deadline_ms");
+    return deadlineMillis == null ? 0 : Long.parseLong(deadlineMillis);
+  }
+
+  // the counts of a sample, scaled back with their confidence intervals
+  protected Map<String, Object> getSampledResult(UserSample sample, Object estimates) {
+    return ImmutableMap.of("sample", sample.getFraction(), "estimates", estimates);
+  }
+
   protected Filter getFilter(String[] filterKeys, String[] filterValues) {
     if (filterKeys == null || filterValues == null) {
       return TrueFilter.INSTANCE;
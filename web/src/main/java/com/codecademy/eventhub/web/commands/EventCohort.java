@@ -2,7 +2,10 @@ package com.codecademy.eventhub.web.commands;
 
 import com.codecademy.eventhub.EventHub;
 import com.google.gson.Gson;
+import com.codecademy.eventhub.query.RunningQueries;
+import com.codecademy.eventhub.query.UserSample;
 import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
@@ -13,30 +16,58 @@ import java.io.IOException;
 public class EventCohort extends Command {
   private final Gson gson;
   private final EventHub eventHub;
+  private final RunningQueries runningQueries;
 
   @Inject
-  public EventCohort(Gson gson, EventHub eventHub) {
+  public EventCohort(Gson gson, EventHub eventHub, RunningQueries runningQueries) {
     this.gson = gson;
     this.eventHub = eventHub;
+    this.runningQueries = runningQueries;
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     Filter rowEventFilter = getFilter(request.getParameterValues("refk[]"),
         request.getParameterValues("refv[]"));
     Filter columnEventFilter = getFilter(request.getParameterValues("cefk[]"),
         request.getParameterValues("cefv[]"));
+    UserSample sample = getSample(request);
 
-    int[][] retentionTable = eventHub.getRetentionTable(
-        request.getParameter("start_date"),
-        request.getParameter("end_date"),
-        Integer.parseInt(request.getParameter("num_days_per_row")),
-        Integer.parseInt(request.getParameter("num_columns")),
-        request.getParameter("row_event_type"),
-        request.getParameter("column_event_type"),
-        rowEventFilter,
-        columnEventFilter);
+    // the sketches aren't filtered, filtered cohorts are always counted exactly
+    if (Boolean.parseBoolean(request.getParameter("approximate"))
+        && rowEventFilter == TrueFilter.INSTANCE && columnEventFilter == TrueFilter.INSTANCE) {
+      response.getWriter().println(gson.toJson(eventHub.getApproximateRetentionTable(
+          request.getParameter("start_date"),
+          request.getParameter("end_date"),
+          Integer.parseInt(request.getParameter("num_days_per_row")),
+          Integer.parseInt(request.getParameter("num_columns")),
+          request.getParameter("row_event_type"),
+          request.getParameter("column_event_type"))));
+      return;
+    }
+
+    int[][] retentionTable;
+    try (RunningQueries.Query query = runningQueries.start(String.format(
+        "cohort %s then %s from %s to %s", request.getParameter("row_event_type"),
+        request.getParameter("column_event_type"), request.getParameter("start_date"),
+        request.getParameter("end_date")), getDeadlineMillis(request))) {
+      retentionTable = eventHub.getRetentionTable(
+          request.getParameter("start_date"),
+          request.getParameter("end_date"),
+          Integer.parseInt(request.getParameter("num_days_per_row")),
+          Integer.parseInt(request.getParameter("num_columns")),
+          request.getParameter("row_event_type"),
+          request.getParameter("column_event_type"),
+          rowEventFilter,
+          columnEventFilter,
+          sample);
+    }
+    if (!sample.isAll()) {
+      response.getWriter().println(gson.toJson(
+          getSampledResult(sample, sample.estimate(retentionTable))));
+      return;
+    }
     response.getWriter().println(gson.toJson(retentionTable));
   }
 }
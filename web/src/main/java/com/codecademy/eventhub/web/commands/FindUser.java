@@ -1,5 +1,6 @@
 package com.codecademy.eventhub.web.commands;
 
+import com.google.common.collect.Maps;
 import com.google.gson.Gson;
 import com.codecademy.eventhub.EventHub;
 import com.codecademy.eventhub.model.User;
@@ -10,8 +11,10 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 @Path("/users/find")
+@Pool(Pool.Type.BULK)
 public class FindUser extends Command {
   private final Gson gson;
   private final EventHub eventHub;
@@ -23,12 +26,22 @@ public class FindUser extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     Filter filter = getFilter(
         request.getParameterValues("ufk[]"),
         request.getParameterValues("ufv[]"));
-    List<User> users = eventHub.findUsers(filter);
-    response.getWriter().println(gson.toJson(users));
+    String cursor = request.getParameter("cursor");
+    if (cursor == null) {
+      List<User> users = eventHub.findUsers(filter);
+      response.getWriter().println(gson.toJson(users));
+      return;
+    }
+    EventHub.UserPage userPage = eventHub.findUsers(filter, Integer.parseInt(cursor),
+        Integer.parseInt(request.getParameter("num_records")));
+    Map<String, Object> page = Maps.newLinkedHashMap();
+    page.put("users", userPage.getUsers());
+    page.put("next_cursor", userPage.getNextCursor());
+    response.getWriter().println(gson.toJson(page));
   }
 }
@@ -23,7 +23,7 @@ public class GetEventKeys extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     if(request.getParameter("event_type") == null || "".equals(request.getParameter("event_type"))){
       String event_types = request.getParameter("event_types");
@@ -21,7 +21,7 @@ public class GetEventTypes extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     List<String> eventTypes = eventHub.getEventTypes();
     response.getWriter().println(gson.toJson(eventTypes));
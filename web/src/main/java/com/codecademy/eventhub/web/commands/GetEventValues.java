@@ -21,7 +21,7 @@ public class GetEventValues extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     String prefix = request.getParameter("prefix");
     prefix = (prefix == null ? "" : prefix);
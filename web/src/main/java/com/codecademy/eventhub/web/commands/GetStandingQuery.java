@@ -0,0 +1,28 @@
+package com.codecademy.eventhub.web.commands;
+
+import com.codecademy.eventhub.EventHub;
+import com.google.gson.Gson;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@Path("/standing_queries/get")
+public class GetStandingQuery extends Command {
+  private final Gson gson;
+  private final EventHub eventHub;
+
+  @Inject
+  public GetStandingQuery(Gson gson, EventHub eventHub) {
+    this.gson = gson;
+    this.eventHub = eventHub;
+  }
+
+  @Override
+  public void execute(final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException {
+    response.getWriter().println(
+        gson.toJson(eventHub.getStandingQueryResult(request.getParameter("name"))));
+  }
+}
@@ -20,7 +20,7 @@ public class GetUserKeys extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     response.getWriter().println(gson.toJson(eventHub.getUserKeys()));
   }
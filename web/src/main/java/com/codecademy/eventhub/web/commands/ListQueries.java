@@ -0,0 +1,29 @@
+package com.codecademy.eventhub.web.commands;
+
+import com.codecademy.eventhub.query.RunningQueries;
+import com.google.gson.Gson;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+// cheap, and has to get through while the query pool is saturated
+@Path("/queries")
+@Pool(Pool.Type.INGEST)
+public class ListQueries extends Command {
+  private final Gson gson;
+  private final RunningQueries runningQueries;
+
+  @Inject
+  public ListQueries(Gson gson, RunningQueries runningQueries) {
+    this.gson = gson;
+    this.runningQueries = runningQueries;
+  }
+
+  @Override
+  public void execute(final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException {
+    response.getWriter().println(gson.toJson(runningQueries.getProgresses()));
+  }
+}
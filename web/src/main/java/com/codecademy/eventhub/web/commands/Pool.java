@@ -0,0 +1,14 @@
+package com.codecademy.eventhub.web.commands;
+
+import java.lang.annotation.ElementType;
+
+// the pool a command runs on, QUERY when not given, see CommandExecutor
+@java.lang.annotation.Target({ElementType.TYPE})
+@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)
+public @interface Pool {
+  Type value();
+
+  enum Type {
+    INGEST, QUERY, BULK
+  }
+}
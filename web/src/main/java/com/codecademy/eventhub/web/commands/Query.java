@@ -0,0 +1,69 @@
+package com.codecademy.eventhub.web.commands;
+
+import com.codecademy.eventhub.EventHub;
+import com.codecademy.eventhub.query.QueryPlan;
+import com.codecademy.eventhub.query.RunningQueries;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gson.Gson;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+// runs a statement of the query language, or only plans it with explain=true
+@Path("/query")
+public class Query extends Command {
+  private final Gson gson;
+  private final EventHub eventHub;
+  private final RunningQueries runningQueries;
+
+  @Inject
+  public Query(Gson gson, EventHub eventHub, RunningQueries runningQueries) {
+    this.gson = gson;
+    this.eventHub = eventHub;
+    this.runningQueries = runningQueries;
+  }
+
+  @Override
+  public void execute(final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException {
+    String statement = request.getParameter("q");
+    try {
+      if ("true".equals(request.getParameter("explain"))) {
+        response.getWriter().println(gson.toJson(toMap(eventHub.explain(statement))));
+        return;
+      }
+      Object result;
+      try (RunningQueries.Query query = runningQueries.start("query " + statement,
+          getDeadlineMillis(request))) {
+        result = eventHub.query(statement);
+      }
+      response.getWriter().println(gson.toJson(result));
+    } catch (IllegalArgumentException e) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.getWriter().println(gson.toJson(e.getMessage()));
+    }
+  }
+
+  private static Map<String, Object> toMap(QueryPlan plan) {
+    List<Map<String, Object>> steps = Lists.newArrayList();
+    for (QueryPlan.Step step : plan.getSteps()) {
+      Map<String, Object> map = Maps.newLinkedHashMap();
+      map.put("predicate", step.getPredicate());
+      map.put("access_path", step.getAccessPath().getName());
+      map.put("residual_filter", step.getResidualFilter());
+      map.put("estimated_rows", step.getEstimatedRows());
+      map.put("estimated_cost", step.getEstimatedCost());
+      steps.add(map);
+    }
+    Map<String, Object> map = Maps.newLinkedHashMap();
+    map.put("type", plan.getType());
+    map.put("estimated_cost", plan.getEstimatedCost());
+    map.put("steps", steps);
+    return map;
+  }
+}
@@ -0,0 +1,25 @@
+package com.codecademy.eventhub.web.commands;
+
+import com.codecademy.eventhub.EventHub;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@Path("/standing_queries/remove")
+public class RemoveStandingQuery extends Command {
+  private final EventHub eventHub;
+
+  @Inject
+  public RemoveStandingQuery(EventHub eventHub) {
+    this.eventHub = eventHub;
+  }
+
+  @Override
+  public void execute(final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException {
+    eventHub.removeStandingQuery(request.getParameter("name"));
+    response.getWriter().println("\"OK\"");
+  }
+}
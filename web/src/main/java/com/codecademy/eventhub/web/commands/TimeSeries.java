@@ -0,0 +1,37 @@
+package com.codecademy.eventhub.web.commands;
+
+import com.codecademy.eventhub.EventHub;
+import com.google.gson.Gson;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@Path("/events/time_series")
+public class TimeSeries extends Command {
+  private final Gson gson;
+  private final EventHub eventHub;
+
+  @Inject
+  public TimeSeries(Gson gson, EventHub eventHub) {
+    this.gson = gson;
+    this.eventHub = eventHub;
+  }
+
+  @Override
+  public void execute(final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException {
+    String eventType = request.getParameter("event_type");
+    String startDate = request.getParameter("start_date");
+    String endDate = request.getParameter("end_date");
+    String key = request.getParameter("key");
+    if (key == null) {
+      response.getWriter().println(gson.toJson(
+          eventHub.getDailyEventCounts(eventType, startDate, endDate)));
+    } else {
+      response.getWriter().println(gson.toJson(
+          eventHub.getDailyEventCounts(eventType, key, startDate, endDate)));
+    }
+  }
+}
@@ -10,6 +10,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
 @Path("/events/track")
+@Pool(Pool.Type.INGEST)
 public class TrackEvent extends Command {
   private final DateHelper dateHelper;
   private final EventHub eventHub;
@@ -21,7 +22,7 @@ public class TrackEvent extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     String date = request.getParameter("date");
     if (date == null) {
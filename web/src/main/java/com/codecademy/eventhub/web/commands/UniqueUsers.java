@@ -0,0 +1,37 @@
+package com.codecademy.eventhub.web.commands;
+
+import com.codecademy.eventhub.EventHub;
+import com.google.gson.Gson;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@Path("/events/unique_users")
+public class UniqueUsers extends Command {
+  private final Gson gson;
+  private final EventHub eventHub;
+
+  @Inject
+  public UniqueUsers(Gson gson, EventHub eventHub) {
+    this.gson = gson;
+    this.eventHub = eventHub;
+  }
+
+  @Override
+  public void execute(final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException {
+    String eventType = request.getParameter("event_type");
+    String startDate = request.getParameter("start_date");
+    String endDate = request.getParameter("end_date");
+    String key = request.getParameter("key");
+    if (key == null) {
+      response.getWriter().println(gson.toJson(
+          eventHub.getApproximateUniqueUserCount(eventType, startDate, endDate)));
+    } else {
+      response.getWriter().println(gson.toJson(
+          eventHub.getApproximateUniqueUserCounts(eventType, key, startDate, endDate)));
+    }
+  }
+}
@@ -22,7 +22,7 @@ public class UserTimeline extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     List<Event> userEvents = eventHub.getUserEvents(
         request.getParameter("external_user_id"),
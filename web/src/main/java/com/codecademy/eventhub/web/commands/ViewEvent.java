@@ -21,7 +21,7 @@ public class ViewEvent extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     Event event = eventHub.getEvent(Long.parseLong(request.getParameter("event_id")));
     response.getWriter().println(gson.toJson(event));